@@ -341,11 +341,13 @@ public class ArtifactFactory implements ArtifactResolver {
         if (artifact == null || artifact.differentOwnerOrRoot(owner, root)) {
           // There really should be a safety net that makes it impossible to create two Artifacts
           // with the same exec path but a different Owner, but we also need to reuse Artifacts from
-          // previous builds.
+          // previous builds. The exec path is interned so that, in the main repository, it is
+          // shared with the rooted path of the source file.
+          PathFragment internedExecPath = PathFragment.intern(execPath);
           artifact =
               (SourceArtifact)
-                  createArtifact(root, execPath, owner, type, /*contentBasedPath=*/ false);
-          sourceArtifactCache.putArtifact(execPath, artifact);
+                  createArtifact(root, internedExecPath, owner, type, /*contentBasedPath=*/ false);
+          sourceArtifactCache.putArtifact(internedExecPath, artifact);
         }
       } finally {
         lock.unlock();
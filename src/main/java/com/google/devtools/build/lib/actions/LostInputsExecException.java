@@ -19,6 +19,7 @@ import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.util.io.FileOutErr;
 import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
 import java.util.Set;
 import javax.annotation.Nullable;
 
@@ -126,6 +127,21 @@ public class LostInputsExecException extends ExecException {
     }
   }
 
+  /**
+   * An {@link IOException} wrapping a {@link LostInputsExecException}, for code that can only throw
+   * {@link IOException}s, like {@link ActionInputPrefetcher#prefetchFiles}.
+   */
+  public static class LostInputsIOException extends IOException {
+
+    public LostInputsIOException(LostInputsExecException cause) {
+      super(cause.getMessage(), cause);
+    }
+
+    public LostInputsExecException getLostInputsExecException() {
+      return (LostInputsExecException) getCause();
+    }
+  }
+
   /**
    * Specifies the owning {@link Artifact}s that were responsible for the lost inputs and whether
    * the inputs came from runfiles.
@@ -36,10 +36,10 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.EnumMap;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 /**
@@ -153,16 +153,18 @@ public class CompactPersistentActionCache implements ActionCache {
   private final PersistentMap<Integer, byte[]> map;
   private final PersistentStringIndexer indexer;
 
-  private final AtomicInteger hits = new AtomicInteger();
-  private final Map<MissReason, AtomicInteger> misses = new EnumMap<>(MissReason.class);
+  // Updated by every execution thread, so use striped counters rather than a single atomic.
+  private final LongAdder hits = new LongAdder();
+  private final Map<MissReason, LongAdder> misses = new EnumMap<>(MissReason.class);
 
   public CompactPersistentActionCache(Path cacheRoot, Clock clock) throws IOException {
     Path cacheFile = cacheFile(cacheRoot);
     Path journalFile = journalFile(cacheRoot);
     Path indexFile = cacheRoot.getChild("filename_index_v" + VERSION + ".blaze");
-    // we can now use normal hash map as backing map, since dependency checker
-    // will manually purge records from the action cache.
-    Map<Integer, byte[]> backingMap = new HashMap<>();
+    // No eviction is needed, since dependency checker will manually purge records from the
+    // action cache. The map must be concurrent because lookups don't synchronize with writers;
+    // only the PersistentMap journal needs writes to be serialized.
+    Map<Integer, byte[]> backingMap = new ConcurrentHashMap<>();
 
     try {
       indexer = PersistentStringIndexer.newPersistentStringIndexer(indexFile, clock);
@@ -193,7 +195,7 @@ public class CompactPersistentActionCache implements ActionCache {
         // externalization code below. Just skip it.
         continue;
       }
-      misses.put(reason, new AtomicInteger(0));
+      misses.put(reason, new LongAdder());
     }
   }
 
@@ -254,10 +256,8 @@ public class CompactPersistentActionCache implements ActionCache {
     if (index < 0) {
       return null;
     }
-    byte[] data;
-    synchronized (this) {
-      data = map.get(index);
-    }
+    // Lock-free: the backing map is concurrent, and entries are immutable byte arrays.
+    byte[] data = map.get(index);
     try {
       return data != null ? CompactPersistentActionCache.decode(indexer, data) : null;
     } catch (IOException e) {
@@ -440,24 +440,24 @@ public class CompactPersistentActionCache implements ActionCache {
 
   @Override
   public void accountHit() {
-    hits.incrementAndGet();
+    hits.increment();
   }
 
   @Override
   public void accountMiss(MissReason reason) {
-    AtomicInteger counter = misses.get(reason);
+    LongAdder counter = misses.get(reason);
     Preconditions.checkNotNull(counter, "Miss reason %s was not registered in the misses map "
         + "during cache construction", reason);
-    counter.incrementAndGet();
+    counter.increment();
   }
 
   @Override
   public void mergeIntoActionCacheStatistics(ActionCacheStatistics.Builder builder) {
-    builder.setHits(hits.get());
+    builder.setHits(hits.intValue());
 
     int totalMisses = 0;
-    for (Map.Entry<MissReason, AtomicInteger> entry : misses.entrySet()) {
-      int count = entry.getValue().get();
+    for (Map.Entry<MissReason, LongAdder> entry : misses.entrySet()) {
+      int count = entry.getValue().intValue();
       builder.addMissDetailsBuilder().setReason(entry.getKey()).setCount(count);
       totalMisses += count;
     }
@@ -466,9 +466,9 @@ public class CompactPersistentActionCache implements ActionCache {
 
   @Override
   public void resetStatistics() {
-    hits.set(0);
-    for (Map.Entry<MissReason, AtomicInteger> entry : misses.entrySet()) {
-      entry.getValue().set(0);
+    hits.reset();
+    for (Map.Entry<MissReason, LongAdder> entry : misses.entrySet()) {
+      entry.getValue().reset();
     }
   }
 }
@@ -0,0 +1,911 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.actions.cache.Protos.ActionCacheStatistics;
+import com.google.devtools.build.lib.actions.cache.Protos.ActionCacheStatistics.MissReason;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ConditionallyThreadSafe;
+import com.google.devtools.build.lib.util.VarInt;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+
+/**
+ * An implementation of the ActionCache interface that stores entries in an append-only log and
+ * locates them through an open-addressed hash index. Both files are memory-mapped.
+ *
+ * <p>Unlike {@link CompactPersistentActionCache}, this cache never holds all entries on the heap.
+ * An entry is only decoded from the mapped log when it is requested, and every {@link #put} and
+ * {@link #remove} is appended to the log right away. {@link #save} therefore only forces the
+ * mappings to disk and, once most of the log is garbage, compacts it.
+ *
+ * <p>The log is the source of truth; the index can always be rebuilt from it. Every log record
+ * carries a CRC32 checksum, and the index is only marked clean by {@link #save}. If the server died
+ * with a dirty index, the next load rescans the log and drops everything from the first record
+ * that fails its checksum.
+ *
+ * <p>Lookups are on the execution hot path and don't block each other: they probe the index under
+ * an optimistic read stamp of a {@link StampedLock}, and only fall back to a read lock if a writer
+ * interfered. Mapped files are therefore never truncated while in use; they are replaced instead,
+ * so that a stale probe never touches unmapped memory.
+ */
+@ConditionallyThreadSafe // condition: no other instance, in this or another server, may use the
+// same cache root. Within an instance, writers are serialized by 'lock'.
+public class MappedActionCache implements ActionCache {
+  private static final Logger logger = Logger.getLogger(MappedActionCache.class.getName());
+
+  private static final int VERSION = 1;
+
+  private static final int LOG_MAGIC = 0x6c6f6761; // "loga"
+  private static final int INDEX_MAGIC = 0x69647861; // "idxa"
+
+  private static final int NO_INPUT_DISCOVERY_COUNT = -1;
+
+  // Log layout: magic, version, the high-water mark, then records. Each record is a payload length,
+  // the CRC32 of the payload and the payload itself. A zero length marks the end of the log. No
+  // record was ever written at or past the high-water mark, which is raised ahead of the appends
+  // in steps of HIGH_WATER_MARK_STEP.
+  private static final int LOG_HIGH_WATER_MARK_OFFSET = 8;
+  private static final int LOG_HEADER_SIZE = 16;
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final byte RECORD_PUT = 1;
+  private static final byte RECORD_REMOVE = 2;
+  private static final long INITIAL_LOG_CAPACITY = 1 << 20;
+  private static final long MAX_LOG_CAPACITY = Integer.MAX_VALUE;
+  private static final long HIGH_WATER_MARK_STEP = 1 << 20;
+  // The log is only compacted once it is at least this big and mostly garbage.
+  private static final long MIN_COMPACTION_SIZE = 4 << 20;
+
+  // Index layout: a header followed by a power-of-two number of slots, probed linearly.
+  private static final int INDEX_MAGIC_OFFSET = 0;
+  private static final int INDEX_VERSION_OFFSET = 4;
+  private static final int INDEX_CAPACITY_OFFSET = 8;
+  private static final int INDEX_SIZE_OFFSET = 12;
+  private static final int INDEX_LOG_END_OFFSET = 16;
+  private static final int INDEX_LIVE_BYTES_OFFSET = 24;
+  private static final int INDEX_CLEAN_OFFSET = 32;
+  private static final int INDEX_HEADER_SIZE = 40;
+  // Each slot holds the (non-zero) key hash, the record length and the record offset in the log.
+  // A zero hash marks an empty slot.
+  private static final int SLOT_SIZE = 16;
+  private static final int SLOT_HASH_OFFSET = 0;
+  private static final int SLOT_LENGTH_OFFSET = 4;
+  private static final int SLOT_RECORD_OFFSET = 8;
+  private static final int INITIAL_INDEX_CAPACITY = 1 << 12;
+
+  private final Path cacheRoot;
+  private final Path logFile;
+  private final Path indexFile;
+
+  private final StampedLock lock = new StampedLock();
+
+  private FileChannel logChannel;
+  // Records are never modified once appended, so readers may use a stale mapping of the log as long
+  // as they got the record offset from a validated read of the index.
+  private volatile MappedByteBuffer log;
+  private volatile MappedByteBuffer index;
+
+  // The following fields mirror the index header and are guarded by 'lock'.
+  private int indexCapacity;
+  private int size;
+  private long logEnd;
+  private long liveBytes;
+  private boolean clean;
+
+  /**
+   * If non-null, contains the message from an {@code IOException} thrown by a previously failed
+   * write. Reported by the next call to {@link #save}.
+   */
+  private String deferredIOFailure;
+
+  // Updated by every execution thread, so use striped counters rather than a single atomic.
+  private final LongAdder hits = new LongAdder();
+  private final Map<MissReason, LongAdder> misses = new EnumMap<>(MissReason.class);
+
+  public MappedActionCache(Path cacheRoot) throws IOException {
+    this.cacheRoot = cacheRoot;
+    this.logFile = logFile(cacheRoot);
+    this.indexFile = indexFile(cacheRoot);
+    try {
+      open();
+    } catch (IOException e) {
+      close();
+      renameCorruptedFiles(cacheRoot);
+      throw new IOException("Failed to load action cache data", e);
+    }
+
+    for (MissReason reason : MissReason.values()) {
+      if (reason == MissReason.UNRECOGNIZED) {
+        // The presence of this enum value is a protobuf artifact and confuses our metrics
+        // externalization code below. Just skip it.
+        continue;
+      }
+      misses.put(reason, new LongAdder());
+    }
+  }
+
+  public static Path logFile(Path cacheRoot) {
+    return cacheRoot.getChild("action_log_v" + VERSION + ".blaze");
+  }
+
+  public static Path indexFile(Path cacheRoot) {
+    return cacheRoot.getChild("action_index_v" + VERSION + ".blaze");
+  }
+
+  private static Path compactedLogFile(Path cacheRoot) {
+    return cacheRoot.getChild("action_log_v" + VERSION + ".tmp");
+  }
+
+  private static Path newIndexFile(Path cacheRoot) {
+    return cacheRoot.getChild("action_index_v" + VERSION + ".tmp");
+  }
+
+  /**
+   * Rename corrupted files so they could be analyzed later. This would also ensure that next
+   * initialization attempt will create empty cache.
+   */
+  private static void renameCorruptedFiles(Path cacheRoot) {
+    for (Path path : new Path[] {logFile(cacheRoot), indexFile(cacheRoot)}) {
+      try {
+        if (path.exists()) {
+          path.renameTo(path.getParentDirectory().getChild(path.getBaseName() + ".bad"));
+        }
+      } catch (IOException e) {
+        // do nothing
+      }
+    }
+  }
+
+  private static FileChannel openChannel(Path path) throws IOException {
+    return FileChannel.open(
+        path.getPathFile().toPath(),
+        StandardOpenOption.CREATE,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+
+  private void open() throws IOException {
+    cacheRoot.createDirectoryAndParents();
+    logChannel = openChannel(logFile);
+
+    boolean newLog = logChannel.size() == 0;
+    log = logChannel.map(MapMode.READ_WRITE, 0, Math.max(logChannel.size(), INITIAL_LOG_CAPACITY));
+    if (newLog) {
+      log.putInt(0, LOG_MAGIC);
+      log.putInt(4, VERSION);
+    } else if (log.getInt(0) != LOG_MAGIC || log.getInt(4) != VERSION) {
+      throw new IOException("Action cache log has an unexpected header");
+    }
+
+    if (!newLog && indexFile.exists() && indexFile.getFileSize() >= INDEX_HEADER_SIZE) {
+      try (FileChannel indexChannel = openChannel(indexFile)) {
+        index = indexChannel.map(MapMode.READ_WRITE, 0, indexChannel.size());
+      }
+      if (readIndexHeader()) {
+        return;
+      }
+      logger.info("Action cache index is stale, rebuilding it from the log");
+    }
+    resetIndex(INITIAL_INDEX_CAPACITY);
+    replayLog();
+    markClean();
+  }
+
+  /**
+   * Reads the index header into the fields mirroring it.
+   *
+   * @return whether the index is consistent with the log and can be used as is
+   */
+  private boolean readIndexHeader() {
+    if (index.getInt(INDEX_MAGIC_OFFSET) != INDEX_MAGIC
+        || index.getInt(INDEX_VERSION_OFFSET) != VERSION
+        || index.getInt(INDEX_CLEAN_OFFSET) != 1) {
+      return false;
+    }
+    indexCapacity = index.getInt(INDEX_CAPACITY_OFFSET);
+    size = index.getInt(INDEX_SIZE_OFFSET);
+    logEnd = index.getLong(INDEX_LOG_END_OFFSET);
+    liveBytes = index.getLong(INDEX_LIVE_BYTES_OFFSET);
+    clean = true;
+    return Integer.bitCount(indexCapacity) == 1
+        && index.capacity() == INDEX_HEADER_SIZE + (long) indexCapacity * SLOT_SIZE
+        && size >= 0
+        && size < indexCapacity
+        && logEnd >= LOG_HEADER_SIZE
+        && logEnd <= log.capacity();
+  }
+
+  /**
+   * Replaces the index by an empty one of the given capacity. The new index is created as a new
+   * file that replaces the old one, since optimistic readers may still be probing the old mapping.
+   */
+  private void resetIndex(int capacity) throws IOException {
+    long length = INDEX_HEADER_SIZE + (long) capacity * SLOT_SIZE;
+    Path tmpFile = newIndexFile(cacheRoot);
+    tmpFile.delete();
+    MappedByteBuffer newIndex;
+    try (FileChannel indexChannel = openChannel(tmpFile)) {
+      newIndex = indexChannel.map(MapMode.READ_WRITE, 0, length);
+    }
+    newIndex.putInt(INDEX_MAGIC_OFFSET, INDEX_MAGIC);
+    newIndex.putInt(INDEX_VERSION_OFFSET, VERSION);
+    newIndex.putInt(INDEX_CAPACITY_OFFSET, capacity);
+    tmpFile.renameTo(indexFile);
+    index = newIndex;
+    indexCapacity = capacity;
+    size = 0;
+    logEnd = LOG_HEADER_SIZE;
+    liveBytes = 0;
+    clean = false;
+    writeIndexHeader();
+  }
+
+  private void writeIndexHeader() {
+    index.putInt(INDEX_SIZE_OFFSET, size);
+    index.putLong(INDEX_LOG_END_OFFSET, logEnd);
+    index.putLong(INDEX_LIVE_BYTES_OFFSET, liveBytes);
+    index.putInt(INDEX_CLEAN_OFFSET, clean ? 1 : 0);
+  }
+
+  private void markClean() throws IOException {
+    clean = true;
+    writeIndexHeader();
+    log.force();
+    index.force();
+  }
+
+  private void markDirty() {
+    if (clean) {
+      clean = false;
+      index.putInt(INDEX_CLEAN_OFFSET, 0);
+    }
+  }
+
+  /**
+   * Rebuilds the index by scanning the log from the start. The log is truncated at the first
+   * incomplete or corrupted record, which can only exist if the machine went down before the log
+   * was saved.
+   */
+  private void replayLog() throws IOException {
+    long offset = LOG_HEADER_SIZE;
+    while (true) {
+      byte[] payload = readPayload(log, offset);
+      if (payload == null) {
+        break;
+      }
+      ByteBuffer source = ByteBuffer.wrap(payload);
+      try {
+        byte type = source.get();
+        String key = readKey(source);
+        int length = RECORD_HEADER_SIZE + payload.length;
+        if (type == RECORD_PUT) {
+          indexPut(key, offset, length);
+        } else if (type == RECORD_REMOVE) {
+          indexRemove(key);
+        } else {
+          break;
+        }
+      } catch (BufferUnderflowException e) {
+        break;
+      }
+      offset += RECORD_HEADER_SIZE + payload.length;
+    }
+    logEnd = offset;
+    // Clear whatever follows the last good record, so that records written after the corruption in
+    // a previous server can never be confused with records written from now on. Nothing was written
+    // past the high-water mark, so the rest of the mapping is left alone.
+    long highWaterMark = Math.min(log.getLong(LOG_HIGH_WATER_MARK_OFFSET), log.capacity());
+    for (int i = (int) offset; i < highWaterMark; i++) {
+      if (log.get(i) != 0) {
+        log.put(i, (byte) 0);
+      }
+    }
+  }
+
+  /**
+   * Returns the payload of the record at the given offset, or null if there is no valid record
+   * there.
+   */
+  @Nullable
+  private static byte[] readPayload(ByteBuffer log, long offset) {
+    if (offset + RECORD_HEADER_SIZE > log.capacity()) {
+      return null;
+    }
+    int length = log.getInt((int) offset);
+    if (length <= 0 || offset + RECORD_HEADER_SIZE + length > log.capacity()) {
+      return null;
+    }
+    int checksum = log.getInt((int) offset + 4);
+    byte[] payload = new byte[length];
+    ByteBuffer source = log.duplicate();
+    source.position((int) offset + RECORD_HEADER_SIZE);
+    source.get(payload);
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    return (int) crc.getValue() == checksum ? payload : null;
+  }
+
+  private static String readKey(ByteBuffer source) {
+    byte[] keyBytes = new byte[VarInt.getVarInt(source)];
+    source.get(keyBytes);
+    return new String(keyBytes, ISO_8859_1);
+  }
+
+  private static int hash(String key) {
+    int h = key.hashCode();
+    // Spread the bits, since String.hashCode() clusters for similar paths.
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    return h == 0 ? 1 : h;
+  }
+
+  private static int slotPosition(int slot) {
+    return INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  /** Returns whether the record at the given log offset is for the given key. */
+  private boolean recordHasKey(long offset, byte[] keyBytes) {
+    ByteBuffer source = log.duplicate();
+    source.position((int) offset + RECORD_HEADER_SIZE + 1);
+    if (VarInt.getVarInt(source) != keyBytes.length) {
+      return false;
+    }
+    for (byte b : keyBytes) {
+      if (source.get() != b) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the index slot holding the given key, or -1 if there is none. */
+  private int findSlot(String key) {
+    byte[] keyBytes = key.getBytes(ISO_8859_1);
+    int h = hash(key);
+    int mask = indexCapacity - 1;
+    // The index is never full, but an optimistic reader may observe a torn update; bound the
+    // probe so that it terminates regardless.
+    for (int i = 0, slot = h & mask; i <= mask; i++, slot = (slot + 1) & mask) {
+      int pos = slotPosition(slot);
+      int slotHash = index.getInt(pos + SLOT_HASH_OFFSET);
+      if (slotHash == 0) {
+        return -1;
+      }
+      if (slotHash == h && recordHasKey(index.getLong(pos + SLOT_RECORD_OFFSET), keyBytes)) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the log offset of the record for the given key, or -1 if there is none. Must be
+   * called with at least a read stamp held, and its result validated if the stamp is optimistic.
+   */
+  private long findRecord(String key) {
+    int slot = findSlot(key);
+    return slot < 0 ? -1 : index.getLong(slotPosition(slot) + SLOT_RECORD_OFFSET);
+  }
+
+  /** Points the index entry for the given key at the record at the given offset. */
+  private void indexPut(String key, long offset, int length) throws IOException {
+    int slot = findSlot(key);
+    if (slot >= 0) {
+      int pos = slotPosition(slot);
+      liveBytes -= index.getInt(pos + SLOT_LENGTH_OFFSET);
+      index.putInt(pos + SLOT_LENGTH_OFFSET, length);
+      index.putLong(pos + SLOT_RECORD_OFFSET, offset);
+    } else {
+      if ((size + 1) * 4L > indexCapacity * 3L) {
+        growIndex();
+      }
+      insertSlot(hash(key), offset, length);
+      size++;
+    }
+    liveBytes += length;
+  }
+
+  private void insertSlot(int h, long offset, int length) {
+    int mask = indexCapacity - 1;
+    int slot = h & mask;
+    while (index.getInt(slotPosition(slot) + SLOT_HASH_OFFSET) != 0) {
+      slot = (slot + 1) & mask;
+    }
+    int pos = slotPosition(slot);
+    index.putInt(pos + SLOT_HASH_OFFSET, h);
+    index.putInt(pos + SLOT_LENGTH_OFFSET, length);
+    index.putLong(pos + SLOT_RECORD_OFFSET, offset);
+  }
+
+  /** Removes the index entry for the given key, if any. */
+  private boolean indexRemove(String key) {
+    int slot = findSlot(key);
+    if (slot < 0) {
+      return false;
+    }
+    liveBytes -= index.getInt(slotPosition(slot) + SLOT_LENGTH_OFFSET);
+    size--;
+    // Backward-shift deletion keeps linear probing correct without tombstones.
+    int mask = indexCapacity - 1;
+    int hole = slot;
+    for (int next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+      int nextPos = slotPosition(next);
+      int h = index.getInt(nextPos + SLOT_HASH_OFFSET);
+      if (h == 0) {
+        break;
+      }
+      int home = h & mask;
+      // Move the entry into the hole unless its home slot lies cyclically in (hole, next].
+      boolean homeBetween =
+          hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+      if (!homeBetween) {
+        int holePos = slotPosition(hole);
+        index.putInt(holePos + SLOT_HASH_OFFSET, h);
+        index.putInt(holePos + SLOT_LENGTH_OFFSET, index.getInt(nextPos + SLOT_LENGTH_OFFSET));
+        index.putLong(holePos + SLOT_RECORD_OFFSET, index.getLong(nextPos + SLOT_RECORD_OFFSET));
+        hole = next;
+      }
+    }
+    int holePos = slotPosition(hole);
+    index.putInt(holePos + SLOT_HASH_OFFSET, 0);
+    index.putInt(holePos + SLOT_LENGTH_OFFSET, 0);
+    index.putLong(holePos + SLOT_RECORD_OFFSET, 0);
+    return true;
+  }
+
+  private void growIndex() throws IOException {
+    int oldCapacity = indexCapacity;
+    int[] hashes = new int[size];
+    int[] lengths = new int[size];
+    long[] offsets = new long[size];
+    int n = 0;
+    for (int slot = 0; slot < oldCapacity; slot++) {
+      int pos = slotPosition(slot);
+      int h = index.getInt(pos + SLOT_HASH_OFFSET);
+      if (h != 0) {
+        hashes[n] = h;
+        lengths[n] = index.getInt(pos + SLOT_LENGTH_OFFSET);
+        offsets[n] = index.getLong(pos + SLOT_RECORD_OFFSET);
+        n++;
+      }
+    }
+    int oldSize = size;
+    long oldLogEnd = logEnd;
+    long oldLiveBytes = liveBytes;
+    resetIndex(oldCapacity * 2);
+    for (int i = 0; i < n; i++) {
+      insertSlot(hashes[i], offsets[i], lengths[i]);
+    }
+    size = oldSize;
+    logEnd = oldLogEnd;
+    liveBytes = oldLiveBytes;
+    writeIndexHeader();
+  }
+
+  /** Appends a record with the given payload to the log and returns its offset. */
+  private long append(byte[] payload) throws IOException {
+    long needed = logEnd + RECORD_HEADER_SIZE + payload.length + RECORD_HEADER_SIZE;
+    if (needed > log.capacity()) {
+      long newCapacity = Math.max(log.capacity() * 2L, needed);
+      if (newCapacity > MAX_LOG_CAPACITY) {
+        throw new IOException("Action cache log would exceed " + MAX_LOG_CAPACITY + " bytes");
+      }
+      log = logChannel.map(MapMode.READ_WRITE, 0, newCapacity);
+    }
+    if (needed > log.getLong(LOG_HIGH_WATER_MARK_OFFSET)) {
+      log.putLong(
+          LOG_HIGH_WATER_MARK_OFFSET, Math.min(needed + HIGH_WATER_MARK_STEP, log.capacity()));
+    }
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    long offset = logEnd;
+    ByteBuffer sink = log.duplicate();
+    sink.position((int) offset + RECORD_HEADER_SIZE);
+    sink.put(payload);
+    log.putInt((int) offset + 4, (int) crc.getValue());
+    // Write the length last, so a record only becomes visible to a replay once it is complete.
+    log.putInt((int) offset, payload.length);
+    logEnd = offset + RECORD_HEADER_SIZE + payload.length;
+    return offset;
+  }
+
+  private static byte[] encodeRecord(byte type, String key, @Nullable ActionCache.Entry entry) {
+    try {
+      byte[] keyBytes = key.getBytes(ISO_8859_1);
+      ByteArrayOutputStream sink = new ByteArrayOutputStream();
+      sink.write(type);
+      VarInt.putVarInt(keyBytes.length, sink);
+      sink.write(keyBytes);
+      if (entry != null) {
+        encode(entry, sink);
+      }
+      return sink.toByteArray();
+    } catch (IOException e) {
+      // This Exception can never be thrown by ByteArrayOutputStream.
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public ActionCache.Entry get(String key) {
+    long offset = -1;
+    MappedByteBuffer currentLog = null;
+    // Writers are rare compared to lookups, so first probe the index without taking the lock. A
+    // concurrent writer may make that probe fail arbitrarily, which the validation catches.
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        offset = findRecord(key);
+        currentLog = log;
+      } catch (RuntimeException e) {
+        stamp = 0;
+      }
+    }
+    if (!lock.validate(stamp)) {
+      stamp = lock.readLock();
+      try {
+        offset = findRecord(key);
+        currentLog = log;
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+    if (offset < 0) {
+      return null;
+    }
+    byte[] payload = readPayload(currentLog, offset);
+    if (payload == null) {
+      // return entry marked as corrupted.
+      return ActionCache.Entry.CORRUPTED;
+    }
+    try {
+      ByteBuffer source = ByteBuffer.wrap(payload);
+      source.get();
+      readKey(source);
+      return decode(source);
+    } catch (IOException | BufferUnderflowException e) {
+      // return entry marked as corrupted.
+      return ActionCache.Entry.CORRUPTED;
+    }
+  }
+
+  @Override
+  public void put(String key, ActionCache.Entry entry) {
+    Preconditions.checkState(!entry.isCorrupted());
+    byte[] payload = encodeRecord(RECORD_PUT, key, entry);
+    long stamp = lock.writeLock();
+    try {
+      markDirty();
+      long offset = append(payload);
+      indexPut(key, offset, RECORD_HEADER_SIZE + payload.length);
+      writeIndexHeader();
+    } catch (IOException e) {
+      deferredIOFailure = e.getMessage() + " during action cache update";
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public void remove(String key) {
+    long stamp = lock.writeLock();
+    try {
+      if (findSlot(key) < 0) {
+        return;
+      }
+      markDirty();
+      append(encodeRecord(RECORD_REMOVE, key, null));
+      indexRemove(key);
+      writeIndexHeader();
+    } catch (IOException e) {
+      deferredIOFailure = e.getMessage() + " during action cache update";
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public long save() throws IOException {
+    long stamp = lock.writeLock();
+    try {
+      /* Report a previously failing I/O operation. */
+      if (deferredIOFailure != null) {
+        try {
+          throw new IOException(deferredIOFailure);
+        } finally {
+          deferredIOFailure = null;
+        }
+      }
+      if (logEnd >= MIN_COMPACTION_SIZE && liveBytes * 2 < logEnd - LOG_HEADER_SIZE) {
+        compact();
+      }
+      if (!clean) {
+        markClean();
+      }
+      return logEnd + index.capacity();
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Rewrites the log so it only contains the live records. The index is marked dirty on disk before
+   * any of its slots is rewritten, and the compacted log is complete on disk before it replaces the
+   * old one, so a crash at any point leaves a log from which the index can be recovered.
+   */
+  private void compact() throws IOException {
+    // The slots are rewritten to point into the compacted log below, so they are inconsistent with
+    // the log on disk until the rename.
+    markDirty();
+    index.force();
+    Path tmpFile = compactedLogFile(cacheRoot);
+    tmpFile.delete();
+    long newLogEnd = LOG_HEADER_SIZE;
+    try (FileChannel tmpChannel = openChannel(tmpFile)) {
+      MappedByteBuffer tmp =
+          tmpChannel.map(MapMode.READ_WRITE, 0, Math.max(INITIAL_LOG_CAPACITY, liveBytes * 2));
+      tmp.putInt(0, LOG_MAGIC);
+      tmp.putInt(4, VERSION);
+      ByteBuffer source = log.duplicate();
+      ByteBuffer sink = tmp.duplicate();
+      sink.position(LOG_HEADER_SIZE);
+      for (int slot = 0; slot < indexCapacity; slot++) {
+        int pos = slotPosition(slot);
+        if (index.getInt(pos + SLOT_HASH_OFFSET) == 0) {
+          continue;
+        }
+        int length = index.getInt(pos + SLOT_LENGTH_OFFSET);
+        long offset = index.getLong(pos + SLOT_RECORD_OFFSET);
+        source.limit((int) offset + length).position((int) offset);
+        sink.put(source);
+        source.clear();
+        index.putLong(pos + SLOT_RECORD_OFFSET, newLogEnd);
+        newLogEnd += length;
+      }
+      tmp.putLong(LOG_HIGH_WATER_MARK_OFFSET, newLogEnd);
+      tmp.force();
+    }
+    logChannel.close();
+    tmpFile.renameTo(logFile);
+    logChannel = openChannel(logFile);
+    log = logChannel.map(MapMode.READ_WRITE, 0, logChannel.size());
+    logEnd = newLogEnd;
+    liveBytes = newLogEnd - LOG_HEADER_SIZE;
+    writeIndexHeader();
+  }
+
+  @Override
+  public void clear() {
+    long stamp = lock.writeLock();
+    try {
+      close();
+      logFile.delete();
+      indexFile.delete();
+      open();
+    } catch (IOException e) {
+      deferredIOFailure = e.getMessage() + " during action cache reset";
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Closes the log file. The mappings stay valid until they are garbage collected, but the cache
+   * must not be used anymore.
+   */
+  public void close() {
+    if (logChannel != null) {
+      try {
+        logChannel.close();
+      } catch (IOException e) {
+        // do nothing
+      }
+      logChannel = null;
+    }
+  }
+
+  @VisibleForTesting
+  int size() {
+    long stamp = lock.readLock();
+    try {
+      return size;
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  @Override
+  public String toString() {
+    long stamp = lock.readLock();
+    try {
+      return toStringLocked();
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  private String toStringLocked() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("Action cache (" + size + " records):\n");
+    int limit = size > 1000 ? 10 : size;
+    int ct = 0;
+    for (int slot = 0; slot < indexCapacity; slot++) {
+      if (index.getInt(slotPosition(slot) + SLOT_HASH_OFFSET) == 0) {
+        continue;
+      }
+      appendSlot(builder, slot);
+      if (++ct > limit) {
+        builder.append("...");
+        break;
+      }
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Dumps action cache content.
+   */
+  @Override
+  public void dump(PrintStream out) {
+    long stamp = lock.readLock();
+    try {
+      out.println("Action cache (" + size + " records):\n");
+      for (int slot = 0; slot < indexCapacity; slot++) {
+        if (index.getInt(slotPosition(slot) + SLOT_HASH_OFFSET) == 0) {
+          continue;
+        }
+        StringBuilder builder = new StringBuilder();
+        appendSlot(builder, slot);
+        out.println(builder);
+      }
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  private void appendSlot(StringBuilder builder, int slot) {
+    long offset = index.getLong(slotPosition(slot) + SLOT_RECORD_OFFSET);
+    byte[] payload = readPayload(log, offset);
+    if (payload == null) {
+      builder.append("-> <corrupted record at ").append(offset).append(">\n");
+      return;
+    }
+    ByteBuffer source = ByteBuffer.wrap(payload);
+    source.get();
+    String key = readKey(source);
+    String content;
+    try {
+      content = decode(source).toString();
+    } catch (IOException e) {
+      content = e + "\n";
+    }
+    builder.append("-> ").append(key).append("\n")
+        .append(content).append("  packed_len = ").append(payload.length).append("\n");
+  }
+
+  /**
+   * Writes the action data to the given sink. Unlike {@link CompactPersistentActionCache}, paths of
+   * discovered inputs are stored inline, so that entries can be decoded without an in-memory
+   * string index.
+   */
+  private static void encode(ActionCache.Entry entry, ByteArrayOutputStream sink)
+      throws IOException {
+    byte[] actionKeyBytes = entry.getActionKey().getBytes(ISO_8859_1);
+    Collection<String> files = entry.getPaths();
+
+    VarInt.putVarInt(actionKeyBytes.length, sink);
+    sink.write(actionKeyBytes);
+
+    DigestUtils.write(entry.getFileDigest(), sink);
+
+    VarInt.putVarInt(entry.discoversInputs() ? files.size() : NO_INPUT_DISCOVERY_COUNT, sink);
+    for (String file : files) {
+      byte[] fileBytes = file.getBytes(ISO_8859_1);
+      VarInt.putVarInt(fileBytes.length, sink);
+      sink.write(fileBytes);
+    }
+
+    DigestUtils.write(entry.getUsedClientEnvDigest(), sink);
+  }
+
+  /** Creates a new action cache entry from the action data remaining in the given buffer. */
+  private static ActionCache.Entry decode(ByteBuffer source) throws IOException {
+    try {
+      byte[] actionKeyBytes = new byte[VarInt.getVarInt(source)];
+      source.get(actionKeyBytes);
+      String actionKey = new String(actionKeyBytes, ISO_8859_1);
+
+      byte[] digest = DigestUtils.read(source);
+
+      int count = VarInt.getVarInt(source);
+      ImmutableList<String> files = null;
+      if (count != NO_INPUT_DISCOVERY_COUNT) {
+        if (count < 0) {
+          throw new IOException("Corrupted file count");
+        }
+        ImmutableList.Builder<String> builder = ImmutableList.builderWithExpectedSize(count);
+        for (int i = 0; i < count; i++) {
+          byte[] fileBytes = new byte[VarInt.getVarInt(source)];
+          source.get(fileBytes);
+          builder.add(new String(fileBytes, ISO_8859_1));
+        }
+        files = builder.build();
+      }
+
+      byte[] usedClientEnvDigest = DigestUtils.read(source);
+
+      if (source.remaining() > 0) {
+        throw new IOException("serialized entry data has not been fully decoded");
+      }
+      return new ActionCache.Entry(actionKey, usedClientEnvDigest, files, digest);
+    } catch (BufferUnderflowException | NegativeArraySizeException e) {
+      throw new IOException("encoded entry data is incomplete", e);
+    }
+  }
+
+  @Override
+  public void accountHit() {
+    hits.increment();
+  }
+
+  @Override
+  public void accountMiss(MissReason reason) {
+    LongAdder counter = misses.get(reason);
+    Preconditions.checkNotNull(counter, "Miss reason %s was not registered in the misses map "
+        + "during cache construction", reason);
+    counter.increment();
+  }
+
+  @Override
+  public void mergeIntoActionCacheStatistics(ActionCacheStatistics.Builder builder) {
+    builder.setHits(hits.intValue());
+
+    int totalMisses = 0;
+    for (Map.Entry<MissReason, LongAdder> entry : misses.entrySet()) {
+      int count = entry.getValue().intValue();
+      builder.addMissDetailsBuilder().setReason(entry.getKey()).setCount(count);
+      totalMisses += count;
+    }
+    builder.setMisses(totalMisses);
+  }
+
+  @Override
+  public void resetStatistics() {
+    hits.reset();
+    for (Map.Entry<MissReason, LongAdder> entry : misses.entrySet()) {
+      entry.getValue().reset();
+    }
+  }
+}
@@ -374,17 +374,14 @@ public final class CustomCommandLine extends CommandLine {
             hasMapEach ? (CommandLineItem.MapFn<Object>) arguments.get(argi++) : null;
         if (isNestedSet) {
           NestedSet<Object> values = (NestedSet<Object>) arguments.get(argi++);
-          ImmutableList<Object> list = values.toList();
-          mutatedValues = new ArrayList<>(list.size());
+          // Streams over the set rather than flattening it into a list that is thrown away.
+          mutatedValues = new ArrayList<>(Math.max(values.getSizeIfKnown(), 10));
           if (mapFn != null) {
             Consumer<String> args = mutatedValues::add; // Hoist out of loop to reduce GC
-            for (Object object : list) {
-              mapFn.expandToCommandLine(object, args);
-            }
+            values.forEach(object -> mapFn.expandToCommandLine(object, args));
           } else {
-            for (Object object : list) {
-              mutatedValues.add(CommandLineItem.expandToCommandLine(object));
-            }
+            values.forEach(
+                object -> mutatedValues.add(CommandLineItem.expandToCommandLine(object)));
           }
         } else {
           int count = (Integer) arguments.get(argi++);
@@ -44,6 +44,7 @@ import com.google.devtools.build.lib.packages.Provider;
 import com.google.devtools.build.lib.packages.Rule;
 import com.google.devtools.build.lib.packages.RuleClass;
 import com.google.devtools.build.lib.packages.RuleClass.ConfiguredTargetFactory.RuleErrorException;
+import com.google.devtools.build.lib.packages.SkylarkInfo;
 import com.google.devtools.build.lib.packages.SkylarkProviderIdentifier;
 import com.google.devtools.build.lib.packages.StructImpl;
 import com.google.devtools.build.lib.packages.StructProvider;
@@ -152,6 +153,10 @@ public final class SkylarkRuleConfiguredTargetUtil {
       }
       ConfiguredTarget configuredTarget = createTarget(skylarkRuleContext, target);
       if (configuredTarget != null) {
+        // No more Starlark code runs in this thread, and the configured target retains the
+        // providers, so replace their lists and dicts with compact frozen copies.
+        mutability.freeze();
+        compactProviders(target, mutability);
         // If there was error creating the ConfiguredTarget, no further validation is needed.
         // Null will be returned and the errors thus reported.
         SkylarkProviderValidationUtil.validateArtifacts(ruleContext);
@@ -175,6 +180,22 @@ public final class SkylarkRuleConfiguredTargetUtil {
     }
   }
 
+  /**
+   * Compacts the field values of the providers returned by a rule implementation, either as a list
+   * of providers or as a legacy struct.
+   */
+  private static void compactProviders(Object target, Mutability mutability) {
+    if (target instanceof SkylarkInfo) {
+      ((SkylarkInfo) target).compactFieldValues(mutability);
+    } else if (target instanceof Iterable) {
+      for (Object provider : (Iterable<?>) target) {
+        if (provider instanceof SkylarkInfo) {
+          ((SkylarkInfo) provider).compactFieldValues(mutability);
+        }
+      }
+    }
+  }
+
   private static void checkDeclaredProviders(
       ConfiguredTarget configuredTarget, AdvertisedProviderSet advertisedProviders, Location loc)
       throws EvalException {
@@ -87,12 +87,18 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 /** Adds support for fetching external code. */
 public class BazelRepositoryModule extends BlazeModule {
+  private static final Logger logger = Logger.getLogger(BazelRepositoryModule.class.getName());
+
   // Default location (relative to output user root) of the repository cache.
   public static final String DEFAULT_CACHE_LOCATION = "cache/repos/v1";
+  // Location (relative to the output base) of the downloads being prefetched.
+  private static final String PREFETCH_DIRECTORY = "repository_prefetch";
 
   // A map of repository handlers that can be looked up by rule class name.
   private final ImmutableMap<String, RepositoryFunction> repositoryHandlers;
@@ -162,11 +168,51 @@ public class BazelRepositoryModule extends BlazeModule {
     }
   }
 
+  private static class RepositoryCacheUsageInfoItem extends InfoItem {
+    private final RepositoryCache repositoryCache;
+
+    RepositoryCacheUsageInfoItem(RepositoryCache repositoryCache) {
+      super(
+          "repository_cache_usage",
+          "The number and size of the entries of the repository cache, in total and by the "
+              + "external repositories that used them",
+          /* hidden= */ true);
+      this.repositoryCache = repositoryCache;
+    }
+
+    @Override
+    public byte[] get(Supplier<BuildConfiguration> configurationSupplier, CommandEnvironment env)
+        throws AbruptExitException, InterruptedException {
+      if (!repositoryCache.isEnabled()) {
+        return print("repository cache disabled");
+      }
+      StringBuilder usage = new StringBuilder();
+      try {
+        usage.append("total: ").append(repositoryCache.getUsage());
+        for (Map.Entry<String, RepositoryCache.Usage> entry :
+            repositoryCache.getUsageByRepository().entrySet()) {
+          usage
+              .append('\n')
+              .append(entry.getKey().isEmpty() ? "<unknown>" : "@" + entry.getKey())
+              .append(": ")
+              .append(entry.getValue());
+        }
+      } catch (IOException e) {
+        throw new AbruptExitException(
+            "Failed to read the repository cache: " + e.getMessage(),
+            ExitCode.LOCAL_ENVIRONMENTAL_ERROR,
+            e);
+      }
+      return print(usage);
+    }
+  }
+
   @Override
   public void serverInit(OptionsParsingResult startupOptions, ServerBuilder builder) {
     builder.addCommands(new FetchCommand());
     builder.addCommands(new SyncCommand());
     builder.addInfoItems(new RepositoryCacheInfoItem(repositoryCache));
+    builder.addInfoItems(new RepositoryCacheUsageInfoItem(repositoryCache));
   }
 
   @Override
@@ -223,6 +269,8 @@ public class BazelRepositoryModule extends BlazeModule {
     RepositoryOptions repoOptions = env.getOptions().getOptions(RepositoryOptions.class);
     if (repoOptions != null) {
       repositoryCache.setHardlink(repoOptions.useHardlinks);
+      repositoryCache.setCacheExtractedTrees(repoOptions.cacheExtractedTrees);
+      repositoryCache.setMaxSize(repoOptions.repositoryCacheMaxSizeMb * 1024 * 1024);
       if (repoOptions.experimentalScaleTimeouts > 0.0) {
         skylarkRepositoryFunction.setTimeoutScaling(repoOptions.experimentalScaleTimeouts);
       } else {
@@ -289,6 +337,7 @@ public class BazelRepositoryModule extends BlazeModule {
             .handle(Event.warn("Ingoring request to scale http timeouts by a non-positive factor"));
         httpDownloader.setTimeoutScaling(1.0f);
       }
+      httpDownloader.setRangeConnections(repoOptions.repositoryDownloadConnections);
 
       if (repoOptions.repositoryOverrides != null) {
         // To get the usual latest-wins semantics, we need a mutable map, as the builder
@@ -335,6 +384,27 @@ public class BazelRepositoryModule extends BlazeModule {
             ImmutableSet.copyOf(repoOptions.experimentalVerifyRepositoryRules);
       }
       skylarkRepositoryFunction.setUseNativePatch(repoOptions.useNativePatch);
+
+      skylarkRepositoryFunction.setPrefetchDownloads(repoOptions.repositoryPrefetchJobs > 0);
+      httpDownloader
+          .getPrefetcher()
+          .start(
+              repoOptions.repositoryPrefetchJobs,
+              env.getOutputBase().getRelative(PREFETCH_DIRECTORY),
+              env.getReporter(),
+              env.getRepoEnv());
+    }
+  }
+
+  @Override
+  public void afterCommand() {
+    httpDownloader.getPrefetcher().stop();
+    try {
+      repositoryCache.evictLeastRecentlyUsed();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to evict entries from the repository cache", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
   }
 
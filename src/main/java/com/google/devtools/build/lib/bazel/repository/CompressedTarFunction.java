@@ -48,7 +48,8 @@ public abstract class CompressedTarFunction implements Decompressor {
     boolean foundPrefix = false;
     Set<String> availablePrefixes = new HashSet<>();
 
-    try (InputStream decompressorStream = getDecompressorStream(descriptor)) {
+    try (InputStream decompressorStream = getDecompressorStream(descriptor);
+        ParallelFileWriter writer = new ParallelFileWriter()) {
       TarArchiveInputStream tarStream = new TarArchiveInputStream(decompressorStream);
       TarArchiveEntry entry;
       while ((entry = tarStream.getNextTarEntry()) != null) {
@@ -68,6 +69,7 @@ public abstract class CompressedTarFunction implements Decompressor {
         }
 
         Path filePath = descriptor.repositoryPath().getRelative(entryPath.getPathFragment());
+        writer.awaitIfPending(filePath);
         FileSystemUtils.createDirectoryAndParents(filePath.getParentDirectory());
         if (entry.isDirectory()) {
           FileSystemUtils.createDirectoryAndParents(filePath);
@@ -93,12 +95,19 @@ public abstract class CompressedTarFunction implements Decompressor {
                 //   case-sensitive filesystem). GNU tar, for example, will drop the new link entry.
                 //   BSD tar on MacOS X (by default case-insensitive) errors and aborts extraction.
               } else {
+                writer.awaitIfPending(targetPath);
                 if (filePath.exists()) {
                   filePath.delete();
                 }
                 FileSystemUtils.createHardLink(filePath, targetPath);
               }
             }
+          } else if (entry.getSize() <= ParallelFileWriter.MAX_FILE_SIZE) {
+            // Small files are written in the background while we decompress the next entries.
+            byte[] contents = new byte[(int) entry.getSize()];
+            ByteStreams.readFully(tarStream, contents);
+            writer.write(
+                filePath, contents, entry.getMode(), entry.getLastModifiedDate().getTime());
           } else {
             try (OutputStream out = filePath.getOutputStream()) {
               ByteStreams.copy(tarStream, out);
@@ -116,6 +125,8 @@ public abstract class CompressedTarFunction implements Decompressor {
         }
       }
 
+      writer.awaitAll();
+
       if (prefix.isPresent() && !foundPrefix) {
         throw new CouldNotFindPrefixException(prefix.get(), availablePrefixes);
       }
@@ -0,0 +1,149 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.bazel.repository;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Writes the files extracted from an archive on a few threads, so that the thread reading the
+ * archive only decompresses, and the file system calls for many small files overlap.
+ *
+ * <p>The contents handed to the writer are held in memory until they are written, up to a bound
+ * on the total size; callers should write large files themselves. Writes of the same path are not
+ * ordered with respect to each other, so callers must call {@link #awaitIfPending} before touching
+ * a path again, and {@link #awaitAll} before linking to a file that may still be being written.
+ */
+final class ParallelFileWriter implements AutoCloseable {
+
+  /** The largest file that callers should hand to the writer instead of writing it themselves. */
+  static final int MAX_FILE_SIZE = 4 * 1024 * 1024;
+
+  private static final int DEFAULT_THREADS = 4;
+  private static final int DEFAULT_MAX_BYTES_IN_FLIGHT = 64 * 1024 * 1024;
+
+  private final ExecutorService executor;
+  private final int maxBytesInFlight;
+  private final Semaphore bytesInFlight;
+  private final Set<Path> pendingPaths = ConcurrentHashMap.newKeySet();
+  private final List<Future<?>> pendingWrites = new ArrayList<>();
+
+  ParallelFileWriter() {
+    this(DEFAULT_THREADS, DEFAULT_MAX_BYTES_IN_FLIGHT);
+  }
+
+  ParallelFileWriter(int threads, int maxBytesInFlight) {
+    this.executor =
+        Executors.newFixedThreadPool(
+            threads,
+            new ThreadFactoryBuilder()
+                .setNameFormat("archive-extraction-writer-%d")
+                .setDaemon(true)
+                .build());
+    this.maxBytesInFlight = maxBytesInFlight;
+    this.bytesInFlight = new Semaphore(maxBytesInFlight);
+  }
+
+  /**
+   * Writes {@code contents} to {@code path} in the background, then sets its mode and modification
+   * time. Blocks while the contents of earlier writes exceed the memory bound.
+   */
+  void write(Path path, byte[] contents, int mode, long lastModifiedMillis)
+      throws IOException, InterruptedException {
+    awaitIfPending(path);
+    int permits = Math.max(1, Math.min(contents.length, maxBytesInFlight));
+    bytesInFlight.acquire(permits);
+    pendingPaths.add(path);
+    pendingWrites.add(
+        executor.submit(
+            () -> {
+              try {
+                try (OutputStream out = path.getOutputStream()) {
+                  out.write(contents);
+                }
+                path.chmod(mode);
+                path.setLastModifiedTime(lastModifiedMillis);
+              } finally {
+                pendingPaths.remove(path);
+                bytesInFlight.release(permits);
+              }
+              return null;
+            }));
+  }
+
+  /** Waits for all writes if one of them is a write of {@code path}. */
+  void awaitIfPending(Path path) throws IOException, InterruptedException {
+    if (pendingPaths.contains(path)) {
+      awaitAll();
+    }
+  }
+
+  /** Waits for all writes, and rethrows the first error of any of them. */
+  void awaitAll() throws IOException, InterruptedException {
+    Throwable firstError = null;
+    try {
+      for (Future<?> write : pendingWrites) {
+        try {
+          write.get();
+        } catch (ExecutionException e) {
+          if (firstError == null) {
+            firstError = e.getCause();
+          }
+        } catch (CancellationException e) {
+          if (firstError == null) {
+            firstError = e;
+          }
+        }
+      }
+    } finally {
+      pendingWrites.clear();
+    }
+    if (firstError instanceof IOException) {
+      throw (IOException) firstError;
+    }
+    if (firstError instanceof RuntimeException) {
+      throw (RuntimeException) firstError;
+    }
+    if (firstError instanceof Error) {
+      throw (Error) firstError;
+    }
+    if (firstError != null) {
+      throw new IllegalStateException(firstError);
+    }
+  }
+
+  /**
+   * Cancels the writes that have not completed yet. The executor drops queued writes without
+   * completing their futures, so they are cancelled here for {@link #awaitAll} not to block.
+   */
+  @Override
+  public void close() {
+    for (Future<?> write : pendingWrites) {
+      write.cancel(/* mayInterruptIfRunning= */ true);
+    }
+    executor.shutdownNow();
+  }
+}
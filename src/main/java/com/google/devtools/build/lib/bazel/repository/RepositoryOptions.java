@@ -56,6 +56,30 @@ public class RepositoryOptions extends OptionsBase {
               + " cache hit, rather than copying. This is inteded to save disk space.")
   public boolean useHardlinks;
 
+  @Option(
+      name = "experimental_repository_cache_extracted_trees",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.BAZEL_CLIENT_OPTIONS,
+      effectTags = {OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+      help =
+          "If set, the repository cache also keeps the trees that download_and_extract extracts "
+              + "from archives with a known checksum, and later extractions of the same archive "
+              + "copy the files of the cached tree instead of downloading and extracting it "
+              + "again. With --experimental_repository_cache_hardlinks, the files are hardlinked "
+              + "instead, which is only safe if repository rules never modify them in place.")
+  public boolean cacheExtractedTrees;
+
+  @Option(
+      name = "experimental_repository_cache_max_size_mb",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.BAZEL_CLIENT_OPTIONS,
+      effectTags = {OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+      help =
+          "If positive, the least recently used entries of the repository cache are deleted at the "
+              + "end of each command until the cache is no larger than this many megabytes. "
+              + "`bazel info repository_cache_usage` shows which repositories use the cache.")
+  public long repositoryCacheMaxSizeMb;
+
   @Option(
       name = "distdir",
       oldName = "experimental_distdir",
@@ -69,6 +93,19 @@ public class RepositoryOptions extends OptionsBase {
               + "to download them.")
   public List<PathFragment> experimentalDistdir;
 
+  @Option(
+      name = "experimental_repository_prefetch_jobs",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.BAZEL_CLIENT_OPTIONS,
+      effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS},
+      help =
+          "If positive, the download of a repository that has a sha256 is started in the "
+              + "background as soon as the repository is requested, rather than when its rule "
+              + "gets to it, with at most this many such downloads at a time. The downloads go to "
+              + "the repository cache, where the rule finds them. Prefetches still running when "
+              + "the command ends are cancelled.")
+  public int repositoryPrefetchJobs;
+
   @Option(
       name = "http_timeout_scaling",
       defaultValue = "1.0",
@@ -77,6 +114,18 @@ public class RepositoryOptions extends OptionsBase {
       help = "Scale all timeouts related to http downloads by the given factor")
   public double httpTimeoutScaling;
 
+  @Option(
+      name = "experimental_repository_download_connections",
+      defaultValue = "1",
+      documentationCategory = OptionDocumentationCategory.BAZEL_CLIENT_OPTIONS,
+      effectTags = {OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+      help =
+          "If greater than 1, large files with a checksum are downloaded in ranges over this many "
+              + "connections, spread over their mirrors, if the servers support range requests. "
+              + "The ranges are kept in the repository cache, so an interrupted download resumes "
+              + "where it stopped.")
+  public int repositoryDownloadConnections;
+
   @Option(
     name = "override_repository",
     defaultValue = "null",
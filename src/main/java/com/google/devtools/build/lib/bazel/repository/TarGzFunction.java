@@ -34,8 +34,11 @@ public class TarGzFunction extends CompressedTarFunction {
   @Override
   protected InputStream getDecompressorStream(DecompressorDescriptor descriptor)
       throws IOException {
+    // Also give the inflater a large buffer: the default one of 512 bytes makes it refill its
+    // input far too often.
     return new GZIPInputStream(
         new BufferedInputStream(
-            new FileInputStream(descriptor.archivePath().getPathFile()), BUFFER_SIZE));
+            new FileInputStream(descriptor.archivePath().getPathFile()), BUFFER_SIZE),
+        BUFFER_SIZE);
   }
 }
@@ -82,7 +82,8 @@ public class ZipDecompressor implements Decompressor {
     // Store link, target info of symlinks, we create them after regular files are extracted.
     Map<Path, PathFragment> symlinks = new HashMap<>();
 
-    try (ZipReader reader = new ZipReader(descriptor.archivePath().getPathFile())) {
+    try (ZipReader reader = new ZipReader(descriptor.archivePath().getPathFile());
+        ParallelFileWriter writer = new ParallelFileWriter()) {
       Collection<ZipFileEntry> entries = reader.entries();
       for (ZipFileEntry entry : entries) {
         StripPrefixedPath entryPath = StripPrefixedPath.maybeDeprefix(entry.getName(), prefix);
@@ -91,8 +92,15 @@ public class ZipDecompressor implements Decompressor {
           continue;
         }
         extractZipEntry(
-            reader, entry, destinationDirectory, entryPath.getPathFragment(), prefix, symlinks);
+            reader,
+            writer,
+            entry,
+            destinationDirectory,
+            entryPath.getPathFragment(),
+            prefix,
+            symlinks);
       }
+      writer.awaitAll();
 
       if (prefix.isPresent() && !foundPrefix) {
         Set<String> prefixes = new HashSet<>();
@@ -118,6 +126,7 @@ public class ZipDecompressor implements Decompressor {
 
   private static void extractZipEntry(
       ZipReader reader,
+      ParallelFileWriter writer,
       ZipFileEntry entry,
       Path destinationDirectory,
       PathFragment strippedRelativePath,
@@ -130,6 +139,7 @@ public class ZipDecompressor implements Decompressor {
               "Failed to extract %s, zipped paths cannot be absolute", strippedRelativePath));
     }
     Path outputPath = destinationDirectory.getRelative(strippedRelativePath);
+    writer.awaitIfPending(outputPath);
     int permissions = getPermissions(entry.getExternalAttributes(), entry.getName());
     FileSystemUtils.createDirectoryAndParents(outputPath.getParentDirectory());
     boolean isDirectory = (permissions & S_IFDIR) == S_IFDIR;
@@ -153,6 +163,16 @@ public class ZipDecompressor implements Decompressor {
       }
       target = maybeDeprefixSymlink(target, prefix, destinationDirectory);
       symlinks.put(outputPath, target);
+    } else if (entry.getSize() <= ParallelFileWriter.MAX_FILE_SIZE) {
+      // Small files are written in the background while we inflate the next entries.
+      byte[] contents;
+      try (InputStream input = reader.getInputStream(entry)) {
+        contents = ByteStreams.toByteArray(input);
+      }
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      writer.write(outputPath, contents, permissions, entry.getTime());
     } else {
       try (InputStream input = reader.getInputStream(entry);
           OutputStream output = outputPath.getOutputStream()) {
@@ -16,16 +16,30 @@ package com.google.devtools.build.lib.bazel.repository.cache;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Multiset;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.vfs.Dirent;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import javax.annotation.Nullable;
 
@@ -80,26 +94,66 @@ public class RepositoryCache {
 
   // Repository cache subdirectories
   private static final String CAS_DIR = "content_addressable";
+  private static final String EXTRACTED_DIR = "extracted";
+  private static final String PARTIAL_DIR = "partial_downloads";
+  private static final String TRASH_DIR = "trash";
+
+  // The size of the cache as of the last eviction plus the entries added since.
+  @VisibleForTesting static final String TOTAL_SIZE_FILENAME = "total_size";
 
   // Rename cached files to this value to simplify lookup.
   public static final String DEFAULT_CACHE_FILENAME = "file";
   public static final String TMP_PREFIX = "tmp-";
   public static final String ID_PREFIX = "id-";
+  public static final String REPO_PREFIX = "repo-";
+  public static final String SIZE_PREFIX = "size-";
 
   @Nullable private Path repositoryCachePath;
   @Nullable private Path contentAddressablePath;
+  @Nullable private Path extractedPath;
+  @Nullable private Path partialPath;
   private boolean useHardlinks;
+  private boolean cacheExtractedTrees;
+  private long maxSize;
+
+  // The extracted trees that getExtractedTree is copying out of the cache, which must not be
+  // evicted until it is done. Guarded by this.
+  private final Multiset<Path> treesInUse = HashMultiset.create();
 
   public void setRepositoryCachePath(@Nullable Path repositoryCachePath) {
     this.repositoryCachePath = repositoryCachePath;
     this.contentAddressablePath = (repositoryCachePath != null)
         ? repositoryCachePath.getRelative(CAS_DIR) : null;
+    this.extractedPath =
+        (repositoryCachePath != null) ? repositoryCachePath.getRelative(EXTRACTED_DIR) : null;
+    this.partialPath =
+        (repositoryCachePath != null) ? repositoryCachePath.getRelative(PARTIAL_DIR) : null;
+  }
+
+  /**
+   * Sets the size in bytes that {@link #evictLeastRecentlyUsed} shrinks the cache to, or 0 for no
+   * limit.
+   */
+  public void setMaxSize(long maxSize) {
+    this.maxSize = maxSize;
   }
 
   public void setHardlink(boolean useHardlinks) {
     this.useHardlinks = useHardlinks;
   }
 
+  public void setCacheExtractedTrees(boolean cacheExtractedTrees) {
+    this.cacheExtractedTrees = cacheExtractedTrees;
+  }
+
+  /**
+   * @return true iff the cache path is set and the cache also keeps the trees extracted from the
+   *     archives it stores.
+   */
+  public boolean isExtractedTreeCacheEnabled() {
+    return isEnabled() && cacheExtractedTrees;
+  }
+
   /**
    * @return true iff the cache path is set.
    */
@@ -231,9 +285,13 @@ public class RepositoryCache {
     Path cacheEntry = keyType.getCachePath(contentAddressablePath).getRelative(cacheKey);
     Path cacheValue = cacheEntry.getRelative(DEFAULT_CACHE_FILENAME);
     Path tmpName = cacheEntry.getRelative(TMP_PREFIX + UUID.randomUUID());
+    boolean existed = cacheValue.exists();
     FileSystemUtils.createDirectoryAndParents(cacheEntry);
     FileSystemUtils.copyFile(sourcePath, tmpName);
     FileSystemUtils.moveFile(tmpName, cacheValue);
+    if (!existed) {
+      addToTotalSize(cacheValue.getFileSize());
+    }
 
     if (!Strings.isNullOrEmpty(canonicalId)) {
       byte[] canonicalIdBytes = canonicalId.getBytes(UTF_8);
@@ -266,6 +324,476 @@ public class RepositoryCache {
     return cacheKey;
   }
 
+  /**
+   * Copies the files of a cached extracted archive into a directory, if the archive was extracted
+   * into the cache before with the same type and prefix.
+   *
+   * <p>Like {@link #get}, the files are hardlinked instead if {@link #setHardlink} was set, and are
+   * then shared with the cache, so they must not be modified in place.
+   *
+   * @param cacheKey The checksum of the archive.
+   * @param keyType The type of key used. See: KeyType
+   * @param archiveType The type the archive was extracted as, or empty if it was guessed from the
+   *     name of the archive.
+   * @param stripPrefix The prefix that was stripped from the paths in the archive.
+   * @param targetDirectory The directory to copy the extracted files into.
+   * @return true if the extracted tree was in the cache.
+   */
+  public boolean getExtractedTree(
+      String cacheKey,
+      KeyType keyType,
+      String archiveType,
+      String stripPrefix,
+      Path targetDirectory)
+      throws IOException, InterruptedException {
+    Path tree;
+    synchronized (this) {
+      Preconditions.checkState(isExtractedTreeCacheEnabled());
+      assertKeyIsValid(cacheKey, keyType);
+      tree = getExtractedTreePath(cacheKey, keyType, archiveType, stripPrefix);
+      if (!tree.isDirectory(Symlinks.NOFOLLOW)) {
+        return false;
+      }
+      treesInUse.add(tree);
+    }
+    // The tree may be large, so it is copied without blocking the other uses of the cache.
+    try {
+      copyTree(tree, targetDirectory, useHardlinks);
+    } finally {
+      synchronized (this) {
+        treesInUse.remove(tree);
+      }
+    }
+    try {
+      FileSystemUtils.touchFile(tree);
+    } catch (IOException e) {
+      // Ignore, because the cache might be on a read-only volume.
+    }
+    return true;
+  }
+
+  /**
+   * Creates an empty directory to extract an archive into, before it is added to the cache with
+   * {@link #putExtractedTree}.
+   */
+  public Path createExtractedTreeDirectory(String cacheKey, KeyType keyType) throws IOException {
+    Preconditions.checkState(isExtractedTreeCacheEnabled());
+    assertKeyIsValid(cacheKey, keyType);
+    Path directory =
+        keyType
+            .getCachePath(extractedPath)
+            .getChild(cacheKey)
+            .getChild(TMP_PREFIX + UUID.randomUUID());
+    FileSystemUtils.createDirectoryAndParents(directory);
+    return directory;
+  }
+
+  /**
+   * Moves an archive extracted into a directory created by {@link #createExtractedTreeDirectory}
+   * into the cache. The archive must have been verified to have the given checksum.
+   *
+   * <p>Absolute symlinks to files in the extracted tree are made relative, so that they still
+   * point into the tree where it is copied to.
+   *
+   * <p>If another Bazel server sharing the cache added the same tree in the meantime, that tree is
+   * kept and {@code extractedDirectory} is deleted.
+   *
+   * <p>The size of the tree is recorded next to it, so that it does not have to be walked again to
+   * find out how large the cache is.
+   */
+  public synchronized void putExtractedTree(
+      String cacheKey,
+      KeyType keyType,
+      String archiveType,
+      String stripPrefix,
+      Path extractedDirectory)
+      throws IOException, InterruptedException {
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+    Preconditions.checkState(isExtractedTreeCacheEnabled());
+    assertKeyIsValid(cacheKey, keyType);
+    relativizeSymlinks(extractedDirectory, extractedDirectory);
+    Path tree = getExtractedTreePath(cacheKey, keyType, archiveType, stripPrefix);
+    if (!tree.exists(Symlinks.NOFOLLOW)) {
+      long size = getTreeSize(extractedDirectory);
+      try {
+        extractedDirectory.renameTo(tree);
+        FileSystemUtils.writeContent(getTreeSizePath(tree), UTF_8, Long.toString(size));
+        addToTotalSize(size);
+        return;
+      } catch (IOException e) {
+        // Renaming fails if the tree was added since the check above.
+        if (!tree.exists(Symlinks.NOFOLLOW)) {
+          throw e;
+        }
+      }
+    }
+    extractedDirectory.deleteTree();
+  }
+
+  private Path getExtractedTreePath(
+      String cacheKey, KeyType keyType, String archiveType, String stripPrefix) {
+    // The type and prefix are hashed so that any strings make a valid file name.
+    String extraction =
+        keyType.newHasher().putString(archiveType + "\0" + stripPrefix, UTF_8).hash().toString();
+    return keyType.getCachePath(extractedPath).getChild(cacheKey).getChild(extraction);
+  }
+
+  private static Path getTreeSizePath(Path tree) {
+    return tree.getParentDirectory().getChild(SIZE_PREFIX + tree.getBaseName());
+  }
+
+  private static void copyTree(Path from, Path to, boolean useHardlinks)
+      throws IOException, InterruptedException {
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+    FileSystemUtils.createDirectoryAndParents(to);
+    for (Dirent dirent : from.readdir(Symlinks.NOFOLLOW)) {
+      Path source = from.getChild(dirent.getName());
+      Path target = to.getChild(dirent.getName());
+      switch (dirent.getType()) {
+        case DIRECTORY:
+          copyTree(source, target, useHardlinks);
+          break;
+        case SYMLINK:
+          FileSystemUtils.ensureSymbolicLink(target, source.readSymbolicLink());
+          break;
+        default:
+          if (useHardlinks) {
+            if (target.exists(Symlinks.NOFOLLOW)) {
+              target.delete();
+            }
+            FileSystemUtils.createHardLink(target, source);
+          } else {
+            FileSystemUtils.copyFile(source, target);
+          }
+      }
+    }
+  }
+
+  private static void relativizeSymlinks(Path root, Path directory) throws IOException {
+    for (Dirent dirent : directory.readdir(Symlinks.NOFOLLOW)) {
+      Path child = directory.getChild(dirent.getName());
+      if (dirent.getType() == Dirent.Type.DIRECTORY) {
+        relativizeSymlinks(root, child);
+      } else if (dirent.getType() == Dirent.Type.SYMLINK) {
+        PathFragment target = child.readSymbolicLink();
+        if (target.isAbsolute() && target.startsWith(root.asFragment())) {
+          String up = Strings.repeat("../", directory.relativeTo(root).segmentCount());
+          child.delete();
+          child.createSymbolicLink(
+              PathFragment.create(up + ".").getRelative(target.relativeTo(root.asFragment())));
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns where a download in ranges of the file with the given checksum keeps the ranges it
+   * has fetched, so that they survive the deletion of the repository that needed the file.
+   */
+  public Path getPartialDownloadPath(String cacheKey, KeyType keyType) {
+    Preconditions.checkState(isEnabled());
+    return partialPath.getChild(keyType.getHashName() + "-" + cacheKey);
+  }
+
+  /**
+   * Records that an external repository used a cache entry, so that {@link #getUsageByRepository}
+   * can attribute the entry to it.
+   *
+   * @param cacheKey The string key of the entry.
+   * @param keyType The type of key used. See: KeyType
+   * @param repo The name of the external repository; does nothing if empty.
+   */
+  public synchronized void recordUse(String cacheKey, KeyType keyType, String repo) {
+    Preconditions.checkState(isEnabled());
+    Path cacheEntry = keyType.getCachePath(contentAddressablePath).getRelative(cacheKey);
+    if (Strings.isNullOrEmpty(repo) || !cacheEntry.exists()) {
+      return;
+    }
+    String repoHash = keyType.newHasher().putString(repo, UTF_8).hash().toString();
+    Path repoFile = cacheEntry.getChild(REPO_PREFIX + repoHash);
+    try {
+      if (!repoFile.exists()) {
+        FileSystemUtils.writeContent(repoFile, UTF_8, repo);
+      }
+    } catch (IOException e) {
+      // Ignore, because the cache might be on a read-only volume. The use is only bookkeeping.
+    }
+  }
+
+  /** The number and total size of a set of cache entries. */
+  public static final class Usage {
+    private int entries;
+    private long bytes;
+
+    public int getEntries() {
+      return entries;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    private void add(CacheEntry entry) {
+      entries++;
+      bytes += entry.bytes;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d entries, %d bytes", entries, bytes);
+    }
+  }
+
+  /** Returns the number and total size of the entries in the cache. */
+  public synchronized Usage getUsage() throws IOException {
+    Preconditions.checkState(isEnabled());
+    Usage usage = new Usage();
+    for (CacheEntry entry : listEntries()) {
+      usage.add(entry);
+    }
+    return usage;
+  }
+
+  /**
+   * Returns the number and total size of the entries in the cache used by each external repository,
+   * as recorded by {@link #recordUse}. An entry used by several repositories counts for each of
+   * them. Entries that no repository was recorded for count for the empty string.
+   */
+  public synchronized ImmutableSortedMap<String, Usage> getUsageByRepository()
+      throws IOException {
+    Preconditions.checkState(isEnabled());
+    Map<String, Usage> usageByRepository = new HashMap<>();
+    for (CacheEntry entry : listEntries()) {
+      Collection<String> repos = entry.repos.isEmpty() ? ImmutableList.of("") : entry.repos;
+      for (String repo : repos) {
+        usageByRepository.computeIfAbsent(repo, k -> new Usage()).add(entry);
+      }
+    }
+    return ImmutableSortedMap.copyOf(usageByRepository);
+  }
+
+  /**
+   * Deletes the least recently used entries of the cache until it is no larger than the size set
+   * with {@link #setMaxSize}, if any. Cache hits and additions count as uses of an entry.
+   *
+   * <p>The cache is only listed if the size recorded in its {@code total_size} file is unknown or
+   * over the limit. Additions by any Bazel server sharing the cache increase the recorded size,
+   * and each listing replaces it with the actual size of what is left. The ranges of unfinished
+   * downloads are not recorded as they are fetched, so they are only counted by the next listing.
+   *
+   * <p>Deleting an entry deletes the downloaded file together with the trees extracted from it and
+   * the ranges of an unfinished download of it. Repositories that hardlink the files of an entry
+   * keep their copies. The files of an entry are first moved aside into the {@code trash} directory
+   * and deleted from there, so that other Bazel servers sharing the cache never see half of an
+   * entry. Entries with a tree that {@link #getExtractedTree} is copying are kept.
+   *
+   * @return the number of entries deleted
+   */
+  public synchronized int evictLeastRecentlyUsed() throws IOException, InterruptedException {
+    if (!isEnabled() || maxSize <= 0) {
+      return 0;
+    }
+    long recordedSize = readTotalSize();
+    if (recordedSize >= 0 && recordedSize <= maxSize) {
+      return 0;
+    }
+    Path trash = repositoryCachePath.getChild(TRASH_DIR);
+    emptyTrash(trash);
+    List<CacheEntry> entries = new ArrayList<>(listEntries());
+    long size = 0;
+    for (CacheEntry entry : entries) {
+      size += entry.bytes;
+    }
+    entries.sort(Comparator.comparingLong(entry -> entry.lastUsed));
+    int evicted = 0;
+    for (CacheEntry entry : entries) {
+      if (size <= maxSize) {
+        break;
+      }
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      if (entry.paths.stream().anyMatch(treesInUse::contains)) {
+        // One of its trees is being copied out of the cache.
+        continue;
+      }
+      for (Path path : entry.paths) {
+        moveToTrash(path, trash);
+      }
+      size -= entry.bytes;
+      evicted++;
+    }
+    writeTotalSize(size);
+    return evicted;
+  }
+
+  private static void moveToTrash(Path path, Path trash) throws IOException {
+    if (!path.exists(Symlinks.NOFOLLOW)) {
+      // Another Bazel server sharing the cache evicted it already.
+      return;
+    }
+    FileSystemUtils.createDirectoryAndParents(trash);
+    Path trashed = trash.getChild(UUID.randomUUID().toString());
+    try {
+      path.renameTo(trashed);
+    } catch (IOException e) {
+      if (!path.exists(Symlinks.NOFOLLOW)) {
+        // Another Bazel server sharing the cache evicted it since the check above.
+        return;
+      }
+      throw e;
+    }
+    trashed.deleteTree();
+  }
+
+  /** Deletes what evictions that were interrupted left in the trash. */
+  private static void emptyTrash(Path trash) {
+    try {
+      if (trash.isDirectory()) {
+        for (Path trashed : trash.getDirectoryEntries()) {
+          trashed.deleteTree();
+        }
+      }
+    } catch (IOException e) {
+      // Ignore, because another Bazel server sharing the cache may be emptying it at the same time.
+    }
+  }
+
+  /** Returns the size recorded in the {@code total_size} file, or -1 if there is none. */
+  private long readTotalSize() {
+    try {
+      return Long.parseLong(
+          FileSystemUtils.readContent(repositoryCachePath.getChild(TOTAL_SIZE_FILENAME), UTF_8)
+              .trim());
+    } catch (IOException | NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private void writeTotalSize(long size) {
+    Path tmpName = repositoryCachePath.getChild(TMP_PREFIX + UUID.randomUUID());
+    try {
+      FileSystemUtils.writeContent(tmpName, UTF_8, Long.toString(size));
+      tmpName.renameTo(repositoryCachePath.getChild(TOTAL_SIZE_FILENAME));
+    } catch (IOException e) {
+      // Ignore, because the cache might be on a read-only volume; the next eviction lists it.
+      try {
+        tmpName.delete();
+      } catch (IOException e2) {
+        // Ignore.
+      }
+    }
+  }
+
+  /** Adds to the recorded size of the cache, unless it is unknown until the next eviction. */
+  private void addToTotalSize(long bytes) {
+    long size = readTotalSize();
+    if (size >= 0) {
+      writeTotalSize(size + bytes);
+    }
+  }
+
+  /** The files kept in the cache for the file with a given checksum. */
+  private static final class CacheEntry {
+    final List<Path> paths = new ArrayList<>();
+    final List<String> repos = new ArrayList<>();
+    long bytes;
+    long lastUsed;
+
+    void add(Path path, long bytes, long lastUsed) {
+      this.paths.add(path);
+      this.bytes += bytes;
+      this.lastUsed = Math.max(this.lastUsed, lastUsed);
+    }
+  }
+
+  private Collection<CacheEntry> listEntries() throws IOException {
+    Map<String, CacheEntry> entries = new HashMap<>();
+    for (KeyType keyType : KeyType.values()) {
+      Path downloads = keyType.getCachePath(contentAddressablePath);
+      if (downloads.isDirectory()) {
+        for (Path cacheEntry : downloads.getDirectoryEntries()) {
+          CacheEntry entry =
+              entries.computeIfAbsent(
+                  keyType.getHashName() + "-" + cacheEntry.getBaseName(), k -> new CacheEntry());
+          Path cacheValue = cacheEntry.getChild(DEFAULT_CACHE_FILENAME);
+          if (cacheValue.exists()) {
+            entry.add(cacheEntry, cacheValue.getFileSize(), cacheValue.getLastModifiedTime());
+          } else {
+            entry.add(cacheEntry, 0, cacheEntry.getLastModifiedTime());
+          }
+          for (Path child : cacheEntry.getDirectoryEntries()) {
+            if (child.getBaseName().startsWith(REPO_PREFIX)) {
+              entry.repos.add(FileSystemUtils.readContent(child, UTF_8));
+            }
+          }
+        }
+      }
+      Path extracted = keyType.getCachePath(extractedPath);
+      if (extracted.isDirectory()) {
+        for (Path cacheEntry : extracted.getDirectoryEntries()) {
+          CacheEntry entry =
+              entries.computeIfAbsent(
+                  keyType.getHashName() + "-" + cacheEntry.getBaseName(), k -> new CacheEntry());
+          for (Path tree : cacheEntry.getDirectoryEntries()) {
+            String name = tree.getBaseName();
+            if (name.startsWith(SIZE_PREFIX)) {
+              entry.add(tree, 0, 0);
+            } else if (!name.startsWith(TMP_PREFIX)) {
+              // The trees that are still being extracted are skipped.
+              entry.add(tree, getRecordedTreeSize(tree), tree.getLastModifiedTime());
+            }
+          }
+        }
+      }
+    }
+    if (partialPath.isDirectory()) {
+      for (Path partial : partialPath.getDirectoryEntries()) {
+        // The ranges of a download are recorded next to it in a file with an extra extension.
+        String name = partial.getBaseName();
+        int extension = name.indexOf('.');
+        String key = extension == -1 ? name : name.substring(0, extension);
+        entries
+            .computeIfAbsent(key, k -> new CacheEntry())
+            .add(partial, partial.getFileSize(), partial.getLastModifiedTime());
+      }
+    }
+    return entries.values();
+  }
+
+  /**
+   * Returns the size recorded for an extracted tree by {@link #putExtractedTree}, or walks the tree
+   * if the size was not recorded.
+   */
+  private static long getRecordedTreeSize(Path tree) throws IOException {
+    Path sizeFile = getTreeSizePath(tree);
+    if (sizeFile.exists()) {
+      try {
+        return Long.parseLong(FileSystemUtils.readContent(sizeFile, UTF_8).trim());
+      } catch (NumberFormatException e) {
+        // The size was being written when the server that added the tree was killed.
+      }
+    }
+    return getTreeSize(tree);
+  }
+
+  private static long getTreeSize(Path directory) throws IOException {
+    long size = 0;
+    for (Dirent dirent : directory.readdir(Symlinks.NOFOLLOW)) {
+      Path child = directory.getChild(dirent.getName());
+      if (dirent.getType() == Dirent.Type.DIRECTORY) {
+        size += getTreeSize(child);
+      } else if (dirent.getType() == Dirent.Type.FILE) {
+        size += child.getFileSize();
+      }
+    }
+    return size;
+  }
+
   private void ensureCacheDirectoryExists(KeyType keyType) throws IOException {
     Path directoryPath = keyType.getCachePath(contentAddressablePath);
     if (!directoryPath.exists()) {
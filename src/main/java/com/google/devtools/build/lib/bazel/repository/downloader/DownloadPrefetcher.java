@@ -0,0 +1,248 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.bazel.repository.downloader;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache;
+import com.google.devtools.build.lib.events.ExtendedEventHandler;
+import com.google.devtools.build.lib.util.OS;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+
+/**
+ * Downloads files into the {@link RepositoryCache} in the background, before the repository rules
+ * that need them ask for them, so that these downloads overlap with the rest of the fetches.
+ *
+ * <p>Prefetching only ever fills the repository cache. The repository rules still download their
+ * files through {@link HttpDownloader#download}, which waits for a prefetch of the same file that
+ * is in flight and then finds the file in the cache, or takes over a prefetch that has not started
+ * yet. So only files with a known checksum can be prefetched, and a failed prefetch is not an
+ * error: the file is downloaded again, and the failure reported, if a repository rule needs it.
+ *
+ * <p>Prefetches run on low-priority threads and take their connections from their own pool of
+ * permits, so that they never hold up the downloads that repository rules are waiting for.
+ */
+public class DownloadPrefetcher {
+
+  private final HttpDownloader downloader;
+  private final RepositoryCache repositoryCache;
+
+  /** The prefetches of the current command, by cache key. */
+  private final ConcurrentMap<String, Prefetch> prefetches = new ConcurrentHashMap<>();
+
+  @Nullable private ExecutorService executor;
+  private Semaphore permits;
+  private Path downloadDirectory;
+  private ExtendedEventHandler eventHandler;
+  private Map<String, String> clientEnv;
+
+  DownloadPrefetcher(HttpDownloader downloader, RepositoryCache repositoryCache) {
+    this.downloader = downloader;
+    this.repositoryCache = repositoryCache;
+  }
+
+  /**
+   * Starts accepting prefetches for a command, running at most {@code jobs} of them at the same
+   * time. Does nothing if {@code jobs} is not positive or the repository cache is disabled.
+   *
+   * @param downloadDirectory a directory the prefetcher may use for its files in flight
+   * @param eventHandler the handler for the progress events of prefetches
+   * @param clientEnv environment variables in shell issuing the command
+   */
+  public synchronized void start(
+      int jobs,
+      Path downloadDirectory,
+      ExtendedEventHandler eventHandler,
+      Map<String, String> clientEnv) {
+    stop();
+    if (jobs <= 0 || !repositoryCache.isEnabled()) {
+      return;
+    }
+    this.downloadDirectory = downloadDirectory;
+    this.eventHandler = eventHandler;
+    this.clientEnv = ImmutableMap.copyOf(clientEnv);
+    this.permits = new Semaphore(jobs, true);
+    this.executor =
+        Executors.newFixedThreadPool(
+            jobs,
+            new ThreadFactoryBuilder()
+                .setNameFormat("download-prefetcher-%d")
+                .setDaemon(true)
+                .setPriority(Thread.MIN_PRIORITY)
+                .build());
+  }
+
+  /**
+   * Cancels the prefetches in flight, interrupting their downloads, and stops accepting new ones
+   * until the next call to {@link #start}.
+   */
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+    prefetches.clear();
+  }
+
+  /**
+   * Schedules the download of a file into the repository cache, unless it is already there or
+   * being prefetched, or prefetching is not enabled.
+   *
+   * @param urls list of mirror URLs with identical content
+   * @param checksum the checksum of the file, under which it is stored in the cache
+   * @param canonicalId the canonical id the file is stored with in the cache
+   * @param repo the name of the external repository that declared the file; used only for
+   *     reporting
+   * @param netrc the {@code netrc} attribute of the repository rule, from which {@code
+   *     http_archive} and its siblings compute their authorization headers: the absolute path of a
+   *     {@code .netrc} file, or empty for {@code $HOME/.netrc}. Null if the rule has no such
+   *     attribute and so does not authenticate.
+   */
+  public synchronized void prefetch(
+      List<URL> urls,
+      Checksum checksum,
+      String canonicalId,
+      String repo,
+      @Nullable String netrc) {
+    if (executor == null || urls.isEmpty()) {
+      return;
+    }
+    if (!Strings.isNullOrEmpty(netrc) && !PathFragment.create(netrc).isAbsolute()) {
+      // Relative to the directory of the repository, which is only known to the rule.
+      return;
+    }
+    String key = cacheKey(checksum);
+    if (prefetches.containsKey(key)
+        || repositoryCache.exists(checksum.toString(), checksum.getKeyType())) {
+      return;
+    }
+    ImmutableList<URL> urlsCopy = ImmutableList.copyOf(urls);
+    Path directory = downloadDirectory.getChild(key);
+    ExtendedEventHandler eventHandler = this.eventHandler;
+    Map<String, String> clientEnv = this.clientEnv;
+    Semaphore permits = this.permits;
+    AtomicBoolean started = new AtomicBoolean();
+    Future<?> future =
+        executor.submit(
+            () -> {
+              if (!started.compareAndSet(false, true)) {
+                // A repository rule needed the file first and downloads it itself.
+                return null;
+              }
+              Map<URI, Map<String, String>> authHeaders =
+                  getAuthHeaders(urlsCopy, netrc, directory, clientEnv);
+              try {
+                directory.createDirectoryAndParents();
+                downloader.downloadWithoutPrefetch(
+                    urlsCopy,
+                    authHeaders,
+                    Optional.of(checksum),
+                    canonicalId,
+                    Optional.of(""),
+                    directory,
+                    eventHandler,
+                    clientEnv,
+                    repo,
+                    permits);
+              } finally {
+                directory.deleteTree();
+              }
+              return null;
+            });
+    prefetches.put(key, new Prefetch(started, future));
+  }
+
+  /**
+   * Computes the authorization headers for {@code urls} like {@code http_archive} does from its
+   * {@code netrc} attribute.
+   */
+  private static Map<URI, Map<String, String>> getAuthHeaders(
+      List<URL> urls, @Nullable String netrc, Path directory, Map<String, String> clientEnv)
+      throws IOException {
+    Path netrcFile;
+    if (netrc == null) {
+      return ImmutableMap.of();
+    } else if (!netrc.isEmpty()) {
+      netrcFile = directory.getRelative(netrc);
+    } else if (clientEnv.containsKey("HOME") && OS.getCurrent() != OS.WINDOWS) {
+      netrcFile = directory.getRelative(clientEnv.get("HOME")).getChild(".netrc");
+      if (!netrcFile.exists()) {
+        return ImmutableMap.of();
+      }
+    } else {
+      return ImmutableMap.of();
+    }
+    return Netrc.parse(new String(FileSystemUtils.readContent(netrcFile), ISO_8859_1))
+        .getAuthHeaders(urls);
+  }
+
+  /**
+   * Waits until the prefetch of the file with the given checksum is done if it is running, or
+   * cancels it if it is still queued behind other prefetches. Either way, the caller then downloads
+   * the file itself unless it is in the repository cache.
+   */
+  void awaitPrefetch(Checksum checksum) throws InterruptedException {
+    Prefetch prefetch = prefetches.get(cacheKey(checksum));
+    if (prefetch == null) {
+      return;
+    }
+    if (prefetch.started.compareAndSet(false, true)) {
+      // Not started yet: the caller is more urgent than the prefetches ahead of this one.
+      prefetch.future.cancel(/* mayInterruptIfRunning= */ false);
+      return;
+    }
+    try {
+      prefetch.future.get();
+    } catch (ExecutionException | CancellationException e) {
+      // The caller downloads the file itself and reports the error if it fails again.
+    }
+  }
+
+  /** A scheduled prefetch, which either its task or a repository rule starts, but not both. */
+  private static final class Prefetch {
+    final AtomicBoolean started;
+    final Future<?> future;
+
+    Prefetch(AtomicBoolean started, Future<?> future) {
+      this.started = started;
+      this.future = future;
+    }
+  }
+
+  private static String cacheKey(Checksum checksum) {
+    return checksum.getKeyType() + "-" + checksum;
+  }
+}
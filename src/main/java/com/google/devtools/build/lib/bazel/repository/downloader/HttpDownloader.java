@@ -59,11 +59,23 @@ public class HttpDownloader {
   private static final Semaphore semaphore = new Semaphore(MAX_PARALLEL_DOWNLOADS, true);
 
   protected final RepositoryCache repositoryCache;
+  private final DownloadPrefetcher prefetcher;
   private List<Path> distdir = ImmutableList.of();
   private float timeoutScaling = 1.0f;
+  private int rangeConnections = 1;
 
   public HttpDownloader(RepositoryCache repositoryCache) {
     this.repositoryCache = repositoryCache;
+    this.prefetcher = new DownloadPrefetcher(this, repositoryCache);
+  }
+
+  public RepositoryCache getRepositoryCache() {
+    return repositoryCache;
+  }
+
+  /** Returns the prefetcher that fills the repository cache for this downloader. */
+  public DownloadPrefetcher getPrefetcher() {
+    return prefetcher;
   }
 
   public void setDistdir(List<Path> distdir) {
@@ -74,6 +86,14 @@ public class HttpDownloader {
     this.timeoutScaling = timeoutScaling;
   }
 
+  /**
+   * Sets the number of connections over which large files with a checksum are downloaded in
+   * ranges; 1 downloads all files sequentially.
+   */
+  public void setRangeConnections(int rangeConnections) {
+    this.rangeConnections = rangeConnections;
+  }
+
   /**
    * Downloads file to disk and returns path.
    *
@@ -104,6 +124,39 @@ public class HttpDownloader {
       Map<String, String> clientEnv,
       String repo)
       throws IOException, InterruptedException {
+    if (checksum.isPresent()) {
+      // If the file is being prefetched, it is in the repository cache once that is done.
+      prefetcher.awaitPrefetch(checksum.get());
+    }
+    return downloadWithoutPrefetch(
+        urls,
+        authHeaders,
+        checksum,
+        canonicalId,
+        type,
+        output,
+        eventHandler,
+        clientEnv,
+        repo,
+        semaphore);
+  }
+
+  /**
+   * Like {@link #download}, but does not wait for prefetches of the same file, and takes the
+   * permits for its connections from {@code permits}.
+   */
+  Path downloadWithoutPrefetch(
+      List<URL> urls,
+      Map<URI, Map<String, String>> authHeaders,
+      Optional<Checksum> checksum,
+      String canonicalId,
+      Optional<String> type,
+      Path output,
+      ExtendedEventHandler eventHandler,
+      Map<String, String> clientEnv,
+      String repo,
+      Semaphore permits)
+      throws IOException, InterruptedException {
     if (Thread.interrupted()) {
       throw new InterruptedException();
     }
@@ -147,6 +200,7 @@ public class HttpDownloader {
           if (cachedDestination != null) {
             // Cache hit!
             eventHandler.post(new RepositoryCacheHitEvent(repo, cacheKey, mainUrl));
+            repositoryCache.recordUse(cacheKey, cacheKeyType, repo);
             return cachedDestination;
           }
         } catch (IOException e) {
@@ -181,6 +235,7 @@ public class HttpDownloader {
               if (isCachingByProvidedChecksum) {
                 try {
                   repositoryCache.put(cacheKey, candidate, cacheKeyType, canonicalId);
+                  repositoryCache.recordUse(cacheKey, cacheKeyType, repo);
                 } catch (IOException e) {
                   eventHandler.handle(
                       Event.warn("Failed to copy " + candidate + " to repository cache: " + e));
@@ -213,8 +268,17 @@ public class HttpDownloader {
 
     List<IOException> ioExceptions = ImmutableList.of();
 
+    if (rangeConnections > 1 && checksum.isPresent()) {
+      success =
+          downloadInRanges(
+              connector, urls, authHeaders, checksum.get(), destination, eventHandler, permits);
+    }
+
     for (URL url : urls) {
-      semaphore.acquire();
+      if (success) {
+        break;
+      }
+      permits.acquire();
 
       try (HttpStream payload =
               multiplexer.connect(Collections.singletonList(url), checksum, authHeaders);
@@ -240,7 +304,7 @@ public class HttpDownloader {
             Event.warn("Download from " + url + " failed: " + e.getClass() + " " + e.getMessage()));
         continue;
       } finally {
-        semaphore.release();
+        permits.release();
         eventHandler.post(new FetchEvent(url.toString(), success));
       }
     }
@@ -266,14 +330,65 @@ public class HttpDownloader {
     if (isCachingByProvidedChecksum) {
       repositoryCache.put(
           checksum.get().toString(), destination, checksum.get().getKeyType(), canonicalId);
+      repositoryCache.recordUse(checksum.get().toString(), checksum.get().getKeyType(), repo);
     } else if (repositoryCache.isEnabled()) {
       String newSha256 = repositoryCache.put(destination, KeyType.SHA256, canonicalId);
+      repositoryCache.recordUse(newSha256, KeyType.SHA256, repo);
       eventHandler.handle(Event.info("SHA256 (" + urls.get(0) + ") = " + newSha256));
     }
 
     return destination;
   }
 
+  /**
+   * Downloads a file with {@link RangeDownloader}. Returns false if the file should be downloaded
+   * sequentially instead, because it is small, its mirrors don't support range requests, or the
+   * download in ranges failed.
+   *
+   * <p>The ranges are kept in the repository cache if it is enabled, so that they survive the
+   * deletion of the repository, and next to the destination otherwise.
+   */
+  private boolean downloadInRanges(
+      HttpConnector connector,
+      List<URL> urls,
+      Map<URI, Map<String, String>> authHeaders,
+      Checksum checksum,
+      Path destination,
+      ExtendedEventHandler eventHandler,
+      Semaphore permits)
+      throws InterruptedException {
+    Path partialFile;
+    if (repositoryCache.isEnabled()) {
+      partialFile =
+          repositoryCache.getPartialDownloadPath(checksum.toString(), checksum.getKeyType());
+    } else {
+      partialFile =
+          destination.getParentDirectory().getChild(destination.getBaseName() + ".partial");
+    }
+    RangeDownloader rangeDownloader =
+        new RangeDownloader(
+            connector,
+            eventHandler,
+            rangeConnections,
+            RangeDownloader.DEFAULT_CHUNK_SIZE,
+            permits);
+    boolean success = false;
+    try {
+      success = rangeDownloader.download(urls, authHeaders, checksum, destination, partialFile);
+      return success;
+    } catch (IOException e) {
+      eventHandler.handle(
+          Event.warn(
+              "Download of " + urls.get(0) + " in ranges failed, retrying sequentially: "
+                  + e.getMessage()));
+      return false;
+    } finally {
+      if (success) {
+        eventHandler.post(new FetchEvent(urls.get(0).toString(), true));
+      }
+    }
+  }
+
   private Path getDownloadDestination(URL url, Optional<String> type, Path output) {
     if (!type.isPresent()) {
       return output;
@@ -0,0 +1,146 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.bazel.repository.downloader;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The logins and passwords of a {@code .netrc} file.
+ *
+ * <p>This computes the same authorization headers as {@code read_netrc} and {@code use_netrc} of
+ * {@code @bazel_tools//tools/build_defs/repo:utils.bzl}, for downloads that are started before the
+ * repository rule that computes them in Starlark runs. {@code NetrcTest} runs both on the same
+ * inputs, so the two parsers must be changed together.
+ */
+final class Netrc {
+
+  /** The characters Starlark's {@code strip()} removes. */
+  private static final CharMatcher LATIN1_WHITESPACE =
+      CharMatcher.anyOf("\t\n\u000B\f\r\u001C\u001D\u001E\u001F \u0085\u00A0");
+
+  private static final ImmutableSet<String> COMMANDS =
+      ImmutableSet.of("machine", "login", "password", "account", "macdef");
+
+  /** The value of the basic authorization header for each machine that has one. */
+  private final ImmutableMap<String, String> authorizations;
+
+  private Netrc(ImmutableMap<String, String> authorizations) {
+    this.authorizations = authorizations;
+  }
+
+  /**
+   * Parses the contents of a {@code .netrc} file like {@code read_netrc} does.
+   *
+   * @throws IOException on the tokens for which {@code read_netrc} fails
+   */
+  static Netrc parse(String contents) throws IOException {
+    // The fields of each machine, with the default machine under "" as in read_netrc.
+    Map<String, Map<String, String>> machines = new HashMap<>();
+    String machineName = null;
+    Map<String, String> machine = new HashMap<>();
+    boolean inMacro = false;
+    String command = null;
+    for (String line : Splitter.onPattern("\r\n|\r|\n").split(contents)) {
+      if (inMacro) {
+        // A macro ends at the first empty line.
+        inMacro = !line.isEmpty();
+        continue;
+      }
+      for (String token :
+          Splitter.on(' ').trimResults(LATIN1_WHITESPACE).omitEmptyStrings().split(line)) {
+        if (command != null) {
+          if (command.equals("machine")) {
+            if (machineName != null) {
+              machines.put(machineName, machine);
+            }
+            machine = new HashMap<>();
+            machineName = token;
+          } else if (command.equals("macdef")) {
+            // The macro begins with the next line.
+            inMacro = true;
+          } else {
+            machine.put(command, token);
+          }
+          command = null;
+        } else if (COMMANDS.contains(token)) {
+          command = token;
+        } else if (token.equals("default")) {
+          if (machineName != null) {
+            machines.put(machineName, machine);
+          }
+          machineName = "";
+          machine = new HashMap<>();
+        } else {
+          throw new IOException(String.format("Unexpected token '%s' in .netrc file", token));
+        }
+      }
+    }
+    if (machineName != null) {
+      machines.put(machineName, machine);
+    }
+
+    ImmutableMap.Builder<String, String> authorizations = ImmutableMap.builder();
+    for (Map.Entry<String, Map<String, String>> entry : machines.entrySet()) {
+      String login = entry.getValue().get("login");
+      String password = entry.getValue().get("password");
+      if (login != null && password != null) {
+        String credentials = login + ":" + password;
+        authorizations.put(
+            entry.getKey(),
+            "Basic "
+                + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+      }
+    }
+    return new Netrc(authorizations.build());
+  }
+
+  /**
+   * Returns the headers to send to the HTTP(S) {@code urls} whose host has a login and a password,
+   * in the form {@link HttpDownloader#download} takes them. Like {@code use_netrc}, takes the host
+   * to be what follows the scheme up to the first slash or colon.
+   */
+  Map<URI, Map<String, String>> getAuthHeaders(List<URL> urls) {
+    Map<URI, Map<String, String>> headers = new HashMap<>();
+    for (URL url : urls) {
+      List<String> schemeAndRest = Splitter.on("://").limit(2).splitToList(url.toString());
+      if (schemeAndRest.size() < 2
+          || !(schemeAndRest.get(0).equals("http") || schemeAndRest.get(0).equals("https"))) {
+        continue;
+      }
+      String host = schemeAndRest.get(1).split("/", -1)[0].split(":", -1)[0];
+      String authorization = authorizations.get(host);
+      if (authorization == null) {
+        continue;
+      }
+      try {
+        headers.put(url.toURI(), ImmutableMap.of("Authorization", authorization));
+      } catch (URISyntaxException e) {
+        // Not a URL a repository rule could download from either.
+      }
+    }
+    return ImmutableMap.copyOf(headers);
+  }
+}
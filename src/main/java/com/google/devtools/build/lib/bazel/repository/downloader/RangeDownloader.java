@@ -0,0 +1,387 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.bazel.repository.downloader;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.base.Function;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.analysis.BlazeVersionInfo;
+import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import javax.annotation.Nullable;
+
+/**
+ * Downloads a large file over several connections at once, each of which fetches different ranges
+ * of the file from one of its mirrors.
+ *
+ * <p>The file is assembled in a partial file, next to which the ranges fetched so far are recorded.
+ * If the download fails or is interrupted, the next download of the same file into the same
+ * partial file only fetches the missing ranges. The checksum of the file is verified once all the
+ * ranges are there.
+ *
+ * <p>Each connection holds a permit of the semaphore that limits the connections of all downloads
+ * while it is open, so a download in ranges never uses more connections than are left to it.
+ *
+ * <p>Instances are thread safe and can be reused.
+ */
+final class RangeDownloader {
+
+  static final long DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+  private static final int BUFFER_SIZE = 32 * 1024;
+  private static final String RANGES_SUFFIX = ".ranges";
+  private static final ImmutableMap<String, String> REQUEST_HEADERS =
+      ImmutableMap.of("User-Agent", "Bazel/" + BlazeVersionInfo.instance().getReleaseName());
+
+  private final HttpConnector connector;
+  private final EventHandler eventHandler;
+  private final int connections;
+  private final long chunkSize;
+  private final Semaphore permits;
+
+  /**
+   * Creates a new instance.
+   *
+   * @param connections the number of ranges to fetch at the same time
+   * @param chunkSize the size of the ranges; files smaller than two ranges are not downloaded
+   * @param permits the permits to take for each connection
+   */
+  RangeDownloader(
+      HttpConnector connector,
+      EventHandler eventHandler,
+      int connections,
+      long chunkSize,
+      Semaphore permits) {
+    this.connector = connector;
+    this.eventHandler = eventHandler;
+    this.connections = connections;
+    this.chunkSize = chunkSize;
+    this.permits = permits;
+  }
+
+  /**
+   * Downloads a file in ranges, if it is large enough and its mirrors support range requests.
+   *
+   * @param urls mirrors by preference; the size of the file is taken from the first that answers
+   * @param authHeaders additional headers, by the URL they are sent to
+   * @param checksum checksum of the file, which is verified before it is moved to {@code
+   *     destination}
+   * @param destination where to put the file
+   * @param partialFile where to assemble the file; a file with the same name and the suffix
+   *     ".ranges" is used to record the ranges that were fetched
+   * @return false if the file was not downloaded because it is too small or no mirror supports
+   *     range requests
+   * @throws IOException if the download failed; the ranges fetched so far are kept unless the
+   *     checksum did not match
+   * @throws InterruptedException if this thread is being cast into oblivion
+   */
+  boolean download(
+      List<URL> urls,
+      Map<URI, Map<String, String>> authHeaders,
+      Checksum checksum,
+      Path destination,
+      Path partialFile)
+      throws IOException, InterruptedException {
+    Function<URL, ImmutableMap<String, String>> headers =
+        HttpConnectorMultiplexer.getHeaderFunction(REQUEST_HEADERS, authHeaders);
+    long size = -1;
+    List<URL> mirrors = new ArrayList<>();
+    for (URL url : urls) {
+      if (!HttpUtils.isProtocol(url, "http") && !HttpUtils.isProtocol(url, "https")) {
+        continue;
+      }
+      if (size == -1) {
+        size = probeSize(url, headers);
+        if (size == -1) {
+          continue;
+        }
+      }
+      mirrors.add(url);
+    }
+    if (size < 2 * chunkSize) {
+      return false;
+    }
+
+    Path rangesFile =
+        partialFile.getParentDirectory().getChild(partialFile.getBaseName() + RANGES_SUFFIX);
+    int chunks = (int) ((size + chunkSize - 1) / chunkSize);
+    Set<Integer> fetched = readFetchedChunks(partialFile, rangesFile, size);
+    eventHandler.handle(
+        Event.progress(
+            String.format(
+                "Downloading %s in %d ranges over %d connections (%d already fetched)",
+                mirrors.get(0), chunks, connections, fetched.size())));
+
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            connections,
+            new ThreadFactoryBuilder()
+                .setNameFormat("range-downloader-%d")
+                .setDaemon(true)
+                .build());
+    try (RandomAccessFile file = new RandomAccessFile(partialFile.getPathFile(), "rw");
+        OutputStream ranges = rangesFile.getOutputStream(/* append= */ true)) {
+      FileChannel channel = file.getChannel();
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < chunks; i++) {
+        if (fetched.contains(i)) {
+          continue;
+        }
+        int chunk = i;
+        long start = chunk * chunkSize;
+        long end = Math.min(start + chunkSize, size) - 1;
+        futures.add(
+            executor.submit(
+                () -> {
+                  permits.acquire();
+                  try {
+                    fetchChunk(mirrors, chunk, start, end, headers, channel);
+                  } finally {
+                    permits.release();
+                  }
+                  synchronized (ranges) {
+                    ranges.write((chunk + "\n").getBytes(ISO_8859_1));
+                    ranges.flush();
+                  }
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof InterruptedException) {
+        throw (InterruptedException) cause;
+      }
+      if (cause instanceof InterruptedIOException) {
+        throw new InterruptedException(cause.getMessage());
+      }
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException(cause);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    try {
+      RepositoryCache.assertFileChecksum(checksum.toString(), partialFile, checksum.getKeyType());
+    } catch (IOException e) {
+      // The ranges do not belong together, so there is nothing worth resuming.
+      partialFile.delete();
+      rangesFile.delete();
+      throw e;
+    }
+    FileSystemUtils.createDirectoryAndParents(destination.getParentDirectory());
+    FileSystemUtils.moveFile(partialFile, destination);
+    rangesFile.delete();
+    return true;
+  }
+
+  /**
+   * Returns the size of the file at {@code url}, or -1 if the server does not support range
+   * requests, does not know the size, or cannot be reached.
+   */
+  private long probeSize(URL url, Function<URL, ImmutableMap<String, String>> headers)
+      throws InterruptedException {
+    permits.acquire();
+    try {
+      return probeSizeWithPermit(url, headers);
+    } finally {
+      permits.release();
+    }
+  }
+
+  private long probeSizeWithPermit(URL url, Function<URL, ImmutableMap<String, String>> headers)
+      throws InterruptedException {
+    URLConnection connection;
+    try {
+      connection = connector.connect(url, withRange(headers, 0, 0));
+    } catch (InterruptedIOException e) {
+      throw new InterruptedException(e.getMessage());
+    } catch (IOException e) {
+      return -1;
+    }
+    try (InputStream in = connection.getInputStream()) {
+      if (!isPartialContent(connection, 0)) {
+        return -1;
+      }
+      String contentRange = connection.getHeaderField("Content-Range");
+      String total = contentRange.substring(contentRange.lastIndexOf('/') + 1).trim();
+      return Long.parseLong(total);
+    } catch (NumberFormatException | IOException e) {
+      return -1;
+    } finally {
+      if (connection instanceof HttpURLConnection) {
+        ((HttpURLConnection) connection).disconnect();
+      }
+    }
+  }
+
+  /**
+   * Fetches a range of the file into {@code channel}, trying each mirror in turn, starting with a
+   * different one for each chunk so that the load is spread over them.
+   */
+  private void fetchChunk(
+      List<URL> mirrors,
+      int chunk,
+      long start,
+      long end,
+      Function<URL, ImmutableMap<String, String>> headers,
+      FileChannel channel)
+      throws IOException {
+    IOException error = null;
+    for (int i = 0; i < mirrors.size(); i++) {
+      URL url = mirrors.get((chunk + i) % mirrors.size());
+      try {
+        fetchRange(url, start, end, headers, channel);
+        return;
+      } catch (SocketTimeoutException e) {
+        // A timeout is not an interruption; try the next mirror.
+        error = addError(error, start, end, e);
+      } catch (InterruptedIOException e) {
+        throw e;
+      } catch (IOException e) {
+        error = addError(error, start, end, e);
+      }
+    }
+    throw error;
+  }
+
+  private static IOException addError(
+      @Nullable IOException error, long start, long end, IOException e) {
+    if (error == null) {
+      return new IOException(String.format("Failed to download bytes %d-%d", start, end), e);
+    }
+    error.addSuppressed(e);
+    return error;
+  }
+
+  private void fetchRange(
+      URL url,
+      long start,
+      long end,
+      Function<URL, ImmutableMap<String, String>> headers,
+      FileChannel channel)
+      throws IOException {
+    URLConnection connection = connector.connect(url, withRange(headers, start, end));
+    try (InputStream in = new InterruptibleInputStream(connection.getInputStream())) {
+      if (!isPartialContent(connection, start)) {
+        throw new IOException(url + " ignored the requested range");
+      }
+      byte[] buffer = new byte[BUFFER_SIZE];
+      long position = start;
+      while (position <= end) {
+        int read = in.read(buffer, 0, (int) Math.min(buffer.length, end - position + 1));
+        if (read == -1) {
+          throw new IOException(String.format("Premature EOF from %s at byte %d", url, position));
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+        while (bytes.hasRemaining()) {
+          position += channel.write(bytes, position);
+        }
+      }
+    } finally {
+      if (connection instanceof HttpURLConnection) {
+        ((HttpURLConnection) connection).disconnect();
+      }
+    }
+  }
+
+  /**
+   * Returns the chunks recorded as fetched, after making sure that the partial file has the right
+   * size; if the recorded ranges are not for a file of this size, starts over.
+   */
+  private static Set<Integer> readFetchedChunks(Path partialFile, Path rangesFile, long size)
+      throws IOException {
+    Set<Integer> fetched = new HashSet<>();
+    List<String> lines =
+        rangesFile.exists() && partialFile.exists() && partialFile.getFileSize() == size
+            ? Splitter.on('\n').splitToList(FileSystemUtils.readContent(rangesFile, ISO_8859_1))
+            : ImmutableList.of();
+    if (!lines.isEmpty() && lines.get(0).equals(Long.toString(size))) {
+      for (String line : lines.subList(1, lines.size())) {
+        try {
+          fetched.add(Integer.parseInt(line));
+        } catch (NumberFormatException e) {
+          // The line was being written when the previous download was interrupted.
+        }
+      }
+      return fetched;
+    }
+    FileSystemUtils.createDirectoryAndParents(partialFile.getParentDirectory());
+    try (RandomAccessFile file = new RandomAccessFile(partialFile.getPathFile(), "rw")) {
+      file.setLength(size);
+    }
+    FileSystemUtils.writeContent(rangesFile, ISO_8859_1, size + "\n");
+    return fetched;
+  }
+
+  private static boolean isPartialContent(URLConnection connection, long start)
+      throws IOException {
+    if (!(connection instanceof HttpURLConnection)
+        || ((HttpURLConnection) connection).getResponseCode() != 206) {
+      return false;
+    }
+    // Content-Range: bytes <start>-<end>/<size> quoth RFC7233 § 4.2
+    String contentRange = Strings.nullToEmpty(connection.getHeaderField("Content-Range"));
+    List<String> parts = Splitter.onPattern("[ /-]").trimResults().splitToList(contentRange);
+    return parts.size() == 4
+        && parts.get(0).equals("bytes")
+        && parts.get(1).equals(Long.toString(start));
+  }
+
+  private static Function<URL, ImmutableMap<String, String>> withRange(
+      Function<URL, ImmutableMap<String, String>> headers, long start, long end) {
+    return url ->
+        ImmutableMap.<String, String>builder()
+            .putAll(headers.apply(url))
+            .put("Range", String.format("bytes=%d-%d", start, end))
+            .build();
+  }
+}
@@ -736,6 +736,31 @@ public class SkylarkRepositoryContext
     checkInOutputDirectory("write", outputPath);
     createDirectory(outputPath.getPath());
 
+    boolean cacheExtractedTree =
+        checksumValidation == null
+            && checksum.isPresent()
+            && httpDownloader.getRepositoryCache().isExtractedTreeCacheEnabled();
+    if (cacheExtractedTree) {
+      try {
+        if (httpDownloader
+            .getRepositoryCache()
+            .getExtractedTree(
+                checksum.get().toString(),
+                checksum.get().getKeyType(),
+                type,
+                stripPrefix,
+                outputPath.getPath())) {
+          httpDownloader
+              .getRepositoryCache()
+              .recordUse(checksum.get().toString(), checksum.get().getKeyType(), getName());
+          env.getListener().post(w);
+          return calculateDownloadResult(checksum, /* downloadedPath= */ null);
+        }
+      } catch (IOException e) {
+        throw new RepositoryFunctionException(e, Transience.TRANSIENT);
+      }
+    }
+
     Path downloadedPath;
     try {
       downloadedPath =
@@ -766,14 +791,19 @@ public class SkylarkRepositoryContext
       throw checksumValidation;
     }
     env.getListener().post(w);
-    DecompressorValue.decompress(
-        DecompressorDescriptor.builder()
-            .setTargetKind(rule.getTargetKind())
-            .setTargetName(rule.getName())
-            .setArchivePath(downloadedPath)
-            .setRepositoryPath(outputPath.getPath())
-            .setPrefix(stripPrefix)
-            .build());
+    if (cacheExtractedTree) {
+      decompressThroughRepositoryCache(
+          checksum.get(), downloadedPath, type, stripPrefix, outputPath.getPath());
+    } else {
+      DecompressorValue.decompress(
+          DecompressorDescriptor.builder()
+              .setTargetKind(rule.getTargetKind())
+              .setTargetName(rule.getName())
+              .setArchivePath(downloadedPath)
+              .setRepositoryPath(outputPath.getPath())
+              .setPrefix(stripPrefix)
+              .build());
+    }
 
     StructImpl downloadResult = calculateDownloadResult(checksum, downloadedPath);
     try {
@@ -789,6 +819,39 @@ public class SkylarkRepositoryContext
     return downloadResult;
   }
 
+  /**
+   * Extracts an archive into the repository cache, and copies the extracted files from there into
+   * the output directory, so that later extractions of the same archive can do the same.
+   */
+  private void decompressThroughRepositoryCache(
+      Checksum checksum, Path archivePath, String type, String stripPrefix, Path outputDirectory)
+      throws RepositoryFunctionException, InterruptedException {
+    RepositoryCache repositoryCache = httpDownloader.getRepositoryCache();
+    String cacheKey = checksum.toString();
+    KeyType keyType = checksum.getKeyType();
+    try {
+      Path extractedDirectory = repositoryCache.createExtractedTreeDirectory(cacheKey, keyType);
+      try {
+        DecompressorValue.decompress(
+            DecompressorDescriptor.builder()
+                .setTargetKind(rule.getTargetKind())
+                .setTargetName(rule.getName())
+                .setArchivePath(archivePath)
+                .setRepositoryPath(extractedDirectory)
+                .setPrefix(stripPrefix)
+                .build());
+        repositoryCache.putExtractedTree(cacheKey, keyType, type, stripPrefix, extractedDirectory);
+      } finally {
+        if (extractedDirectory.exists()) {
+          extractedDirectory.deleteTree();
+        }
+      }
+      repositoryCache.getExtractedTree(cacheKey, keyType, type, stripPrefix, outputDirectory);
+    } catch (IOException e) {
+      throw new RepositoryFunctionException(e, Transience.TRANSIENT);
+    }
+  }
+
   private Checksum calculateChecksum(Optional<Checksum> originalChecksum, Path path)
       throws IOException, InterruptedException {
     if (originalChecksum.isPresent()) {
@@ -22,17 +22,22 @@ import com.google.common.collect.ImmutableSet;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.RuleDefinition;
 import com.google.devtools.build.lib.bazel.repository.RepositoryResolvedEvent;
+import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache.KeyType;
+import com.google.devtools.build.lib.bazel.repository.downloader.Checksum;
+import com.google.devtools.build.lib.bazel.repository.downloader.DownloadPrefetcher;
 import com.google.devtools.build.lib.bazel.repository.downloader.HttpDownloader;
 import com.google.devtools.build.lib.cmdline.LabelConstants;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.packages.BazelStarlarkContext;
 import com.google.devtools.build.lib.packages.Rule;
 import com.google.devtools.build.lib.packages.SymbolGenerator;
+import com.google.devtools.build.lib.packages.Type;
 import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
 import com.google.devtools.build.lib.rules.repository.RepositoryDelegatorFunction;
 import com.google.devtools.build.lib.rules.repository.RepositoryDirectoryValue;
 import com.google.devtools.build.lib.rules.repository.RepositoryFunction;
 import com.google.devtools.build.lib.rules.repository.ResolvedHashesValue;
+import com.google.devtools.build.lib.rules.repository.WorkspaceAttributeMapper;
 import com.google.devtools.build.lib.skyframe.BlacklistedPackagePrefixesValue;
 import com.google.devtools.build.lib.skyframe.PrecomputedValue;
 import com.google.devtools.build.lib.syntax.BaseFunction;
@@ -46,6 +51,10 @@ import com.google.devtools.build.skyframe.SkyFunction.Environment;
 import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
 import com.google.devtools.build.skyframe.SkyKey;
 import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import javax.annotation.Nullable;
@@ -58,6 +67,7 @@ public class SkylarkRepositoryFunction extends RepositoryFunction {
   private final HttpDownloader httpDownloader;
   private double timeoutScaling = 1.0;
   private boolean useNativePatch;
+  private boolean prefetchDownloads;
 
   public SkylarkRepositoryFunction(HttpDownloader httpDownloader) {
     this.httpDownloader = httpDownloader;
@@ -71,6 +81,17 @@ public class SkylarkRepositoryFunction extends RepositoryFunction {
     this.useNativePatch = useNativePatch;
   }
 
+  /**
+   * Sets whether the download of a repository is started in the background as soon as the
+   * repository is requested, rather than when its rule asks for it.
+   *
+   * <p>Downloads are not started when the WORKSPACE file is parsed: at that point it is not known
+   * which repositories the build needs, and most WORKSPACE files declare many it never fetches.
+   */
+  public void setPrefetchDownloads(boolean prefetchDownloads) {
+    this.prefetchDownloads = prefetchDownloads;
+  }
+
   @Nullable
   @Override
   public RepositoryDirectoryValue.Builder fetch(
@@ -81,6 +102,10 @@ public class SkylarkRepositoryFunction extends RepositoryFunction {
       Map<String, String> markerData,
       SkyKey key)
       throws RepositoryFunctionException, InterruptedException {
+    if (prefetchDownloads) {
+      // Before the first missing dependency, so that the download overlaps with the restarts.
+      prefetchDownload(httpDownloader.getPrefetcher(), rule);
+    }
     if (rule.getDefinitionInformation() != null) {
       env.getListener()
           .post(
@@ -239,6 +264,51 @@ public class SkylarkRepositoryFunction extends RepositoryFunction {
     return RepositoryDirectoryValue.builder().setPath(outputDirectory);
   }
 
+  /**
+   * Prefetches the download of an {@code http_archive}-like rule, i.e. a rule that has a {@code
+   * sha256} attribute and {@code url} or {@code urls} attributes. Other rules are ignored, since
+   * their downloads can't be known in advance.
+   */
+  private static void prefetchDownload(DownloadPrefetcher prefetcher, Rule rule) {
+    WorkspaceAttributeMapper mapper = WorkspaceAttributeMapper.of(rule);
+    Checksum checksum;
+    List<URL> urls = new ArrayList<>();
+    String canonicalId = "";
+    String netrc = null;
+    try {
+      if (!rule.isAttrDefined("sha256", Type.STRING)) {
+        return;
+      }
+      String sha256 = mapper.get("sha256", Type.STRING);
+      if (Strings.isNullOrEmpty(sha256) || !KeyType.SHA256.isValid(sha256)) {
+        return;
+      }
+      checksum = Checksum.fromString(KeyType.SHA256, sha256);
+      // Same order as in http_archive.
+      if (rule.isAttrDefined("url", Type.STRING)) {
+        String url = mapper.get("url", Type.STRING);
+        if (!Strings.isNullOrEmpty(url)) {
+          urls.add(new URL(url));
+        }
+      }
+      if (rule.isAttrDefined("urls", Type.STRING_LIST)) {
+        for (String url : mapper.get("urls", Type.STRING_LIST)) {
+          urls.add(new URL(url));
+        }
+      }
+      if (rule.isAttrDefined("canonical_id", Type.STRING)) {
+        canonicalId = Strings.nullToEmpty(mapper.get("canonical_id", Type.STRING));
+      }
+      if (rule.isAttrDefined("netrc", Type.STRING)) {
+        netrc = Strings.nullToEmpty(mapper.get("netrc", Type.STRING));
+      }
+    } catch (EvalException | MalformedURLException e) {
+      // The rule reports the error when it is fetched.
+      return;
+    }
+    prefetcher.prefetch(urls, checksum, canonicalId, rule.getName(), netrc);
+  }
+
   @SuppressWarnings("unchecked")
   private static Iterable<String> getEnviron(Rule rule) {
     return (Iterable<String>) rule.getAttributeContainer().getAttr("$environ");
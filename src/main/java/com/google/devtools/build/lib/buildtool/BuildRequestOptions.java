@@ -316,6 +316,19 @@ public class BuildRequestOptions extends OptionsBase {
   )
   public boolean useActionCache;
 
+  @Option(
+      name = "experimental_rewind_lost_inputs",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+      effectTags = {OptionEffectTag.EXECUTION},
+      metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+      help =
+          "If enabled, an action whose inputs were lost, such as outputs that were only stored "
+              + "remotely and have been evicted from the remote cache, is not an error: the "
+              + "actions that generated these inputs are rerun, then the action itself. Requires "
+              + "--notrack_incremental_state and --nouse_action_cache.")
+  public boolean rewindLostInputs;
+
   @Option(
       name = "discard_actions_after_execution",
       defaultValue = "true",
@@ -339,6 +352,22 @@ public class BuildRequestOptions extends OptionsBase {
               + "with caution.")
   public boolean useAsyncExecution;
 
+  @Option(
+      name = "experimental_execution_offload_threads",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      metadataTags = OptionMetadataTag.EXPERIMENTAL,
+      effectTags = {
+        OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION,
+        OptionEffectTag.HOST_MACHINE_RESOURCE_OPTIMIZATIONS
+      },
+      help =
+          "If positive, actions are executed on a separate pool of up to this many threads with "
+              + "small stacks instead of on the --jobs evaluation threads, which are released "
+              + "while an action runs. This decouples the number of in-flight actions, e.g. remote "
+              + "executions, from --jobs; local actions are still limited by the local resources.")
+  public int executionOffloadThreads;
+
   @Option(
       name = "incompatible_skip_genfiles_symlink",
       defaultValue = "true",
@@ -323,12 +323,20 @@ public final class Label
   /** The name of the target within the package. Canonical. */
   private final String name;
 
+  /**
+   * Every label is hashed at least once when it is interned, and labels are used as keys all over
+   * the place, so the hash code is computed eagerly. It fits in the padding of the object on 64-bit
+   * JVMs, so it does not grow labels.
+   */
+  private final int hashCode;
+
   private Label(PackageIdentifier packageIdentifier, String name) {
     Preconditions.checkNotNull(packageIdentifier);
     Preconditions.checkNotNull(name);
 
     this.packageIdentifier = packageIdentifier;
     this.name = name;
+    this.hashCode = hashCode(name, packageIdentifier);
   }
 
   private Object writeReplace() {
@@ -620,7 +628,7 @@ public final class Label
 
   @Override
   public int hashCode() {
-    return hashCode(name, packageIdentifier);
+    return hashCode;
   }
 
   /** Two labels are equal iff both their name and their package name are equal. */
@@ -631,7 +639,9 @@ public final class Label
     }
     Label otherLabel = (Label) other;
     // Package identifiers are interned so we compare them first.
-    return packageIdentifier.equals(otherLabel.packageIdentifier) && name.equals(otherLabel.name);
+    return hashCode == otherLabel.hashCode
+        && packageIdentifier.equals(otherLabel.packageIdentifier)
+        && name.equals(otherLabel.name);
   }
 
   /**
@@ -112,7 +112,8 @@ public final class PackageIdentifier implements Comparable<PackageIdentifier>, S
 
   private PackageIdentifier(RepositoryName repository, PathFragment pkgName) {
     this.repository = Preconditions.checkNotNull(repository);
-    this.pkgName = Preconditions.checkNotNull(pkgName);
+    // Shares the fragment with the rooted paths of the package directory and its BUILD file.
+    this.pkgName = PathFragment.intern(Preconditions.checkNotNull(pkgName));
     this.hashCode = Objects.hash(repository, pkgName);
   }
 
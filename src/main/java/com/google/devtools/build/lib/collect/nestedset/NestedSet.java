@@ -18,6 +18,9 @@ import static java.util.stream.Collectors.joining;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.UnmodifiableIterator;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.devtools.build.lib.bugreport.BugReport;
@@ -29,12 +32,16 @@ import com.google.protobuf.ByteString;
 import java.util.AbstractCollection;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
@@ -69,6 +76,15 @@ public final class NestedSet<E> implements Iterable<E> {
    */
   private static final AtomicInteger expansionDepthLimit = new AtomicInteger(3500);
 
+  /**
+   * Size upper bounds and depths (see {@link #getSizeUpperBound} and {@link #getDepth}) of the
+   * non-leaf children arrays they were asked for. They are kept on the side rather than in fields
+   * of every set, which would make all sets bigger for the sake of a few callers. Arrays are
+   * compared by identity and weakly referenced.
+   */
+  private static final ConcurrentMap<Object[], Long> sizeUpperBoundsAndDepths =
+      new MapMaker().weakKeys().makeMap();
+
   private static final byte[] LEAF_MEMO = {};
   @AutoCodec static final Object[] EMPTY_CHILDREN = {};
 
@@ -320,6 +336,96 @@ public final class NestedSet<E> implements Iterable<E> {
     return ImmutableSet.copyOf(toList());
   }
 
+  /**
+   * Returns the number of unique elements of this set if it is known without flattening the set,
+   * otherwise -1. The size is known for sets that have at most one level of nesting and for sets
+   * that have been flattened before.
+   */
+  public int getSizeIfKnown() {
+    if (isSingleton()) {
+      return 1;
+    }
+    if (isEmpty()) {
+      return 0;
+    }
+    if (memo == LEAF_MEMO) {
+      return ((Object[]) children).length;
+    }
+    int size = orderAndSize >> 2;
+    return size == 0 ? -1 : size;
+  }
+
+  /**
+   * Returns an upper bound for the number of elements of this set without flattening it. The bound
+   * counts elements as often as they occur in the set's transitive members, and saturates at
+   * {@link Integer#MAX_VALUE}.
+   *
+   * <p>Runs in constant time for sets with at most one level of nesting. For other sets, the first
+   * call visits each children array that wasn't visited by an earlier call once.
+   */
+  public int getSizeUpperBound() {
+    return (int) getSizeUpperBoundAndDepth();
+  }
+
+  /**
+   * Returns the nesting depth of this set, i.e. the length of the longest chain of transitive
+   * members without flattening the set. Empty and singleton sets have depth 0, sets of only direct
+   * elements depth 1. This is the depth that {@link #setApplicationDepthLimit} limits.
+   *
+   * <p>Has the same cost as {@link #getSizeUpperBound}.
+   */
+  public int getDepth() {
+    return (int) (getSizeUpperBoundAndDepth() >>> 32);
+  }
+
+  /** Returns the depth in the upper and the size upper bound in the lower 32 bits. */
+  private long getSizeUpperBoundAndDepth() {
+    Object children = getChildren();
+    if (!(children instanceof Object[])) {
+      return packSizeUpperBoundAndDepth(1, 0);
+    }
+    if (memo == LEAF_MEMO) {
+      Object[] leaf = (Object[]) children;
+      return packSizeUpperBoundAndDepth(leaf.length, leaf.length == 0 ? 0 : 1);
+    }
+    return getSizeUpperBoundAndDepth((Object[]) children);
+  }
+
+  /**
+   * Returns the packed size upper bound and depth of a children array. The results for arrays
+   * with nested arrays are kept in {@link #sizeUpperBoundsAndDepths}, so that shared subarrays are
+   * only traversed once.
+   */
+  private static long getSizeUpperBoundAndDepth(Object[] children) {
+    Long cached = sizeUpperBoundsAndDepths.get(children);
+    if (cached != null) {
+      return cached;
+    }
+    long bound = 0;
+    int depth = 0;
+    boolean leaf = true;
+    for (Object child : children) {
+      if (child instanceof Object[]) {
+        long childBoundAndDepth = getSizeUpperBoundAndDepth((Object[]) child);
+        bound = Math.min(bound + (int) childBoundAndDepth, Integer.MAX_VALUE);
+        depth = Math.max(depth, (int) (childBoundAndDepth >>> 32));
+        leaf = false;
+      } else {
+        bound = Math.min(bound + 1, Integer.MAX_VALUE);
+      }
+    }
+    long result = packSizeUpperBoundAndDepth((int) bound, children.length == 0 ? 0 : depth + 1);
+    if (!leaf) {
+      // Leaf arrays are cheap to recompute and by far the most common, so they aren't kept.
+      sizeUpperBoundsAndDepths.put(children, result);
+    }
+    return result;
+  }
+
+  private static long packSizeUpperBoundAndDepth(int sizeUpperBound, int depth) {
+    return ((long) depth << 32) | sizeUpperBound;
+  }
+
   /**
    * Important: This does a full traversal of the nested set if it's not been previously traversed.
    *
@@ -404,10 +510,76 @@ public final class NestedSet<E> implements Iterable<E> {
     }
   }
 
+  /**
+   * Returns an iterator over the unique elements of this set, in the same order as {@link #toList}.
+   *
+   * <p>Unless this set has {@link Order#LINK_ORDER}, the iterator walks the set lazily and does not
+   * materialize the list of elements. Note that the first expansion of a set still has to collect
+   * its elements in order to deduplicate them.
+   */
   @Override
   public Iterator<E> iterator() {
-    // TODO: would it help to have a proper lazy iterator?  seems like it might reduce garbage.
-    return toList().iterator();
+    if (isSingleton()) {
+      return Iterators.singletonIterator((E) children);
+    }
+    if (isEmpty()) {
+      return Collections.emptyIterator();
+    }
+    if (getOrder() == Order.LINK_ORDER) {
+      return toList().iterator();
+    }
+    if (memo == LEAF_MEMO) {
+      return Iterators.forArray((E[]) children);
+    }
+    CompactHashSet<E> members = expandOnce();
+    if (members != null) {
+      return Iterators.unmodifiableIterator(members.iterator());
+    }
+    return new ReplayIterator<>((Object[]) getChildren(), memo);
+  }
+
+  /**
+   * Calls {@code action} for each unique element of this set, in the same order as {@link #toList}.
+   *
+   * <p>Unless this set has {@link Order#LINK_ORDER}, this neither materializes the list of elements
+   * nor allocates an iterator, so prefer it over {@link #toList} when the elements are only needed
+   * once.
+   */
+  @Override
+  public void forEach(Consumer<? super E> action) {
+    if (isSingleton()) {
+      action.accept((E) children);
+      return;
+    }
+    if (isEmpty()) {
+      return;
+    }
+    if (getOrder() == Order.LINK_ORDER) {
+      toList().forEach(action);
+      return;
+    }
+    if (memo == LEAF_MEMO) {
+      for (Object child : (Object[]) children) {
+        action.accept((E) child);
+      }
+      return;
+    }
+    CompactHashSet<E> members = expandOnce();
+    if (members != null) {
+      members.forEach(action);
+      return;
+    }
+    replay(action, (Object[]) getChildren(), memo, 0);
+  }
+
+  /** Calls {@link #lockedExpand}, turning an {@link InterruptedException} into a crash. */
+  @Nullable
+  private CompactHashSet<E> expandOnce() {
+    try {
+      return lockedExpand(/*handleInterruptedException=*/ true);
+    } catch (InterruptedException e) {
+      throw new IllegalStateException("InterruptedException should have already been caught", e);
+    }
   }
 
   /**
@@ -426,7 +598,7 @@ public final class NestedSet<E> implements Iterable<E> {
     }
     Object[] children = (Object[]) this.getChildren(handleInterruptedException);
     ImmutableList.Builder<E> output = ImmutableList.builderWithExpectedSize(orderAndSize >> 2);
-    replay(output, children, memo, 0);
+    replay((E e) -> output.add(e), children, memo, 0);
     return output.build();
   }
 
@@ -534,16 +706,16 @@ public final class NestedSet<E> implements Iterable<E> {
 
   /**
    * Repeat a previous traversal of {@code children} performed by {@link #walk} and recorded in
-   * {@code memo}, appending leaves to {@code output}.
+   * {@code memo}, passing leaves to {@code output}.
    */
   private static <E> int replay(
-      ImmutableList.Builder<E> output, Object[] children, byte[] memo, int pos) {
+      Consumer<? super E> output, Object[] children, byte[] memo, int pos) {
     for (Object child : children) {
       if ((memo[pos >> 3] & (1 << (pos & 7))) != 0) {
         if (child instanceof Object[]) {
           pos = replay(output, (Object[]) child, memo, pos + 1);
         } else {
-          output.add((E) child);
+          output.accept((E) child);
           ++pos;
         }
       } else {
@@ -553,6 +725,71 @@ public final class NestedSet<E> implements Iterable<E> {
     return pos;
   }
 
+  /**
+   * An iterator version of {@link #replay}. Keeps the path from the root to the current node on an
+   * explicit stack instead of recursing.
+   */
+  private static final class ReplayIterator<E> extends UnmodifiableIterator<E> {
+    private final byte[] memo;
+    private Object[][] arrays = new Object[8][];
+    private int[] indices = new int[8];
+    private int depth;
+    private int pos;
+    @Nullable private Object next;
+
+    ReplayIterator(Object[] children, byte[] memo) {
+      this.memo = memo;
+      this.arrays[0] = children;
+      advance();
+    }
+
+    /** Moves to the next leaf whose edge is set in {@code memo}, or sets {@code next} to null. */
+    private void advance() {
+      while (depth >= 0) {
+        Object[] array = arrays[depth];
+        int i = indices[depth];
+        if (i == array.length) {
+          arrays[depth--] = null;
+          continue;
+        }
+        indices[depth] = i + 1;
+        Object child = array[i];
+        boolean taken = (memo[pos >> 3] & (1 << (pos & 7))) != 0;
+        ++pos;
+        if (!taken) {
+          continue;
+        }
+        if (child instanceof Object[]) {
+          if (++depth == arrays.length) {
+            arrays = Arrays.copyOf(arrays, depth * 2);
+            indices = Arrays.copyOf(indices, depth * 2);
+          }
+          arrays[depth] = (Object[]) child;
+          indices[depth] = 0;
+        } else {
+          next = child;
+          return;
+        }
+      }
+      next = null;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public E next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      E result = (E) next;
+      advance();
+      return result;
+    }
+  }
+
   /**
    * Sets the application depth limit of nested sets. When flattening a {@link NestedSet} deeper
    * than this limit, a {@link NestedSetDepthException} will be thrown.
@@ -176,10 +176,11 @@ public final class NestedSetBuilder<E> {
         return candidate;
       }
     }
-    return new NestedSet<>(
-        order,
-        items == null ? ImmutableSet.of() : items,
-        transitiveSetsCast == null ? ImmutableSet.of() : transitiveSetsCast);
+    return NestedSetInterner.intern(
+        new NestedSet<>(
+            order,
+            items == null ? ImmutableSet.of() : items,
+            transitiveSetsCast == null ? ImmutableSet.of() : transitiveSetsCast));
   }
 
   private static final ConcurrentMap<ImmutableList<?>, NestedSet<?>> immutableListCache =
@@ -0,0 +1,165 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.MapMaker;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Canonicalizes structurally equal {@link NestedSet}s built by {@link NestedSetBuilder#build}, so
+ * that e.g. the same toolchain files collected in several configurations and aspects are only kept
+ * once.
+ *
+ * <p>Two sets are structurally equal if they have the same order and the same children, where
+ * both elements and nested children arrays are compared by identity. Subsets are interned when
+ * they're built, so equal subsets share their children arrays, and comparing the top level is
+ * enough to detect equal sets. This avoids fingerprinting whole sets the way {@link
+ * NestedSetStore} does for serialization.
+ *
+ * <p>Elements are not compared with {@link Object#equals}, because equal elements need not be
+ * interchangeable: e.g. {@link com.google.devtools.build.lib.actions.Artifact#equals} ignores an
+ * unset generating action key, so sets of artifacts with different owners would be merged. Elements
+ * that are shared, like the artifacts of a toolchain, are the same instances anyway. Interned sets
+ * are only weakly referenced.
+ */
+final class NestedSetInterner {
+
+  /** Estimated size of a {@link NestedSet} object, assuming compressed oops. */
+  private static final int NESTED_SET_BYTES = 32;
+
+  private static volatile boolean enabled;
+
+  private static final ConcurrentMap<Key, NestedSet<?>> canonicalSets =
+      new MapMaker().weakValues().makeMap();
+  private static final LongAdder hits = new LongAdder();
+  private static final LongAdder savedBytes = new LongAdder();
+
+  private NestedSetInterner() {}
+
+  /**
+   * Turns interning on or off. Turning it off forgets the canonical sets, but sets built while it
+   * was on stay shared.
+   */
+  static void setEnabled(boolean enabled) {
+    NestedSetInterner.enabled = enabled;
+    if (!enabled) {
+      canonicalSets.clear();
+    }
+  }
+
+  /** Returns how many built sets were replaced by an existing equal set. */
+  static long getHits() {
+    return hits.sum();
+  }
+
+  /** Returns an estimate of the memory that the replaced sets would have retained. */
+  static long getSavedBytes() {
+    return savedBytes.sum();
+  }
+
+  @VisibleForTesting
+  static void resetStatistics() {
+    hits.reset();
+    savedBytes.reset();
+  }
+
+  /**
+   * Returns a set structurally equal to {@code set}, which is {@code set} itself unless an equal
+   * set was interned before.
+   */
+  @SuppressWarnings("unchecked")
+  static <E> NestedSet<E> intern(NestedSet<E> set) {
+    if (!enabled) {
+      return set;
+    }
+    Object children = set.rawChildren();
+    if (!(children instanceof Object[])) {
+      // Singletons are as small as a reference to an equal set.
+      return set;
+    }
+    NestedSet<?> canonical = canonicalSets.putIfAbsent(new Key(set), set);
+    if (canonical == null) {
+      return set;
+    }
+    hits.increment();
+    long saved = NESTED_SET_BYTES;
+    if (canonical.rawChildren() != children) {
+      saved += arrayBytes(((Object[]) children).length);
+    }
+    savedBytes.add(saved);
+    return (NestedSet<E>) canonical;
+  }
+
+  private static long arrayBytes(int length) {
+    // 16 byte header, 4 bytes per compressed reference, 8 byte alignment.
+    return (16L + 4L * length + 7) & ~7L;
+  }
+
+  /**
+   * The structure of a set. Holds its children array instead of the set, so that the set can be
+   * collected when it's no longer used elsewhere.
+   */
+  private static final class Key {
+    private final Order order;
+    private final Object[] children;
+    private final int hashCode;
+
+    Key(NestedSet<?> set) {
+      this.order = set.getOrder();
+      this.children = (Object[]) set.rawChildren();
+      this.hashCode = identityHashCode(children);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return hashCode == other.hashCode
+          && order == other.order
+          && (children == other.children || identityEquals(children, other.children));
+    }
+
+    private static int identityHashCode(Object[] children) {
+      int hashCode = 1;
+      for (Object child : children) {
+        hashCode = 31 * hashCode + System.identityHashCode(child);
+      }
+      return hashCode;
+    }
+
+    private static boolean identityEquals(Object[] children, Object[] otherChildren) {
+      if (children.length != otherChildren.length) {
+        return false;
+      }
+      for (int i = 0; i < children.length; i++) {
+        if (children[i] != otherChildren[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
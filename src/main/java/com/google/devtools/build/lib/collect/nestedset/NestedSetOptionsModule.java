@@ -15,11 +15,13 @@
 package com.google.devtools.build.lib.collect.nestedset;
 
 import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.profiler.MemoryProfiler;
 import com.google.devtools.build.lib.runtime.BlazeModule;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionDocumentationCategory;
 import com.google.devtools.common.options.OptionEffectTag;
+import com.google.devtools.common.options.OptionMetadataTag;
 import com.google.devtools.common.options.OptionsBase;
 
 /** A {@link BlazeModule} handling options pertaining to {@link NestedSet}. */
@@ -38,8 +40,23 @@ public class NestedSetOptionsModule extends BlazeModule {
                 + "Starlark code or a NestedSet is flattened internally, and that data structure "
                 + "has a depth exceeding this limit, then the Bazel invocation will fail.")
     public int nestedSetDepthLimit;
+
+    @Option(
+        name = "experimental_nested_set_interning",
+        defaultValue = "false",
+        documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+        effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS},
+        metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+        help =
+            "If enabled, structurally equal NestedSets, e.g. the same toolchain files collected "
+                + "in several configurations, share one instance. The estimated memory saved is "
+                + "written to the --memory_profile.")
+    public boolean nestedSetInterning;
   }
 
+  private static final String INTERNING_HITS = "nested_set_interning:hits";
+  private static final String INTERNING_SAVED_BYTES = "nested_set_interning:saved_bytes";
+
   @Override
   public void beforeCommand(CommandEnvironment env) {
     Options options = env.getOptions().getOptions(Options.class);
@@ -47,6 +64,15 @@ public class NestedSetOptionsModule extends BlazeModule {
     if (changed) {
       env.getSkyframeExecutor().resetEvaluator();
     }
+    NestedSetInterner.setEnabled(options.nestedSetInterning);
+    if (options.nestedSetInterning) {
+      MemoryProfiler.instance().registerStatistic(INTERNING_HITS, NestedSetInterner::getHits);
+      MemoryProfiler.instance()
+          .registerStatistic(INTERNING_SAVED_BYTES, NestedSetInterner::getSavedBytes);
+    } else {
+      MemoryProfiler.instance().unregisterStatistic(INTERNING_HITS);
+      MemoryProfiler.instance().unregisterStatistic(INTERNING_SAVED_BYTES);
+    }
   }
 
   @Override
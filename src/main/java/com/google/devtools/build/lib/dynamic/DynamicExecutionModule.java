@@ -46,6 +46,8 @@ import java.util.logging.Logger;
  */
 public class DynamicExecutionModule extends BlazeModule {
   private ExecutorService executorService;
+  // Kept across commands, so that later builds benefit from the races of earlier ones.
+  private final SpawnRaceHistory raceHistory = new SpawnRaceHistory();
   private static final Logger logger = Logger.getLogger(DynamicExecutionModule.class.getName());
   static List<Map.Entry<String, List<String>>> localStrategiesByMnemonic;
   static List<Map.Entry<String, List<String>>> remoteStrategiesByMnemonic;
@@ -150,7 +152,11 @@ public class DynamicExecutionModule extends BlazeModule {
             new LegacyDynamicSpawnStrategy(executorService, options, this::getExecutionPolicy));
       } else {
         builder.addActionContext(
-            new DynamicSpawnStrategy(executorService, options, this::getExecutionPolicy));
+            new DynamicSpawnStrategy(
+                executorService,
+                options,
+                this::getExecutionPolicy,
+                options.learnFromRaces ? raceHistory : null));
       }
       builder.addStrategyByContext(SpawnActionContext.class, "dynamic");
       setDefaultStrategiesByMnemonic(options);
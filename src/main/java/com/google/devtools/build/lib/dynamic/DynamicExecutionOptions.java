@@ -113,6 +113,19 @@ public class DynamicExecutionOptions extends OptionsBase {
   )
   public int localExecutionDelay;
 
+  @Option(
+      name = "experimental_dynamic_learn_from_races",
+      documentationCategory = OptionDocumentationCategory.UNCATEGORIZED,
+      effectTags = {OptionEffectTag.EXECUTION},
+      defaultValue = "false",
+      help =
+          "If enabled, dynamic execution remembers which branch won past races, per mnemonic and "
+              + "per target, and stops starting the branch that almost never wins. When both "
+              + "branches are still raced, local execution is delayed by the usual remote "
+              + "execution time if remote execution usually wins. Only has an effect with "
+              + "--nolegacy_spawn_scheduler.")
+  public boolean learnFromRaces;
+
   @Option(
     name = "experimental_debug_spawn_scheduler",
     documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
@@ -77,6 +77,7 @@ public class DynamicSpawnStrategy implements SpawnActionContext {
   private final ListeningExecutorService executorService;
   private final DynamicExecutionOptions options;
   private final Function<Spawn, ExecutionPolicy> getExecutionPolicy;
+  @Nullable private final SpawnRaceHistory raceHistory;
 
   /**
    * Set to true by the first action that completes remotely. Until that happens, all local actions
@@ -103,9 +104,25 @@ public class DynamicSpawnStrategy implements SpawnActionContext {
       ExecutorService executorService,
       DynamicExecutionOptions options,
       Function<Spawn, ExecutionPolicy> getExecutionPolicy) {
+    this(executorService, options, getExecutionPolicy, null);
+  }
+
+  /**
+   * Constructs a {@code DynamicSpawnStrategy}.
+   *
+   * @param executorService an {@link ExecutorService} that will be used to run Spawn actions.
+   * @param raceHistory if not null, outcomes of past races used to decide whether to race a spawn
+   *     at all, and how long to delay its local branch
+   */
+  DynamicSpawnStrategy(
+      ExecutorService executorService,
+      DynamicExecutionOptions options,
+      Function<Spawn, ExecutionPolicy> getExecutionPolicy,
+      @Nullable SpawnRaceHistory raceHistory) {
     this.executorService = MoreExecutors.listeningDecorator(executorService);
     this.options = options;
     this.getExecutionPolicy = getExecutionPolicy;
+    this.raceHistory = raceHistory;
   }
 
   /**
@@ -293,6 +310,22 @@ public class DynamicSpawnStrategy implements SpawnActionContext {
       return runRemotely(spawn, actionExecutionContext, null);
     }
 
+    long localDelayMillis = delayLocalExecution.get() ? options.localExecutionDelay : 0;
+    if (raceHistory != null) {
+      SpawnRaceHistory.Decision decision = raceHistory.decide(spawn, localDelayMillis);
+      switch (decision.getMode()) {
+        case LOCAL_ONLY:
+          return runLocally(spawn, actionExecutionContext, null);
+        case REMOTE_ONLY:
+          return runRemotely(spawn, actionExecutionContext, null);
+        case RACE:
+          localDelayMillis = decision.getLocalDelayMillis();
+          break;
+      }
+    }
+    long raceStartMillis = System.currentTimeMillis();
+    long effectiveLocalDelayMillis = localDelayMillis;
+
     // Semaphores to track termination of each branch. These are necessary to wait for the branch to
     // finish its own cleanup (e.g. terminating subprocesses) once it has been cancelled.
     Semaphore localDone = new Semaphore(0);
@@ -317,13 +350,17 @@ public class DynamicSpawnStrategy implements SpawnActionContext {
                     checkState(Thread.interrupted());
                     throw new InterruptedException();
                   }
-                  if (delayLocalExecution.get()) {
-                    Thread.sleep(options.localExecutionDelay);
+                  if (effectiveLocalDelayMillis > 0) {
+                    Thread.sleep(effectiveLocalDelayMillis);
                   }
-                  return runLocally(
-                      spawn,
-                      context,
-                      () -> stopBranch(remoteBranch, remoteDone, "local", strategyThatCancelled));
+                  List<SpawnResult> spawnResults =
+                      runLocally(
+                          spawn,
+                          context,
+                          () ->
+                              stopBranch(remoteBranch, remoteDone, "local", strategyThatCancelled));
+                  recordRace(spawn, /*localWon=*/ true, raceStartMillis);
+                  return spawnResults;
                 } finally {
                   localDone.release();
                 }
@@ -360,6 +397,7 @@ public class DynamicSpawnStrategy implements SpawnActionContext {
                           () ->
                               stopBranch(localBranch, localDone, "remote", strategyThatCancelled));
                   delayLocalExecution.set(true);
+                  recordRace(spawn, /*localWon=*/ false, raceStartMillis);
                   return spawnResults;
                 } finally {
                   remoteDone.release();
@@ -385,6 +423,12 @@ public class DynamicSpawnStrategy implements SpawnActionContext {
     }
   }
 
+  private void recordRace(Spawn spawn, boolean localWon, long raceStartMillis) {
+    if (raceHistory != null) {
+      raceHistory.recordRace(spawn, localWon, System.currentTimeMillis() - raceStartMillis);
+    }
+  }
+
   private static List<SandboxedSpawnActionContext> getValidStrategies(
       Map<String, List<SandboxedSpawnActionContext>> strategiesByMnemonic, Spawn spawn) {
     List<SandboxedSpawnActionContext> validStrategies = Lists.newArrayList();
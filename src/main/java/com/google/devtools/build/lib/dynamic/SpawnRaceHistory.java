@@ -0,0 +1,185 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.dynamic;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.devtools.build.lib.actions.ActionOwner;
+import com.google.devtools.build.lib.actions.Spawn;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers which branch won past races of the {@link DynamicSpawnStrategy}, and uses that to
+ * decide how to run new spawns.
+ *
+ * <p>Outcomes are tracked both per mnemonic and per (mnemonic, target) pair. A decision uses the
+ * per-target history once it has enough samples, and the per-mnemonic history otherwise. When one
+ * branch (almost) always wins, the spawn only runs on that branch, which saves the resources the
+ * losing branch would have wasted. To notice when that stops being true, every so often such a
+ * spawn is raced anyway.
+ *
+ * <p>When both branches are raced but remote usually wins, local execution is delayed by the time
+ * remote execution usually takes, so that the local branch only starts when remote execution is
+ * slower than expected.
+ *
+ * <p>The history lives in memory for the lifetime of the server. The per-target history is only
+ * kept for the most recently raced targets, so that it doesn't grow with every target the server
+ * ever builds.
+ */
+final class SpawnRaceHistory {
+  /** Races needed for a key before its history is used. */
+  @VisibleForTesting static final int MIN_SAMPLES = 10;
+
+  /** Share of wins below which a branch isn't worth starting anymore. */
+  private static final double ONE_SIDED_THRESHOLD = 0.05;
+
+  /** How often a spawn that would only run on one branch is raced anyway. */
+  @VisibleForTesting static final int EXPLORATION_INTERVAL = 20;
+
+  /**
+   * Weight of older outcomes relative to a new one. With 0.9, the history mostly reflects the last
+   * few dozen races, so it adapts when e.g. the remote cluster gets slower.
+   */
+  private static final double DECAY = 0.9;
+
+  /** Number of targets whose history is kept. */
+  private static final int MAX_TARGETS = 100_000;
+
+  /** Upper bound for the learned local execution delay. */
+  @VisibleForTesting static final long MAX_LOCAL_DELAY_MILLIS = 10_000;
+
+  /** Which branches to run for a spawn. */
+  enum Mode {
+    RACE,
+    LOCAL_ONLY,
+    REMOTE_ONLY
+  }
+
+  /** How to run a spawn. */
+  static final class Decision {
+    private final Mode mode;
+    private final long localDelayMillis;
+
+    private Decision(Mode mode, long localDelayMillis) {
+      this.mode = mode;
+      this.localDelayMillis = localDelayMillis;
+    }
+
+    Mode getMode() {
+      return mode;
+    }
+
+    /** How long to wait before starting the local branch of a race. */
+    long getLocalDelayMillis() {
+      return localDelayMillis;
+    }
+  }
+
+  private static final Decision LOCAL_ONLY = new Decision(Mode.LOCAL_ONLY, 0);
+  private static final Decision REMOTE_ONLY = new Decision(Mode.REMOTE_ONLY, 0);
+
+  /** Outcomes of past races for a single key. */
+  private static final class Outcomes {
+    // Read without the lock by SpawnRaceHistory#decide.
+    private volatile int samples;
+    private double localWins;
+    private double remoteWins;
+    private double remoteLatencyMillis;
+    private int oneSidedDecisions;
+
+    synchronized void record(boolean localWon, long latencyMillis) {
+      samples++;
+      localWins *= DECAY;
+      remoteWins *= DECAY;
+      if (localWon) {
+        localWins++;
+      } else {
+        remoteWins++;
+        remoteLatencyMillis =
+            remoteWins == 1
+                ? latencyMillis
+                : DECAY * remoteLatencyMillis + (1 - DECAY) * latencyMillis;
+      }
+    }
+
+    synchronized Decision decide(long defaultLocalDelayMillis) {
+      double localShare = localWins / (localWins + remoteWins);
+      if (localShare <= ONE_SIDED_THRESHOLD || localShare >= 1 - ONE_SIDED_THRESHOLD) {
+        if (++oneSidedDecisions < EXPLORATION_INTERVAL) {
+          return localShare < 0.5 ? REMOTE_ONLY : LOCAL_ONLY;
+        }
+        // Explore: race this one to find out whether the losing branch has caught up.
+        oneSidedDecisions = 0;
+        return new Decision(Mode.RACE, defaultLocalDelayMillis);
+      }
+      if (localShare >= 0.5) {
+        return new Decision(Mode.RACE, 0);
+      }
+      return new Decision(
+          Mode.RACE, Math.min((long) remoteLatencyMillis, MAX_LOCAL_DELAY_MILLIS));
+    }
+  }
+
+  // There are few mnemonics, so their history is never dropped.
+  private final ConcurrentMap<String, Outcomes> outcomesByMnemonic = new ConcurrentHashMap<>();
+  private final LoadingCache<String, Outcomes> outcomesByTarget;
+
+  SpawnRaceHistory() {
+    this(MAX_TARGETS);
+  }
+
+  @VisibleForTesting
+  SpawnRaceHistory(int maxTargets) {
+    this.outcomesByTarget =
+        CacheBuilder.newBuilder().maximumSize(maxTargets).build(CacheLoader.from(Outcomes::new));
+  }
+
+  /**
+   * Decides how to run the given spawn.
+   *
+   * @param defaultLocalDelayMillis the local execution delay to use if there isn't enough history
+   *     for this spawn
+   */
+  Decision decide(Spawn spawn, long defaultLocalDelayMillis) {
+    Outcomes outcomes = outcomesByTarget.getIfPresent(targetKey(spawn));
+    if (outcomes == null || outcomes.samples < MIN_SAMPLES) {
+      outcomes = outcomesByMnemonic.get(spawn.getMnemonic());
+    }
+    if (outcomes == null || outcomes.samples < MIN_SAMPLES) {
+      return new Decision(Mode.RACE, defaultLocalDelayMillis);
+    }
+    return outcomes.decide(defaultLocalDelayMillis);
+  }
+
+  /**
+   * Records the outcome of a race.
+   *
+   * @param localWon whether the local branch won
+   * @param latencyMillis time from the start of the race until the winning branch finished
+   */
+  void recordRace(Spawn spawn, boolean localWon, long latencyMillis) {
+    outcomesByMnemonic
+        .computeIfAbsent(spawn.getMnemonic(), k -> new Outcomes())
+        .record(localWon, latencyMillis);
+    outcomesByTarget.getUnchecked(targetKey(spawn)).record(localWon, latencyMillis);
+  }
+
+  private static String targetKey(Spawn spawn) {
+    ActionOwner owner = spawn.getResourceOwner().getOwner();
+    return spawn.getMnemonic() + " " + (owner != null ? owner.getLabel() : null);
+  }
+}
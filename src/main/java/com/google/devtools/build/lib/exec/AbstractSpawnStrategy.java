@@ -24,6 +24,7 @@ import com.google.devtools.build.lib.actions.Artifact.ArtifactExpander;
 import com.google.devtools.build.lib.actions.ArtifactPathResolver;
 import com.google.devtools.build.lib.actions.EnvironmentalExecException;
 import com.google.devtools.build.lib.actions.ExecException;
+import com.google.devtools.build.lib.actions.LostInputsExecException.LostInputsIOException;
 import com.google.devtools.build.lib.actions.MetadataProvider;
 import com.google.devtools.build.lib.actions.RunningActionEvent;
 import com.google.devtools.build.lib.actions.SandboxedSpawnActionContext;
@@ -124,6 +125,9 @@ public abstract class AbstractSpawnStrategy implements SandboxedSpawnActionConte
           cacheHandle.store(spawnResult);
         }
       }
+    } catch (LostInputsIOException e) {
+      // Inputs that only existed remotely are gone. Action rewinding can regenerate them.
+      throw e.getLostInputsExecException();
     } catch (IOException e) {
       throw new EnvironmentalExecException(e);
     } catch (SpawnExecException e) {
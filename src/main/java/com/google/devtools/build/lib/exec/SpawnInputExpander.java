@@ -33,6 +33,7 @@ import com.google.devtools.build.lib.actions.cache.VirtualActionInput.EmptyActio
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -209,11 +210,36 @@ public class SpawnInputExpander {
 
   private void addInputs(
       Map<PathFragment, ActionInput> inputMap, Spawn spawn, ArtifactExpander artifactExpander) {
-    List<ActionInput> inputs =
-        ActionInputHelper.expandArtifacts(spawn.getInputFiles(), artifactExpander);
-    for (ActionInput input : inputs) {
-      addMapping(inputMap, input.getExecPath(), input);
-    }
+    // The inputs are usually a nested set, which we stream over instead of flattening it first.
+    // Like ActionInputHelper.expandArtifacts, this adds all other inputs before any (expanded)
+    // artifact, so that an artifact replaces another input with the same exec path.
+    spawn
+        .getInputFiles()
+        .forEach(
+            input -> {
+              if (!(input instanceof Artifact)) {
+                addMapping(inputMap, input.getExecPath(), input);
+              }
+            });
+    List<Artifact> expandedArtifacts = new ArrayList<>();
+    spawn
+        .getInputFiles()
+        .forEach(
+            input -> {
+              if (!(input instanceof Artifact)) {
+                return;
+              }
+              Artifact artifact = (Artifact) input;
+              if (artifact.isMiddlemanArtifact() || artifact.isTreeArtifact()) {
+                expandedArtifacts.clear();
+                artifactExpander.expand(artifact, expandedArtifacts);
+                for (Artifact expanded : expandedArtifacts) {
+                  addMapping(inputMap, expanded.getExecPath(), expanded);
+                }
+              } else {
+                addMapping(inputMap, artifact.getExecPath(), artifact);
+              }
+            });
   }
 
   /**
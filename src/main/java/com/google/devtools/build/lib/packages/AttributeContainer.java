@@ -31,31 +31,34 @@ public final class AttributeContainer {
 
   private final RuleClass ruleClass;
 
-  // Attribute values, keyed by attribute index:
-  private final Object[] attributeValues;
-
-  // Holds a list of attribute indices.
-  // The first byte gives the length of the list.
-  // The list records which attributes were set explicitly in the BUILD file.
-  // The list may be padded with zeros at the end.
-  private byte[] state;
+  // The values of the attributes that differ from their default in the rule class or that were set
+  // explicitly in the BUILD file, which is most often a small fraction of them. values[i] is the
+  // value of the attribute with index (INDEX_MASK & indices[i]), and indices[i] has EXPLICIT_BIT
+  // set if the attribute was set explicitly. indices is sorted by attribute index, and both arrays
+  // have exactly one element per value. The value of any other attribute is its default, see
+  // #getAttributeValue.
+  private char[] indices;
+  private Object[] values;
+
+  private static final int INDEX_MASK = 0xff;
+  private static final char EXPLICIT_BIT = 0x100;
 
   /**
    * Create a container for a rule of the given rule class.
    */
   public AttributeContainer(RuleClass ruleClass) {
     int n = ruleClass.getAttributeCount();
-    if (n > 254) {
-      // We reserve the zero byte as a hole/sentinel inside state[].
-      // If you hit this limit, replace byte with char and remove the masking with 0xff.
-      throw new AssertionError("can't pack " + n + " rule indices into bytes");
+    if (n > INDEX_MASK + 1) {
+      // If you hit this limit, widen INDEX_MASK and move EXPLICIT_BIT up.
+      throw new AssertionError("can't pack " + n + " rule indices into eight bits");
     }
     this.ruleClass = ruleClass;
-    this.attributeValues = new Object[n];
-    this.state = EMPTY_STATE;
+    this.indices = EMPTY_INDICES;
+    this.values = EMPTY_VALUES;
   }
 
-  private static final byte[] EMPTY_STATE = {0};
+  private static final char[] EMPTY_INDICES = {};
+  private static final Object[] EMPTY_VALUES = {};
 
   /**
    * Returns an attribute value by name, or null on no match.
@@ -63,7 +66,7 @@ public final class AttributeContainer {
   @Nullable
   public Object getAttr(String attrName) {
     Integer idx = ruleClass.getAttributeIndex(attrName);
-    return idx != null ? attributeValues[idx] : null;
+    return idx != null ? getAttributeValue(idx) : null;
   }
 
   /**
@@ -84,65 +87,90 @@ public final class AttributeContainer {
     return idx != null && getExplicit(idx);
   }
 
- /**
-  * Returns the number of elements of state[] currently used to store
-  * indices of "explicitly set" attributes.
-  */
-  private int explicitCount() {
-    return 0xff & state[0];
-  }
-
   private boolean getExplicit(int index) {
-    int n = explicitCount();
-    for (int i = 1; i <= n; ++i) {
-      if ((0xff & state[i]) == index + 1) {
-        return true;
-      }
-    }
-    return false;
-  }
-
-  private void setExplicit(int index) {
-    if (getExplicit(index)) {
-      return;
-    }
-    ensureSpace();
-    int n = explicitCount() + 1;
-    state[0] = (byte) n;
-    state[n] = (byte) (index + 1);
+    int pos = find(index);
+    return pos >= 0 && (indices[pos] & EXPLICIT_BIT) != 0;
   }
 
   /**
-   * Ensures that the state[n] byte is equal to the sentinel value 0, so there is room for another
-   * attribute's explicit bit to be set.
+   * Returns the position of the attribute index in {@link #indices}, or, if it is absent, {@code
+   * -(insertion point) - 1}.
    */
-  private void ensureSpace() {
-    int n = explicitCount() + 1;
-    if (n < state.length && state[n] == 0) {
-      return;
+  private int find(int index) {
+    int lo = 0;
+    int hi = indices.length - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int midIndex = INDEX_MASK & indices[mid];
+      if (midIndex < index) {
+        lo = mid + 1;
+      } else if (midIndex > index) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
     }
-    // Grow up to the next multiple of eight bytes, as the object will be
-    // aligned to eight bytes anyway.  Pad with zeros at the end.
-    byte[] newState = new byte[(state.length | 7) + 1];
-    // Copy stored explicit attributes to the beginning of the array.
-    System.arraycopy(state, 0, newState, 0, n);
-    state = newState;
+    return -(lo + 1);
   }
 
   Object getAttributeValue(int index) {
-    return attributeValues[index];
+    int pos = find(index);
+    return pos >= 0
+        ? values[pos]
+        : ruleClass.getAttribute(index).getDefaultValueUnchecked();
   }
 
   void setAttributeValue(Attribute attribute, Object value, boolean explicit) {
     String name = attribute.getName();
     Integer index = ruleClass.getAttributeIndex(name);
-    if (!explicit && getExplicit(index)) {
+    int pos = find(index);
+    boolean wasExplicit = pos >= 0 && (indices[pos] & EXPLICIT_BIT) != 0;
+    if (!explicit && wasExplicit) {
       throw new IllegalArgumentException("attribute " + name + " already explicitly set");
     }
-    attributeValues[index] = value;
-    if (explicit) {
-      setExplicit(index);
+    if (explicit || value != ruleClass.getAttribute(index).getDefaultValueUnchecked()) {
+      char key = (char) (explicit ? index | EXPLICIT_BIT : index);
+      if (pos >= 0) {
+        indices[pos] = key;
+        values[pos] = value;
+      } else {
+        insert(-pos - 1, key, value);
+      }
+    } else if (pos >= 0) {
+      // The default need not be stored, unless it was set explicitly.
+      remove(pos);
+    }
+  }
+
+  private void insert(int pos, char key, Object value) {
+    int n = indices.length;
+    char[] newIndices = new char[n + 1];
+    Object[] newValues = new Object[n + 1];
+    System.arraycopy(indices, 0, newIndices, 0, pos);
+    System.arraycopy(values, 0, newValues, 0, pos);
+    newIndices[pos] = key;
+    newValues[pos] = value;
+    System.arraycopy(indices, pos, newIndices, pos + 1, n - pos);
+    System.arraycopy(values, pos, newValues, pos + 1, n - pos);
+    indices = newIndices;
+    values = newValues;
+  }
+
+  private void remove(int pos) {
+    int n = indices.length;
+    if (n == 1) {
+      indices = EMPTY_INDICES;
+      values = EMPTY_VALUES;
+      return;
     }
+    char[] newIndices = new char[n - 1];
+    Object[] newValues = new Object[n - 1];
+    System.arraycopy(indices, 0, newIndices, 0, pos);
+    System.arraycopy(values, 0, newValues, 0, pos);
+    System.arraycopy(indices, pos + 1, newIndices, pos, n - pos - 1);
+    System.arraycopy(values, pos + 1, newValues, pos, n - pos - 1);
+    indices = newIndices;
+    values = newValues;
   }
 
   // This sets the attribute "explicitly" as if it came from the BUILD file.
@@ -18,6 +18,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
@@ -32,6 +33,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -144,16 +146,51 @@ public class GlobCache {
       throws BadGlobException {
     Future<List<Path>> cached = globCache.get(Pair.of(pattern, excludeDirs));
     if (cached == null) {
-      if (maxDirectoriesToEagerlyVisit > -1
-          && !globalStarted.getAndSet(true)) {
-        packageDirectory.prefetchPackageAsync(maxDirectoriesToEagerlyVisit);
-      }
+      maybePrefetchPackage();
       cached = safeGlobUnsorted(pattern, excludeDirs);
       setGlobPaths(pattern, excludeDirs, cached);
     }
     return cached;
   }
 
+  /**
+   * Starts evaluating the globs of {@code patterns} that are not cached yet. They are evaluated
+   * together, in a single traversal of the package's directory tree, so that a directory is read
+   * at most once for all of them.
+   *
+   * @throws BadGlobException if any of the patterns was syntactically invalid, in which case no
+   *     glob is started.
+   */
+  void startGlobsUnsorted(Collection<String> patterns, boolean excludeDirs)
+      throws BadGlobException {
+    Set<String> uncached = new LinkedHashSet<>();
+    for (String pattern : patterns) {
+      if (!globCache.containsKey(Pair.of(pattern, excludeDirs))) {
+        checkPattern(pattern);
+        uncached.add(pattern);
+      }
+    }
+    if (uncached.isEmpty()) {
+      return;
+    } else if (uncached.size() == 1) {
+      getGlobUnsortedAsync(Iterables.getOnlyElement(uncached), excludeDirs);
+      return;
+    }
+    maybePrefetchPackage();
+    List<Future<List<Path>>> results =
+        newGlob(excludeDirs).addPatterns(uncached).globAsyncByPattern();
+    int i = 0;
+    for (String pattern : uncached) {
+      setGlobPaths(pattern, excludeDirs, results.get(i++));
+    }
+  }
+
+  private void maybePrefetchPackage() {
+    if (maxDirectoriesToEagerlyVisit > -1 && !globalStarted.getAndSet(true)) {
+      packageDirectory.prefetchPackageAsync(maxDirectoriesToEagerlyVisit);
+    }
+  }
+
   @VisibleForTesting
   List<String> getGlobUnsorted(String pattern)
       throws IOException, BadGlobException, InterruptedException {
@@ -201,6 +238,11 @@ public class GlobCache {
    */
   @VisibleForTesting
   Future<List<Path>> safeGlobUnsorted(String pattern, boolean excludeDirs) throws BadGlobException {
+    checkPattern(pattern);
+    return newGlob(excludeDirs).addPattern(pattern).globAsync();
+  }
+
+  private static void checkPattern(String pattern) throws BadGlobException {
     // Forbidden patterns:
     if (pattern.indexOf('?') != -1) {
       throw new BadGlobException("glob pattern '" + pattern + "' contains forbidden '?' wildcard");
@@ -210,13 +252,14 @@ public class GlobCache {
     if (error != null) {
       throw new BadGlobException(error + " (in glob pattern '" + pattern + "')");
     }
+  }
+
+  private UnixGlob.Builder newGlob(boolean excludeDirs) {
     return UnixGlob.forPath(packageDirectory)
-        .addPattern(pattern)
         .setExcludeDirectories(excludeDirs)
         .setDirectoryFilter(childDirectoryPredicate)
         .setExecutor(globExecutor)
-        .setFilesystemCalls(syscalls)
-        .globAsync();
+        .setFilesystemCalls(syscalls);
   }
 
   /**
@@ -247,10 +290,7 @@ public class GlobCache {
     // Start globbing all patterns in parallel. The getGlob() calls below will
     // block on an individual pattern's results, but the other globs can
     // continue in the background.
-    for (String pattern : includes) {
-      @SuppressWarnings("unused") 
-      Future<?> possiblyIgnoredError = getGlobUnsortedAsync(pattern, excludeDirs);
-    }
+    startGlobsUnsorted(includes, excludeDirs);
 
     HashSet<String> results = new HashSet<>();
     Preconditions.checkState(!results.contains(null), "glob returned null");
@@ -21,6 +21,7 @@ import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import java.util.Objects;
 
 /**
  * A file that is an input to the build system.
@@ -89,6 +90,15 @@ public final class InputFile extends FileTarget {
     }
   }
 
+  /**
+   * Returns whether this input file and {@code other}, an input file of another instance of the
+   * same package, were declared with the same visibility and license.
+   */
+  boolean equalsIgnoringLocations(InputFile other) {
+    return Rule.visibilityEquals(visibility, other.visibility)
+        && Objects.equals(license, other.license);
+  }
+
   /**
    * Returns the path to the location of the input file (which is necessarily
    * within the source tree, not beneath <code>bin</code> or
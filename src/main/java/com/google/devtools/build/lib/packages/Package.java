@@ -714,6 +714,119 @@ public class Package {
     return registeredToolchains;
   }
 
+  /**
+   * Returns whether this package and {@code other}, another instance of the same package, are
+   * indistinguishable except for the source locations of their targets and events: they define the
+   * same targets with the same attribute values, and have the same package-level defaults and
+   * dependencies. This is conservative: packages containing targets other than rules and files, or
+   * attribute values without a meaningful {@code equals}, compare different.
+   *
+   * <p>Used to reuse a previously loaded package, and the {@link Rule}s in it, when its BUILD file
+   * is re-evaluated without effect, so that the dependents of the package need not be re-evaluated.
+   */
+  public boolean equalsIgnoringLocations(Package other) {
+    if (!equalsIgnoringTargetsAndLocations(other)
+        || !posts.isEmpty()
+        || !other.posts.isEmpty()
+        || events.size() != other.events.size()
+        || targets.size() != other.targets.size()) {
+      return false;
+    }
+    for (int i = 0; i < events.size(); i++) {
+      Event event = events.get(i);
+      Event otherEvent = other.events.get(i);
+      if (event.getKind() != otherEvent.getKind()
+          || !event.getMessage().equals(otherEvent.getMessage())) {
+        return false;
+      }
+    }
+    for (Map.Entry<String, Target> entry : targets.entrySet()) {
+      Target target = entry.getValue();
+      Target otherTarget = other.targets.get(entry.getKey());
+      if (otherTarget == null || target.getClass() != otherTarget.getClass()) {
+        return false;
+      } else if (target instanceof Rule) {
+        if (!((Rule) target).equalsIgnoringLocations((Rule) otherTarget)) {
+          return false;
+        }
+      } else if (target instanceof InputFile) {
+        if (!((InputFile) target).equalsIgnoringLocations((InputFile) otherTarget)) {
+          return false;
+        }
+      } else if (target instanceof OutputFile) {
+        // The generating rules are compared by their own entries.
+        if (!((OutputFile) target)
+            .getGeneratingRule()
+            .getLabel()
+            .equals(((OutputFile) otherTarget).getGeneratingRule().getLabel())) {
+          return false;
+        }
+      } else {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns whether {@code target} and {@code other}, the targets of the same label in two
+   * instances of the same package, are indistinguishable except for source locations: their
+   * packages have the same package-level defaults and dependencies, and the targets are declared
+   * the same way. An output file is compared by its generating rule. Like {@link
+   * #equalsIgnoringLocations}, this is conservative.
+   *
+   * <p>Used to reuse a previously loaded target when its package is re-evaluated without effect on
+   * it, so that the dependents of the target need not be re-evaluated even if other targets of the
+   * package changed.
+   */
+  public static boolean targetEqualsIgnoringLocations(Target target, Target other) {
+    if (target.getClass() != other.getClass()
+        || !target.getLabel().equals(other.getLabel())
+        || !target.getPackage().equalsIgnoringTargetsAndLocations(other.getPackage())) {
+      return false;
+    } else if (target instanceof Rule) {
+      return ((Rule) target).equalsIgnoringLocations((Rule) other);
+    } else if (target instanceof InputFile) {
+      return ((InputFile) target).equalsIgnoringLocations((InputFile) other);
+    } else if (target instanceof OutputFile) {
+      return ((OutputFile) target)
+          .getGeneratingRule()
+          .equalsIgnoringLocations(((OutputFile) other).getGeneratingRule());
+    } else {
+      return false;
+    }
+  }
+
+  /**
+   * Returns whether this package and {@code other}, another instance of the same package, have the
+   * same package-level defaults and dependencies. Their targets and events are not compared.
+   */
+  private boolean equalsIgnoringTargetsAndLocations(Package other) {
+    return packageIdentifier.equals(other.packageIdentifier)
+        && filename.equals(other.filename)
+        && sourceRoot.equals(other.sourceRoot)
+        && workspaceName.equals(other.workspaceName)
+        && containsErrors == other.containsErrors
+        && makeEnv.equals(other.makeEnv)
+        && Rule.visibilityEquals(defaultVisibility, other.defaultVisibility)
+        && defaultVisibilitySet == other.defaultVisibilitySet
+        && defaultTestOnly == other.defaultTestOnly
+        && Objects.equals(defaultDeprecation, other.defaultDeprecation)
+        && Objects.equals(defaultHdrsCheck, other.defaultHdrsCheck)
+        && Objects.equals(defaultCopts, other.defaultCopts)
+        && Objects.equals(defaultLicense, other.defaultLicense)
+        && Objects.equals(defaultDistributionSet, other.defaultDistributionSet)
+        && defaultCompatibleWith.equals(other.defaultCompatibleWith)
+        && defaultRestrictedTo.equals(other.defaultRestrictedTo)
+        && features.equals(other.features)
+        && Objects.equals(skylarkFileDependencies, other.skylarkFileDependencies)
+        && repositoryMapping.equals(other.repositoryMapping)
+        && Objects.equals(
+            externalPackageRepositoryMappings, other.externalPackageRepositoryMappings)
+        && registeredExecutionPlatforms.equals(other.registeredExecutionPlatforms)
+        && registeredToolchains.equals(other.registeredToolchains);
+  }
+
   @Override
   public String toString() {
     return "Package(" + name + ")="
@@ -38,7 +38,9 @@ import com.google.devtools.build.lib.util.BinaryPredicate;
 import java.util.Collection;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
+import javax.annotation.Nullable;
 
 /**
  * An instance of a build rule in the build language. A rule has a name, a package to which it
@@ -692,6 +694,78 @@ public class Rule implements Target, DependencyFilter.AttributeInfoProvider {
     return labels.values();
   }
 
+  /**
+   * Returns whether this rule and {@code other}, a rule of another instance of the same package,
+   * have the same label, rule class, attribute values, visibility and outputs, disregarding their
+   * locations. Attribute values whose equality cannot be established are considered different.
+   */
+  boolean equalsIgnoringLocations(Rule other) {
+    if (!label.equals(other.label)
+        || ruleClass != other.ruleClass
+        || implicitOutputsFunction != other.implicitOutputsFunction
+        || containsErrors != other.containsErrors
+        || !visibilityEquals(visibility, other.visibility)) {
+      return false;
+    }
+    for (Attribute attribute : ruleClass.getAttributes()) {
+      String name = attribute.getName();
+      if (name.equals("generator_location")) {
+        // Like the rule location, this only changes when lines are added or removed.
+        continue;
+      }
+      if (attributes.isAttributeValueExplicitlySpecified(name)
+              != other.attributes.isAttributeValueExplicitlySpecified(name)
+          || !attributeValueEquals(attributes.getAttr(name), other.attributes.getAttr(name))) {
+        return false;
+      }
+    }
+    if (outputFiles.size() != other.outputFiles.size()) {
+      return false;
+    }
+    for (int i = 0; i < outputFiles.size(); i++) {
+      if (!outputFiles.get(i).getLabel().equals(other.outputFiles.get(i).getLabel())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns whether two visibilities, either of which may be null, were declared the same way. */
+  static boolean visibilityEquals(@Nullable RuleVisibility x, @Nullable RuleVisibility y) {
+    if (x == null || y == null) {
+      return x == y;
+    }
+    // A visibility is determined by its declared labels.
+    return x.getClass() == y.getClass() && x.getDeclaredLabels().equals(y.getDeclaredLabels());
+  }
+
+  private static boolean attributeValueEquals(Object x, Object y) {
+    if (x instanceof BuildType.SelectorList && y instanceof BuildType.SelectorList) {
+      // SelectorList does not implement equals.
+      List<? extends BuildType.Selector<?>> xs = ((BuildType.SelectorList<?>) x).getSelectors();
+      List<? extends BuildType.Selector<?>> ys = ((BuildType.SelectorList<?>) y).getSelectors();
+      if (xs.size() != ys.size()) {
+        return false;
+      }
+      for (int i = 0; i < xs.size(); i++) {
+        BuildType.Selector<?> xsel = xs.get(i);
+        BuildType.Selector<?> ysel = ys.get(i);
+        if (xsel.getOriginalType() != ysel.getOriginalType()
+            || !xsel.getEntries().equals(ysel.getEntries())
+            || !xsel.getNoMatchError().equals(ysel.getNoMatchError())) {
+          return false;
+        }
+        for (Label condition : xsel.getEntries().keySet()) {
+          if (xsel.isValueSet(condition) != ysel.isValueSet(condition)) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    return Objects.equals(x, y);
+  }
+
   /**
    * @return The repository name.
    */
@@ -29,6 +29,7 @@ import com.google.devtools.build.lib.skyframe.serialization.autocodec.AutoCodec;
 import com.google.devtools.build.lib.syntax.Concatable;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.devtools.build.lib.syntax.EvalUtils;
+import com.google.devtools.build.lib.syntax.Mutability;
 import com.google.devtools.build.lib.syntax.SkylarkClassObject;
 import com.google.devtools.build.lib.syntax.SkylarkType;
 import com.google.devtools.build.lib.syntax.StarlarkSemantics;
@@ -74,11 +75,23 @@ public abstract class SkylarkInfo extends StructImpl implements Concatable, Skyl
     return true;
   }
 
+  /**
+   * Compacts the lists and dicts of the frozen {@code mutability} that are reachable from the field
+   * values of this object; see {@link Mutability#compact}.
+   */
+  public void compactFieldValues(Mutability mutability) {
+    for (Object item : getValues()) {
+      if (item != null) {
+        mutability.compact(item);
+      }
+    }
+  }
+
   /**
    * Returns all the field values stored in the object, in the canonical order.
    *
-   * <p>{@code protected} because this is only used for {@link #isImmutable}. It saves us having to
-   * get values one-by-one.
+   * <p>{@code protected} because this is only used for {@link #isImmutable} and {@link
+   * #compactFieldValues}. It saves us having to get values one-by-one.
    */
   protected abstract Iterable<Object> getValues();
 
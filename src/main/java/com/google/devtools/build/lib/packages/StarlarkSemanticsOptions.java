@@ -148,6 +148,18 @@ public class StarlarkSemanticsOptions extends OptionsBase implements Serializabl
               + "debugging.")
   public boolean experimentalPlatformsApi;
 
+  @Option(
+      name = "experimental_starlark_bytecode",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.STARLARK_SEMANTICS,
+      effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS},
+      metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+      help =
+          "If set to true, the bodies of Starlark functions are compiled to bytecode when they are "
+              + "first called, and executed by a bytecode interpreter instead of walking their "
+              + "syntax trees.")
+  public boolean experimentalStarlarkBytecode;
+
   @Option(
       name = "experimental_starlark_config_transitions",
       defaultValue = "true",
@@ -659,6 +671,7 @@ public class StarlarkSemanticsOptions extends OptionsBase implements Serializabl
             .experimentalEnableAndroidMigrationApis(experimentalEnableAndroidMigrationApis)
             .experimentalGoogleLegacyApi(experimentalGoogleLegacyApi)
             .experimentalPlatformsApi(experimentalPlatformsApi)
+            .experimentalStarlarkBytecode(experimentalStarlarkBytecode)
             .experimentalStarlarkConfigTransitions(experimentalStarlarkConfigTransitions)
             .experimentalStarlarkUnusedInputsList(experimentalStarlarkUnusedInputsList)
             .experimentalCcSharedLibrary(experimentalCcSharedLibrary)
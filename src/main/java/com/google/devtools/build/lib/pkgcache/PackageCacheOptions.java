@@ -131,6 +131,44 @@ public class PackageCacheOptions extends OptionsBase {
   )
   public int maxDirectoriesToEagerlyVisitInGlobbing;
 
+  @Option(
+    name = "experimental_starlark_compilation_cache",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+    effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS},
+    help =
+        "If true, parsed and validated .bzl files are stored in the output base, keyed by their "
+            + "content and the Starlark semantics, and reused instead of parsing the files again "
+            + "after a server restart."
+  )
+  public boolean starlarkCompilationCache;
+
+  @Option(
+    name = "experimental_starlark_inlining_threads",
+    defaultValue = "1",
+    documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+    effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS},
+    help =
+        "Number of threads used to load the independent load() statements of a file in parallel, "
+            + "when .bzl files are loaded by inlining. With 1 thread, they are loaded one after "
+            + "the other."
+  )
+  public int starlarkInliningThreads;
+
+  @Option(
+    name = "experimental_package_change_pruning",
+    defaultValue = "false",
+    documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+    effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS},
+    help =
+        "If true, a package whose BUILD file changed without effect on its targets, for example "
+            + "by editing comments or moving targets, does not cause its dependents to be "
+            + "re-evaluated. Likewise, the configured targets of the targets that are unaffected "
+            + "by a change to their package are not re-analyzed. Such targets keep the source "
+            + "locations of the previous evaluation."
+  )
+  public boolean packageChangePruning;
+
   @Option(
     name = "fetch",
     defaultValue = "true",
@@ -24,7 +24,10 @@ import java.lang.management.MemoryMXBean;
 import java.lang.management.MemoryUsage;
 import java.time.Duration;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.function.LongSupplier;
 import javax.annotation.Nullable;
 
 /**
@@ -56,12 +59,27 @@ public final class MemoryProfiler {
   private ProfilePhase currentPhase;
   private long heapUsedMemoryAtFinish;
   @Nullable private MemoryProfileStableHeapParameters memoryProfileStableHeapParameters;
+  private final Map<String, LongSupplier> statistics = new TreeMap<>();
 
   public synchronized void setStableMemoryParameters(
       MemoryProfileStableHeapParameters memoryProfileStableHeapParameters) {
     this.memoryProfileStableHeapParameters = memoryProfileStableHeapParameters;
   }
 
+  /**
+   * Registers a value, e.g. the memory saved by some cache, that is written to the profile along
+   * with the memory usage at the end of each phase. Replaces the value registered under the same
+   * name, if any.
+   */
+  public synchronized void registerStatistic(String name, LongSupplier value) {
+    statistics.put(name, value);
+  }
+
+  /** Stops writing the value registered under the given name, if any. */
+  public synchronized void unregisterStatistic(String name) {
+    statistics.remove(name);
+  }
+
   public synchronized void start(OutputStream out) {
     this.memoryProfile = (out == null) ? null : new PrintStream(out);
     this.currentPhase = ProfilePhase.INIT;
@@ -99,6 +117,10 @@ public final class MemoryProfiler {
       memoryProfile.println(name + ":non-heap:used:" + memoryUsage.getUsed());
       memoryProfile.println(name + ":non-heap:commited:" + memoryUsage.getCommitted());
       memoryProfile.println(name + ":non-heap:max:" + memoryUsage.getMax());
+      for (Map.Entry<String, LongSupplier> statistic : statistics.entrySet()) {
+        memoryProfile.println(
+            name + ":" + statistic.getKey() + ":" + statistic.getValue().getAsLong());
+      }
       currentPhase = nextPhase;
     }
   }
@@ -0,0 +1,296 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler.starlark;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.syntax.DebugFrame;
+import com.google.devtools.build.lib.syntax.RunningThreads;
+import com.google.devtools.build.lib.syntax.StarlarkThread;
+import com.google.perftools.profiles.ProfileProto.Function;
+import com.google.perftools.profiles.ProfileProto.Line;
+import com.google.perftools.profiles.ProfileProto.Profile;
+import com.google.perftools.profiles.ProfileProto.Sample;
+import com.google.perftools.profiles.ProfileProto.ValueType;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
+
+/**
+ * A sampling profiler for Starlark code. At a fixed interval, it records the call stack of each
+ * thread that is executing Starlark code, with the file and line of each frame, and writes the
+ * samples as a pprof-compatible profile.
+ *
+ * <p>Each sample of a runnable thread accounts for one interval of CPU time. Each sample also
+ * accounts for the bytes that the thread allocated since its previous sample, if it was executing
+ * Starlark code then. Unlike {@link
+ * com.google.devtools.build.lib.profiler.memory.AllocationTracker}, this requires no Java agent,
+ * but allocations are only attributed to the call stacks that happen to be sampled.
+ */
+public final class StarlarkCpuProfiler {
+
+  // Indices of the values of each sample.
+  private static final int SAMPLES = 0;
+  private static final int CPU = 1;
+  private static final int ALLOCATIONS = 2;
+
+  private final long intervalNanos;
+  private final Instant startTime = Instant.now();
+  @Nullable private final com.sun.management.ThreadMXBean allocationBean;
+
+  // The values of each distinct call stack, innermost frame first.
+  private final Map<ImmutableList<Frame>, long[]> stacks = new HashMap<>();
+  // The bytes allocated by each thread executing Starlark code, at the previous sample.
+  private Map<Thread, Long> allocatedBytes = new HashMap<>();
+
+  @Nullable private Thread sampler;
+
+  @VisibleForTesting
+  StarlarkCpuProfiler(Duration interval) {
+    this.intervalNanos = interval.toNanos();
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    this.allocationBean =
+        threadBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()
+            ? (com.sun.management.ThreadMXBean) threadBean
+            : null;
+  }
+
+  /** Starts sampling the threads that execute Starlark code at the given interval. */
+  public static StarlarkCpuProfiler start(Duration interval) {
+    StarlarkCpuProfiler profiler = new StarlarkCpuProfiler(interval);
+    RunningThreads.setEnabled(true);
+    profiler.sampler = new Thread(profiler::run, "starlark-cpu-profiler");
+    profiler.sampler.setDaemon(true);
+    profiler.sampler.start();
+    return profiler;
+  }
+
+  private void run() {
+    try {
+      while (true) {
+        Thread.sleep(intervalNanos / 1_000_000, (int) (intervalNanos % 1_000_000));
+        sample();
+      }
+    } catch (InterruptedException e) {
+      // stopped
+    }
+  }
+
+  /** Stops sampling, and returns the profile of the samples taken since {@link #start}. */
+  public Profile stop() throws InterruptedException {
+    Preconditions.checkState(sampler != null, "profiler was not started");
+    sampler.interrupt();
+    sampler.join();
+    sampler = null;
+    RunningThreads.setEnabled(false);
+    return createProfile();
+  }
+
+  /** Writes the profile to the stream, in the gzipped format expected by pprof. */
+  public static void write(Profile profile, OutputStream out) throws IOException {
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    profile.writeTo(gzip);
+    gzip.finish();
+  }
+
+  /** Records the current call stack of each thread that executes Starlark code. */
+  @VisibleForTesting
+  synchronized void sample() {
+    Map<Thread, Long> bytesByThread = new HashMap<>();
+    for (Map.Entry<Thread, StarlarkThread> entry : RunningThreads.get().entrySet()) {
+      Thread thread = entry.getKey();
+      ImmutableList.Builder<Frame> stack = ImmutableList.builder();
+      for (DebugFrame frame : entry.getValue().getCallStack()) {
+        stack.add(Frame.of(frame));
+      }
+      long[] values = stacks.computeIfAbsent(stack.build(), k -> new long[3]);
+      values[SAMPLES]++;
+      if (thread.getState() == Thread.State.RUNNABLE) {
+        values[CPU] += intervalNanos;
+      }
+      if (allocationBean != null) {
+        long bytes = allocationBean.getThreadAllocatedBytes(thread.getId());
+        if (bytes >= 0) {
+          Long previous = allocatedBytes.get(thread);
+          if (previous != null) {
+            values[ALLOCATIONS] += bytes - previous;
+          }
+          bytesByThread.put(thread, bytes);
+        }
+      }
+    }
+    allocatedBytes = bytesByThread;
+  }
+
+  @VisibleForTesting
+  synchronized Profile createProfile() {
+    Profile.Builder profile = Profile.newBuilder();
+    StringTable stringTable = new StringTable(profile);
+    FunctionTable functionTable = new FunctionTable(profile, stringTable);
+    LocationTable locationTable = new LocationTable(profile, functionTable);
+    profile.addSampleType(valueType(stringTable, "samples", "count"));
+    profile.addSampleType(valueType(stringTable, "cpu", "nanoseconds"));
+    profile.addSampleType(valueType(stringTable, "alloc_space", "bytes"));
+    for (Map.Entry<ImmutableList<Frame>, long[]> entry : stacks.entrySet()) {
+      Sample.Builder sample = Sample.newBuilder();
+      for (Frame frame : entry.getKey()) {
+        sample.addLocationId(locationTable.get(frame.file, frame.function, frame.line));
+      }
+      for (long value : entry.getValue()) {
+        sample.addValue(value);
+      }
+      profile.addSample(sample.build());
+    }
+    profile.setPeriodType(valueType(stringTable, "cpu", "nanoseconds"));
+    profile.setPeriod(intervalNanos);
+    profile.setTimeNanos(startTime.getEpochSecond() * 1000000000 + startTime.getNano());
+    profile.setDurationNanos(Duration.between(startTime, Instant.now()).toNanos());
+    return profile.build();
+  }
+
+  private static ValueType valueType(StringTable stringTable, String type, String unit) {
+    return ValueType.newBuilder()
+        .setType(stringTable.get(type))
+        .setUnit(stringTable.get(unit))
+        .build();
+  }
+
+  /** A frame of a call stack: a function, and the current file and line in it. */
+  private static final class Frame {
+    final String function;
+    final String file;
+    final long line;
+
+    private Frame(String function, String file, long line) {
+      this.function = function;
+      this.file = file;
+      this.line = line;
+    }
+
+    static Frame of(DebugFrame frame) {
+      Location location = frame.location();
+      if (location == null || location.getPath() == null) {
+        return new Frame(frame.functionName(), "<native>", 0);
+      }
+      Integer line = location.getStartLine();
+      return new Frame(
+          frame.functionName(), location.getPath().getPathString(), line != null ? line : 0);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Frame)) {
+        return false;
+      }
+      Frame that = (Frame) o;
+      return function.equals(that.function) && file.equals(that.file) && line == that.line;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(function, file, line);
+    }
+  }
+
+  private static class StringTable {
+    final Profile.Builder profile;
+    final Map<String, Long> table = new HashMap<>();
+    long index = 0;
+
+    StringTable(Profile.Builder profile) {
+      this.profile = profile;
+      get(""); // 0 is reserved for the empty string
+    }
+
+    long get(String str) {
+      return table.computeIfAbsent(
+          str,
+          key -> {
+            profile.addStringTable(key);
+            return index++;
+          });
+    }
+  }
+
+  private static class FunctionTable {
+    final Profile.Builder profile;
+    final StringTable stringTable;
+    final Map<String, Long> table = new HashMap<>();
+    long index = 1; // 0 is reserved
+
+    FunctionTable(Profile.Builder profile, StringTable stringTable) {
+      this.profile = profile;
+      this.stringTable = stringTable;
+    }
+
+    long get(String file, String function) {
+      return table.computeIfAbsent(
+          file + "#" + function,
+          key -> {
+            Function fn =
+                Function.newBuilder()
+                    .setId(index)
+                    .setFilename(stringTable.get(file))
+                    .setName(stringTable.get(function))
+                    .build();
+            profile.addFunction(fn);
+            return index++;
+          });
+    }
+  }
+
+  private static class LocationTable {
+    final Profile.Builder profile;
+    final FunctionTable functionTable;
+    final Map<String, Long> table = new HashMap<>();
+    long index = 1; // 0 is reserved
+
+    LocationTable(Profile.Builder profile, FunctionTable functionTable) {
+      this.profile = profile;
+      this.functionTable = functionTable;
+    }
+
+    long get(String file, String function, long line) {
+      return table.computeIfAbsent(
+          file + "#" + function + "#" + line,
+          key -> {
+            com.google.perftools.profiles.ProfileProto.Location location =
+                com.google.perftools.profiles.ProfileProto.Location.newBuilder()
+                    .setId(index)
+                    .addLine(
+                        Line.newBuilder()
+                            .setFunctionId(functionTable.get(file, function))
+                            .setLine(line)
+                            .build())
+                    .build();
+            profile.addLocation(location);
+            return index++;
+          });
+    }
+  }
+}
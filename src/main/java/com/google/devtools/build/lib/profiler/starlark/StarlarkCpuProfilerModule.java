@@ -0,0 +1,97 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler.starlark;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.runtime.BlazeModule;
+import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.lib.util.AbruptExitException;
+import com.google.devtools.build.lib.util.OptionsUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionDocumentationCategory;
+import com.google.devtools.common.options.OptionEffectTag;
+import com.google.devtools.common.options.OptionsBase;
+import com.google.perftools.profiles.ProfileProto.Profile;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+
+/**
+ * Profiles the Starlark code executed during a command with a {@link StarlarkCpuProfiler}, and
+ * writes the profile to the path specified by --starlark_cpu_profile at the end of the command.
+ */
+public class StarlarkCpuProfilerModule extends BlazeModule {
+
+  private static final Duration SAMPLING_INTERVAL = Duration.ofMillis(10);
+
+  private StarlarkCpuProfiler profiler;
+  private Path outputPath;
+  private Reporter reporter;
+
+  /** Options for {@link StarlarkCpuProfilerModule}. */
+  public static class StarlarkCpuProfilerOptions extends OptionsBase {
+    @Option(
+        name = "starlark_cpu_profile",
+        defaultValue = "null",
+        documentationCategory = OptionDocumentationCategory.LOGGING,
+        effectTags = {OptionEffectTag.AFFECTS_OUTPUTS, OptionEffectTag.BAZEL_MONITORING},
+        converter = OptionsUtils.PathFragmentConverter.class,
+        help =
+            "If set, samples the call stacks of the Starlark code executed during the command, "
+                + "and writes a CPU and allocation profile of the .bzl functions to the specified "
+                + "file, in the gzipped format read by pprof.")
+    public PathFragment outputPath;
+  }
+
+  @Override
+  public Iterable<Class<? extends OptionsBase>> getCommonCommandOptions() {
+    return ImmutableList.of(StarlarkCpuProfilerOptions.class);
+  }
+
+  @Override
+  public void beforeCommand(CommandEnvironment env) throws AbruptExitException {
+    PathFragment path = env.getOptions().getOptions(StarlarkCpuProfilerOptions.class).outputPath;
+    if (path != null) {
+      this.outputPath = env.getWorkingDirectory().getRelative(path);
+      this.reporter = env.getReporter();
+      this.profiler = StarlarkCpuProfiler.start(SAMPLING_INTERVAL);
+    }
+  }
+
+  @Override
+  public void afterCommand() {
+    if (profiler == null) {
+      return;
+    }
+    try {
+      Profile profile = profiler.stop();
+      try (OutputStream out = outputPath.getOutputStream()) {
+        StarlarkCpuProfiler.write(profile, out);
+      }
+      reporter.handle(Event.info("Writing Starlark CPU profile to '" + outputPath + "'"));
+    } catch (IOException e) {
+      reporter.error(null, "Error writing Starlark CPU profile", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      this.profiler = null;
+      this.outputPath = null;
+      this.reporter = null;
+    }
+  }
+}
@@ -0,0 +1,86 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.LostInputsExecException;
+import com.google.devtools.build.lib.actions.LostInputsExecException.InputOwners;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Creates {@link LostInputsExecException}s for inputs that Bazel only has the metadata of (see
+ * {@code --experimental_remote_download_outputs}) and that are no longer in the remote cache.
+ *
+ * <p>Such inputs can neither be downloaded nor uploaded again, so the actions that generated them
+ * have to be rerun via action rewinding.
+ */
+final class LostRemoteInputs {
+
+  private LostRemoteInputs() {}
+
+  /**
+   * Returns an exception for the given lost inputs.
+   *
+   * @param lostInputs the lost inputs keyed by the hash of their digest
+   */
+  static LostInputsExecException create(Map<String, ActionInput> lostInputs) {
+    Preconditions.checkArgument(!lostInputs.isEmpty(), "no inputs were lost");
+    ImmutableMap<String, ActionInput> inputs = ImmutableMap.copyOf(lostInputs);
+    return new LostInputsExecException(inputs, new Owners(inputs.values()));
+  }
+
+  /**
+   * Only knows about the owners of tree file artifacts. The spawn's input mapping doesn't say which
+   * inputs came from runfiles, so all lost inputs are reported as possible runfiles, and rewinding
+   * looks up their owners among the action's deps.
+   */
+  private static final class Owners implements InputOwners {
+    private final ImmutableSet<ActionInput> lostInputs;
+    private final ImmutableSet<ActionInput> lostInputsAndOwners;
+
+    private Owners(Iterable<ActionInput> lostInputs) {
+      this.lostInputs = ImmutableSet.copyOf(lostInputs);
+      ImmutableSet.Builder<ActionInput> lostInputsAndOwners = ImmutableSet.builder();
+      for (ActionInput input : this.lostInputs) {
+        lostInputsAndOwners.add(input);
+        Artifact owner = getOwner(input);
+        if (owner != null) {
+          lostInputsAndOwners.add(owner);
+        }
+      }
+      this.lostInputsAndOwners = lostInputsAndOwners.build();
+    }
+
+    @Nullable
+    @Override
+    public Artifact getOwner(ActionInput input) {
+      Preconditions.checkArgument(lostInputs.contains(input), "%s was not lost", input);
+      if (input instanceof Artifact && ((Artifact) input).hasParent()) {
+        return ((Artifact) input).getParent();
+      }
+      return null;
+    }
+
+    @Override
+    public Set<ActionInput> getRunfilesInputsAndOwners() {
+      return lostInputsAndOwners;
+    }
+  }
+}
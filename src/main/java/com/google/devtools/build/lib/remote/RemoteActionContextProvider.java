@@ -121,7 +121,8 @@ final class RemoteActionContextProvider extends ActionContextProvider {
               retrier,
               digestUtil,
               logDir,
-              filesToDownload);
+              filesToDownload,
+              env.getSkyframeExecutor().isActionRewindingEnabled());
       return ImmutableList.of(new RemoteSpawnStrategy(env.getExecRoot(), spawnRunner));
     }
   }
@@ -24,6 +24,7 @@ import com.google.common.util.concurrent.MoreExecutors;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputPrefetcher;
 import com.google.devtools.build.lib.actions.FileArtifactValue;
+import com.google.devtools.build.lib.actions.LostInputsExecException.LostInputsIOException;
 import com.google.devtools.build.lib.actions.MetadataProvider;
 import com.google.devtools.build.lib.actions.cache.VirtualActionInput;
 import com.google.devtools.build.lib.profiler.Profiler;
@@ -38,6 +39,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
@@ -69,10 +71,21 @@ class RemoteActionInputFetcher implements ActionInputPrefetcher {
   private final Path execRoot;
   private final Context ctx;
 
-  RemoteActionInputFetcher(AbstractRemoteActionCache remoteCache, Path execRoot, Context ctx) {
+  /**
+   * Whether inputs that were evicted from the remote cache are reported as lost inputs, which
+   * requires action rewinding to be enabled.
+   */
+  private final boolean reportLostInputs;
+
+  RemoteActionInputFetcher(
+      AbstractRemoteActionCache remoteCache,
+      Path execRoot,
+      Context ctx,
+      boolean reportLostInputs) {
     this.remoteCache = Preconditions.checkNotNull(remoteCache);
     this.execRoot = Preconditions.checkNotNull(execRoot);
     this.ctx = Preconditions.checkNotNull(ctx);
+    this.reportLostInputs = reportLostInputs;
   }
 
   /**
@@ -91,6 +104,7 @@ class RemoteActionInputFetcher implements ActionInputPrefetcher {
     try (SilentCloseable c =
         Profiler.instance().profile(ProfilerTask.REMOTE_DOWNLOAD, "stage remote inputs")) {
       Map<Path, ListenableFuture<Void>> downloadsToWaitFor = new HashMap<>();
+      Map<Path, ActionInput> inputsByPath = new HashMap<>();
       for (ActionInput input : inputs) {
         if (input instanceof VirtualActionInput) {
           VirtualActionInput paramFileActionInput = (VirtualActionInput) input;
@@ -112,25 +126,32 @@ class RemoteActionInputFetcher implements ActionInputPrefetcher {
             }
             ListenableFuture<Void> download = downloadFileAsync(path, metadata);
             downloadsToWaitFor.putIfAbsent(path, download);
+            inputsByPath.putIfAbsent(path, input);
           }
         }
       }
 
       IOException ioException = null;
       InterruptedException interruptedException = null;
+      // Inputs that were evicted from the remote cache, keyed by the hash of their digest.
+      Map<String, ActionInput> lostInputs = new LinkedHashMap<>();
       for (Map.Entry<Path, ListenableFuture<Void>> entry : downloadsToWaitFor.entrySet()) {
         try {
           Utils.getFromFuture(entry.getValue());
-        } catch (IOException e) {
-          if (e instanceof CacheNotFoundException) {
-            e =
+        } catch (CacheNotFoundException e) {
+          if (reportLostInputs) {
+            lostInputs.putIfAbsent(
+                e.getMissingDigest().getHash(), inputsByPath.get(entry.getKey()));
+          } else if (ioException == null) {
+            ioException =
                 new IOException(
                     String.format(
                         "Failed to fetch file with hash '%s' because it does not exist remotely."
                             + " --experimental_remote_outputs=minimal does not work if"
                             + " your remote cache evicts files during builds.",
-                        ((CacheNotFoundException) e).getMissingDigest().getHash()));
+                        e.getMissingDigest().getHash()));
           }
+        } catch (IOException e) {
           ioException = ioException == null ? e : ioException;
         } catch (InterruptedException e) {
           interruptedException = interruptedException == null ? e : interruptedException;
@@ -143,6 +164,10 @@ class RemoteActionInputFetcher implements ActionInputPrefetcher {
       if (ioException != null) {
         throw ioException;
       }
+      if (!lostInputs.isEmpty()) {
+        // The actions that generated these inputs have to be rerun to get them back.
+        throw new LostInputsIOException(LostRemoteInputs.create(lostInputs));
+      }
     }
   }
 
@@ -510,7 +510,10 @@ public final class RemoteModule extends BlazeModule {
               env.getBuildRequestId(), env.getCommandId().toString(), "fetch-remote-inputs");
       actionInputFetcher =
           new RemoteActionInputFetcher(
-              actionContextProvider.getRemoteCache(), env.getExecRoot(), ctx);
+              actionContextProvider.getRemoteCache(),
+              env.getExecRoot(),
+              ctx,
+              env.getSkyframeExecutor().isActionRewindingEnabled());
       builder.setActionInputPrefetcher(actionInputFetcher);
       remoteOutputService.setActionInputFetcher(actionInputFetcher);
     }
@@ -42,6 +42,9 @@ import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.CommandLines.ParamFileActionInput;
 import com.google.devtools.build.lib.actions.ExecException;
+import com.google.devtools.build.lib.actions.FileArtifactValue;
+import com.google.devtools.build.lib.actions.LostInputsExecException;
+import com.google.devtools.build.lib.actions.MetadataProvider;
 import com.google.devtools.build.lib.actions.Spawn;
 import com.google.devtools.build.lib.actions.SpawnResult;
 import com.google.devtools.build.lib.actions.SpawnResult.Status;
@@ -79,17 +82,22 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
 /** A client for the remote execution service. */
 @ThreadSafe
 public class RemoteSpawnRunner implements SpawnRunner {
+  private static final Logger logger = Logger.getLogger(RemoteSpawnRunner.class.getName());
+
   private static final int POSIX_TIMEOUT_EXIT_CODE = /*SIGNAL_BASE=*/ 128 + /*SIGALRM=*/ 14;
 
   private final Path execRoot;
@@ -113,6 +121,12 @@ public class RemoteSpawnRunner implements SpawnRunner {
    */
   private final ImmutableSet<ActionInput> filesToDownload;
 
+  /**
+   * Whether remote-only inputs that were evicted from the remote cache are reported as lost
+   * inputs, which requires action rewinding to be enabled.
+   */
+  private final boolean reportLostInputs;
+
   // Used to ensure that a warning is reported only once.
   private final AtomicBoolean warningReported = new AtomicBoolean();
 
@@ -130,7 +144,8 @@ public class RemoteSpawnRunner implements SpawnRunner {
       @Nullable RemoteRetrier retrier,
       DigestUtil digestUtil,
       Path logDir,
-      ImmutableSet<ActionInput> filesToDownload) {
+      ImmutableSet<ActionInput> filesToDownload,
+      boolean reportLostInputs) {
     this.execRoot = execRoot;
     this.remoteOptions = remoteOptions;
     this.executionOptions = executionOptions;
@@ -145,6 +160,7 @@ public class RemoteSpawnRunner implements SpawnRunner {
     this.digestUtil = digestUtil;
     this.logDir = logDir;
     this.filesToDownload = Preconditions.checkNotNull(filesToDownload, "filesToDownload");
+    this.reportLostInputs = reportLostInputs;
   }
 
   @Override
@@ -385,6 +401,9 @@ public class RemoteSpawnRunner implements SpawnRunner {
     if (Thread.currentThread().isInterrupted()) {
       throw new InterruptedException();
     }
+    if (reportLostInputs) {
+      checkForLostInputs(inputMap, context.getMetadataProvider());
+    }
     if (remoteOptions.remoteLocalFallback && !RemoteRetrierUtils.causedByExecTimeout(cause)) {
       return execLocallyAndUpload(
           spawn, context, inputMap, actionKey, action, command, uploadLocalResults);
@@ -392,6 +411,46 @@ public class RemoteSpawnRunner implements SpawnRunner {
     return handleError(cause, context.getFileOutErr(), actionKey, context);
   }
 
+  /**
+   * Throws a {@link LostInputsExecException} if inputs that only exist remotely (see {@code
+   * --experimental_remote_download_outputs}) were evicted from the remote cache. Neither remote
+   * execution nor the local fallback can succeed without them, so the actions that generated them
+   * have to be rerun first.
+   */
+  private void checkForLostInputs(
+      SortedMap<PathFragment, ActionInput> inputMap, MetadataProvider metadataProvider)
+      throws LostInputsExecException, InterruptedException {
+    Map<Digest, ActionInput> remoteInputs = new HashMap<>();
+    try {
+      for (ActionInput input : inputMap.values()) {
+        if (input instanceof VirtualActionInput) {
+          continue;
+        }
+        FileArtifactValue metadata = metadataProvider.getMetadata(input);
+        if (metadata != null && metadata.isRemote()) {
+          remoteInputs.putIfAbsent(
+              DigestUtil.buildDigest(metadata.getDigest(), metadata.getSize()), input);
+        }
+      }
+      if (remoteInputs.isEmpty()) {
+        return;
+      }
+      ImmutableSet<Digest> missingDigests =
+          getFromFuture(remoteCache.findMissingDigests(remoteInputs.keySet()));
+      if (missingDigests.isEmpty()) {
+        return;
+      }
+      Map<String, ActionInput> lostInputs = new LinkedHashMap<>();
+      for (Digest digest : missingDigests) {
+        lostInputs.put(digest.getHash(), remoteInputs.get(digest));
+      }
+      throw LostRemoteInputs.create(lostInputs);
+    } catch (IOException e) {
+      // The original error is more useful to report than this one.
+      logger.log(Level.FINE, "Failed to check for lost inputs", e);
+    }
+  }
+
   private SpawnResult handleError(
       IOException exception, FileOutErr outErr, ActionKey actionKey, SpawnExecutionContext context)
       throws ExecException, InterruptedException, IOException {
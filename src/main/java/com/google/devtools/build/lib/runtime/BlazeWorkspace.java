@@ -22,6 +22,7 @@ import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.SubscriberExceptionHandler;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
 import com.google.devtools.build.lib.actions.cache.CompactPersistentActionCache;
+import com.google.devtools.build.lib.actions.cache.MappedActionCache;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.WorkspaceStatusAction;
 import com.google.devtools.build.lib.events.Event;
@@ -222,20 +223,32 @@ public final class BlazeWorkspace {
     if (actionCache != null) {
       actionCache.clear();
     }
-    actionCache = null;
+    dropActionCache();
     getCacheDirectory().deleteTree();
   }
 
+  private void dropActionCache() {
+    if (actionCache instanceof MappedActionCache) {
+      ((MappedActionCache) actionCache).close();
+    }
+    actionCache = null;
+  }
+
   /**
    * Returns reference to the lazily instantiated persistent action cache
    * instance. Note, that method may recreate instance between different build
    * requests, so return value should not be cached.
    */
-  public ActionCache getPersistentActionCache(Reporter reporter) throws IOException {
+  public ActionCache getPersistentActionCache(Reporter reporter, boolean useMappedActionCache)
+      throws IOException {
+    if (actionCache != null && (actionCache instanceof MappedActionCache) != useMappedActionCache) {
+      // The previous implementation has saved its data at the end of the last build; drop it.
+      dropActionCache();
+    }
     if (actionCache == null) {
       try (AutoProfiler p = profiledAndLogged("Loading action cache", ProfilerTask.INFO, logger)) {
         try {
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache = createActionCache(useMappedActionCache);
         } catch (IOException e) {
           logger.log(Level.WARNING, "Failed to load action cache: " + e.getMessage(), e);
           LoggingUtil.logToRemote(
@@ -248,13 +261,19 @@ public final class BlazeWorkspace {
                       + getCacheDirectory()
                       + "/*.bad'. "
                       + "Bazel will now reset action cache data, causing a full rebuild"));
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache = createActionCache(useMappedActionCache);
         }
       }
     }
     return actionCache;
   }
 
+  private ActionCache createActionCache(boolean useMappedActionCache) throws IOException {
+    return useMappedActionCache
+        ? new MappedActionCache(getCacheDirectory())
+        : new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+  }
+
   /**
    * Generates a README file in the output base directory. This README file
    * contains the name of the workspace directory, so that users can figure out
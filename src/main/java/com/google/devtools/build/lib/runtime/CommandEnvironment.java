@@ -491,7 +491,8 @@ public final class CommandEnvironment {
   }
 
   public ActionCache getPersistentActionCache() throws IOException {
-    return workspace.getPersistentActionCache(reporter);
+    return workspace.getPersistentActionCache(
+        reporter, options.getOptions(CommonCommandOptions.class).useMappedActionCache);
   }
 
   /** Returns the top-down action cache to use, or null. */
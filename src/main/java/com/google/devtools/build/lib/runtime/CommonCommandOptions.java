@@ -512,6 +512,19 @@ public class CommonCommandOptions extends OptionsBase {
   )
   public boolean keepStateAfterBuild;
 
+  @Option(
+      name = "experimental_mapped_action_cache",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.BUILD_TIME_OPTIMIZATION,
+      effectTags = {OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+      metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+      help =
+          "If true, Blaze keeps the action cache in a memory-mapped log with an on-disk index "
+              + "instead of loading all of it into memory. Entries are read lazily and written to "
+              + "disk as they are added, which reduces memory use and the time needed to load and "
+              + "save the action cache. Switching this flag starts with an empty action cache.")
+  public boolean useMappedActionCache;
+
   /** The option converter to check that the user can only specify legal profiler tasks. */
   public static class ProfilerTaskConverter extends EnumConverter<ProfilerTask> {
     public ProfilerTaskConverter() {
@@ -49,9 +49,16 @@ import javax.annotation.Nullable;
 public class ASTFileLookupFunction implements SkyFunction {
 
   private final RuleClassProvider ruleClassProvider;
+  @Nullable private final StarlarkCompilationCache compilationCache;
 
   public ASTFileLookupFunction(RuleClassProvider ruleClassProvider) {
+    this(ruleClassProvider, null);
+  }
+
+  public ASTFileLookupFunction(
+      RuleClassProvider ruleClassProvider, @Nullable StarlarkCompilationCache compilationCache) {
     this.ruleClassProvider = ruleClassProvider;
+    this.compilationCache = compilationCache;
   }
 
   @Override
@@ -108,22 +115,36 @@ public class ASTFileLookupFunction implements SkyFunction {
       return null;
     }
 
-    // Both the package and the file exist; load and parse the file.
+    // Both the package and the file exist; load and parse the file, unless a previous server
+    // already did.
     Path path = rootedPath.asPath();
+    ImmutableMap<String, Object> predeclared = ruleClassProvider.getEnvironment();
     StarlarkFile file = null;
     try {
-      byte[] bytes = FileSystemUtils.readWithKnownFileSize(path, fileValue.getSize());
-      ParserInput input = ParserInput.create(bytes, path.asFragment());
-      file = StarlarkFile.parseWithDigest(input, path.getDigest());
+      byte[] digest = path.getDigest();
+      String cacheKey = null;
+      if (compilationCache != null && compilationCache.isEnabled()) {
+        cacheKey =
+            compilationCache.key(
+                path.asFragment(), digest, starlarkSemantics, predeclared.keySet());
+        file = compilationCache.get(cacheKey);
+      }
+      if (file == null) {
+        byte[] bytes = FileSystemUtils.readWithKnownFileSize(path, fileValue.getSize());
+        ParserInput input = ParserInput.create(bytes, path.asFragment());
+        file = StarlarkFile.parseWithDigest(input, digest);
+
+        // validate (and soon, compile)
+        ValidationEnvironment.validateFile(
+            file, Module.createForBuiltins(predeclared), starlarkSemantics, /*isBuildFile=*/ false);
+        if (cacheKey != null) {
+          compilationCache.put(cacheKey, file);
+        }
+      }
     } catch (IOException e) {
       throw new ASTLookupFunctionException(new ErrorReadingSkylarkExtensionException(e),
           Transience.TRANSIENT);
     }
-
-    // validate (and soon, compile)
-    ImmutableMap<String, Object> predeclared = ruleClassProvider.getEnvironment();
-    ValidationEnvironment.validateFile(
-        file, Module.createForBuiltins(predeclared), starlarkSemantics, /*isBuildFile=*/ false);
     Event.replayEventsOn(env.getListener(), file.errors()); // TODO(adonovan): fail if !ok()?
 
     return ASTFileLookupValue.withFile(file);
@@ -377,13 +377,14 @@ public class ActionExecutionFunction implements SkyFunction {
 
   /**
    * Do one traversal of the set to get the size. The traversal costs CPU time so only do it when
-   * necessary. The default case (without --experimental_nestedset_as_skykey_threshold) will ignore
-   * this path.
+   * necessary: the default case (without --experimental_nestedset_as_skykey_threshold) will ignore
+   * this path, and sets whose size upper bound is below the threshold don't need it.
    */
   private static boolean evalInputsAsNestedSet(
       int nestedSetSizeThreshold, Iterable<Artifact> inputs) {
     return inputs instanceof NestedSet
         && nestedSetSizeThreshold > 0
+        && ((NestedSet<Artifact>) inputs).getSizeUpperBound() >= nestedSetSizeThreshold
         && (((NestedSet<Artifact>) inputs).memoizedFlattenAndGetSize() >= nestedSetSizeThreshold);
   }
 
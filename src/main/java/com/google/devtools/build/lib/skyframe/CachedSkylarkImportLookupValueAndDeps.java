@@ -51,8 +51,8 @@ class CachedSkylarkImportLookupValueAndDeps {
       depGroupConsumer.accept(directDepGroup);
     }
     for (CachedSkylarkImportLookupValueAndDeps indirectDeps : transitiveDeps) {
-      if (!visitedDeps.containsKey(indirectDeps.key)) {
-        visitedDeps.put(indirectDeps.key, indirectDeps);
+      // The map may be shared with other threads that load imports in parallel.
+      if (visitedDeps.putIfAbsent(indirectDeps.key, indirectDeps) == null) {
         indirectDeps.traverse(depGroupConsumer, visitedDeps);
       }
     }
@@ -200,36 +200,53 @@ public final class ConfiguredTargetFunction implements SkyFunction {
     ConfiguredTargetKey configuredTargetKey = (ConfiguredTargetKey) key.argument();
     Label label = configuredTargetKey.getLabel();
     BuildConfiguration configuration = null;
-    ImmutableSet<SkyKey> packageAndMaybeConfiguration;
-    SkyKey packageKey = PackageValue.key(label.getPackageIdentifier());
+    ImmutableSet<SkyKey> targetAndMaybeConfiguration;
+    SkyKey targetKey = TargetValue.key(label);
     SkyKey configurationKeyMaybe = configuredTargetKey.getConfigurationKey();
     if (configurationKeyMaybe == null) {
-      packageAndMaybeConfiguration = ImmutableSet.of(packageKey);
+      targetAndMaybeConfiguration = ImmutableSet.of(targetKey);
     } else {
-      packageAndMaybeConfiguration = ImmutableSet.of(packageKey, configurationKeyMaybe);
+      targetAndMaybeConfiguration = ImmutableSet.of(targetKey, configurationKeyMaybe);
     }
-    Map<SkyKey, SkyValue> packageAndMaybeConfigurationValues =
-        env.getValues(packageAndMaybeConfiguration);
-    if (env.valuesMissing()) {
+    Map<SkyKey, ValueOrException<NoSuchTargetException>> targetAndMaybeConfigurationValues =
+        env.getValuesOrThrow(targetAndMaybeConfiguration, NoSuchTargetException.class);
+    TargetValue targetValue;
+    NoSuchTargetException noSuchTargetException = null;
+    try {
+      targetValue = (TargetValue) targetAndMaybeConfigurationValues.get(targetKey).get();
+    } catch (NoSuchTargetException e) {
+      targetValue = null;
+      noSuchTargetException = e;
+    }
+    if (noSuchTargetException == null && env.valuesMissing()) {
       return null;
     }
-    PackageValue packageValue = (PackageValue) packageAndMaybeConfigurationValues.get(packageKey);
     if (configurationKeyMaybe != null) {
-      configuration =
-          ((BuildConfigurationValue) packageAndMaybeConfigurationValues.get(configurationKeyMaybe))
-              .getConfiguration();
+      BuildConfigurationValue configurationValue;
+      try {
+        configurationValue =
+            (BuildConfigurationValue)
+                targetAndMaybeConfigurationValues.get(configurationKeyMaybe).get();
+      } catch (NoSuchTargetException e) {
+        throw new IllegalStateException("Unexpected exception for " + configurationKeyMaybe, e);
+      }
+      if (configurationValue == null) {
+        return null;
+      }
+      configuration = configurationValue.getConfiguration();
     }
 
     // TODO(ulfjack): This tries to match the logic in TransitiveTargetFunction /
     // TargetMarkerFunction. Maybe we can merge the two?
-    Package pkg = packageValue.getPackage();
-    Target target;
-    try {
-      target = pkg.getTarget(label.getName());
-    } catch (NoSuchTargetException e) {
+    if (noSuchTargetException != null) {
       throw new ConfiguredTargetFunctionException(
-          new ConfiguredValueCreationException(e.getMessage(), label, configuration));
+          new ConfiguredValueCreationException(
+              noSuchTargetException.getMessage(), label, configuration));
     }
+    // Depending on the target rather than on its package lets Skyframe prune this node when only
+    // other targets of the package change.
+    Target target = targetValue.getTarget();
+    Package pkg = target.getPackage();
     if (pkg.containsErrors()) {
       transitiveRootCauses.add(
           new LoadingFailedCause(label, new NoSuchTargetException(target).getMessage()));
@@ -753,23 +770,22 @@ public final class ConfiguredTargetFunction implements SkyFunction {
     boolean missedValues = env.valuesMissing();
     String failWithMessage = null;
     // Naively we would like to just fetch all requested ConfiguredTargets, together with their
-    // Packages. However, some ConfiguredTargets are AliasConfiguredTargets, which means that their
-    // associated Targets (and therefore associated Packages) don't correspond to their own Labels.
-    // We don't know the associated Package until we fetch the ConfiguredTarget. Therefore, we have
-    // to do a potential second pass, in which we fetch all the Packages for AliasConfiguredTargets.
+    // Targets. However, some ConfiguredTargets are AliasConfiguredTargets, which means that their
+    // associated Targets don't correspond to their own Labels. We don't know the associated Target
+    // until we fetch the ConfiguredTarget. Therefore, we have to do a potential second pass, in
+    // which we fetch all the Targets for AliasConfiguredTargets.
     Iterable<SkyKey> depKeys =
         Iterables.concat(
             Iterables.transform(
                 deps,
                 input -> ConfiguredTargetValue.key(input.getLabel(), input.getConfiguration())),
-            Iterables.transform(
-                deps, input -> PackageValue.key(input.getLabel().getPackageIdentifier())));
+            Iterables.transform(deps, input -> TargetValue.key(input.getLabel())));
     Map<SkyKey, ValueOrException<ConfiguredValueCreationException>> depValuesOrExceptions =
         env.getValuesOrThrow(depKeys, ConfiguredValueCreationException.class);
     Map<SkyKey, ConfiguredTargetAndData> result = Maps.newHashMapWithExpectedSize(deps.size());
-    Set<SkyKey> aliasPackagesToFetch = new HashSet<>();
+    Set<SkyKey> aliasTargetsToFetch = new HashSet<>();
     List<Dependency> aliasDepsToRedo = new ArrayList<>();
-    Map<SkyKey, SkyValue> aliasPackageValues = null;
+    Map<SkyKey, SkyValue> aliasTargetValues = null;
     Collection<Dependency> depsToProcess = deps;
     for (int i = 0; i < 2; i++) {
       for (Dependency dep : depsToProcess) {
@@ -783,19 +799,19 @@ public final class ConfiguredTargetFunction implements SkyFunction {
           } else {
             ConfiguredTarget depCt = depValue.getConfiguredTarget();
             Label depLabel = depCt.getLabel();
-            SkyKey packageKey = PackageValue.key(depLabel.getPackageIdentifier());
-            PackageValue pkgValue;
+            SkyKey targetKey = TargetValue.key(depLabel);
+            TargetValue targetValue;
             if (i == 0) {
-              ValueOrException<ConfiguredValueCreationException> packageResult =
-                  depValuesOrExceptions.get(packageKey);
-              if (packageResult == null) {
-                aliasPackagesToFetch.add(packageKey);
+              ValueOrException<ConfiguredValueCreationException> targetResult =
+                  depValuesOrExceptions.get(targetKey);
+              if (targetResult == null) {
+                aliasTargetsToFetch.add(targetKey);
                 aliasDepsToRedo.add(dep);
                 continue;
               } else {
-                pkgValue = (PackageValue) packageResult.get();
-                if (pkgValue == null) {
-                  // In a race, the getValuesOrThrow call above may have retrieved the package
+                targetValue = (TargetValue) targetResult.get();
+                if (targetValue == null) {
+                  // In a race, the getValuesOrThrow call above may have retrieved the target
                   // before it was done but the configured target after it was done. Since
                   // SkyFunctionEnvironment may cache absent values, re-requesting it on this
                   // evaluation may be useless, just treat it as missing.
@@ -805,45 +821,39 @@ public final class ConfiguredTargetFunction implements SkyFunction {
               }
             } else {
               // We were doing AliasConfiguredTarget mop-up.
-              pkgValue = (PackageValue) aliasPackageValues.get(packageKey);
-              if (pkgValue == null) {
-                // This is unexpected: on the second iteration, all packages should be present,
+              targetValue = (TargetValue) aliasTargetValues.get(targetKey);
+              if (targetValue == null) {
+                // This is unexpected: on the second iteration, all targets should be present,
                 // since the configured targets that depend on them are present. But since that is
                 // not a guarantee Skyframe makes, we tolerate their absence.
                 missedValues = true;
                 continue;
               }
             }
-            try {
-              BuildConfiguration depConfiguration = dep.getConfiguration();
-              BuildConfigurationValue.Key depKey =
-                  depValue.getConfiguredTarget().getConfigurationKey();
-              // Retroactive trimming may change the configuration associated with the dependency.
-              // If it does, we need to get that instance.
-              // TODO(b/140632978): doing these individually instead of doing them all at once may
-              // end up being wasteful use of Skyframe. Although these configurations are guaranteed
-              // to be in the Skyframe cache (because the dependency would have had to retrieve them
-              // to be created in the first place), looking them up repeatedly may be slower than
-              // just keeping a local cache and assigning the same configuration to all the CTs
-              // which need it. Profile this and see if there's a better way.
-              if (depKey != null && !depKey.equals(BuildConfigurationValue.key(depConfiguration))) {
-                if (!depConfiguration.trimConfigurationsRetroactively()) {
-                  throw new AssertionError(
-                      "Loading configurations mid-dependency resolution should ONLY happen when "
-                          + "retroactive trimming is enabled.");
-                }
-                depConfiguration =
-                    ((BuildConfigurationValue) env.getValue(depKey)).getConfiguration();
+            BuildConfiguration depConfiguration = dep.getConfiguration();
+            BuildConfigurationValue.Key depKey =
+                depValue.getConfiguredTarget().getConfigurationKey();
+            // Retroactive trimming may change the configuration associated with the dependency.
+            // If it does, we need to get that instance.
+            // TODO(b/140632978): doing these individually instead of doing them all at once may
+            // end up being wasteful use of Skyframe. Although these configurations are guaranteed
+            // to be in the Skyframe cache (because the dependency would have had to retrieve them
+            // to be created in the first place), looking them up repeatedly may be slower than
+            // just keeping a local cache and assigning the same configuration to all the CTs
+            // which need it. Profile this and see if there's a better way.
+            if (depKey != null && !depKey.equals(BuildConfigurationValue.key(depConfiguration))) {
+              if (!depConfiguration.trimConfigurationsRetroactively()) {
+                throw new AssertionError(
+                    "Loading configurations mid-dependency resolution should ONLY happen when "
+                        + "retroactive trimming is enabled.");
               }
-              result.put(
-                  key,
-                  new ConfiguredTargetAndData(
-                      depValue.getConfiguredTarget(),
-                      pkgValue.getPackage().getTarget(depLabel.getName()),
-                      depConfiguration));
-            } catch (NoSuchTargetException e) {
-              throw new IllegalStateException("Target already verified for " + dep, e);
+              depConfiguration =
+                  ((BuildConfigurationValue) env.getValue(depKey)).getConfiguration();
             }
+            result.put(
+                key,
+                new ConfiguredTargetAndData(
+                    depValue.getConfiguredTarget(), targetValue.getTarget(), depConfiguration));
             if (transitivePackagesForPackageRootResolution != null) {
               transitivePackagesForPackageRootResolution.addTransitive(
                   depValue.getTransitivePackagesForPackageRootResolution());
@@ -857,7 +867,7 @@ public final class ConfiguredTargetFunction implements SkyFunction {
       if (aliasDepsToRedo.isEmpty()) {
         break;
       }
-      aliasPackageValues = env.getValues(aliasPackagesToFetch);
+      aliasTargetValues = env.getValues(aliasTargetsToFetch);
       depsToProcess = aliasDepsToRedo;
     }
     if (missedValues) {
@@ -111,7 +111,7 @@ public final class DirectoryListingStateValue implements SkyValue {
   }
 
   /** A space-efficient, sorted, immutable dirent structure. */
-  private static class CompactSortedDirents implements Dirents, Serializable {
+  static class CompactSortedDirents implements Dirents, Serializable {
 
     private final String[] names;
     private final BitSet packedTypes;
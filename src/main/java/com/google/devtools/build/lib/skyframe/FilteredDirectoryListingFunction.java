@@ -0,0 +1,174 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.devtools.build.lib.actions.FileValue;
+import com.google.devtools.build.lib.actions.InconsistentFilesystemException;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.cmdline.RepositoryName;
+import com.google.devtools.build.lib.skyframe.DirectoryListingStateValue.CompactSortedDirents;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.lib.vfs.UnixGlob;
+import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunctionException;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/** A {@link SkyFunction} for {@link FilteredDirectoryListingValue}s. */
+public final class FilteredDirectoryListingFunction implements SkyFunction {
+
+  private final ConcurrentHashMap<String, Pattern> regexPatternCache = new ConcurrentHashMap<>();
+
+  @Override
+  public SkyValue compute(SkyKey skyKey, Environment env)
+      throws FilteredDirectoryListingFunctionException, InterruptedException {
+    FilteredDirectoryListingValue.Key key = (FilteredDirectoryListingValue.Key) skyKey;
+    RepositoryName repository = key.getRepository();
+    RootedPath dirRootedPath = key.getDirectory();
+    String pattern = key.getPattern();
+
+    // Note that we have good reason to believe the directory exists: see
+    // FilteredDirectoryListingValue#key. Filesystem operations concurrent with build could mean the
+    // directory no longer exists, but DirectoryListingFunction handles that gracefully.
+    DirectoryListingValue listingValue =
+        (DirectoryListingValue) env.getValue(DirectoryListingValue.key(dirRootedPath));
+    if (listingValue == null) {
+      return null;
+    }
+
+    // We do three passes over the listing so as to maximize skyframe batching:
+    // (1) Keep the files that match the pattern, and collect the matching symlinks to resolve and
+    //     the matching subdirectories to look up. Entries the pattern doesn't match are dropped
+    //     before any of their dependencies are requested.
+    // (2) Resolve the symlinks, and collect the symlinked directories to look up.
+    // (3) Keep the subdirectories that are not package or repository boundaries.
+    int direntsSize = listingValue.getDirents().size();
+    List<Dirent> result = new ArrayList<>(direntsSize);
+    Map<SkyKey, Dirent> symlinkFileMap = Maps.newHashMapWithExpectedSize(direntsSize);
+    Map<SkyKey, Dirent> subdirMap = Maps.newHashMapWithExpectedSize(direntsSize);
+    for (Dirent dirent : listingValue.getDirents()) {
+      if (!UnixGlob.matches(pattern, dirent.getName(), regexPatternCache)) {
+        continue;
+      }
+      switch (dirent.getType()) {
+        case SYMLINK:
+          // For symlinks, look up the corresponding FileValue. This ensures that if the symlink
+          // changes and "switches types" (say, from a file to a directory), this value will be
+          // invalidated.
+          symlinkFileMap.put(FileValue.key(child(dirRootedPath, dirent)), dirent);
+          break;
+        case DIRECTORY:
+          subdirMap.put(packageLookupKey(repository, dirRootedPath, dirent), dirent);
+          break;
+        default:
+          result.add(dirent);
+      }
+    }
+
+    Map<SkyKey, SkyValue> subdirAndSymlinksResult =
+        env.getValues(Sets.union(subdirMap.keySet(), symlinkFileMap.keySet()));
+    if (env.valuesMissing()) {
+      return null;
+    }
+    Map<SkyKey, Dirent> symlinkSubdirMap = Maps.newHashMapWithExpectedSize(symlinkFileMap.size());
+    for (Map.Entry<SkyKey, SkyValue> lookedUpKeyAndValue : subdirAndSymlinksResult.entrySet()) {
+      Dirent dirent = symlinkFileMap.get(lookedUpKeyAndValue.getKey());
+      if (dirent == null) {
+        processSubdir(lookedUpKeyAndValue, subdirMap, result);
+        continue;
+      }
+      FileValue symlinkFileValue = (FileValue) lookedUpKeyAndValue.getValue();
+      if (!symlinkFileValue.isSymlink()) {
+        throw new FilteredDirectoryListingFunctionException(
+            new InconsistentFilesystemException(
+                "readdir and stat disagree about whether "
+                    + ((RootedPath) lookedUpKeyAndValue.getKey().argument()).asPath()
+                    + " is a symlink."));
+      }
+      if (!symlinkFileValue.exists()) {
+        continue;
+      }
+      if (symlinkFileValue.isDirectory()) {
+        symlinkSubdirMap.put(
+            packageLookupKey(repository, dirRootedPath, dirent),
+            new Dirent(dirent.getName(), Dirent.Type.DIRECTORY));
+      } else {
+        result.add(new Dirent(dirent.getName(), Dirent.Type.FILE));
+      }
+    }
+
+    Map<SkyKey, SkyValue> symlinkSubdirResult = env.getValues(symlinkSubdirMap.keySet());
+    if (env.valuesMissing()) {
+      return null;
+    }
+    for (Map.Entry<SkyKey, SkyValue> lookedUpKeyAndValue : symlinkSubdirResult.entrySet()) {
+      processSubdir(lookedUpKeyAndValue, symlinkSubdirMap, result);
+    }
+
+    return new FilteredDirectoryListingValue(CompactSortedDirents.create(result));
+  }
+
+  private static RootedPath child(RootedPath dirRootedPath, Dirent dirent) {
+    return RootedPath.toRootedPath(
+        dirRootedPath.getRoot(), dirRootedPath.getRootRelativePath().getRelative(dirent.getName()));
+  }
+
+  private static SkyKey packageLookupKey(
+      RepositoryName repository, RootedPath dirRootedPath, Dirent dirent) {
+    PathFragment subdir = dirRootedPath.getRootRelativePath().getRelative(dirent.getName());
+    return PackageLookupValue.key(PackageIdentifier.create(repository, subdir));
+  }
+
+  /** Adds the subdirectory to {@code result} unless it is a package or repository boundary. */
+  private static void processSubdir(
+      Map.Entry<SkyKey, SkyValue> keyAndValue, Map<SkyKey, Dirent> subdirMap, List<Dirent> result) {
+    PackageLookupValue packageLookupValue = (PackageLookupValue) keyAndValue.getValue();
+    if (packageLookupValue.packageExists()
+        || packageLookupValue
+            instanceof PackageLookupValue.IncorrectRepositoryReferencePackageLookupValue) {
+      // We crossed the package boundary, that is, the subdirectory contains a BUILD file and thus
+      // defines another package, or we crossed a repository boundary. Glob expansion should not
+      // descend into that subdirectory.
+      return;
+    }
+    result.add(subdirMap.get(keyAndValue.getKey()));
+  }
+
+  @Nullable
+  @Override
+  public String extractTag(SkyKey skyKey) {
+    return null;
+  }
+
+  /**
+   * Used to declare all the exception types that can be wrapped in the exception thrown by {@link
+   * FilteredDirectoryListingFunction#compute}.
+   */
+  private static final class FilteredDirectoryListingFunctionException
+      extends SkyFunctionException {
+    FilteredDirectoryListingFunctionException(InconsistentFilesystemException e) {
+      super(e, Transience.TRANSIENT);
+    }
+  }
+}
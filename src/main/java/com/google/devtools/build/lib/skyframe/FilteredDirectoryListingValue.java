@@ -0,0 +1,150 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Interner;
+import com.google.devtools.build.lib.cmdline.RepositoryName;
+import com.google.devtools.build.lib.concurrent.BlazeInterners;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.skyframe.serialization.autocodec.AutoCodec;
+import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import java.util.Objects;
+
+/**
+ * The entries of a directory that a path segment of the globs of the directory's repository
+ * matches, with their symlinks resolved: files, and the subdirectories that are neither packages
+ * nor other repositories. Dangling symlinks are left out, and symlinks are listed with the type of
+ * their target. Only the entries that match the segment are resolved, so a glob like {@code
+ * *.java} does not stat the symlinks or look up the subpackages it could never match.
+ *
+ * <p>Unlike {@link GlobValue}s, which are computed per package and pattern, these values are
+ * shared by all the globs that visit the directory with the same segment, e.g. all recursive
+ * globs, so that the symlinks and package boundaries of a directory are resolved once for all of
+ * them. A change to a directory only changes the listing of that directory, and the globs of the
+ * parent directories are only reevaluated if one of the globs of the directory changes.
+ */
+@Immutable
+@ThreadSafe
+public final class FilteredDirectoryListingValue implements SkyValue {
+
+  private final Dirents dirents;
+
+  FilteredDirectoryListingValue(Dirents dirents) {
+    this.dirents = Preconditions.checkNotNull(dirents);
+  }
+
+  /**
+   * Returns the entries of the directory, sorted by name. The type of an entry is never {@link
+   * com.google.devtools.build.lib.vfs.Dirent.Type#SYMLINK}.
+   */
+  public Dirents getDirents() {
+    return dirents;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof FilteredDirectoryListingValue)) {
+      return false;
+    }
+    return dirents.equals(((FilteredDirectoryListingValue) obj).dirents);
+  }
+
+  @Override
+  public int hashCode() {
+    return dirents.hashCode();
+  }
+
+  /**
+   * Returns the key for the listing of the entries of {@code directory} that {@code pattern}, a
+   * path segment of a glob pattern, matches. The directory is assumed to be an existing directory
+   * of {@code repository} that is not a package boundary below the glob's package (e.g. from a
+   * filtered listing of its parent directory).
+   */
+  @ThreadSafe
+  public static Key key(RepositoryName repository, RootedPath directory, String pattern) {
+    return Key.create(repository, directory, pattern);
+  }
+
+  /** The {@link SkyKey} of a {@link FilteredDirectoryListingValue}. */
+  @AutoCodec
+  public static final class Key implements SkyKey {
+    private static final Interner<Key> interner = BlazeInterners.newWeakInterner();
+
+    private final RepositoryName repository;
+    private final RootedPath directory;
+    private final String pattern;
+
+    private Key(RepositoryName repository, RootedPath directory, String pattern) {
+      this.repository = Preconditions.checkNotNull(repository);
+      this.directory = Preconditions.checkNotNull(directory);
+      this.pattern = Preconditions.checkNotNull(pattern);
+    }
+
+    @AutoCodec.VisibleForSerialization
+    @AutoCodec.Instantiator
+    static Key create(RepositoryName repository, RootedPath directory, String pattern) {
+      return interner.intern(new Key(repository, directory, pattern));
+    }
+
+    public RepositoryName getRepository() {
+      return repository;
+    }
+
+    public RootedPath getDirectory() {
+      return directory;
+    }
+
+    /** Returns the glob pattern segment that the listed entries match. */
+    public String getPattern() {
+      return pattern;
+    }
+
+    @Override
+    public SkyFunctionName functionName() {
+      return SkyFunctions.FILTERED_DIRECTORY_LISTING;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return repository.equals(other.repository)
+          && directory.equals(other.directory)
+          && pattern.equals(other.pattern);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(repository, directory, pattern);
+    }
+
+    @Override
+    public String toString() {
+      return repository + " " + directory + " " + pattern;
+    }
+  }
+}
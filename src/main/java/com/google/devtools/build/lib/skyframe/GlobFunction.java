@@ -15,25 +15,20 @@ package com.google.devtools.build.lib.skyframe;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.actions.FileValue;
-import com.google.devtools.build.lib.actions.InconsistentFilesystemException;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.collect.nestedset.NestedSet;
 import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
 import com.google.devtools.build.lib.vfs.Dirent;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.RootedPath;
-import com.google.devtools.build.lib.vfs.UnixGlob;
 import com.google.devtools.build.skyframe.SkyFunction;
-import com.google.devtools.build.skyframe.SkyFunctionException;
-import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Pattern;
 import javax.annotation.Nullable;
 
 /**
@@ -43,8 +38,6 @@ import javax.annotation.Nullable;
  */
 public final class GlobFunction implements SkyFunction {
 
-  private final ConcurrentHashMap<String, Pattern> regexPatternCache = new ConcurrentHashMap<>();
-
   private final boolean alwaysUseDirListing;
 
   public GlobFunction(boolean alwaysUseDirListing) {
@@ -53,7 +46,7 @@ public final class GlobFunction implements SkyFunction {
 
   @Override
   public SkyValue compute(SkyKey skyKey, Environment env)
-      throws GlobFunctionException, InterruptedException {
+      throws InterruptedException {
     GlobDescriptor glob = (GlobDescriptor) skyKey.argument();
 
     BlacklistedPackagePrefixesValue blacklistedPackagePrefixes =
@@ -116,15 +109,19 @@ public final class GlobFunction implements SkyFunction {
 
     RootedPath dirRootedPath = RootedPath.toRootedPath(glob.getPackageRoot(), dirPathFragment);
     if (alwaysUseDirListing || containsGlobs(patternHead)) {
-      // Pattern contains globs, so a directory listing is required.
+      // Pattern contains globs, so a directory listing is required. It is filtered by a node
+      // shared with all other globs of the directory with the same pattern head, which keeps the
+      // entries the head matches, resolves their symlinks and drops subpackages.
       //
       // Note that we have good reason to believe the directory exists: if this is the
       // top-level directory of the package, the package's existence implies the directory's
       // existence; if this is a lower-level directory in the package, then we got here from
       // previous directory listings. Filesystem operations concurrent with build could mean the
       // directory no longer exists, but DirectoryListingFunction handles that gracefully.
-      SkyKey directoryListingKey = DirectoryListingValue.key(dirRootedPath);
-      DirectoryListingValue listingValue = null;
+      SkyKey directoryListingKey =
+          FilteredDirectoryListingValue.key(
+              glob.getPackageId().getRepository(), dirRootedPath, patternHead);
+      FilteredDirectoryListingValue listingValue = null;
 
       boolean patternHeadIsStarStar = "**".equals(patternHead);
       if (patternHeadIsStarStar) {
@@ -135,8 +132,8 @@ public final class GlobFunction implements SkyFunction {
             matches.add(globSubdir);
           }
         } else {
-          // Optimize away a Skyframe restart by requesting the DirectoryListingValue dep and
-          // recursive GlobValue dep in a single batch.
+          // Optimize away a Skyframe restart by requesting the FilteredDirectoryListingValue dep
+          // and recursive GlobValue dep in a single batch.
 
           SkyKey keyForRecursiveGlobInCurrentDirectory =
               GlobValue.internalKey(
@@ -155,111 +152,47 @@ public final class GlobFunction implements SkyFunction {
               (GlobValue) listingAndRecursiveGlobMap.get(keyForRecursiveGlobInCurrentDirectory);
           matches.addTransitive(globValue.getMatches());
           listingValue =
-              (DirectoryListingValue) listingAndRecursiveGlobMap.get(directoryListingKey);
+              (FilteredDirectoryListingValue) listingAndRecursiveGlobMap.get(directoryListingKey);
         }
       }
 
       if (listingValue == null) {
-        listingValue = (DirectoryListingValue) env.getValue(directoryListingKey);
+        listingValue = (FilteredDirectoryListingValue) env.getValue(directoryListingKey);
         if (listingValue == null) {
           return null;
         }
       }
 
-      // Now that we have the directory listing, we do three passes over it so as to maximize
-      // skyframe batching:
-      // (1) Process every dirent, keeping track of values we need to request if the dirent cannot
-      //     be processed with current information (symlink targets and subdirectory globs/package
-      //     lookups for some subdirectories).
-      // (2) Get those values and process the symlinks, keeping track of subdirectory globs/package
-      //     lookups we may need to request in case the symlink's target is a directory.
-      // (3) Process the necessary subdirectories.
-      int direntsSize = listingValue.getDirents().size();
-      Map<SkyKey, Dirent> symlinkFileMap = Maps.newHashMapWithExpectedSize(direntsSize);
-      Map<SkyKey, Dirent> subdirMap = Maps.newHashMapWithExpectedSize(direntsSize);
-      Map<Dirent, Object> sortedResultMap = Maps.newTreeMap();
+      // The listing only has entries that match the pattern head, and no symlinks and no
+      // subpackages, so a single batch of subdirectory globs is all that is needed beyond it.
       String subdirPattern = patternHeadIsStarStar ? glob.getPattern() : patternTail;
-      // First pass: do normal files and collect SkyKeys to request for subdirectories and symlinks.
+      List<SkyKey> subdirKeys = new ArrayList<>();
       for (Dirent dirent : listingValue.getDirents()) {
-        Dirent.Type direntType = dirent.getType();
-        String fileName = dirent.getName();
-        if (!UnixGlob.matches(patternHead, fileName, regexPatternCache)) {
-          continue;
-        }
-
-        if (direntType == Dirent.Type.SYMLINK) {
-          // TODO(bazel-team): Consider extracting the symlink resolution logic.
-          // For symlinks, look up the corresponding FileValue. This ensures that if the symlink
-          // changes and "switches types" (say, from a file to a directory), this value will be
-          // invalidated. We also need the target's type to properly process the symlink.
-          symlinkFileMap.put(
-              FileValue.key(
-                  RootedPath.toRootedPath(
-                      glob.getPackageRoot(), dirPathFragment.getRelative(fileName))),
-              dirent);
-          continue;
-        }
-
-        if (direntType == Dirent.Type.DIRECTORY) {
-          SkyKey keyToRequest = getSkyKeyForSubdir(fileName, glob, subdirPattern);
-          if (keyToRequest != null) {
-            subdirMap.put(keyToRequest, dirent);
-          }
-        } else if (globMatchesBareFile) {
-          sortedResultMap.put(dirent, glob.getSubdir().getRelative(fileName));
+        if (subdirPattern != null && dirent.getType() == Dirent.Type.DIRECTORY) {
+          subdirKeys.add(subdirGlobKey(dirent.getName(), glob, subdirPattern));
         }
       }
-
-      Map<SkyKey, SkyValue> subdirAndSymlinksResult =
-          env.getValues(Sets.union(subdirMap.keySet(), symlinkFileMap.keySet()));
+      Map<SkyKey, SkyValue> subdirGlobs = env.getValues(subdirKeys);
       if (env.valuesMissing()) {
         return null;
       }
-      Map<SkyKey, Dirent> symlinkSubdirMap = Maps.newHashMapWithExpectedSize(symlinkFileMap.size());
-      // Second pass: process the symlinks and subdirectories from the first pass, and maybe
-      // collect further SkyKeys if fully resolved symlink targets are themselves directories.
-      // Also process any known directories.
-      for (Map.Entry<SkyKey, SkyValue> lookedUpKeyAndValue : subdirAndSymlinksResult.entrySet()) {
-        if (symlinkFileMap.containsKey(lookedUpKeyAndValue.getKey())) {
-          FileValue symlinkFileValue = (FileValue) lookedUpKeyAndValue.getValue();
-          if (!symlinkFileValue.isSymlink()) {
-            throw new GlobFunctionException(
-                new InconsistentFilesystemException(
-                    "readdir and stat disagree about whether "
-                        + ((RootedPath) lookedUpKeyAndValue.getKey().argument()).asPath()
-                        + " is a symlink."),
-                Transience.TRANSIENT);
-          }
-          if (!symlinkFileValue.exists()) {
-            continue;
-          }
-          Dirent dirent = symlinkFileMap.get(lookedUpKeyAndValue.getKey());
-          String fileName = dirent.getName();
-          if (symlinkFileValue.isDirectory()) {
-            SkyKey keyToRequest = getSkyKeyForSubdir(fileName, glob, subdirPattern);
-            if (keyToRequest != null) {
-              symlinkSubdirMap.put(keyToRequest, dirent);
-            }
-          } else if (globMatchesBareFile) {
-            sortedResultMap.put(dirent, glob.getSubdir().getRelative(fileName));
+      // Add the matches in the order of the listing.
+      Iterator<SkyKey> subdirKeysIterator = subdirKeys.iterator();
+      for (Dirent dirent : listingValue.getDirents()) {
+        String fileName = dirent.getName();
+        if (dirent.getType() != Dirent.Type.DIRECTORY) {
+          if (globMatchesBareFile) {
+            matches.add(globSubdir.getRelative(fileName));
           }
-        } else {
-          processSubdir(lookedUpKeyAndValue, subdirMap, glob, sortedResultMap);
+        } else if (subdirPattern != null) {
+          // Note that this directory may also match directly in the case of a pattern that starts
+          // with "**", but that match will be found in the subdirectory glob.
+          matches.addTransitive(
+              ((GlobValue) subdirGlobs.get(subdirKeysIterator.next())).getMatches());
+        } else if (!glob.excludeDirs()) {
+          matches.add(globSubdir.getRelative(fileName));
         }
       }
-
-      Map<SkyKey, SkyValue> symlinkSubdirResult = env.getValues(symlinkSubdirMap.keySet());
-      if (env.valuesMissing()) {
-        return null;
-      }
-      // Third pass: do needed subdirectories of symlinked directories discovered during the second
-      // pass.
-      for (Map.Entry<SkyKey, SkyValue> lookedUpKeyAndValue : symlinkSubdirResult.entrySet()) {
-        processSubdir(lookedUpKeyAndValue, symlinkSubdirMap, glob, sortedResultMap);
-      }
-      for (Map.Entry<Dirent, Object> fileMatches : sortedResultMap.entrySet()) {
-        addToMatches(fileMatches.getValue(), matches);
-      }
     } else {
       // Pattern does not contain globs, so a direct stat is enough.
       String fileName = patternHead;
@@ -298,19 +231,6 @@ public final class GlobFunction implements SkyFunction {
     return new GlobValue(matchesBuilt);
   }
 
-  private static void processSubdir(
-      Map.Entry<SkyKey, SkyValue> keyAndValue,
-      Map<SkyKey, Dirent> subdirMap,
-      GlobDescriptor glob,
-      Map<Dirent, Object> sortedResultMap) {
-    Dirent dirent = Preconditions.checkNotNull(subdirMap.get(keyAndValue.getKey()), keyAndValue);
-    String fileName = dirent.getName();
-    Object dirMatches = getSubdirMatchesFromSkyValue(fileName, glob, keyAndValue.getValue());
-    if (dirMatches != null) {
-      sortedResultMap.put(dirent, dirMatches);
-    }
-  }
-
   /** Returns true if the given pattern contains globs. */
   private static boolean containsGlobs(String pattern) {
     return pattern.contains("*") || pattern.contains("?");
@@ -351,18 +271,21 @@ public final class GlobFunction implements SkyFunction {
                     .getRelative(fileName)));
       }
     } else {
-      // There is some more pattern to match. Get the glob for the subdirectory. Note that this
-      // directory may also match directly in the case of a pattern that starts with "**", but that
-      // match will be found in the subdirectory glob.
-      return GlobValue.internalKey(
-          glob.getPackageId(),
-          glob.getPackageRoot(),
-          glob.getSubdir().getRelative(fileName),
-          subdirPattern,
-          glob.excludeDirs());
+      // There is some more pattern to match. Get the glob for the subdirectory.
+      return subdirGlobKey(fileName, glob, subdirPattern);
     }
   }
 
+  /** Returns the key of the glob of {@code subdirPattern} in the subdirectory {@code fileName}. */
+  private static SkyKey subdirGlobKey(String fileName, GlobDescriptor glob, String subdirPattern) {
+    return GlobValue.internalKey(
+        glob.getPackageId(),
+        glob.getPackageRoot(),
+        glob.getSubdir().getRelative(fileName),
+        subdirPattern,
+        glob.excludeDirs());
+  }
+
   /**
    * Returns matches coming from the directory {@code fileName} if appropriate, either an individual
    * file or a nested set of files.
@@ -403,14 +326,4 @@ public final class GlobFunction implements SkyFunction {
   public String extractTag(SkyKey skyKey) {
     return null;
   }
-
-  /**
-   * Used to declare all the exception types that can be wrapped in the exception thrown by
-   * {@link GlobFunction#compute}.
-   */
-  private static final class GlobFunctionException extends SkyFunctionException {
-    public GlobFunctionException(InconsistentFilesystemException e, Transience transience) {
-      super(e, transience);
-    }
-  }
 }
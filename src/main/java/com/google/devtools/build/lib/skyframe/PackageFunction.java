@@ -14,10 +14,10 @@
 package com.google.devtools.build.lib.skyframe;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -110,6 +110,12 @@ public class PackageFunction implements SkyFunction {
 
   private final IncrementalityIntent incrementalityIntent;
 
+  // The last package built for each identifier, while it is still referenced by the Skyframe graph.
+  // Used for change pruning.
+  private final Cache<PackageIdentifier, Package> previousPackages =
+      CacheBuilder.newBuilder().weakValues().build();
+  private volatile boolean changePruning;
+
   public PackageFunction(
       PackageFactory packageFactory,
       CachingPackageLocator pkgLocator,
@@ -159,6 +165,19 @@ public class PackageFunction implements SkyFunction {
         IncrementalityIntent.INCREMENTAL);
   }
 
+  /**
+   * Enables or disables change pruning: when enabled, a package whose BUILD file is re-evaluated
+   * without effect on its targets, as determined by {@link Package#equalsIgnoringLocations}, is
+   * replaced by the previously loaded instance, so that Skyframe need not re-evaluate its
+   * dependents. Its targets then keep the source locations of the previous evaluation.
+   */
+  public void setChangePruning(boolean changePruning) {
+    this.changePruning = changePruning;
+    if (!changePruning) {
+      previousPackages.invalidateAll();
+    }
+  }
+
   public void setSkylarkImportLookupFunctionForInliningForTesting(
       SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining) {
     this.skylarkImportLookupFunctionForInlining = skylarkImportLookupFunctionForInlining;
@@ -509,6 +528,14 @@ public class PackageFunction implements SkyFunction {
     packageFunctionCache.invalidate(packageId);
 
     packageFactory.afterDoneLoadingPackage(pkg, starlarkSemantics, packageCacheEntry.loadTimeNanos);
+    if (changePruning && incrementalityIntent == IncrementalityIntent.INCREMENTAL) {
+      Package previous = previousPackages.getIfPresent(packageId);
+      if (previous != null && previous.equalsIgnoringLocations(pkg)) {
+        // An equal PackageValue lets Skyframe prune the dependents of this package.
+        return new PackageValue(previous);
+      }
+      previousPackages.put(packageId, pkg);
+    }
     return new PackageValue(pkg);
   }
 
@@ -581,8 +608,8 @@ public class PackageFunction implements SkyFunction {
       skylarkImportMap =
           skylarkImportLookupFunctionForInlining == null
               ? computeSkylarkImportMapNoInlining(env, importLookupKeys)
-              : computeSkylarkImportMapWithInlining(
-                  env, importLookupKeys, skylarkImportLookupFunctionForInlining);
+              : skylarkImportLookupFunctionForInlining.computeWithInlineCalls(
+                  importLookupKeys, env);
     } catch (SkylarkImportFailedException e) {
       throw makeSkylarkImportFailedException(packageId, e);
     } catch (InconsistentFilesystemException e) {
@@ -639,60 +666,6 @@ public class PackageFunction implements SkyFunction {
     return env.valuesMissing() ? null : skylarkImportMap;
   }
 
-  /**
-   * Compute the SkylarkImportLookupValue for all given SkyKeys by "inlining" the
-   * SkylarkImportLookupFunction and bypassing traditional skyframe evaluation, returning {@code
-   * null} if skyframe deps were missing and have been requested.
-   */
-  @Nullable
-  private static Map<SkyKey, SkyValue> computeSkylarkImportMapWithInlining(
-      Environment env,
-      List<? extends SkyKey> importLookupKeys,
-      SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining)
-      throws InterruptedException, SkylarkImportFailedException, InconsistentFilesystemException {
-    Map<SkyKey, SkyValue> skylarkImportMap =
-        Maps.newHashMapWithExpectedSize(importLookupKeys.size());
-    Exception deferredException = null;
-    boolean valuesMissing = false;
-    // For each listed import in order, try to compute its SkylarkImportLookupValue.
-    Map<SkylarkImportLookupKey, CachedSkylarkImportLookupValueAndDeps> visitedDepsInToplevelLoad =
-        new HashMap<>();
-    for (SkyKey importLookupKey : importLookupKeys) {
-      SkyValue skyValue;
-      try {
-        if (visitedDepsInToplevelLoad.containsKey(importLookupKey)) {
-          skyValue = visitedDepsInToplevelLoad.get(importLookupKey).getValue();
-        } else {
-          skyValue =
-              skylarkImportLookupFunctionForInlining.computeWithInlineCalls(
-                  importLookupKey, env, visitedDepsInToplevelLoad);
-        }
-      } catch (SkylarkImportFailedException | InconsistentFilesystemException e) {
-        // For determinism's sake while inlining, preserve the first exception and continue to run
-        // subsequently listed imports to completion/exception, loading all transitive deps anyway.
-        deferredException = MoreObjects.firstNonNull(deferredException, e);
-        continue;
-      }
-      if (skyValue == null) {
-        Preconditions.checkState(
-            env.valuesMissing(), "no starlark import value for %s", importLookupKey);
-        // We continue making inline calls even if some requested values are missing, to
-        // maximize the number of dependent (non-inlined) SkyFunctions that are requested, thus
-        // avoiding a quadratic number of restarts.
-        valuesMissing = true;
-      } else {
-        skylarkImportMap.put(importLookupKey, skyValue);
-      }
-    }
-    if (deferredException != null) {
-      Throwables.throwIfInstanceOf(deferredException, SkylarkImportFailedException.class);
-      Throwables.throwIfInstanceOf(deferredException, InconsistentFilesystemException.class);
-      throw new IllegalStateException(
-          "caught a checked exception of unexpected type", deferredException);
-    }
-    return valuesMissing ? null : skylarkImportMap;
-  }
-
   private static int getOriginalWorkspaceChunk(
       Environment env, RootedPath workspacePath, int workspaceChunk, Label importLabel)
       throws InterruptedException {
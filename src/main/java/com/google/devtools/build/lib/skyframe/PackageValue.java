@@ -23,17 +23,22 @@ import com.google.devtools.build.lib.packages.BuildFileContainsErrorsException;
 import com.google.devtools.build.lib.packages.Package;
 import com.google.devtools.build.lib.skyframe.serialization.autocodec.AutoCodec;
 import com.google.devtools.build.skyframe.AbstractSkyKey;
-import com.google.devtools.build.skyframe.NotComparableSkyValue;
 import com.google.devtools.build.skyframe.SkyFunctionName;
 import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
 import java.util.ArrayList;
 import java.util.List;
 
-/** A Skyframe value representing a package. */
+/**
+ * A Skyframe value representing a package.
+ *
+ * <p>Two values are equal if they hold the same {@link Package} instance, which {@link
+ * PackageFunction} returns again when re-evaluating a BUILD file has no effect on the package.
+ */
 @AutoCodec(explicitlyAllowClass = Package.class)
 @Immutable
 @ThreadSafe
-public class PackageValue implements NotComparableSkyValue {
+public class PackageValue implements SkyValue {
   private final Package pkg;
 
   public PackageValue(Package pkg) {
@@ -50,6 +55,16 @@ public class PackageValue implements NotComparableSkyValue {
     return pkg;
   }
 
+  @Override
+  public boolean equals(Object obj) {
+    return obj instanceof PackageValue && ((PackageValue) obj).pkg == pkg;
+  }
+
+  @Override
+  public int hashCode() {
+    return System.identityHashCode(pkg);
+  }
+
   @Override
   public String toString() {
     return "<PackageValue name=" + pkg.getName() + ">";
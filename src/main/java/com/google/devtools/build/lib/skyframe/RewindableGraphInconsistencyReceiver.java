@@ -0,0 +1,72 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.devtools.build.skyframe.GraphInconsistencyReceiver;
+import com.google.devtools.build.skyframe.SkyKey;
+import java.util.Collection;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link GraphInconsistencyReceiver} that tolerates the inconsistencies caused by action
+ * rewinding while rewinding is enabled, and passes all others to a delegate.
+ *
+ * <p>Rewinding restarts an action's node and force-rebuilds the nodes of the actions that generated
+ * its lost inputs. Other nodes being built may then find those nodes no longer done.
+ */
+public final class RewindableGraphInconsistencyReceiver implements GraphInconsistencyReceiver {
+  private static final Logger logger =
+      Logger.getLogger(RewindableGraphInconsistencyReceiver.class.getName());
+
+  private static final ImmutableSet<Inconsistency> REWINDING_INCONSISTENCIES =
+      Sets.immutableEnumSet(
+          Inconsistency.RESET_REQUESTED,
+          Inconsistency.PARENT_FORCE_REBUILD_OF_CHILD,
+          Inconsistency.BUILDING_PARENT_FOUND_UNDONE_CHILD);
+
+  private final GraphInconsistencyReceiver delegate;
+  private volatile boolean rewindingEnabled;
+
+  public RewindableGraphInconsistencyReceiver(GraphInconsistencyReceiver delegate) {
+    this.delegate = delegate;
+  }
+
+  /** Sets whether the inconsistencies caused by action rewinding are tolerated. */
+  public void setRewindingEnabled(boolean rewindingEnabled) {
+    this.rewindingEnabled = rewindingEnabled;
+  }
+
+  public boolean isRewindingEnabled() {
+    return rewindingEnabled;
+  }
+
+  @Override
+  public void noteInconsistencyAndMaybeThrow(
+      SkyKey key, @Nullable Collection<SkyKey> otherKeys, Inconsistency inconsistency) {
+    if (rewindingEnabled && REWINDING_INCONSISTENCIES.contains(inconsistency)) {
+      logger.fine(
+          String.format(
+              "Rewinding inconsistency: %s, %s, %s",
+              key,
+              otherKeys == null ? null : GraphInconsistencyReceiver.listChildren(otherKeys),
+              inconsistency));
+      return;
+    }
+    delegate.noteInconsistencyAndMaybeThrow(key, otherKeys, inconsistency);
+  }
+}
@@ -38,6 +38,8 @@ public final class SkyFunctions {
       SkyFunctionName.createHermetic("FILE_SYMLINK_INFINITE_EXPANSION_UNIQUENESS");
   public static final SkyFunctionName DIRECTORY_LISTING =
       SkyFunctionName.createHermetic("DIRECTORY_LISTING");
+  public static final SkyFunctionName FILTERED_DIRECTORY_LISTING =
+      SkyFunctionName.createHermetic("FILTERED_DIRECTORY_LISTING");
   // Hermetic even though package lookups secretly access the set of deleted packages, because
   // SequencedSkyframeExecutor deletes any affected PACKAGE_LOOKUP nodes when that set changes.
   public static final SkyFunctionName PACKAGE_LOOKUP =
@@ -50,6 +52,7 @@ public final class SkyFunctions {
       SkyFunctionName.createHermetic("SKYLARK_IMPORTS_LOOKUP");
   public static final SkyFunctionName GLOB = SkyFunctionName.createHermetic("GLOB");
   public static final SkyFunctionName PACKAGE = SkyFunctionName.createHermetic("PACKAGE");
+  public static final SkyFunctionName TARGET = SkyFunctionName.createHermetic("TARGET");
   static final SkyFunctionName PACKAGE_ERROR = SkyFunctionName.createHermetic("PACKAGE_ERROR");
   public static final SkyFunctionName PACKAGE_ERROR_MESSAGE =
       SkyFunctionName.createHermetic("PACKAGE_ERROR_MESSAGE");
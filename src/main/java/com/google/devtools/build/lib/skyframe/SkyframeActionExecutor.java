@@ -21,6 +21,8 @@ import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.Striped;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.actions.Action;
@@ -118,8 +120,13 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.function.Function;
@@ -140,6 +147,10 @@ public final class SkyframeActionExecutor {
 
   private static final Logger logger = Logger.getLogger(SkyframeActionExecutor.class.getName());
 
+  // Offloaded actions mostly wait on the network, so they don't need the default thread stack
+  // size; this keeps thousands of in-flight actions cheap.
+  private static final long EXECUTION_OFFLOAD_THREAD_STACK_SIZE = 256 * 1024;
+
   // Used to prevent check-then-act races in #createOutputDirectories. See the comment there for
   // more detail.
   private static final Striped<Lock> outputDirectoryDeletionLock = Striped.lock(64);
@@ -195,6 +206,8 @@ public final class SkyframeActionExecutor {
   private ImmutableMap<ActionAnalysisMetadata, ConflictException> badActionMap = ImmutableMap.of();
   private OptionsProvider options;
   private boolean useAsyncExecution;
+  // Non-null iff --experimental_execution_offload_threads is positive. Nulled out between builds.
+  @Nullable private ListeningExecutorService executionOffloadPool;
   private boolean hadExecutionError;
   private MetadataProvider perBuildFileCache;
   private ActionInputPrefetcher actionInputPrefetcher;
@@ -424,6 +437,10 @@ public final class SkyframeActionExecutor {
     this.options = options;
     // Cache some option values for performance, since we consult them on every action.
     this.useAsyncExecution = options.getOptions(BuildRequestOptions.class).useAsyncExecution;
+    int executionOffloadThreads =
+        options.getOptions(BuildRequestOptions.class).executionOffloadThreads;
+    this.executionOffloadPool =
+        executionOffloadThreads > 0 ? createExecutionOffloadPool(executionOffloadThreads) : null;
     this.finalizeActions = options.getOptions(BuildRequestOptions.class).finalizeActions;
     this.outputService = outputService;
     RemoteOptions remoteOptions = options.getOptions(RemoteOptions.class);
@@ -490,6 +507,39 @@ public final class SkyframeActionExecutor {
     this.lostDiscoveredInputsMap = null;
     this.actionCacheChecker = null;
     this.topDownActionCache = null;
+    if (executionOffloadPool != null) {
+      // Anything still running belongs to an aborted build.
+      executionOffloadPool.shutdownNow();
+      this.executionOffloadPool = null;
+    }
+  }
+
+  /**
+   * Creates the pool that actions are executed on when they are offloaded from the Skyframe
+   * threads. Its threads are only created on demand and time out when idle, since most of them
+   * spend their time blocked on remote execution.
+   */
+  private static ListeningExecutorService createExecutionOffloadPool(int threads) {
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadPoolExecutor pool =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            10,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            runnable -> {
+              Thread thread =
+                  new Thread(
+                      /*group=*/ null,
+                      runnable,
+                      "action-execution-" + threadCount.incrementAndGet(),
+                      EXECUTION_OFFLOAD_THREAD_STACK_SIZE);
+              thread.setDaemon(true);
+              return thread;
+            });
+    pool.allowCoreThreadTimeOut(true);
+    return MoreExecutors.listeningDecorator(pool);
   }
 
   /**
@@ -985,8 +1035,17 @@ public final class SkyframeActionExecutor {
           // overlap in the Json profile, which the renderer isn't able to handle. We should move
           // those to some sort of 'virtual thread' to visualize the work that's happening on other
           // machines.
+          ActionContinuationOrResult continuation = begin(action, actionExecutionContext);
+          return continueAction(
+              actionExecutionContext.getEventHandler(),
+              executionOffloadPool != null ? new OffloadedStep(continuation) : continuation);
+        }
+        if (executionOffloadPool != null) {
+          // Events must go to the action's event handler from here on, since the Skyframe listener
+          // is only valid until this evaluation of the action returns.
           return continueAction(
-              actionExecutionContext.getEventHandler(), begin(action, actionExecutionContext));
+              actionExecutionContext.getEventHandler(),
+              new OffloadedStep(runFully(action, actionExecutionContext)));
         }
 
         return continueAction(env.getListener(), runFully(action, actionExecutionContext));
@@ -1166,6 +1225,67 @@ public final class SkyframeActionExecutor {
       }
     }
 
+    /**
+     * Runs the next step of the given continuation on the {@link #executionOffloadPool}, so that
+     * the Skyframe thread is released while that step blocks, e.g. waiting for remote execution.
+     */
+    private class OffloadedStep extends ActionContinuationOrResult {
+      private final ActionContinuationOrResult continuation;
+
+      OffloadedStep(ActionContinuationOrResult continuation) {
+        this.continuation = continuation;
+      }
+
+      @Override
+      public ListenableFuture<?> getFuture() {
+        return continuation.getFuture();
+      }
+
+      @Override
+      public ActionContinuationOrResult execute() {
+        return new OffloadedStepResult(
+            executionOffloadPool.submit(
+                () -> {
+                  try (SilentCloseable c =
+                      profiler.profile(ProfilerTask.ACTION, action.describe())) {
+                    return continuation.execute();
+                  }
+                }));
+      }
+    }
+
+    /** The pending outcome of an {@link OffloadedStep}. */
+    private class OffloadedStepResult extends ActionContinuationOrResult {
+      private final ListenableFuture<ActionContinuationOrResult> future;
+
+      OffloadedStepResult(ListenableFuture<ActionContinuationOrResult> future) {
+        this.future = future;
+      }
+
+      @Override
+      public ListenableFuture<?> getFuture() {
+        return future;
+      }
+
+      @Override
+      public ActionContinuationOrResult execute()
+          throws ActionExecutionException, InterruptedException {
+        ActionContinuationOrResult next;
+        try {
+          next = future.get();
+        } catch (ExecutionException e) {
+          // Rethrow what the step threw as if it had run on this thread; only checked exceptions
+          // that execute() can't throw are wrapped.
+          Throwable cause = e.getCause();
+          Throwables.throwIfInstanceOf(cause, ActionExecutionException.class);
+          Throwables.throwIfInstanceOf(cause, InterruptedException.class);
+          Throwables.throwIfUnchecked(cause);
+          throw new IllegalStateException(cause);
+        }
+        return next.isDone() ? next : new OffloadedStep(next);
+      }
+    }
+
     /** A closure to post-process the action and write the result to the action cache. */
     private class ActionCacheWriteStep extends ActionStep {
       private final ActionExecutionValue value;
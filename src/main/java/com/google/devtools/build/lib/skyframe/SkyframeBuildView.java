@@ -87,6 +87,7 @@ import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.common.options.OptionDefinition;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -630,12 +631,14 @@ public final class SkyframeBuildView {
   /** Returns a map of collected package names to root paths. */
   private static ImmutableMap<PackageIdentifier, Root> collectPackageRoots(
       Collection<Package> packages) {
-    // Make a map of the package names to their root paths.
-    ImmutableMap.Builder<PackageIdentifier, Root> packageRoots = ImmutableMap.builder();
+    // Make a map of the package names to their root paths. With package change pruning, configured
+    // targets that were not analyzed again may refer to an earlier instance of a package than
+    // other targets of the same package do; both instances have the same source root.
+    Map<PackageIdentifier, Root> packageRoots = new LinkedHashMap<>();
     for (Package pkg : packages) {
-      packageRoots.put(pkg.getPackageIdentifier(), pkg.getSourceRoot());
+      packageRoots.putIfAbsent(pkg.getPackageIdentifier(), pkg.getSourceRoot());
     }
-    return packageRoots.build();
+    return ImmutableMap.copyOf(packageRoots);
   }
 
   @Nullable
@@ -16,28 +16,28 @@ package com.google.devtools.build.lib.skyframe;
 import static com.google.devtools.build.lib.cmdline.LabelConstants.EXTERNAL_PACKAGE_IDENTIFIER;
 
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.analysis.DependencyResolver;
 import com.google.devtools.build.lib.analysis.TargetAndConfiguration;
 import com.google.devtools.build.lib.causes.Cause;
 import com.google.devtools.build.lib.causes.LoadingFailedCause;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
-import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.packages.NoSuchPackageException;
 import com.google.devtools.build.lib.packages.NoSuchTargetException;
 import com.google.devtools.build.lib.packages.NoSuchThingException;
-import com.google.devtools.build.lib.packages.Package;
 import com.google.devtools.build.lib.packages.RepositoryFetchException;
 import com.google.devtools.build.lib.packages.Target;
 import com.google.devtools.build.lib.packages.TargetUtils;
 import com.google.devtools.build.lib.util.OrderedSetMultimap;
 import com.google.devtools.build.skyframe.SkyFunction.Environment;
 import com.google.devtools.build.skyframe.SkyKey;
-import com.google.devtools.build.skyframe.ValueOrException;
+import com.google.devtools.build.skyframe.ValueOrException2;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import javax.annotation.Nullable;
 
 /**
@@ -94,13 +94,15 @@ public final class SkyframeDependencyResolver extends DependencyResolver {
       NestedSetBuilder<Cause> rootCauses)
       throws InterruptedException {
 
-    Map<PackageIdentifier, SkyKey> packageKeys = new HashMap<>(labelMap.size());
+    // Depending on the targets rather than on their packages lets Skyframe prune this node when
+    // only other targets of those packages change.
+    Set<SkyKey> targetKeys = Sets.newHashSetWithExpectedSize(labelMap.size());
     for (Label label : labelMap.values()) {
-      packageKeys.computeIfAbsent(label.getPackageIdentifier(), id -> PackageValue.key(id));
+      targetKeys.add(TargetValue.key(label));
     }
 
-    Map<SkyKey, ValueOrException<NoSuchPackageException>> packages =
-        env.getValuesOrThrow(packageKeys.values(), NoSuchPackageException.class);
+    Map<SkyKey, ValueOrException2<NoSuchPackageException, NoSuchTargetException>> targets =
+        env.getValuesOrThrow(targetKeys, NoSuchPackageException.class, NoSuchTargetException.class);
 
     // As per the comment in SkyFunctionEnvironment.getValueOrUntypedExceptions(), we are supposed
     // to prefer reporting errors to reporting null, we first check for errors in our dependencies.
@@ -114,11 +116,10 @@ public final class SkyframeDependencyResolver extends DependencyResolver {
         continue;
       }
 
-      PackageValue packageValue;
+      TargetValue targetValue;
       try {
-        packageValue =
-            (PackageValue) packages.get(PackageValue.key(label.getPackageIdentifier())).get();
-        if (packageValue == null) {
+        targetValue = (TargetValue) targets.get(TargetValue.key(label)).get();
+        if (targetValue == null) {
           // Dependency has not been computed yet. There will be a next iteration.
           continue;
         }
@@ -153,21 +154,19 @@ public final class SkyframeDependencyResolver extends DependencyResolver {
         rootCauses.add(new LoadingFailedCause(label, e.getMessage()));
         missingEdgeHook(fromTarget, entry.getKey(), label, e);
         continue;
-      }
-
-      Package pkg = packageValue.getPackage();
-      try {
-        Target target = pkg.getTarget(label.getName());
-        if (pkg.containsErrors()) {
-          NoSuchTargetException e = new NoSuchTargetException(target);
-          missingEdgeHook(fromTarget, entry.getKey(), label, e);
-          rootCauses.add(new LoadingFailedCause(label, e.getMessage()));
-        }
-        result.put(label, target);
       } catch (NoSuchTargetException e) {
         rootCauses.add(new LoadingFailedCause(label, e.getMessage()));
         missingEdgeHook(fromTarget, entry.getKey(), label, e);
+        continue;
+      }
+
+      Target target = targetValue.getTarget();
+      if (target.getPackage().containsErrors()) {
+        NoSuchTargetException e = new NoSuchTargetException(target);
+        missingEdgeHook(fromTarget, entry.getKey(), label, e);
+        rootCauses.add(new LoadingFailedCause(label, e.getMessage()));
       }
+      result.put(label, target);
     }
 
     return env.valuesMissing() ? null : result;
@@ -224,6 +224,9 @@ import javax.annotation.Nullable;
 public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private static final Logger logger = Logger.getLogger(SkyframeExecutor.class.getName());
 
+  /** The directory of the output base that holds the {@link StarlarkCompilationCache}. */
+  private static final String STARLARK_COMPILATION_CACHE_DIRECTORY = "starlark-cache";
+
   // We delete any value that can hold an action -- all subclasses of ActionLookupKey.
   protected static final Predicate<SkyKey> ANALYSIS_KEY_PREDICATE =
       k -> k instanceof ActionLookupValue.ActionLookupKey;
@@ -237,7 +240,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private final FileSystem fileSystem;
   protected final BlazeDirectories directories;
   protected final ExternalFilesHelper externalFilesHelper;
-  private final GraphInconsistencyReceiver graphInconsistencyReceiver;
+  private final RewindableGraphInconsistencyReceiver graphInconsistencyReceiver;
+  /** Whether the receiver given at construction tolerates rewinding in all commands. */
+  private final boolean alwaysRewinds;
   @Nullable protected OutputService outputService;
 
   // TODO(bazel-team): Figure out how to handle value builders that block internally. Blocking
@@ -261,6 +266,11 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private final Cache<PackageIdentifier, LoadedPackageCacheEntry> packageFunctionCache =
       newPkgFunctionCache();
   private final Cache<PackageIdentifier, AstParseResult> astCache = newAstCache();
+  // Parsed and validated .bzl files that outlive the server, if enabled.
+  private final StarlarkCompilationCache starlarkCompilationCache;
+  @Nullable private SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining;
+  private PackageFunction packageFunction;
+  private TargetFunction targetFunction;
 
   private final AtomicInteger numPackagesLoaded = new AtomicInteger(0);
   @Nullable private final PackageProgressReceiver packageProgress;
@@ -408,7 +418,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     this.evaluatorSupplier = evaluatorSupplier;
     this.pkgFactory = pkgFactory;
     this.shouldUnblockCpuWorkWhenFetchingDeps = shouldUnblockCpuWorkWhenFetchingDeps;
-    this.graphInconsistencyReceiver = graphInconsistencyReceiver;
+    this.graphInconsistencyReceiver =
+        new RewindableGraphInconsistencyReceiver(graphInconsistencyReceiver);
+    this.alwaysRewinds = graphInconsistencyReceiver != GraphInconsistencyReceiver.THROWING;
     this.nonexistentFileReceiver = nonexistentFileReceiver;
     this.pkgFactory.setSyscalls(syscalls);
     this.workspaceStatusActionFactory = workspaceStatusActionFactory;
@@ -423,6 +435,10 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
             this);
     this.fileSystem = fileSystem;
     this.directories = Preconditions.checkNotNull(directories);
+    this.starlarkCompilationCache =
+        new StarlarkCompilationCache(
+            directories.getOutputBase().getRelative(STARLARK_COMPILATION_CACHE_DIRECTORY),
+            String.valueOf(directories.getInstallMD5()));
     this.actionKeyContext = Preconditions.checkNotNull(actionKeyContext);
     this.extraSkyFunctions = extraSkyFunctions;
     this.hardcodedBlacklistedPackagePrefixes = hardcodedBlacklistedPackagePrefixes;
@@ -459,8 +475,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private ImmutableMap<SkyFunctionName, SkyFunction> skyFunctions(PackageFactory pkgFactory) {
     ConfiguredRuleClassProvider ruleClassProvider =
         (ConfiguredRuleClassProvider) pkgFactory.getRuleClassProvider();
-    SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining =
-        getSkylarkImportLookupFunctionForInlining();
+    skylarkImportLookupFunctionForInlining = getSkylarkImportLookupFunctionForInlining();
     // TODO(janakr): use this semaphore to bound memory usage for SkyFunctions besides
     // ConfiguredTargetFunction that may have a large temporary memory blow-up.
     Semaphore cpuBoundSemaphore = new Semaphore(ResourceUsage.getAvailableProcessors());
@@ -484,11 +499,14 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         new PackageLookupFunction(
             deletedPackages, crossRepositoryLabelViolationStrategy, buildFilesByPriority));
     map.put(SkyFunctions.CONTAINING_PACKAGE_LOOKUP, new ContainingPackageLookupFunction());
-    map.put(SkyFunctions.AST_FILE_LOOKUP, new ASTFileLookupFunction(ruleClassProvider));
+    map.put(
+        SkyFunctions.AST_FILE_LOOKUP,
+        new ASTFileLookupFunction(ruleClassProvider, starlarkCompilationCache));
     map.put(
         SkyFunctions.SKYLARK_IMPORTS_LOOKUP,
         newSkylarkImportLookupFunction(ruleClassProvider, pkgFactory));
     map.put(SkyFunctions.GLOB, newGlobFunction());
+    map.put(SkyFunctions.FILTERED_DIRECTORY_LISTING, new FilteredDirectoryListingFunction());
     map.put(SkyFunctions.TARGET_PATTERN, new TargetPatternFunction());
     map.put(SkyFunctions.PREPARE_DEPS_OF_PATTERNS, new PrepareDepsOfPatternsFunction());
     map.put(
@@ -516,8 +534,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         SkyFunctions.PREPARE_ANALYSIS_PHASE,
         new PrepareAnalysisPhaseFunction(ruleClassProvider, defaultBuildOptions));
     map.put(SkyFunctions.RECURSIVE_PKG, new RecursivePkgFunction(directories));
-    map.put(
-        SkyFunctions.PACKAGE,
+    packageFunction =
         new PackageFunction(
             pkgFactory,
             packageManager,
@@ -530,7 +547,10 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
             actionOnIOExceptionReadingBuildFile,
             tracksStateForIncrementality()
                 ? IncrementalityIntent.INCREMENTAL
-                : IncrementalityIntent.NON_INCREMENTAL));
+                : IncrementalityIntent.NON_INCREMENTAL);
+    map.put(SkyFunctions.PACKAGE, packageFunction);
+    targetFunction = new TargetFunction();
+    map.put(SkyFunctions.TARGET, targetFunction);
     map.put(SkyFunctions.PACKAGE_ERROR, new PackageErrorFunction());
     map.put(SkyFunctions.PACKAGE_ERROR_MESSAGE, new PackageErrorMessageFunction());
     map.put(SkyFunctions.TARGET_PATTERN_ERROR, new TargetPatternErrorFunction());
@@ -961,6 +981,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private static final ImmutableSet<SkyFunctionName> LOADING_TYPES =
       ImmutableSet.of(
           SkyFunctions.PACKAGE,
+          SkyFunctions.TARGET,
           SkyFunctions.SKYLARK_IMPORTS_LOOKUP,
           SkyFunctions.AST_FILE_LOOKUP,
           SkyFunctions.GLOB);
@@ -1390,6 +1411,13 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     this.pkgFactory.setGlobbingThreads(packageCacheOptions.globbingThreads);
     this.pkgFactory.setMaxDirectoriesToEagerlyVisitInGlobbing(
         packageCacheOptions.maxDirectoriesToEagerlyVisitInGlobbing);
+    starlarkCompilationCache.setEnabled(packageCacheOptions.starlarkCompilationCache);
+    if (skylarkImportLookupFunctionForInlining != null) {
+      skylarkImportLookupFunctionForInlining.setInliningThreads(
+          packageCacheOptions.starlarkInliningThreads);
+    }
+    packageFunction.setChangePruning(packageCacheOptions.packageChangePruning);
+    targetFunction.setChangePruning(packageCacheOptions.packageChangePruning);
     emittedEventState.clear();
 
     // If the PackageFunction was interrupted, there may be stale entries here.
@@ -2548,6 +2576,35 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     return actionKeyContext;
   }
 
+  /**
+   * Returns whether actions that fail with lost inputs are rewound, i.e. whether a {@link
+   * com.google.devtools.build.lib.actions.LostInputsExecException} may be thrown during execution
+   * without crashing the server.
+   */
+  public boolean isActionRewindingEnabled() {
+    return alwaysRewinds || graphInconsistencyReceiver.isRewindingEnabled();
+  }
+
+  /**
+   * Enables action rewinding for the current command if {@code --experimental_rewind_lost_inputs}
+   * is set. Rewinding can't bring the graph edges of rewound nodes or the action cache entries of
+   * their actions back in sync, so it also requires {@code --notrack_incremental_state} and {@code
+   * --nouse_action_cache}.
+   */
+  private void setActionRewindingEnabled(
+      ExtendedEventHandler eventHandler, @Nullable BuildRequestOptions buildRequestOptions) {
+    boolean rewindLostInputs = buildRequestOptions != null && buildRequestOptions.rewindLostInputs;
+    boolean permitted =
+        rewindLostInputs && !tracksStateForIncrementality() && !buildRequestOptions.useActionCache;
+    if (rewindLostInputs && !permitted) {
+      eventHandler.handle(
+          Event.warn(
+              "--experimental_rewind_lost_inputs has no effect without "
+                  + "--notrack_incremental_state and --nouse_action_cache"));
+    }
+    graphInconsistencyReceiver.setRewindingEnabled(permitted);
+  }
+
   class SkyframePackageLoader {
     /**
      * Looks up a particular package (mostly used after the loading phase, so packages should
@@ -2668,6 +2725,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     } catch (UserExecException e) {
       throw new AbruptExitException(e.getMessage(), ExitCode.COMMAND_LINE_ERROR, e);
     }
+    setActionRewindingEnabled(eventHandler, options.getOptions(BuildRequestOptions.class));
     syncPackageLoading(
         packageCacheOptions,
         pathPackageLocator,
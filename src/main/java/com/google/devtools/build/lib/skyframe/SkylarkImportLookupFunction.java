@@ -20,10 +20,16 @@ import com.google.common.base.Predicates;
 import com.google.common.base.Throwables;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.devtools.build.lib.actions.InconsistentFilesystemException;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.LabelConstants;
@@ -31,6 +37,7 @@ import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.cmdline.RepositoryName;
 import com.google.devtools.build.lib.concurrent.BlazeInterners;
+import com.google.devtools.build.lib.concurrent.NamedForkJoinPool;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.ExtendedEventHandler.Postable;
@@ -40,6 +47,7 @@ import com.google.devtools.build.lib.packages.BuildFileNotFoundException;
 import com.google.devtools.build.lib.packages.PackageFactory;
 import com.google.devtools.build.lib.packages.RuleClassProvider;
 import com.google.devtools.build.lib.packages.SkylarkExportable;
+import com.google.devtools.build.lib.packages.SkylarkInfo;
 import com.google.devtools.build.lib.packages.WorkspaceFileValue;
 import com.google.devtools.build.lib.skyframe.SkylarkImportLookupValue.SkylarkImportLookupKey;
 import com.google.devtools.build.lib.syntax.EvalException;
@@ -60,12 +68,24 @@ import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.ValueOrException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * A Skyframe function to look up and import a single Skylark extension.
@@ -85,6 +105,8 @@ public class SkylarkImportLookupFunction implements SkyFunction {
   private CachedSkylarkImportLookupValueAndDepsBuilderFactory
       cachedSkylarkImportLookupValueAndDepsBuilderFactory =
           new CachedSkylarkImportLookupValueAndDepsBuilderFactory();
+  // Loads independent imports concurrently while inlining, if not null.
+  @Nullable private ForkJoinPool inliningPool;
 
   private static final Logger logger =
       Logger.getLogger(SkylarkImportLookupFunction.class.getName());
@@ -117,7 +139,8 @@ public class SkylarkImportLookupFunction implements SkyFunction {
           env,
           /*visitedNested=*/ null,
           /*inlineCachedValueBuilder=*/ null,
-          /*visitedDepsInToplevelLoad=*/ null);
+          /*visitedDepsInToplevelLoad=*/ null,
+          /*parallelInlining=*/ null);
     } catch (InconsistentFilesystemException e) {
       throw new SkylarkImportLookupFunctionException(e, Transience.PERSISTENT);
     } catch (SkylarkImportFailedException e) {
@@ -125,6 +148,24 @@ public class SkylarkImportLookupFunction implements SkyFunction {
     }
   }
 
+  /**
+   * Sets the number of threads used to load independent imports concurrently while inlining. With
+   * at most one thread, the imports of a file are loaded one after the other.
+   */
+  public void setInliningThreads(int inliningThreads) {
+    if (inliningThreads <= 1) {
+      if (inliningPool != null) {
+        inliningPool.shutdown();
+        inliningPool = null;
+      }
+    } else if (inliningPool == null || inliningPool.getParallelism() != inliningThreads) {
+      if (inliningPool != null) {
+        inliningPool.shutdown();
+      }
+      inliningPool = NamedForkJoinPool.newNamedPool("skylark-inlining", inliningThreads);
+    }
+  }
+
   @Nullable
   SkylarkImportLookupValue computeWithInlineCalls(
       SkyKey skyKey,
@@ -135,24 +176,103 @@ public class SkylarkImportLookupFunction implements SkyFunction {
     // skylark file and the visitedDepsInToplevelLoad set to avoid re-registering previously seen
     // dependencies. Note that the visitedNested set must use insertion order to display the correct
     // error.
-    CachedSkylarkImportLookupValueAndDeps cachedSkylarkImportLookupValueAndDeps =
-        computeWithInlineCallsInternal(
-            skyKey,
-            env,
-            /*visitedNested=*/ new LinkedHashSet<>(),
-            /*visitedDepsInToplevelLoad=*/ visitedDepsInToplevelLoad);
+    ParallelInlining parallelInlining = newParallelInlining();
+    Map<SkylarkImportLookupKey, CachedSkylarkImportLookupValueAndDeps> visitedDeps =
+        parallelInlining == null
+            ? visitedDepsInToplevelLoad
+            : new ConcurrentHashMap<>(visitedDepsInToplevelLoad);
+    CachedSkylarkImportLookupValueAndDeps cachedSkylarkImportLookupValueAndDeps;
+    try {
+      cachedSkylarkImportLookupValueAndDeps =
+          computeWithInlineCallsInternal(
+              skyKey,
+              parallelInlining == null ? env : parallelInlining.synchronize(env),
+              /*visitedNested=*/ new LinkedHashSet<>(),
+              /*visitedDepsInToplevelLoad=*/ visitedDeps,
+              parallelInlining);
+    } finally {
+      if (visitedDeps != visitedDepsInToplevelLoad) {
+        visitedDepsInToplevelLoad.putAll(visitedDeps);
+      }
+    }
     if (cachedSkylarkImportLookupValueAndDeps == null) {
       return null;
     }
     return cachedSkylarkImportLookupValueAndDeps.getValue();
   }
 
+  /**
+   * Computes the SkylarkImportLookupValues for the imports of a BUILD or WORKSPACE file by inlining
+   * calls to this function, returning {@code null} if skyframe deps were missing and have been
+   * requested.
+   */
+  @Nullable
+  Map<SkyKey, SkyValue> computeWithInlineCalls(
+      List<? extends SkyKey> importLookupKeys, Environment env)
+      throws InconsistentFilesystemException, SkylarkImportFailedException, InterruptedException {
+    ParallelInlining parallelInlining = newParallelInlining();
+    return computeSkylarkImportMapWithInlining(
+        parallelInlining == null ? env : parallelInlining.synchronize(env),
+        importLookupKeys,
+        /*fileLabel=*/ null,
+        /*visitedNested=*/ ImmutableSet.of(),
+        /*inlineCachedValueBuilder=*/ null,
+        parallelInlining == null ? new HashMap<>() : new ConcurrentHashMap<>(),
+        parallelInlining);
+  }
+
+  @Nullable
+  private ParallelInlining newParallelInlining() {
+    ForkJoinPool pool = inliningPool;
+    return pool == null ? null : new ParallelInlining(pool);
+  }
+
   @Nullable
   private CachedSkylarkImportLookupValueAndDeps computeWithInlineCallsInternal(
       SkyKey skyKey,
       Environment env,
       Set<Label> visitedNested,
-      Map<SkylarkImportLookupKey, CachedSkylarkImportLookupValueAndDeps> visitedDepsInToplevelLoad)
+      Map<SkylarkImportLookupKey, CachedSkylarkImportLookupValueAndDeps> visitedDepsInToplevelLoad,
+      @Nullable ParallelInlining parallelInlining)
+      throws InconsistentFilesystemException, SkylarkImportFailedException, InterruptedException {
+    if (parallelInlining == null) {
+      return computeInlined(
+          skyKey, env, visitedNested, visitedDepsInToplevelLoad, /*parallelInlining=*/ null);
+    }
+    SkylarkImportLookupKey key = (SkylarkImportLookupKey) skyKey.argument();
+    CachedSkylarkImportLookupValueAndDeps visited = visitedDepsInToplevelLoad.get(key);
+    if (visited != null) {
+      return visited;
+    }
+    if (visitedNested.contains(key.importLabel)) {
+      throw importCycle(key.importLabel, visitedNested);
+    }
+    // Only one thread loads each file; the others wait for its result.
+    SettableFuture<CachedSkylarkImportLookupValueAndDeps> future = SettableFuture.create();
+    ListenableFuture<CachedSkylarkImportLookupValueAndDeps> loading =
+        parallelInlining.claim(
+            key, Iterables.getLast(visitedNested, /*defaultValue=*/ null), future);
+    if (loading != null) {
+      return ParallelInlining.get(loading);
+    }
+    try {
+      CachedSkylarkImportLookupValueAndDeps result =
+          computeInlined(skyKey, env, visitedNested, visitedDepsInToplevelLoad, parallelInlining);
+      future.set(result);
+      return result;
+    } catch (Throwable e) {
+      future.setException(e);
+      throw e;
+    }
+  }
+
+  @Nullable
+  private CachedSkylarkImportLookupValueAndDeps computeInlined(
+      SkyKey skyKey,
+      Environment env,
+      Set<Label> visitedNested,
+      Map<SkylarkImportLookupKey, CachedSkylarkImportLookupValueAndDeps> visitedDepsInToplevelLoad,
+      @Nullable ParallelInlining parallelInlining)
       throws InconsistentFilesystemException, SkylarkImportFailedException, InterruptedException {
     SkylarkImportLookupKey key = (SkylarkImportLookupKey) skyKey.argument();
     Label importLabel = key.importLabel;
@@ -178,9 +298,7 @@ public class SkylarkImportLookupFunction implements SkyFunction {
     }
 
     if (!visitedNested.add(importLabel)) {
-      ImmutableList<Label> cycle =
-          CycleUtils.splitIntoPathAndChain(Predicates.equalTo(importLabel), visitedNested).second;
-      throw new SkylarkImportFailedException("Starlark import cycle: " + cycle);
+      throw importCycle(importLabel, visitedNested);
     }
 
     CachedSkylarkImportLookupValueAndDeps.Builder inlineCachedValueBuilder =
@@ -205,7 +323,8 @@ public class SkylarkImportLookupFunction implements SkyFunction {
             recordingEnv,
             Preconditions.checkNotNull(visitedNested, importLabel),
             inlineCachedValueBuilder,
-            visitedDepsInToplevelLoad);
+            visitedDepsInToplevelLoad,
+            parallelInlining);
     // All imports traversed, this key can no longer be part of a cycle.
     Preconditions.checkState(visitedNested.remove(importLabel), importLabel);
 
@@ -219,6 +338,13 @@ public class SkylarkImportLookupFunction implements SkyFunction {
     return cachedSkylarkImportLookupValueAndDeps;
   }
 
+  private static SkylarkImportFailedException importCycle(
+      Label importLabel, Set<Label> visitedNested) {
+    ImmutableList<Label> cycle =
+        CycleUtils.splitIntoPathAndChain(Predicates.equalTo(importLabel), visitedNested).second;
+    return new SkylarkImportFailedException("Starlark import cycle: " + cycle);
+  }
+
   public void resetCache() {
     if (skylarkImportLookupValueCache != null) {
       logger.info(
@@ -288,7 +414,8 @@ public class SkylarkImportLookupFunction implements SkyFunction {
       @Nullable CachedSkylarkImportLookupValueAndDeps.Builder inlineCachedValueBuilder,
       @Nullable
           Map<SkylarkImportLookupKey, CachedSkylarkImportLookupValueAndDeps>
-              visitedDepsInToplevelLoad)
+              visitedDepsInToplevelLoad,
+      @Nullable ParallelInlining parallelInlining)
       throws InconsistentFilesystemException, SkylarkImportFailedException, InterruptedException {
     PathFragment filePath = fileLabel.toPathFragment();
 
@@ -350,12 +477,15 @@ public class SkylarkImportLookupFunction implements SkyFunction {
         (visitedNested == null)
             ? computeSkylarkImportMapNoInlining(env, importLookupKeys, file.getLocation())
             : computeSkylarkImportMapWithInlining(
-                env,
+                stripRecording(env, fileLabel),
                 importLookupKeys,
                 fileLabel,
                 visitedNested,
-                inlineCachedValueBuilder,
-                visitedDepsInToplevelLoad);
+                Preconditions.checkNotNull(
+                    inlineCachedValueBuilder,
+                    "Expected inline cached value builder to be not-null when inlining."),
+                visitedDepsInToplevelLoad,
+                parallelInlining);
     // skylarkImportMap is null when skyframe deps are unavailable.
     if (skylarkImportMap == null) {
       return null;
@@ -512,56 +642,107 @@ public class SkylarkImportLookupFunction implements SkyFunction {
     return env.valuesMissing() ? null : skylarkImportMap;
   }
 
+  private static Environment stripRecording(Environment env, Label fileLabel) {
+    Preconditions.checkState(
+        env instanceof RecordingSkyFunctionEnvironment,
+        "Expected to be recording dep requests when inlining SkylarkImportLookupFunction: %s",
+        fileLabel);
+    return ((RecordingSkyFunctionEnvironment) env).getDelegate();
+  }
+
   /**
    * Compute the SkylarkImportLookupValue for all given SkyKeys by reusing this instance of the
    * SkylarkImportLookupFunction, bypassing traditional skyframe evaluation, returning {@code null}
    * if skyframe deps were missing and have been requested.
+   *
+   * <p>If {@code parallelInlining} is not null, all imports but the first are submitted to its
+   * pool, and a submitted import that no pool thread has started yet is loaded by the calling
+   * thread when it needs the result.
    */
   @Nullable
   private Map<SkyKey, SkyValue> computeSkylarkImportMapWithInlining(
-      Environment env,
-      List<SkyKey> importLookupKeys,
-      Label fileLabel,
+      Environment strippedEnv,
+      List<? extends SkyKey> importLookupKeys,
+      @Nullable Label fileLabel,
       Set<Label> visitedNested,
-      CachedSkylarkImportLookupValueAndDeps.Builder inlineCachedValueBuilder,
-      Map<SkylarkImportLookupKey, CachedSkylarkImportLookupValueAndDeps> visitedDepsInToplevelLoad)
+      @Nullable CachedSkylarkImportLookupValueAndDeps.Builder inlineCachedValueBuilder,
+      Map<SkylarkImportLookupKey, CachedSkylarkImportLookupValueAndDeps> visitedDepsInToplevelLoad,
+      @Nullable ParallelInlining parallelInlining)
       throws InterruptedException, SkylarkImportFailedException, InconsistentFilesystemException {
-    Preconditions.checkNotNull(
-        inlineCachedValueBuilder,
-        "Expected inline cached value builder to be not-null when inlining.");
-    Preconditions.checkState(
-        env instanceof RecordingSkyFunctionEnvironment,
-        "Expected to be recording dep requests when inlining SkylarkImportLookupFunction: %s",
-        fileLabel);
-    Environment strippedEnv = ((RecordingSkyFunctionEnvironment) env).getDelegate();
     Map<SkyKey, SkyValue> skylarkImportMap =
         Maps.newHashMapWithExpectedSize(importLookupKeys.size());
     Exception deferredException = null;
     boolean valuesMissing = false;
-    // NOTE: Iterating over imports in the order listed in the file.
-    for (SkyKey importLookupKey : importLookupKeys) {
-      CachedSkylarkImportLookupValueAndDeps cachedValue;
-      try {
-        cachedValue =
-            computeWithInlineCallsInternal(
-                importLookupKey, strippedEnv, visitedNested, visitedDepsInToplevelLoad);
-      } catch (SkylarkImportFailedException | InconsistentFilesystemException e) {
-        // For determinism's sake while inlining, preserve the first exception and continue to run
-        // subsequently listed imports to completion/exception, loading all transitive deps anyway.
-        deferredException = MoreObjects.firstNonNull(deferredException, e);
-        continue;
+    List<FutureTask<CachedSkylarkImportLookupValueAndDeps>> tasks = ImmutableList.of();
+    if (parallelInlining != null && fileLabel != null) {
+      parallelInlining.startLoadingImports(fileLabel, importLookupKeys);
+    }
+    if (parallelInlining != null && importLookupKeys.size() > 1) {
+      tasks = Lists.newArrayListWithExpectedSize(importLookupKeys.size() - 1);
+      for (SkyKey importLookupKey : importLookupKeys.subList(1, importLookupKeys.size())) {
+        // Each import gets its own copy of the load path, for cycle detection.
+        Set<Label> taskVisitedNested = new LinkedHashSet<>(visitedNested);
+        FutureTask<CachedSkylarkImportLookupValueAndDeps> task =
+            new FutureTask<>(
+                () ->
+                    computeWithInlineCallsInternal(
+                        importLookupKey,
+                        strippedEnv,
+                        taskVisitedNested,
+                        visitedDepsInToplevelLoad,
+                        parallelInlining));
+        parallelInlining.pool.execute(task);
+        tasks.add(task);
       }
-      if (cachedValue == null) {
-        Preconditions.checkState(
-            env.valuesMissing(), "no starlark import value for %s", importLookupKey);
-        // We continue making inline calls even if some requested values are missing, to maximize
-        // the number of dependent (non-inlined) SkyFunctions that are requested, thus avoiding a
-        // quadratic number of restarts.
-        valuesMissing = true;
-      } else {
-        SkyValue skyValue = cachedValue.getValue();
-        skylarkImportMap.put(importLookupKey, skyValue);
-        inlineCachedValueBuilder.addTransitiveDeps(cachedValue);
+    }
+    try {
+      // NOTE: Iterating over imports in the order listed in the file.
+      for (int i = 0; i < importLookupKeys.size(); i++) {
+        SkyKey importLookupKey = importLookupKeys.get(i);
+        CachedSkylarkImportLookupValueAndDeps cachedValue;
+        try {
+          if (i == 0 || tasks.isEmpty()) {
+            cachedValue =
+                computeWithInlineCallsInternal(
+                    importLookupKey,
+                    strippedEnv,
+                    // Each import of a BUILD file starts a new load path.
+                    fileLabel == null ? new LinkedHashSet<>() : visitedNested,
+                    visitedDepsInToplevelLoad,
+                    parallelInlining);
+          } else {
+            FutureTask<CachedSkylarkImportLookupValueAndDeps> task = tasks.get(i - 1);
+            task.run(); // does nothing if a pool thread has started the task already
+            cachedValue = ParallelInlining.get(task);
+          }
+        } catch (SkylarkImportFailedException | InconsistentFilesystemException e) {
+          // For determinism's sake while inlining, preserve the first exception and continue to
+          // run subsequently listed imports to completion/exception, loading all transitive deps
+          // anyway.
+          deferredException = MoreObjects.firstNonNull(deferredException, e);
+          continue;
+        }
+        if (cachedValue == null) {
+          Preconditions.checkState(
+              strippedEnv.valuesMissing(), "no starlark import value for %s", importLookupKey);
+          // We continue making inline calls even if some requested values are missing, to
+          // maximize the number of dependent (non-inlined) SkyFunctions that are requested, thus
+          // avoiding a quadratic number of restarts.
+          valuesMissing = true;
+        } else {
+          SkyValue skyValue = cachedValue.getValue();
+          skylarkImportMap.put(importLookupKey, skyValue);
+          if (inlineCachedValueBuilder != null) {
+            inlineCachedValueBuilder.addTransitiveDeps(cachedValue);
+          }
+        }
+      }
+    } finally {
+      for (FutureTask<CachedSkylarkImportLookupValueAndDeps> task : tasks) {
+        task.cancel(/*mayInterruptIfRunning=*/ true); // after an interrupt
+      }
+      if (parallelInlining != null && fileLabel != null) {
+        parallelInlining.doneLoadingImports(fileLabel);
       }
     }
     if (deferredException != null) {
@@ -573,6 +754,119 @@ public class SkylarkImportLookupFunction implements SkyFunction {
     return valuesMissing ? null : skylarkImportMap;
   }
 
+  /**
+   * The state shared by the threads that load the imports of one BUILD, WORKSPACE or .bzl file
+   * concurrently while inlining.
+   *
+   * <p>Each .bzl file is loaded by a single thread, so that all loads of it see the same value;
+   * other threads that need it wait for that thread. A thread never waits for a file that, through
+   * the files whose imports are being loaded, imports the file the thread loads imports for, since
+   * that would deadlock: such an import cycle is reported instead.
+   */
+  private static final class ParallelInlining {
+    private final ForkJoinPool pool;
+    // Calls to the environment of the top-level SkyFunction are serialized, since it is not
+    // thread-safe.
+    private final ReentrantLock envLock = new ReentrantLock();
+
+    @GuardedBy("this")
+    private final Map<SkyKey, ListenableFuture<CachedSkylarkImportLookupValueAndDeps>> loading =
+        new HashMap<>();
+
+    // The imports of each file whose imports are being loaded.
+    @GuardedBy("this")
+    private final SetMultimap<Label, Label> loadingImports = HashMultimap.create();
+
+    ParallelInlining(ForkJoinPool pool) {
+      this.pool = pool;
+    }
+
+    Environment synchronize(Environment env) {
+      return new StateInformingSkyFunctionEnvironment(
+          env, envLock::lockInterruptibly, envLock::unlock);
+    }
+
+    synchronized void startLoadingImports(Label fileLabel, List<? extends SkyKey> importKeys) {
+      for (SkyKey importKey : importKeys) {
+        loadingImports.put(fileLabel, ((SkylarkImportLookupKey) importKey.argument()).importLabel);
+      }
+    }
+
+    synchronized void doneLoadingImports(Label fileLabel) {
+      loadingImports.removeAll(fileLabel);
+    }
+
+    /**
+     * Registers {@code future} as the result of loading {@code key} and returns null if no thread
+     * is loading the key yet, and otherwise returns the result of the thread loading it.
+     *
+     * @throws SkylarkImportFailedException if the file being loaded imports {@code importer}
+     */
+    @Nullable
+    synchronized ListenableFuture<CachedSkylarkImportLookupValueAndDeps> claim(
+        SkylarkImportLookupKey key,
+        @Nullable Label importer,
+        ListenableFuture<CachedSkylarkImportLookupValueAndDeps> future)
+        throws SkylarkImportFailedException {
+      ListenableFuture<CachedSkylarkImportLookupValueAndDeps> existing =
+          loading.putIfAbsent(key, future);
+      if (existing != null && !existing.isDone() && importer != null) {
+        List<Label> cycle = findPath(key.importLabel, importer);
+        if (cycle != null) {
+          throw new SkylarkImportFailedException("Starlark import cycle: " + cycle);
+        }
+      }
+      return existing;
+    }
+
+    /** Returns a chain of imports from {@code from} to {@code to}, or null if there is none. */
+    @GuardedBy("this")
+    @Nullable
+    private List<Label> findPath(Label from, Label to) {
+      Map<Label, Label> predecessors = new HashMap<>();
+      Deque<Label> queue = new ArrayDeque<>();
+      predecessors.put(from, from);
+      queue.add(from);
+      while (!queue.isEmpty()) {
+        Label label = queue.remove();
+        if (label.equals(to)) {
+          List<Label> path = new ArrayList<>();
+          for (Label l = to; !l.equals(from); l = predecessors.get(l)) {
+            path.add(l);
+          }
+          path.add(from);
+          return Lists.reverse(path);
+        }
+        for (Label next : loadingImports.get(label)) {
+          if (predecessors.putIfAbsent(next, label) == null) {
+            queue.add(next);
+          }
+        }
+      }
+      return null;
+    }
+
+    /** Waits for the result of loading a file, and rethrows its exception. */
+    @Nullable
+    static CachedSkylarkImportLookupValueAndDeps get(
+        Future<CachedSkylarkImportLookupValueAndDeps> future)
+        throws InconsistentFilesystemException, SkylarkImportFailedException,
+            InterruptedException {
+      try {
+        return future.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        Throwables.throwIfInstanceOf(cause, InconsistentFilesystemException.class);
+        Throwables.throwIfInstanceOf(cause, SkylarkImportFailedException.class);
+        Throwables.throwIfInstanceOf(cause, InterruptedException.class);
+        Throwables.throwIfUnchecked(cause);
+        throw new IllegalStateException(cause);
+      } catch (CancellationException e) {
+        throw new InterruptedException();
+      }
+    }
+  }
+
   /** Creates the Extension to be imported. */
   private Extension createExtension(
       StarlarkFile file,
@@ -607,7 +901,18 @@ public class SkylarkImportLookupFunction implements SkyFunction {
       if (eventHandler.hasErrors()) {
         throw SkylarkImportFailedException.errors(extensionFile);
       }
-      return new Extension(thread);
+      Extension extension = new Extension(thread);
+      // The globals are retained for as long as the extension is: replace their lists and dicts
+      // with compact frozen copies before other threads can see them.
+      mutability.freeze();
+      for (Object value : extension.getBindings().values()) {
+        if (value instanceof SkylarkInfo) {
+          ((SkylarkInfo) value).compactFieldValues(mutability);
+        } else {
+          mutability.compact(value);
+        }
+      }
+      return extension;
     }
   }
 
@@ -0,0 +1,235 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static java.util.Comparator.comparingLong;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Ordering;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.skyframe.serialization.AutoRegistry;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodecRegistry;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodecs;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationException;
+import com.google.devtools.build.lib.syntax.StarlarkFile;
+import com.google.devtools.build.lib.syntax.StarlarkSemantics;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * A persistent cache of parsed and validated Starlark files, stored in a directory of the output
+ * base, so that .bzl files need not be lexed, parsed and validated again after a server restart.
+ *
+ * <p>An entry is keyed by the path and content digest of the file, by the {@link
+ * StarlarkSemantics} and predeclared names it was validated with, and by the Bazel installation
+ * that wrote it. Entries are serialized with the codecs of the {@link AutoRegistry}. An entry that
+ * cannot be read is treated as missing, and overwritten.
+ *
+ * <p>Only files without errors are cached, so that a cache hit needs no events to be replayed.
+ *
+ * <p>Each Bazel installation has its own subdirectory, and the subdirectories of other
+ * installations are deleted when the cache is first enabled, because their entries can never be
+ * hit again. Within the subdirectory, the least recently used entries are deleted once the entries
+ * take up more than a maximum size. The size is tracked as entries are written; the directory is
+ * only listed when the cache is first enabled and when the maximum size is exceeded.
+ */
+@ThreadSafe
+public class StarlarkCompilationCache {
+
+  private static final Logger logger = Logger.getLogger(StarlarkCompilationCache.class.getName());
+
+  private static final long DEFAULT_MAX_SIZE_BYTES = 256L << 20;
+
+  private final Path root;
+  private final Path directory;
+  private final String installation;
+  private final Supplier<ObjectCodecRegistry> registry;
+  private final long maxSizeBytes;
+
+  private volatile boolean enabled;
+
+  /** Total size of the entries, or -1 until the directory was first listed. */
+  private final AtomicLong sizeBytes = new AtomicLong(-1);
+
+  public StarlarkCompilationCache(Path root, String installation) {
+    this(root, installation, AutoRegistry::get, DEFAULT_MAX_SIZE_BYTES);
+  }
+
+  @VisibleForTesting
+  StarlarkCompilationCache(
+      Path root, String installation, Supplier<ObjectCodecRegistry> registry, long maxSizeBytes) {
+    this.root = root;
+    this.directory = root.getChild(installation);
+    this.installation = installation;
+    this.registry = registry;
+    this.maxSizeBytes = maxSizeBytes;
+  }
+
+  /** Enables or disables the cache; a disabled cache neither reads nor writes entries. */
+  public void setEnabled(boolean enabled) {
+    if (enabled && sizeBytes.get() < 0) {
+      initialize();
+    }
+    this.enabled = enabled;
+  }
+
+  /** Deletes the entries of other installations and sums up the size of this one's entries. */
+  private synchronized void initialize() {
+    if (sizeBytes.get() >= 0) {
+      return;
+    }
+    try {
+      if (root.isDirectory()) {
+        for (Path child : root.getDirectoryEntries()) {
+          if (!child.getBaseName().equals(installation)) {
+            child.deleteTree();
+          }
+        }
+      }
+      long size = 0;
+      if (directory.isDirectory()) {
+        for (Path entry : directory.getDirectoryEntries()) {
+          size += entry.getFileSize();
+        }
+      }
+      sizeBytes.set(size);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to clean up Starlark compilation cache " + root, e);
+      sizeBytes.set(0);
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Returns the key of the entry for a file. */
+  String key(
+      PathFragment path,
+      byte[] digest,
+      StarlarkSemantics semantics,
+      Set<String> predeclaredNames) {
+    Fingerprint fp = new Fingerprint();
+    fp.addString(installation);
+    fp.addPath(path);
+    fp.addBytes(digest);
+    fp.addString(semantics.toString());
+    fp.addStrings(Ordering.natural().sortedCopy(predeclaredNames));
+    return fp.hexDigestAndReset();
+  }
+
+  /** Returns the cached file for the key, or null if there is no readable entry. */
+  @Nullable
+  StarlarkFile get(String key) {
+    Path entry = directory.getChild(key);
+    try {
+      if (!entry.exists()) {
+        return null;
+      }
+      byte[] bytes = FileSystemUtils.readContent(entry);
+      StarlarkFile file =
+          (StarlarkFile)
+              new ObjectCodecs(registry.get()).deserializeMemoized(ByteString.copyFrom(bytes));
+      // Marks the entry as recently used (-1 is the current time), so that it is evicted last.
+      entry.setLastModifiedTime(-1L);
+      return file;
+    } catch (IOException | SerializationException | RuntimeException e) {
+      // The entry may have been written by another version of the syntax tree classes.
+      logger.log(Level.INFO, "Ignoring unreadable Starlark compilation cache entry " + entry, e);
+      return null;
+    }
+  }
+
+  /** Stores the file under the key. Failures are logged, and otherwise ignored. */
+  void put(String key, StarlarkFile file) {
+    if (!file.ok()) {
+      return;
+    }
+    Path entry = directory.getChild(key);
+    // Write to a temporary file first, so that concurrent readers never see partial entries.
+    Path tmp = directory.getChild(key + ".tmp." + Thread.currentThread().getId());
+    try {
+      ByteString bytes = new ObjectCodecs(registry.get()).serializeMemoized(file);
+      directory.createDirectoryAndParents();
+      FileSystemUtils.writeContent(tmp, bytes.toByteArray());
+      tmp.renameTo(entry);
+      if (sizeBytes.get() >= 0 && sizeBytes.addAndGet(bytes.size()) > maxSizeBytes) {
+        evict();
+      }
+    } catch (IOException | SerializationException e) {
+      logger.log(Level.WARNING, "Failed to write Starlark compilation cache entry " + entry, e);
+    }
+  }
+
+  /**
+   * Deletes the least recently used entries until the remaining ones take up at most 90% of the
+   * maximum size, so that the directory isn't listed again by the next few writes.
+   */
+  private synchronized void evict() {
+    if (sizeBytes.get() <= maxSizeBytes) {
+      // Another thread evicted in the meantime.
+      return;
+    }
+    try {
+      List<Path> entries = new ArrayList<>();
+      Map<Path, FileStatus> stats = new HashMap<>();
+      long size = 0;
+      for (Path entry : directory.getDirectoryEntries()) {
+        FileStatus stat = entry.statIfFound();
+        if (stat != null) {
+          entries.add(entry);
+          stats.put(entry, stat);
+          size += stat.getSize();
+        }
+      }
+      entries.sort(comparingLong(entry -> getLastModifiedTime(stats.get(entry))));
+      long targetSize = maxSizeBytes / 10 * 9;
+      for (Path entry : entries) {
+        if (size <= targetSize) {
+          break;
+        }
+        long entrySize = stats.get(entry).getSize();
+        if (entry.delete()) {
+          size -= entrySize;
+        }
+      }
+      sizeBytes.set(size);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to evict Starlark compilation cache entries", e);
+    }
+  }
+
+  private static long getLastModifiedTime(FileStatus stat) {
+    try {
+      return stat.getLastModifiedTime();
+    } catch (IOException e) {
+      return Long.MIN_VALUE;
+    }
+  }
+}
@@ -241,6 +241,16 @@ class StateInformingSkyFunctionEnvironment implements SkyFunction.Environment {
     }
   }
 
+  @Override
+  public void registerDependencies(Iterable<SkyKey> keys) throws InterruptedException {
+    preFetch.inform();
+    try {
+      delegate.registerDependencies(keys);
+    } finally {
+      postFetch.inform();
+    }
+  }
+
   @Override
   public boolean valuesMissing() {
     return delegate.valuesMissing();
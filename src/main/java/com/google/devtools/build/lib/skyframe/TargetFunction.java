@@ -0,0 +1,81 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.packages.NoSuchPackageException;
+import com.google.devtools.build.lib.packages.NoSuchTargetException;
+import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunctionException;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import javax.annotation.Nullable;
+
+/**
+ * SkyFunction for {@link TargetValue}s. Looks up a target in its loaded package, so that the
+ * configured target of the target depends on the target rather than on its whole package.
+ */
+public class TargetFunction implements SkyFunction {
+  private volatile boolean changePruning;
+
+  /**
+   * Enables or disables change pruning: when enabled, a target that is unchanged in a re-evaluated
+   * package, as determined by {@link
+   * com.google.devtools.build.lib.packages.Package#targetEqualsIgnoringLocations}, keeps its
+   * previous value, so that Skyframe need not re-evaluate its dependents.
+   */
+  public void setChangePruning(boolean changePruning) {
+    this.changePruning = changePruning;
+  }
+
+  @Nullable
+  @Override
+  public SkyValue compute(SkyKey skyKey, Environment env)
+      throws TargetFunctionException, InterruptedException {
+    Label label = (Label) skyKey.argument();
+    PackageValue packageValue;
+    try {
+      packageValue =
+          (PackageValue)
+              env.getValueOrThrow(
+                  PackageValue.key(label.getPackageIdentifier()), NoSuchPackageException.class);
+    } catch (NoSuchPackageException e) {
+      throw new TargetFunctionException(e);
+    }
+    if (packageValue == null) {
+      return null;
+    }
+    try {
+      return new TargetValue(packageValue.getPackage().getTarget(label.getName()), changePruning);
+    } catch (NoSuchTargetException e) {
+      throw new TargetFunctionException(e);
+    }
+  }
+
+  @Nullable
+  @Override
+  public String extractTag(SkyKey skyKey) {
+    return Label.print((Label) skyKey.argument());
+  }
+
+  private static class TargetFunctionException extends SkyFunctionException {
+    TargetFunctionException(NoSuchPackageException e) {
+      super(e, Transience.PERSISTENT);
+    }
+
+    TargetFunctionException(NoSuchTargetException e) {
+      super(e, Transience.PERSISTENT);
+    }
+  }
+}
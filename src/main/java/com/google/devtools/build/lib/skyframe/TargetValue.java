@@ -0,0 +1,98 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.collect.Interner;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.concurrent.BlazeInterners;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.skyframe.serialization.autocodec.AutoCodec;
+import com.google.devtools.build.skyframe.AbstractSkyKey;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyValue;
+
+/**
+ * A Skyframe value representing a single target of a loaded package.
+ *
+ * <p>Two values are equal if they hold the same {@link Target} instance. If package change pruning
+ * is enabled, targets that are equal as determined by {@link Package#targetEqualsIgnoringLocations}
+ * are also equal. Skyframe then keeps the previous value, and with it the previous target, so that
+ * the dependents of a target are not re-evaluated when only other targets of its package change.
+ */
+@Immutable
+@ThreadSafe
+public class TargetValue implements SkyValue {
+  private final Target target;
+  private final boolean changePruning;
+
+  TargetValue(Target target, boolean changePruning) {
+    this.target = target;
+    this.changePruning = changePruning;
+  }
+
+  public Target getTarget() {
+    return target;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof TargetValue)) {
+      return false;
+    }
+    TargetValue other = (TargetValue) obj;
+    return target == other.target
+        || (changePruning
+            && other.changePruning
+            && Package.targetEqualsIgnoringLocations(target, other.target));
+  }
+
+  @Override
+  public int hashCode() {
+    return target.getLabel().hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "<TargetValue label=" + target.getLabel() + ">";
+  }
+
+  public static Key key(Label label) {
+    return Key.create(label);
+  }
+
+  /** Skyframe key for targets. */
+  @AutoCodec.VisibleForSerialization
+  @AutoCodec
+  public static class Key extends AbstractSkyKey<Label> {
+    private static final Interner<Key> interner = BlazeInterners.newWeakInterner();
+
+    private Key(Label arg) {
+      super(arg);
+    }
+
+    @AutoCodec.VisibleForSerialization
+    @AutoCodec.Instantiator
+    static Key create(Label arg) {
+      return interner.intern(new Key(arg));
+    }
+
+    @Override
+    public SkyFunctionName functionName() {
+      return SkyFunctions.TARGET;
+    }
+  }
+}
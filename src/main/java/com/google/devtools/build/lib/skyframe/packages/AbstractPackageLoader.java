@@ -22,6 +22,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
 import com.google.common.eventbus.EventBus;
 import com.google.devtools.build.lib.actions.FileStateValue;
 import com.google.devtools.build.lib.actions.FileValue;
@@ -80,12 +81,14 @@ import com.google.devtools.build.skyframe.Differencer;
 import com.google.devtools.build.skyframe.ErrorInfo;
 import com.google.devtools.build.skyframe.EvaluationContext;
 import com.google.devtools.build.skyframe.EvaluationProgressReceiver;
+import com.google.devtools.build.skyframe.EvaluationProgressReceiver.EvaluationSuccessState;
 import com.google.devtools.build.skyframe.EvaluationResult;
 import com.google.devtools.build.skyframe.GraphInconsistencyReceiver;
 import com.google.devtools.build.skyframe.ImmutableDiff;
 import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
 import com.google.devtools.build.skyframe.Injectable;
 import com.google.devtools.build.skyframe.MemoizingEvaluator;
+import com.google.devtools.build.skyframe.NodeEntry;
 import com.google.devtools.build.skyframe.SequentialBuildDriver;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionName;
@@ -98,9 +101,11 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
 
 /**
@@ -112,6 +117,24 @@ public abstract class AbstractPackageLoader implements PackageLoader {
   // See {@link PackageFactory.setMaxDirectoriesToEagerlyVisitInGlobbing}.
   private static final int MAX_DIRECTORIES_TO_EAGERLY_VISIT_IN_GLOBBING = 3000;
 
+  private static final int DEFAULT_STREAMING_BATCH_SIZE = 1000;
+
+  /**
+   * The functions whose values {@link #loadPackagesStreaming} keeps from one batch to the next,
+   * because the packages of later batches are likely to need them too. Everything else, notably
+   * the packages themselves and the files and globs they read, is dropped after each batch.
+   */
+  private static final ImmutableSet<SkyFunctionName> FUNCTIONS_RETAINED_ACROSS_BATCHES =
+      ImmutableSet.of(
+          SkyFunctions.PRECOMPUTED,
+          SkyFunctions.SKYLARK_IMPORTS_LOOKUP,
+          SkyFunctions.WORKSPACE_NAME,
+          SkyFunctions.WORKSPACE_AST,
+          WorkspaceFileValue.WORKSPACE_FILE,
+          SkyFunctions.EXTERNAL_PACKAGE,
+          SkyFunctions.REPOSITORY_MAPPING,
+          SkyFunctions.BLACKLISTED_PACKAGE_PREFIXES);
+
   private final ImmutableDiff preinjectedDiff;
   private final Differencer preinjectedDifferencer =
       new Differencer() {
@@ -131,6 +154,7 @@ public abstract class AbstractPackageLoader implements PackageLoader {
   protected final BlazeDirectories directories;
   private final int legacyGlobbingThreads;
   private final int skyframeThreads;
+  private final int streamingBatchSize;
 
   /** Abstract base class of a builder for {@link PackageLoader} instances. */
   public abstract static class Builder {
@@ -147,6 +171,7 @@ public abstract class AbstractPackageLoader implements PackageLoader {
     List<PrecomputedValue.Injected> extraPrecomputedValues = new ArrayList<>();
     int legacyGlobbingThreads = 1;
     int skyframeThreads = 1;
+    int streamingBatchSize = DEFAULT_STREAMING_BATCH_SIZE;
 
     protected Builder(
         Root workspaceDir,
@@ -216,6 +241,16 @@ public abstract class AbstractPackageLoader implements PackageLoader {
       return this;
     }
 
+    /**
+     * Sets the maximum number of packages that {@link PackageLoader#loadPackagesStreaming} loads at
+     * the same time, which bounds the memory it uses.
+     */
+    public Builder setStreamingBatchSize(int streamingBatchSize) {
+      Preconditions.checkArgument(streamingBatchSize > 0, streamingBatchSize);
+      this.streamingBatchSize = streamingBatchSize;
+      return this;
+    }
+
     public Builder setExternalFileAction(ExternalFileAction externalFileAction) {
       this.externalFileAction = externalFileAction;
       return this;
@@ -253,6 +288,7 @@ public abstract class AbstractPackageLoader implements PackageLoader {
     this.pkgLocatorRef = builder.pkgLocatorRef;
     this.legacyGlobbingThreads = builder.legacyGlobbingThreads;
     this.skyframeThreads = builder.skyframeThreads;
+    this.streamingBatchSize = builder.streamingBatchSize;
     this.directories = builder.directories;
 
     this.externalFilesHelper = builder.externalFilesHelper;
@@ -305,36 +341,120 @@ public abstract class AbstractPackageLoader implements PackageLoader {
   @Override
   public ImmutableMap<PackageIdentifier, PackageLoader.PackageOrException> loadPackages(
       Iterable<? extends PackageIdentifier> pkgIds) throws InterruptedException {
-    ArrayList<SkyKey> keys = new ArrayList<>();
-    for (PackageIdentifier pkgId : ImmutableSet.copyOf(pkgIds)) {
-      keys.add(PackageValue.key(pkgId));
-    }
-
-    EvaluationContext evaluationContext =
-        EvaluationContext.newBuilder()
-            .setKeepGoing(true)
-            .setNumThreads(skyframeThreads)
-            .setEventHander(reporter)
-            .build();
-    EvaluationResult<PackageValue> evalResult = makeFreshDriver().evaluate(keys, evaluationContext);
+    ArrayList<SkyKey> keys = packageKeys(ImmutableSet.copyOf(pkgIds));
+    EvaluationResult<PackageValue> evalResult =
+        new SequentialBuildDriver(
+                makeFreshEvaluator(new EvaluationProgressReceiver.NullEvaluationProgressReceiver()))
+            .evaluate(keys, makeEvaluationContext());
 
     ImmutableMap.Builder<PackageIdentifier, PackageLoader.PackageOrException> result =
         ImmutableMap.builder();
     for (SkyKey key : keys) {
-      ErrorInfo error = evalResult.getError(key);
-      PackageValue packageValue = evalResult.get(key);
-      checkState((error == null) != (packageValue == null));
-      PackageIdentifier pkgId = (PackageIdentifier) key.argument();
-      result.put(
-          pkgId,
-          error != null
-              ? new PackageOrException(null, exceptionFromErrorInfo(error, pkgId))
-              : new PackageOrException(packageValue.getPackage(), null));
+      result.put((PackageIdentifier) key.argument(), packageOrException(evalResult, key));
     }
 
     return result.build();
   }
 
+  @Override
+  public void loadPackagesStreaming(
+      Iterable<? extends PackageIdentifier> pkgIds, PackageCallback callback)
+      throws InterruptedException {
+    StreamingProgressReceiver progressReceiver = new StreamingProgressReceiver(callback);
+    MemoizingEvaluator evaluator = makeFreshEvaluator(progressReceiver);
+    progressReceiver.evaluator = evaluator;
+    BuildDriver driver = new SequentialBuildDriver(evaluator);
+    ImmutableSet<PackageIdentifier> uniquePkgIds = ImmutableSet.copyOf(pkgIds);
+    for (List<PackageIdentifier> batch : Iterables.partition(uniquePkgIds, streamingBatchSize)) {
+      ArrayList<SkyKey> keys = packageKeys(batch);
+      progressReceiver.pending.addAll(keys);
+      EvaluationResult<PackageValue> evalResult = driver.evaluate(keys, makeEvaluationContext());
+      // Packages whose errors are only known at the end of the evaluation, like cycles.
+      for (SkyKey key : keys) {
+        if (progressReceiver.pending.remove(key)) {
+          PackageIdentifier pkgId = (PackageIdentifier) key.argument();
+          callback.onPackage(pkgId, packageOrException(evalResult, key));
+        }
+      }
+      // The graph has no edges, so the values that are kept do not refer to the deleted ones. The
+      // deletion happens at the beginning of the next evaluation.
+      evaluator.delete(key -> !FUNCTIONS_RETAINED_ACROSS_BATCHES.contains(key.functionName()));
+    }
+  }
+
+  /**
+   * Passes each requested package to a {@link PackageCallback} as soon as its node is done, rather
+   * than when the whole batch is.
+   */
+  private static class StreamingProgressReceiver
+      extends EvaluationProgressReceiver.NullEvaluationProgressReceiver {
+    private final PackageCallback callback;
+    /** The keys of the current batch that have not been passed to {@link #callback} yet. */
+    private final Set<SkyKey> pending = Sets.newConcurrentHashSet();
+
+    private MemoizingEvaluator evaluator;
+
+    private StreamingProgressReceiver(PackageCallback callback) {
+      this.callback = callback;
+    }
+
+    @Override
+    public void evaluated(
+        SkyKey skyKey,
+        @Nullable SkyValue value,
+        Supplier<EvaluationSuccessState> evaluationSuccessState,
+        EvaluationState state) {
+      if (!pending.remove(skyKey)) {
+        return;
+      }
+      PackageIdentifier pkgId = (PackageIdentifier) skyKey.argument();
+      if (value == null) {
+        // The node is already done, but only its entry knows about its error.
+        ErrorInfo error;
+        try {
+          NodeEntry entry = evaluator.getExistingEntryAtLatestVersion(skyKey);
+          error = entry.getErrorInfo();
+          value = entry.getValue();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException("InMemoryGraph does not throw " + skyKey, e);
+        }
+        if (error != null) {
+          callback.onPackage(
+              pkgId, new PackageOrException(null, exceptionFromErrorInfo(error, pkgId)));
+          return;
+        }
+      }
+      callback.onPackage(pkgId, new PackageOrException(((PackageValue) value).getPackage(), null));
+    }
+  }
+
+  private static ArrayList<SkyKey> packageKeys(Iterable<PackageIdentifier> pkgIds) {
+    ArrayList<SkyKey> keys = new ArrayList<>();
+    for (PackageIdentifier pkgId : pkgIds) {
+      keys.add(PackageValue.key(pkgId));
+    }
+    return keys;
+  }
+
+  private EvaluationContext makeEvaluationContext() {
+    return EvaluationContext.newBuilder()
+        .setKeepGoing(true)
+        .setNumThreads(skyframeThreads)
+        .setEventHander(reporter)
+        .build();
+  }
+
+  private static PackageOrException packageOrException(
+      EvaluationResult<PackageValue> evalResult, SkyKey key) {
+    ErrorInfo error = evalResult.getError(key);
+    PackageValue packageValue = evalResult.get(key);
+    checkState((error == null) != (packageValue == null));
+    PackageIdentifier pkgId = (PackageIdentifier) key.argument();
+    return error != null
+        ? new PackageOrException(null, exceptionFromErrorInfo(error, pkgId))
+        : new PackageOrException(packageValue.getPackage(), null);
+  }
+
   public ConfiguredRuleClassProvider getRuleClassProvider() {
     return ruleClassProvider;
   }
@@ -361,16 +481,15 @@ public abstract class AbstractPackageLoader implements PackageLoader {
         e);
   }
 
-  private BuildDriver makeFreshDriver() {
-    return new SequentialBuildDriver(
-        InMemoryMemoizingEvaluator.SUPPLIER.create(
-            makeFreshSkyFunctions(),
-            preinjectedDifferencer,
-            new EvaluationProgressReceiver.NullEvaluationProgressReceiver(),
-            GraphInconsistencyReceiver.THROWING,
-            InMemoryMemoizingEvaluator.DEFAULT_STORED_EVENT_FILTER,
-            new MemoizingEvaluator.EmittedEventState(),
-            /*keepEdges=*/ false));
+  private MemoizingEvaluator makeFreshEvaluator(EvaluationProgressReceiver progressReceiver) {
+    return InMemoryMemoizingEvaluator.SUPPLIER.create(
+        makeFreshSkyFunctions(),
+        preinjectedDifferencer,
+        progressReceiver,
+        GraphInconsistencyReceiver.THROWING,
+        InMemoryMemoizingEvaluator.DEFAULT_STORED_EVENT_FILTER,
+        new MemoizingEvaluator.EmittedEventState(),
+        /*keepEdges=*/ false);
   }
 
   protected abstract ImmutableList<EnvironmentExtension> getEnvironmentExtensions();
@@ -42,6 +42,30 @@ public interface PackageLoader {
   ImmutableMap<PackageIdentifier, PackageOrException> loadPackages(
       Iterable<? extends PackageIdentifier> pkgIds) throws InterruptedException;
 
+  /**
+   * Loads the Blaze packages specified by {@code pkgIds} and passes each of them to {@code
+   * callback} once per package, as soon as that package is loaded.
+   *
+   * <p>Unlike {@link #loadPackages}, this is meant for loading a very large number of packages:
+   * packages are loaded in batches, each batch in parallel, and neither the packages nor the
+   * intermediate state used to load them are retained by the loader once they have been passed to
+   * {@code callback}. Only the state that is likely to be shared by later batches, like loaded
+   * .bzl files, is kept until this method returns.
+   */
+  void loadPackagesStreaming(
+      Iterable<? extends PackageIdentifier> pkgIds, PackageCallback callback)
+      throws InterruptedException;
+
+  /** Receives the packages loaded by {@link #loadPackagesStreaming}. */
+  @FunctionalInterface
+  interface PackageCallback {
+    /**
+     * Called with each loaded package. May be called concurrently from the threads that load the
+     * packages, so it should be thread-safe and return quickly.
+     */
+    void onPackage(PackageIdentifier pkgId, PackageOrException pkgOrException);
+  }
+
   class PackageOrException {
     private final Package pkg;
     private final NoSuchPackageException exception;
@@ -441,6 +441,8 @@ public abstract class BaseFunction implements StarlarkCallable {
     Preconditions.checkState(isConfigured(), "Function %s was not configured", getName());
     canonicalizeArguments(arguments, loc);
 
+    boolean running = RunningThreads.enabled;
+    StarlarkThread previous = running ? RunningThreads.enter(thread) : null;
     try {
       if (Callstack.enabled) {
         Callstack.push(this);
@@ -450,6 +452,9 @@ public abstract class BaseFunction implements StarlarkCallable {
       if (Callstack.enabled) {
         Callstack.pop();
       }
+      if (running) {
+        RunningThreads.exit(previous);
+      }
     }
   }
 
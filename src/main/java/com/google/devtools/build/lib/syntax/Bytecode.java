@@ -0,0 +1,455 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.Location;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * The body of a {@link StarlarkFunction}, compiled by {@link Compiler} to instructions for a stack
+ * machine.
+ *
+ * <p>Each instruction is an opcode followed by a fixed number of int operands. Most instructions
+ * refer to the syntax tree node they were compiled from, which provides locations for error
+ * messages and stack traces, so that errors are reported exactly as {@link Eval} reports them.
+ * Expressions for which there is no instruction are evaluated by {@link Eval}.
+ *
+ * <p>Local variables that {@link ValidationEnvironment} resolved to slots are accessed by index in
+ * the frame of the function; other variables are looked up and bound by name.
+ */
+final class Bytecode {
+
+  // ---- opcodes ----
+  // The comments show the operands, and the effect on the operand stack, top to the right.
+
+  /** node: notifies the debugger that the statement {@code node} is about to be executed. */
+  static final int STMT = 0;
+  /** const: {@code -> value}. */
+  static final int CONST = 1;
+  /** node: {@code -> value} of the local identifier {@code node}. */
+  static final int LOAD_LOCAL = 2;
+  /** node slot: {@code -> value} of the local identifier {@code node}, in the given slot. */
+  static final int LOAD_SLOT = 3;
+  /** node: {@code -> value} of the module-level identifier {@code node}. */
+  static final int LOAD_MODULE = 4;
+  /** node: {@code -> value} of the predeclared identifier {@code node}. */
+  static final int LOAD_UNIVERSE = 5;
+  /** node: {@code -> value} of the unresolved identifier {@code node}. */
+  static final int LOAD_NAME = 6;
+  /** node: {@code value ->}, binding the identifier {@code node}. */
+  static final int STORE = 7;
+  /** node slot: {@code value ->}, binding the local identifier {@code node} in the given slot. */
+  static final int STORE_SLOT = 8;
+  /** {@code value ->}. */
+  static final int POP = 9;
+  /** {@code x y -> x y x y}. */
+  static final int DUP2 = 10;
+  /** {@code x y z -> y z x}. */
+  static final int ROT3 = 11;
+  /** node: {@code x -> op x}. */
+  static final int UNARY = 12;
+  /** node: {@code x y -> x op y}. */
+  static final int BINARY = 13;
+  /** node: {@code x y -> x op= y} for the augmented assignment {@code node}. */
+  static final int INPLACE = 14;
+  /** node: {@code object -> object.field}. */
+  static final int DOT = 15;
+  /** node: {@code object key -> object[key]}. */
+  static final int INDEX = 16;
+  /** node: {@code object key value ->}, assigning {@code object[key] = value}. */
+  static final int SET_ITEM = 17;
+  /** node: {@code x1 ... xn -> list}, where n is the size of the list expression {@code node}. */
+  static final int LIST = 18;
+  /** node: {@code -> dict}. */
+  static final int DICT = 19;
+  /** node: {@code dict key value -> dict}. */
+  static final int DICT_PUT = 20;
+  /** node: {@code -> args}, for the call {@code node}. */
+  static final int ARGS = 21;
+  /** node, i: {@code args value -> args}, adding the value of the i-th argument of {@code node}. */
+  static final int ARG = 22;
+  /** node: {@code fn args -> result}. */
+  static final int CALL = 23;
+  /** node: {@code object args -> result}, calling a method of {@code object}. */
+  static final int CALL_METHOD = 24;
+  /** target: jumps to {@code target}. */
+  static final int JUMP = 25;
+  /** target: {@code cond ->}, jumping to {@code target} if {@code cond} is false. */
+  static final int JUMP_IF_FALSE = 26;
+  /** target: {@code x -> x} and jumps to {@code target} if x is false, otherwise {@code x ->}. */
+  static final int JUMP_IF_FALSE_OR_POP = 27;
+  /** target: {@code x -> x} and jumps to {@code target} if x is true, otherwise {@code x ->}. */
+  static final int JUMP_IF_TRUE_OR_POP = 28;
+  /** node: {@code iterable -> loop}, locking the iterable for the loop {@code node}. */
+  static final int ITER = 29;
+  /** node, target: {@code loop -> loop value}, or {@code loop -> loop} and jumps to target. */
+  static final int FOR_NEXT = 30;
+  /** {@code loop ->}, unlocking the iterable. */
+  static final int END_FOR = 31;
+  /** node, n: {@code value -> xn ... x1} for a value of length n assigned in {@code node}. */
+  static final int UNPACK = 32;
+  /** node: {@code -> value} of the expression {@code node}, evaluated by {@link Eval}. */
+  static final int EVAL = 33;
+  /** {@code value ->}, returning the value. */
+  static final int RETURN = 34;
+
+  private final int[] code;
+  private final Object[] constants;
+  private final Node[] nodes;
+  // Index of the innermost statement or call enclosing each node, or -1 if there is none.
+  private final int[] parents;
+  private final int maxStack;
+
+  Bytecode(int[] code, Object[] constants, Node[] nodes, int[] parents, int maxStack) {
+    this.code = code;
+    this.constants = constants;
+    this.nodes = nodes;
+    this.parents = parents;
+    this.maxStack = maxStack;
+  }
+
+  /** The state of a for loop: the iterable, which is locked during the loop, and its iterator. */
+  private static final class Loop {
+    final Object iterable;
+    final Iterator<?> iterator;
+    final Location location;
+
+    Loop(Object iterable, Iterator<?> iterator, Location location) {
+      this.iterable = iterable;
+      this.iterator = iterator;
+      this.location = location;
+    }
+  }
+
+  /** The arguments of a call, as they are being evaluated. */
+  private static final class CallArgs {
+    final ArrayList<Object> posargs = new ArrayList<>();
+    final Map<String, Object> kwargs = new LinkedHashMap<>();
+    @Nullable ImmutableList.Builder<String> duplicates;
+  }
+
+  /**
+   * Executes the function body in the current frame of the given thread, and returns the value it
+   * returns.
+   */
+  @SuppressWarnings("unchecked")
+  Object exec(StarlarkThread thread) throws EvalException, InterruptedException {
+    Debugger dbg = Eval.getDebugger();
+    Object[] stack = new Object[maxStack];
+    int sp = 0;
+    int pc = 0;
+    // The start of the instruction being executed, for error reporting.
+    int ip = 0;
+    try {
+      while (true) {
+        ip = pc;
+        int op = code[pc++];
+        switch (op) {
+          case STMT:
+            {
+              Node stmt = nodes[code[pc++]];
+              if (dbg != null) {
+                dbg.before(thread, stmt.getLocation());
+              }
+              break;
+            }
+          case CONST:
+            stack[sp++] = constants[code[pc++]];
+            break;
+          case LOAD_LOCAL:
+            {
+              Identifier id = (Identifier) nodes[code[pc++]];
+              Object value = thread.localLookup(id.getName());
+              if (value == null) {
+                throw Eval.referencedBeforeAssignment(id);
+              }
+              stack[sp++] = value;
+              break;
+            }
+          case LOAD_SLOT:
+            {
+              Identifier id = (Identifier) nodes[code[pc++]];
+              Object value = thread.slotLookup(code[pc++], id.getName());
+              if (value == null) {
+                throw Eval.referencedBeforeAssignment(id);
+              }
+              stack[sp++] = value;
+              break;
+            }
+          case LOAD_MODULE:
+            {
+              Identifier id = (Identifier) nodes[code[pc++]];
+              Object value = thread.moduleLookup(id.getName());
+              if (value == null) {
+                throw Eval.referencedBeforeAssignment(id);
+              }
+              stack[sp++] = value;
+              break;
+            }
+          case LOAD_UNIVERSE:
+            {
+              Identifier id = (Identifier) nodes[code[pc++]];
+              Object value = thread.universeLookup(id.getName());
+              if (value == null) {
+                throw Eval.referencedBeforeAssignment(id);
+              }
+              stack[sp++] = value;
+              break;
+            }
+          case LOAD_NAME:
+            stack[sp++] = Eval.evalIdentifier(thread, (Identifier) nodes[code[pc++]]);
+            break;
+          case STORE:
+            {
+              Identifier id = (Identifier) nodes[code[pc++]];
+              thread.updateAndExport(id.getName(), stack[--sp]);
+              break;
+            }
+          case STORE_SLOT:
+            {
+              Identifier id = (Identifier) nodes[code[pc++]];
+              thread.slotUpdate(code[pc++], id.getName(), stack[--sp]);
+              break;
+            }
+          case POP:
+            sp--;
+            break;
+          case DUP2:
+            stack[sp] = stack[sp - 2];
+            stack[sp + 1] = stack[sp - 1];
+            sp += 2;
+            break;
+          case ROT3:
+            {
+              Object x = stack[sp - 3];
+              stack[sp - 3] = stack[sp - 2];
+              stack[sp - 2] = stack[sp - 1];
+              stack[sp - 1] = x;
+              break;
+            }
+          case UNARY:
+            {
+              UnaryOperatorExpression unop = (UnaryOperatorExpression) nodes[code[pc++]];
+              stack[sp - 1] =
+                  EvalUtils.unaryOp(unop.getOperator(), stack[sp - 1], unop.getLocation());
+              break;
+            }
+          case BINARY:
+            {
+              BinaryOperatorExpression binop = (BinaryOperatorExpression) nodes[code[pc++]];
+              Object y = stack[--sp];
+              stack[sp - 1] =
+                  EvalUtils.binaryOp(
+                      binop.getOperator(), stack[sp - 1], y, thread, binop.getLocation());
+              break;
+            }
+          case INPLACE:
+            {
+              AssignmentStatement assign = (AssignmentStatement) nodes[code[pc++]];
+              Object y = stack[--sp];
+              stack[sp - 1] =
+                  Eval.inplaceBinaryOp(
+                      assign.getOperator(), stack[sp - 1], y, thread, assign.getLocation());
+              break;
+            }
+          case DOT:
+            {
+              DotExpression dot = (DotExpression) nodes[code[pc++]];
+              Object object = stack[sp - 1];
+              String name = dot.getField().getName();
+              Object result = EvalUtils.getAttr(thread, dot.getLocation(), object, name);
+              stack[sp - 1] =
+                  Eval.checkResult(object, result, name, dot.getLocation(), thread.getSemantics());
+              break;
+            }
+          case INDEX:
+            {
+              Location loc = nodes[code[pc++]].getLocation();
+              Object key = stack[--sp];
+              stack[sp - 1] = EvalUtils.index(stack[sp - 1], key, thread, loc);
+              break;
+            }
+          case SET_ITEM:
+            {
+              Location loc = nodes[code[pc++]].getLocation();
+              sp -= 3;
+              Eval.assignItem(stack[sp], stack[sp + 1], stack[sp + 2], thread, loc);
+              break;
+            }
+          case LIST:
+            {
+              ListExpression list = (ListExpression) nodes[code[pc++]];
+              int n = list.getElements().size();
+              sp -= n;
+              ArrayList<Object> elements = new ArrayList<>(n);
+              for (int i = 0; i < n; i++) {
+                elements.add(stack[sp + i]);
+              }
+              stack[sp++] =
+                  list.isTuple()
+                      ? SkylarkList.Tuple.copyOf(elements)
+                      : SkylarkList.MutableList.wrapUnsafe(thread, elements);
+              break;
+            }
+          case DICT:
+            pc++;
+            stack[sp++] = SkylarkDict.of(thread);
+            break;
+          case DICT_PUT:
+            {
+              Location loc = nodes[code[pc++]].getLocation();
+              sp -= 2;
+              Eval.putDictEntry(
+                  (SkylarkDict<Object, Object>) stack[sp - 1],
+                  stack[sp],
+                  stack[sp + 1],
+                  loc,
+                  thread);
+              break;
+            }
+          case ARGS:
+            pc++;
+            stack[sp++] = new CallArgs();
+            break;
+          case ARG:
+            {
+              FuncallExpression call = (FuncallExpression) nodes[code[pc++]];
+              Argument arg = call.getArguments().get(code[pc++]);
+              CallArgs args = (CallArgs) stack[sp - 2];
+              args.duplicates =
+                  Eval.addArgument(
+                      call, arg, stack[--sp], args.posargs, args.kwargs, args.duplicates);
+              break;
+            }
+          case CALL:
+            {
+              FuncallExpression call = (FuncallExpression) nodes[code[pc++]];
+              CallArgs args = (CallArgs) stack[--sp];
+              Eval.checkDuplicateKeywords(call, args.duplicates);
+              stack[sp - 1] =
+                  CallUtils.call(thread, call, stack[sp - 1], args.posargs, args.kwargs);
+              break;
+            }
+          case CALL_METHOD:
+            {
+              FuncallExpression call = (FuncallExpression) nodes[code[pc++]];
+              DotExpression dot = (DotExpression) call.getFunction();
+              CallArgs args = (CallArgs) stack[--sp];
+              Eval.checkDuplicateKeywords(call, args.duplicates);
+              stack[sp - 1] =
+                  CallUtils.callMethod(
+                      thread,
+                      call,
+                      stack[sp - 1],
+                      args.posargs,
+                      args.kwargs,
+                      dot.getField().getName(),
+                      dot.getLocation());
+              break;
+            }
+          case JUMP:
+            pc = code[pc];
+            break;
+          case JUMP_IF_FALSE:
+            pc = Starlark.truth(stack[--sp]) ? pc + 1 : code[pc];
+            break;
+          case JUMP_IF_FALSE_OR_POP:
+            if (Starlark.truth(stack[sp - 1])) {
+              sp--;
+              pc++;
+            } else {
+              pc = code[pc];
+            }
+            break;
+          case JUMP_IF_TRUE_OR_POP:
+            if (Starlark.truth(stack[sp - 1])) {
+              pc = code[pc];
+            } else {
+              sp--;
+              pc++;
+            }
+            break;
+          case ITER:
+            {
+              Location loc = nodes[code[pc++]].getLocation();
+              Object iterable = stack[sp - 1];
+              Iterator<?> iterator = EvalUtils.toIterable(iterable, loc, thread).iterator();
+              EvalUtils.lock(iterable, loc);
+              stack[sp - 1] = new Loop(iterable, iterator, loc);
+              break;
+            }
+          case FOR_NEXT:
+            {
+              Iterator<?> iterator = ((Loop) stack[sp - 1]).iterator;
+              if (iterator.hasNext()) {
+                stack[sp++] = iterator.next();
+                pc += 2;
+              } else {
+                pc = code[pc + 1];
+              }
+              break;
+            }
+          case END_FOR:
+            {
+              Loop loop = (Loop) stack[--sp];
+              EvalUtils.unlock(loop.iterable, loop.location);
+              break;
+            }
+          case UNPACK:
+            {
+              Location loc = nodes[code[pc++]].getLocation();
+              int n = code[pc++];
+              Collection<?> values = Eval.unpack(stack[--sp], n, thread, loc);
+              sp += n;
+              int i = sp;
+              for (Object value : values) {
+                stack[--i] = value;
+              }
+              break;
+            }
+          case EVAL:
+            stack[sp++] = Eval.eval(thread, (Expression) nodes[code[pc++]]);
+            break;
+          case RETURN:
+            return stack[--sp];
+          default:
+            throw new IllegalStateException("unexpected opcode " + op + " at " + ip);
+        }
+      }
+    } catch (EvalException ex) {
+      // Transform the exception as Eval does on its way out of the nodes enclosing the instruction.
+      // Every instruction that can fail refers to a node in its first operand.
+      EvalException result = ex;
+      for (int i = code[ip + 1]; i >= 0; i = parents[i]) {
+        result = Eval.maybeTransformException(nodes[i], result);
+      }
+      throw result;
+    } finally {
+      // Unlock the iterables of the loops we're leaving early.
+      for (int i = 0; i < sp; i++) {
+        if (stack[i] instanceof Loop) {
+          Loop loop = (Loop) stack[i];
+          EvalUtils.unlock(loop.iterable, loop.location);
+        }
+      }
+    }
+  }
+}
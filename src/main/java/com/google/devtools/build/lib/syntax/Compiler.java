@@ -0,0 +1,501 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.syntax;
+
+import static com.google.devtools.build.lib.syntax.Bytecode.ARG;
+import static com.google.devtools.build.lib.syntax.Bytecode.ARGS;
+import static com.google.devtools.build.lib.syntax.Bytecode.BINARY;
+import static com.google.devtools.build.lib.syntax.Bytecode.CALL;
+import static com.google.devtools.build.lib.syntax.Bytecode.CALL_METHOD;
+import static com.google.devtools.build.lib.syntax.Bytecode.CONST;
+import static com.google.devtools.build.lib.syntax.Bytecode.DICT;
+import static com.google.devtools.build.lib.syntax.Bytecode.DICT_PUT;
+import static com.google.devtools.build.lib.syntax.Bytecode.DOT;
+import static com.google.devtools.build.lib.syntax.Bytecode.DUP2;
+import static com.google.devtools.build.lib.syntax.Bytecode.END_FOR;
+import static com.google.devtools.build.lib.syntax.Bytecode.EVAL;
+import static com.google.devtools.build.lib.syntax.Bytecode.FOR_NEXT;
+import static com.google.devtools.build.lib.syntax.Bytecode.INDEX;
+import static com.google.devtools.build.lib.syntax.Bytecode.INPLACE;
+import static com.google.devtools.build.lib.syntax.Bytecode.ITER;
+import static com.google.devtools.build.lib.syntax.Bytecode.JUMP;
+import static com.google.devtools.build.lib.syntax.Bytecode.JUMP_IF_FALSE;
+import static com.google.devtools.build.lib.syntax.Bytecode.JUMP_IF_FALSE_OR_POP;
+import static com.google.devtools.build.lib.syntax.Bytecode.JUMP_IF_TRUE_OR_POP;
+import static com.google.devtools.build.lib.syntax.Bytecode.LIST;
+import static com.google.devtools.build.lib.syntax.Bytecode.LOAD_LOCAL;
+import static com.google.devtools.build.lib.syntax.Bytecode.LOAD_MODULE;
+import static com.google.devtools.build.lib.syntax.Bytecode.LOAD_NAME;
+import static com.google.devtools.build.lib.syntax.Bytecode.LOAD_SLOT;
+import static com.google.devtools.build.lib.syntax.Bytecode.LOAD_UNIVERSE;
+import static com.google.devtools.build.lib.syntax.Bytecode.POP;
+import static com.google.devtools.build.lib.syntax.Bytecode.RETURN;
+import static com.google.devtools.build.lib.syntax.Bytecode.ROT3;
+import static com.google.devtools.build.lib.syntax.Bytecode.SET_ITEM;
+import static com.google.devtools.build.lib.syntax.Bytecode.STMT;
+import static com.google.devtools.build.lib.syntax.Bytecode.STORE;
+import static com.google.devtools.build.lib.syntax.Bytecode.STORE_SLOT;
+import static com.google.devtools.build.lib.syntax.Bytecode.UNARY;
+import static com.google.devtools.build.lib.syntax.Bytecode.UNPACK;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Compiles the body of a {@link StarlarkFunction} to {@link Bytecode}.
+ *
+ * <p>Operands are evaluated in the same order as in {@link Eval}, and every instruction that can
+ * fail refers to the node {@link Eval} would be evaluating when it fails, so that side effects and
+ * errors are the same in both interpreters. Comprehensions and slices are left to {@link Eval}.
+ */
+final class Compiler {
+
+  private int[] code = new int[64];
+  private int size;
+
+  private final List<Object> constants = new ArrayList<>();
+  private final Map<Object, Integer> constantIndices = new HashMap<>();
+  private final List<Node> nodes = new ArrayList<>();
+  private final List<Integer> parents = new ArrayList<>();
+
+  // The innermost statement or call being compiled, as an index into nodes.
+  private int context = -1;
+
+  private int stackDepth;
+  private int maxStackDepth;
+
+  /** The enclosing loops, innermost first. */
+  private final Deque<Loop> loops = new ArrayDeque<>();
+
+  private boolean unsupported;
+
+  /** The jump targets of a for loop. */
+  private static final class Loop {
+    final int continueTarget;
+    // Jumps to the end of the loop, which are patched when the loop has been compiled.
+    final List<Integer> breakJumps = new ArrayList<>();
+
+    Loop(int continueTarget) {
+      this.continueTarget = continueTarget;
+    }
+  }
+
+  private Compiler() {}
+
+  /**
+   * Compiles the given function body, or returns null if it contains statements that are only
+   * allowed at the top level.
+   */
+  @Nullable
+  static Bytecode compile(List<Statement> statements) {
+    Compiler compiler = new Compiler();
+    compiler.compileStatements(statements);
+    if (compiler.unsupported) {
+      return null;
+    }
+    compiler.emitConstant(Runtime.NONE);
+    compiler.emit(RETURN, -1);
+    return new Bytecode(
+        Arrays.copyOf(compiler.code, compiler.size),
+        compiler.constants.toArray(),
+        compiler.nodes.toArray(new Node[0]),
+        compiler.parents.stream().mapToInt(Integer::intValue).toArray(),
+        compiler.maxStackDepth);
+  }
+
+  // ---- emitting instructions ----
+
+  /** Appends an instruction, which changes the depth of the operand stack by {@code effect}. */
+  private void emit(int op, int effect, int... operands) {
+    if (size + 1 + operands.length > code.length) {
+      code = Arrays.copyOf(code, Math.max(2 * code.length, size + 1 + operands.length));
+    }
+    code[size++] = op;
+    for (int operand : operands) {
+      code[size++] = operand;
+    }
+    adjustStackDepth(effect);
+  }
+
+  private void adjustStackDepth(int effect) {
+    stackDepth += effect;
+    maxStackDepth = Math.max(maxStackDepth, stackDepth);
+  }
+
+  /** Appends a jump instruction with the target at the end, and returns the target's position. */
+  private int emitJump(int op, int effect, int... operands) {
+    int[] withTarget = Arrays.copyOf(operands, operands.length + 1);
+    emit(op, effect, withTarget);
+    return size - 1;
+  }
+
+  /** Makes the jump whose target is at {@code position} jump to the next instruction. */
+  private void patchJump(int position) {
+    code[position] = size;
+  }
+
+  private void emitConstant(Object value) {
+    Integer index = constantIndices.get(value);
+    if (index == null) {
+      index = constants.size();
+      constants.add(value);
+      constantIndices.put(value, index);
+    }
+    emit(CONST, 1, index);
+  }
+
+  /** Adds a node in the current context, and returns its index. */
+  private int addNode(Node node) {
+    nodes.add(node);
+    parents.add(context);
+    return nodes.size() - 1;
+  }
+
+  // ---- statements ----
+
+  private void compileStatements(List<Statement> statements) {
+    for (Statement statement : statements) {
+      compileStatement(statement);
+    }
+  }
+
+  private void compileStatement(Statement st) {
+    int outerContext = context;
+    context = addNode(st);
+    emit(STMT, 0, context);
+    switch (st.kind()) {
+      case ASSIGNMENT:
+        compileAssignment((AssignmentStatement) st);
+        break;
+      case EXPRESSION:
+        compileExpression(((ExpressionStatement) st).getExpression());
+        emit(POP, -1);
+        break;
+      case FLOW:
+        compileFlow((FlowStatement) st);
+        break;
+      case FOR:
+        compileFor((ForStatement) st);
+        break;
+      case IF:
+        compileIf((IfStatement) st);
+        break;
+      case RETURN:
+        {
+          Expression ret = ((ReturnStatement) st).getReturnExpression();
+          if (ret != null) {
+            compileExpression(ret);
+          } else {
+            emitConstant(Runtime.NONE);
+          }
+          emit(RETURN, -1);
+          break;
+        }
+      case DEF:
+      case LOAD:
+        unsupported = true;
+        break;
+    }
+    context = outerContext;
+  }
+
+  private void compileAssignment(AssignmentStatement node) {
+    if (!node.isAugmented()) {
+      compileExpression(node.getRHS());
+      compileAssign(node.getLHS());
+      return;
+    }
+
+    Expression lhs = node.getLHS();
+    if (lhs instanceof Identifier) {
+      compileExpression(lhs);
+      compileExpression(node.getRHS());
+      emit(INPLACE, -1, context);
+      compileStore((Identifier) lhs);
+    } else if (lhs instanceof IndexExpression) {
+      // The object and key are evaluated only once.
+      IndexExpression index = (IndexExpression) lhs;
+      compileExpression(index.getObject());
+      compileExpression(index.getKey());
+      emit(DUP2, 2);
+      emit(INDEX, -1, context);
+      compileExpression(node.getRHS());
+      emit(INPLACE, -1, context);
+      emit(SET_ITEM, -3, context);
+    } else {
+      // Let Eval report the error.
+      unsupported = true;
+    }
+  }
+
+  /** Binds the identifier to the value on top of the stack. */
+  private void compileStore(Identifier id) {
+    if (id.getSlot() >= 0) {
+      emit(STORE_SLOT, -1, addNode(id), id.getSlot());
+    } else {
+      emit(STORE, -1, addNode(id));
+    }
+  }
+
+  /**
+   * Assigns the value on top of the stack to the given expression. Errors are reported at the
+   * location of the statement being compiled.
+   */
+  private void compileAssign(Expression lhs) {
+    if (lhs instanceof Identifier) {
+      compileStore((Identifier) lhs);
+    } else if (lhs instanceof IndexExpression) {
+      IndexExpression index = (IndexExpression) lhs;
+      compileExpression(index.getObject());
+      compileExpression(index.getKey());
+      emit(ROT3, 0);
+      emit(SET_ITEM, -3, context);
+    } else if (lhs instanceof ListExpression) {
+      List<Expression> elements = ((ListExpression) lhs).getElements();
+      emit(UNPACK, elements.size() - 1, context, elements.size());
+      for (Expression element : elements) {
+        compileAssign(element);
+      }
+    } else {
+      // Let Eval report the error.
+      unsupported = true;
+    }
+  }
+
+  private void compileFlow(FlowStatement node) {
+    switch (node.getKind()) {
+      case BREAK:
+        if (loops.isEmpty()) {
+          unsupported = true;
+          return;
+        }
+        loops.peek().breakJumps.add(emitJump(JUMP, 0));
+        break;
+      case CONTINUE:
+        if (loops.isEmpty()) {
+          unsupported = true;
+          return;
+        }
+        emit(JUMP, 0, loops.peek().continueTarget);
+        break;
+      default:
+        // pass
+        break;
+    }
+  }
+
+  private void compileFor(ForStatement node) {
+    compileExpression(node.getCollection());
+    emit(ITER, 0, context);
+    Loop loop = new Loop(size);
+    int exit = emitJump(FOR_NEXT, 1, context);
+    compileAssign(node.getLHS());
+    loops.push(loop);
+    compileStatements(node.getBlock());
+    loops.pop();
+    emit(JUMP, 0, loop.continueTarget);
+    patchJump(exit);
+    for (int breakJump : loop.breakJumps) {
+      patchJump(breakJump);
+    }
+    emit(END_FOR, -1);
+  }
+
+  private void compileIf(IfStatement node) {
+    compileExpression(node.getCondition());
+    int elseJump = emitJump(JUMP_IF_FALSE, -1);
+    compileStatements(node.getThenBlock());
+    if (node.getElseBlock() == null) {
+      patchJump(elseJump);
+      return;
+    }
+    int endJump = emitJump(JUMP, 0);
+    patchJump(elseJump);
+    compileStatements(node.getElseBlock());
+    patchJump(endJump);
+  }
+
+  // ---- expressions ----
+
+  /** Compiles an expression, which pushes its value on the stack. */
+  private void compileExpression(Expression expr) {
+    switch (expr.kind()) {
+      case BINARY_OPERATOR:
+        {
+          BinaryOperatorExpression binop = (BinaryOperatorExpression) expr;
+          compileExpression(binop.getX());
+          switch (binop.getOperator()) {
+            case AND:
+            case OR:
+              {
+                // Short-circuit evaluation.
+                int end =
+                    emitJump(
+                        binop.getOperator() == TokenKind.AND
+                            ? JUMP_IF_FALSE_OR_POP
+                            : JUMP_IF_TRUE_OR_POP,
+                        -1);
+                compileExpression(binop.getY());
+                patchJump(end);
+                break;
+              }
+            default:
+              compileExpression(binop.getY());
+              emit(BINARY, -1, addNode(binop));
+          }
+          return;
+        }
+
+      case CONDITIONAL:
+        {
+          ConditionalExpression cond = (ConditionalExpression) expr;
+          compileExpression(cond.getCondition());
+          int elseJump = emitJump(JUMP_IF_FALSE, -1);
+          compileExpression(cond.getThenCase());
+          int endJump = emitJump(JUMP, 0);
+          // Only one of the cases is evaluated.
+          adjustStackDepth(-1);
+          patchJump(elseJump);
+          compileExpression(cond.getElseCase());
+          patchJump(endJump);
+          return;
+        }
+
+      case DICT_EXPR:
+        {
+          DictExpression dict = (DictExpression) expr;
+          int node = addNode(dict);
+          emit(DICT, 1, node);
+          for (DictExpression.Entry entry : dict.getEntries()) {
+            compileExpression(entry.getKey());
+            compileExpression(entry.getValue());
+            emit(DICT_PUT, -2, node);
+          }
+          return;
+        }
+
+      case DOT:
+        {
+          DotExpression dot = (DotExpression) expr;
+          compileExpression(dot.getObject());
+          emit(DOT, 0, addNode(dot));
+          return;
+        }
+
+      case FUNCALL:
+        compileCall((FuncallExpression) expr);
+        return;
+
+      case IDENTIFIER:
+        {
+          Identifier id = (Identifier) expr;
+          if (id.getSlot() >= 0) {
+            emit(LOAD_SLOT, 1, addNode(id), id.getSlot());
+            return;
+          }
+          int op;
+          if (id.getScope() == null) {
+            op = LOAD_NAME;
+          } else {
+            switch (id.getScope()) {
+              case Local:
+                op = LOAD_LOCAL;
+                break;
+              case Module:
+                op = LOAD_MODULE;
+                break;
+              case Universe:
+                op = LOAD_UNIVERSE;
+                break;
+              default:
+                throw new IllegalStateException(id.getScope().toString());
+            }
+          }
+          emit(op, 1, addNode(id));
+          return;
+        }
+
+      case INDEX:
+        {
+          IndexExpression index = (IndexExpression) expr;
+          compileExpression(index.getObject());
+          compileExpression(index.getKey());
+          emit(INDEX, -1, addNode(index));
+          return;
+        }
+
+      case INTEGER_LITERAL:
+        emitConstant(((IntegerLiteral) expr).getValue());
+        return;
+
+      case LIST_EXPR:
+        {
+          ListExpression list = (ListExpression) expr;
+          for (Expression element : list.getElements()) {
+            compileExpression(element);
+          }
+          emit(LIST, 1 - list.getElements().size(), addNode(list));
+          return;
+        }
+
+      case STRING_LITERAL:
+        emitConstant(((StringLiteral) expr).getValue());
+        return;
+
+      case UNARY_OPERATOR:
+        {
+          UnaryOperatorExpression unop = (UnaryOperatorExpression) expr;
+          compileExpression(unop.getX());
+          emit(UNARY, 0, addNode(unop));
+          return;
+        }
+
+      case COMPREHENSION:
+      case SLICE:
+        emit(EVAL, 1, addNode(expr));
+        return;
+    }
+    throw new IllegalArgumentException("unexpected expression: " + expr.kind());
+  }
+
+  private void compileCall(FuncallExpression call) {
+    int outerContext = context;
+    context = addNode(call);
+    int node = context;
+
+    // As in Eval, call x.f() without materializing a closure for x.f.
+    boolean isMethodCall = call.getFunction() instanceof DotExpression;
+    if (isMethodCall) {
+      compileExpression(((DotExpression) call.getFunction()).getObject());
+    } else {
+      compileExpression(call.getFunction());
+    }
+    emit(ARGS, 1, node);
+    List<Argument> arguments = call.getArguments();
+    for (int i = 0; i < arguments.size(); i++) {
+      compileExpression(arguments.get(i).getValue());
+      emit(ARG, -1, node, i);
+    }
+    emit(isMethodCall ? CALL_METHOD : CALL, -1, node);
+
+    context = outerContext;
+  }
+}
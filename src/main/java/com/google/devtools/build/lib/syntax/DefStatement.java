@@ -14,6 +14,7 @@
 package com.google.devtools.build.lib.syntax;
 
 import com.google.common.collect.ImmutableList;
+import javax.annotation.Nullable;
 
 /** Syntax node for a 'def' statement, which defines a function. */
 public final class DefStatement extends Statement {
@@ -22,6 +23,9 @@ public final class DefStatement extends Statement {
   private final FunctionSignature signature;
   private final ImmutableList<Statement> statements;
   private final ImmutableList<Parameter> parameters;
+  // The names of the local variables of the function, indexed by slot. The value is set when the
+  // AST has been analysed by ValidationEnvironment.
+  @Nullable private ImmutableList<String> locals;
 
   DefStatement(
       Identifier identifier,
@@ -59,6 +63,15 @@ public final class DefStatement extends Statement {
     return signature;
   }
 
+  @Nullable
+  ImmutableList<String> getLocals() {
+    return locals;
+  }
+
+  void setLocals(ImmutableList<String> locals) {
+    this.locals = locals;
+  }
+
   @Override
   public void accept(NodeVisitor visitor) {
     visitor.visit(this);
@@ -47,6 +47,12 @@ final class Eval {
     }
   }
 
+  /** Returns the debugger notified of execution events, or null if there is none. */
+  @Nullable
+  static Debugger getDebugger() {
+    return debugger.get();
+  }
+
   static void execFile(StarlarkThread thread, StarlarkFile file)
       throws EvalException, InterruptedException {
     for (Statement stmt : file.getStatements()) {
@@ -148,7 +154,8 @@ final class Eval {
             sig,
             defaultValues != null ? ImmutableList.copyOf(defaultValues) : null,
             node.getStatements(),
-            thread.getGlobals()));
+            thread.getGlobals(),
+            node.getLocals()));
   }
 
   private TokenKind execIf(IfStatement node) throws EvalException, InterruptedException {
@@ -263,7 +270,12 @@ final class Eval {
   /** Binds a variable to the given value in the environment. */
   private static void assignIdentifier(Identifier ident, Object value, StarlarkThread thread)
       throws EvalException {
-    thread.updateAndExport(ident.getName(), value);
+    int slot = ident.getSlot();
+    if (slot >= 0) {
+      thread.slotUpdate(slot, ident.getName(), value);
+    } else {
+      thread.updateAndExport(ident.getName(), value);
+    }
   }
 
   /**
@@ -274,7 +286,7 @@ final class Eval {
    * @throws EvalException if the object is not a list or dict
    */
   @SuppressWarnings("unchecked")
-  private static void assignItem(
+  static void assignItem(
       Object object, Object key, Object value, StarlarkThread thread, Location loc)
       throws EvalException {
     if (object instanceof SkylarkDict) {
@@ -302,8 +314,24 @@ final class Eval {
   private static void assignList(
       ListExpression list, Object value, StarlarkThread thread, Location loc)
       throws EvalException, InterruptedException {
+    Collection<?> collection = unpack(value, list.getElements().size(), thread, loc);
+    int i = 0;
+    for (Object item : collection) {
+      assign(list.getElements().get(i), item, thread, loc);
+      i++;
+    }
+  }
+
+  /**
+   * Returns the elements of an iterable value that is assigned to a sequence of {@code len}
+   * assignable expressions.
+   *
+   * @throws EvalException if {@code len} is 0, or if the value is not an iterable of length {@code
+   *     len}
+   */
+  static Collection<?> unpack(Object value, int len, StarlarkThread thread, Location loc)
+      throws EvalException {
     Collection<?> collection = EvalUtils.toCollection(value, loc, thread);
-    int len = list.getElements().size();
     if (len == 0) {
       throw new EvalException(
           loc, "lists or tuples on the left-hand side of assignments must have at least one item");
@@ -316,11 +344,7 @@ final class Eval {
                   + " evaluates to value of length %d",
               len, collection.size()));
     }
-    int i = 0;
-    for (Object item : collection) {
-      assign(list.getElements().get(i), item, thread, loc);
-      i++;
-    }
+    return collection;
   }
 
   private void execAugmentedAssignment(AssignmentStatement stmt)
@@ -354,7 +378,7 @@ final class Eval {
     }
   }
 
-  private static Object inplaceBinaryOp(
+  static Object inplaceBinaryOp(
       TokenKind op, Object x, Object y, StarlarkThread thread, Location location)
       throws EvalException, InterruptedException {
     // list += iterable  behaves like  list.extend(iterable)
@@ -449,12 +473,7 @@ final class Eval {
           for (DictExpression.Entry entry : dictexpr.getEntries()) {
             Object k = eval(thread, entry.getKey());
             Object v = eval(thread, entry.getValue());
-            int before = dict.size();
-            dict.put(k, v, loc, thread);
-            if (dict.size() == before) {
-              throw new EvalException(
-                  loc, "Duplicated key " + Printer.repr(k) + " when creating dictionary");
-            }
+            putDictEntry(dict, k, v, loc, thread);
           }
           return dict;
         }
@@ -491,50 +510,7 @@ final class Eval {
         }
 
       case IDENTIFIER:
-        {
-          Identifier id = (Identifier) expr;
-          String name = id.getName();
-          if (id.getScope() == null) {
-            // Legacy behavior, to be removed.
-            Object result = thread.lookup(name);
-            if (result == null) {
-              String error =
-                  ValidationEnvironment.createInvalidIdentifierException(
-                      id.getName(), thread.getVariableNames());
-              throw new EvalException(id.getLocation(), error);
-            }
-            return result;
-          }
-
-          Object result;
-          switch (id.getScope()) {
-            case Local:
-              result = thread.localLookup(name);
-              break;
-            case Module:
-              result = thread.moduleLookup(name);
-              break;
-            case Universe:
-              result = thread.universeLookup(name);
-              break;
-            default:
-              throw new IllegalStateException(id.getScope().toString());
-          }
-          if (result == null) {
-            // Since Scope was set, we know that the variable is defined in the scope.
-            // However, the assignment was not yet executed.
-            String error = ValidationEnvironment.getErrorForObsoleteThreadLocalVars(id.getName());
-            if (error == null) {
-              error =
-                  id.getScope().getQualifier()
-                      + " variable '"
-                      + name
-                      + "' is referenced before assignment.";
-            }
-            throw new EvalException(id.getLocation(), error);
-          }
-          return result;
-        }
+        return evalIdentifier(thread, (Identifier) expr);
 
       case INDEX:
         {
@@ -612,6 +588,68 @@ final class Eval {
     throw new IllegalArgumentException("unexpected expression: " + expr.kind());
   }
 
+  static Object evalIdentifier(StarlarkThread thread, Identifier id) throws EvalException {
+    String name = id.getName();
+    if (id.getScope() == null) {
+      // Legacy behavior, to be removed.
+      Object result = thread.lookup(name);
+      if (result == null) {
+        String error =
+            ValidationEnvironment.createInvalidIdentifierException(
+                id.getName(), thread.getVariableNames());
+        throw new EvalException(id.getLocation(), error);
+      }
+      return result;
+    }
+
+    Object result;
+    switch (id.getScope()) {
+      case Local:
+        int slot = id.getSlot();
+        result = slot >= 0 ? thread.slotLookup(slot, name) : thread.localLookup(name);
+        break;
+      case Module:
+        result = thread.moduleLookup(name);
+        break;
+      case Universe:
+        result = thread.universeLookup(name);
+        break;
+      default:
+        throw new IllegalStateException(id.getScope().toString());
+    }
+    if (result == null) {
+      throw referencedBeforeAssignment(id);
+    }
+    return result;
+  }
+
+  /** Returns the error for an identifier whose scope is known, but which is not yet bound. */
+  static EvalException referencedBeforeAssignment(Identifier id) {
+    // Since Scope was set, we know that the variable is defined in the scope.
+    // However, the assignment was not yet executed.
+    String error = ValidationEnvironment.getErrorForObsoleteThreadLocalVars(id.getName());
+    if (error == null) {
+      error =
+          id.getScope().getQualifier()
+              + " variable '"
+              + id.getName()
+              + "' is referenced before assignment.";
+    }
+    return new EvalException(id.getLocation(), error);
+  }
+
+  /** Adds an entry of a dict literal to the dict being created. */
+  static void putDictEntry(
+      SkylarkDict<Object, Object> dict, Object k, Object v, Location loc, StarlarkThread thread)
+      throws EvalException {
+    int before = dict.size();
+    dict.put(k, v, loc, thread);
+    if (dict.size() == before) {
+      throw new EvalException(
+          loc, "Duplicated key " + Printer.repr(k) + " when creating dictionary");
+    }
+  }
+
   private static Object evalComprehension(StarlarkThread thread, Comprehension comp)
       throws EvalException, InterruptedException {
     final SkylarkDict<Object, Object> dict = comp.isDict() ? SkylarkDict.of(thread) : null;
@@ -692,7 +730,7 @@ final class Eval {
   }
 
   /** Returns an exception which should be thrown instead of the original one. */
-  private static EvalException maybeTransformException(Node node, EvalException original) {
+  static EvalException maybeTransformException(Node node, EvalException original) {
     // If there is already a non-empty stack trace, we only add this node iff it describes a
     // new scope (e.g. FuncallExpression).
     if (original instanceof EvalExceptionWithStackTrace) {
@@ -712,7 +750,7 @@ final class Eval {
 
   /** Throws the correct error message if the result is null depending on the objValue. */
   // TODO(adonovan): inline sole call and simplify.
-  private static Object checkResult(
+  static Object checkResult(
       Object objValue, Object result, String name, Location loc, StarlarkSemantics semantics)
       throws EvalException {
     if (result != null) {
@@ -769,7 +807,6 @@ final class Eval {
    *     here instead of an immutable map builder to deal with duplicates without memory overhead
    * @param thread the Starlark thread for the call
    */
-  @SuppressWarnings("unchecked")
   private static void evalArguments(
       StarlarkThread thread,
       FuncallExpression call,
@@ -787,40 +824,67 @@ final class Eval {
     for (int i = 0; i < call.getArguments().size(); i++) {
       Argument arg = call.getArguments().get(i);
       Object value = eval(thread, arg.getValue());
-      if (arg instanceof Argument.Positional) {
-        // f(expr)
-        posargs.add(value);
-      } else if (arg instanceof Argument.Star) {
-        // f(*args): expand args
-        if (!(value instanceof Iterable)) {
-          throw new EvalException(
-              call.getLocation(),
-              "argument after * must be an iterable, not " + EvalUtils.getDataTypeName(value));
-        }
-        for (Object starArgUnit : (Iterable<Object>) value) {
-          posargs.add(starArgUnit);
-        }
-      } else if (arg instanceof Argument.StarStar) {
-        // f(**kwargs): expand kwargs
-        ImmutableList<String> duplicates =
-            addKeywordArgsAndReturnDuplicates(kwargs, value, call.getLocation());
-        if (duplicates != null) {
-          if (duplicatesBuilder == null) {
-            duplicatesBuilder = ImmutableList.builder();
-          }
-          duplicatesBuilder.addAll(duplicates);
+      duplicatesBuilder = addArgument(call, arg, value, posargs, kwargs, duplicatesBuilder);
+    }
+    checkDuplicateKeywords(call, duplicatesBuilder);
+  }
+
+  /**
+   * Adds the evaluated value of one argument of a call to {@code posargs} or {@code kwargs}.
+   *
+   * @param duplicatesBuilder the keywords that were found to be duplicates so far, or null if none
+   * @return the keywords that were found to be duplicates so far, or null if none
+   */
+  @Nullable
+  @SuppressWarnings("unchecked")
+  static ImmutableList.Builder<String> addArgument(
+      FuncallExpression call,
+      Argument arg,
+      Object value,
+      List<Object> posargs,
+      Map<String, Object> kwargs,
+      @Nullable ImmutableList.Builder<String> duplicatesBuilder)
+      throws EvalException {
+    if (arg instanceof Argument.Positional) {
+      // f(expr)
+      posargs.add(value);
+    } else if (arg instanceof Argument.Star) {
+      // f(*args): expand args
+      if (!(value instanceof Iterable)) {
+        throw new EvalException(
+            call.getLocation(),
+            "argument after * must be an iterable, not " + EvalUtils.getDataTypeName(value));
+      }
+      for (Object starArgUnit : (Iterable<Object>) value) {
+        posargs.add(starArgUnit);
+      }
+    } else if (arg instanceof Argument.StarStar) {
+      // f(**kwargs): expand kwargs
+      ImmutableList<String> duplicates =
+          addKeywordArgsAndReturnDuplicates(kwargs, value, call.getLocation());
+      if (duplicates != null) {
+        if (duplicatesBuilder == null) {
+          duplicatesBuilder = ImmutableList.builder();
         }
-      } else {
-        // f(id=expr)
-        String name = arg.getName();
-        if (addKeywordArgAndCheckIfDuplicate(kwargs, name, value)) {
-          if (duplicatesBuilder == null) {
-            duplicatesBuilder = ImmutableList.builder();
-          }
-          duplicatesBuilder.add(name);
+        duplicatesBuilder.addAll(duplicates);
+      }
+    } else {
+      // f(id=expr)
+      String name = arg.getName();
+      if (addKeywordArgAndCheckIfDuplicate(kwargs, name, value)) {
+        if (duplicatesBuilder == null) {
+          duplicatesBuilder = ImmutableList.builder();
         }
+        duplicatesBuilder.add(name);
       }
     }
+    return duplicatesBuilder;
+  }
+
+  /** Fails if any keyword was passed more than once to a call. */
+  static void checkDuplicateKeywords(
+      FuncallExpression call, @Nullable ImmutableList.Builder<String> duplicatesBuilder)
+      throws EvalException {
     if (duplicatesBuilder != null) {
       ImmutableList<String> dups = duplicatesBuilder.build();
       throw new EvalException(
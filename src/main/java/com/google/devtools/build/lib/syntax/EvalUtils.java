@@ -1118,7 +1118,15 @@ public final class EvalUtils {
   /** Executes a parsed, validated Starlark file in a given StarlarkThread. */
   public static void exec(StarlarkFile file, StarlarkThread thread)
       throws EvalException, InterruptedException {
-    Eval.execFile(thread, file);
+    boolean running = RunningThreads.enabled;
+    StarlarkThread previous = running ? RunningThreads.enter(thread) : null;
+    try {
+      Eval.execFile(thread, file);
+    } finally {
+      if (running) {
+        RunningThreads.exit(previous);
+      }
+    }
   }
 
   /**
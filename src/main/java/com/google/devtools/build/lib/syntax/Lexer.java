@@ -89,6 +89,9 @@ final class Lexer {
 
   private final List<Comment> comments;
 
+  // The identifiers and simple string literals scanned so far.
+  private final StringTable strings = new StringTable();
+
   // The number of unclosed open-parens ("(", '{', '[') at the current point in
   // the stream. Whitespace is handled differently when this is nonzero.
   private int openParenStackDepth = 0;
@@ -542,7 +545,10 @@ final class Lexer {
           if (c == quot) {
             // close-quote, all done.
             setToken(
-                TokenKind.STRING, literalStartPos, pos, bufferSlice(contentStartPos, pos - 1));
+                TokenKind.STRING,
+                literalStartPos,
+                pos,
+                strings.intern(buffer, contentStartPos, pos - 1));
             return;
           }
           break;
@@ -635,10 +641,10 @@ final class Lexer {
           pos++;
           break;
        default:
-          return bufferSlice(oldPos, pos);
+          return strings.intern(buffer, oldPos, pos);
       }
     }
-    return bufferSlice(oldPos, pos);
+    return strings.intern(buffer, oldPos, pos);
   }
 
   private String scanInteger() {
@@ -955,4 +961,69 @@ final class Lexer {
   private void makeComment(int start, int end, String content) {
     comments.add(Node.setLocation(createLocation(start, end), new Comment(content)));
   }
+
+  /**
+   * A hash table of the strings scanned from the buffer, so that the text of an identifier or
+   * string literal is copied out of the buffer only the first time it occurs in the file. Later
+   * occurrences are looked up by their position in the buffer, without allocating, and share the
+   * String. Generated BUILD files repeat the same attribute names and labels many times.
+   */
+  private static final class StringTable {
+    private String[] table = new String[256]; // length is a power of two
+    private int size;
+
+    /** Returns the string with the characters of {@code buffer} from start to end. */
+    String intern(char[] buffer, int start, int end) {
+      int hash = 0; // as String.hashCode
+      for (int i = start; i < end; i++) {
+        hash = 31 * hash + buffer[i];
+      }
+      int mask = table.length - 1;
+      for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+        String s = table[i];
+        if (s == null) {
+          s = new String(buffer, start, end - start);
+          table[i] = s;
+          if (++size * 2 > table.length) {
+            grow();
+          }
+          return s;
+        }
+        if (s.hashCode() == hash && contentEquals(s, buffer, start, end)) {
+          return s;
+        }
+      }
+    }
+
+    private static boolean contentEquals(String s, char[] buffer, int start, int end) {
+      if (s.length() != end - start) {
+        return false;
+      }
+      for (int i = start; i < end; i++) {
+        if (s.charAt(i - start) != buffer[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void grow() {
+      String[] old = table;
+      table = new String[old.length * 2];
+      int mask = table.length - 1;
+      for (String s : old) {
+        if (s != null) {
+          int i = spread(s.hashCode()) & mask;
+          while (table[i] != null) {
+            i = (i + 1) & mask;
+          }
+          table[i] = s;
+        }
+      }
+    }
+
+    private static int spread(int hash) {
+      return hash ^ (hash >>> 16);
+    }
+  }
 }
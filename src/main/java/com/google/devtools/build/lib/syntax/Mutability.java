@@ -18,8 +18,10 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.events.Location;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 /**
  * An object that manages the capability to mutate Skylark objects and their {@link
@@ -271,6 +273,44 @@ public final class Mutability implements AutoCloseable {
     freeze();
   }
 
+  /**
+   * Compacts the lists and dicts of this frozen {@code Mutability} that are reachable from {@code
+   * value} through lists, dicts and tuples: their mutable backing collections, which may have
+   * spare capacity and one hash entry per key, are replaced by exact-size immutable copies, and
+   * their {@code Mutability} by {@link #IMMUTABLE}, so that retaining them does not retain this
+   * {@code Mutability} either. Values of other {@code Mutability}s are neither compacted nor
+   * traversed.
+   *
+   * <p>Like {@link Freezable#unsafeShallowFreeze}, this rewrites fields of the values, so it must
+   * be called by the thread that evaluated them, before they are published to other threads. It is
+   * meant for values that outlive the evaluation, such as the globals of a module or the fields of
+   * the providers returned by a rule implementation.
+   */
+  public void compact(Object value) {
+    Preconditions.checkState(isFrozen, "cannot compact values before freezing their Mutability");
+    Set<Object> visitedTuples = Collections.newSetFromMap(new IdentityHashMap<>());
+    ArrayList<Object> stack = new ArrayList<>();
+    stack.add(value);
+    while (!stack.isEmpty()) {
+      Object x = stack.remove(stack.size() - 1);
+      if (x instanceof SkylarkList.MutableList) {
+        SkylarkList.MutableList<?> list = (SkylarkList.MutableList<?>) x;
+        if (list.mutability() == this && list.compact()) {
+          stack.addAll(list);
+        }
+      } else if (x instanceof SkylarkDict) {
+        SkylarkDict<?, ?> dict = (SkylarkDict<?, ?>) x;
+        if (dict.mutability() == this && dict.compact()) {
+          // Keys are hashable, hence immutable, so only the values may be ours.
+          stack.addAll(dict.values());
+        }
+      } else if (x instanceof SkylarkList.Tuple && visitedTuples.add(x)) {
+        // Tuples have no Mutability of their own, but may contain our lists and dicts.
+        stack.addAll((SkylarkList.Tuple<?>) x);
+      }
+    }
+  }
+
   /**
    * Returns whether {@link Freezable}s having this {@code Mutability} allow the {@link
    * #unsafeShallowFreeze} operation.
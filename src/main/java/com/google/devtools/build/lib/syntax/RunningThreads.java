@@ -0,0 +1,70 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.collect.ImmutableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * Records which Java threads are executing Starlark code, and in which {@link StarlarkThread}, so
+ * that a sampling profiler can inspect their call stacks from another thread.
+ *
+ * <p>Like {@link Callstack}, this is needed by profiling tools only. It should not be used by
+ * normal Starlark interpreter logic.
+ */
+public final class RunningThreads {
+
+  // This field should be read, but not written, directly in order to avoid the overhead of a
+  // method call.
+  static volatile boolean enabled;
+
+  private static final ConcurrentHashMap<Thread, StarlarkThread> threads =
+      new ConcurrentHashMap<>();
+
+  private RunningThreads() {}
+
+  /** Starts or stops recording the running threads. */
+  public static void setEnabled(boolean enabled) {
+    RunningThreads.enabled = enabled;
+    if (!enabled) {
+      threads.clear();
+    }
+  }
+
+  /**
+   * Records that the current Java thread executes code in {@code thread}, and returns the
+   * StarlarkThread it was executing before, which must be passed to {@link #exit}.
+   */
+  @Nullable
+  static StarlarkThread enter(StarlarkThread thread) {
+    return threads.put(Thread.currentThread(), thread);
+  }
+
+  /** Undoes the matching call to {@link #enter}. */
+  static void exit(@Nullable StarlarkThread previous) {
+    if (!enabled) {
+      return; // recording was stopped, and the threads cleared
+    } else if (previous != null) {
+      threads.put(Thread.currentThread(), previous);
+    } else {
+      threads.remove(Thread.currentThread());
+    }
+  }
+
+  /** Returns the Java threads that are executing Starlark code, and their StarlarkThreads. */
+  public static ImmutableMap<Thread, StarlarkThread> get() {
+    return ImmutableMap.copyOf(threads);
+  }
+}
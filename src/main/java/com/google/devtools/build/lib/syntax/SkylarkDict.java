@@ -15,6 +15,7 @@
 package com.google.devtools.build.lib.syntax;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.skylarkinterface.Param;
@@ -80,9 +81,13 @@ import javax.annotation.Nullable;
 public final class SkylarkDict<K, V> extends MutableMap<K, V>
     implements Map<K, V>, SkylarkIndexable {
 
-  private final LinkedHashMap<K, V> contents = new LinkedHashMap<>();
+  /** A {@link LinkedHashMap}, or an {@link ImmutableMap} once {@link #compact} has been called. */
+  private Map<K, V> contents = new LinkedHashMap<>();
 
-  /** Final except for {@link #unsafeShallowFreeze}; must not be modified any other way. */
+  /**
+   * Final except for {@link #unsafeShallowFreeze} and {@link #compact}; must not be modified any
+   * other way.
+   */
   private Mutability mutability;
 
   private SkylarkDict(@Nullable Mutability mutability) {
@@ -351,6 +356,26 @@ public final class SkylarkDict<K, V> extends MutableMap<K, V>
     this.mutability = Mutability.IMMUTABLE;
   }
 
+  /**
+   * Replaces the contents of this dict by an immutable copy, if its {@link Mutability} is frozen.
+   * The copy keeps the insertion order, and stores its entries in arrays rather than in one linked
+   * hash entry per key. Returns true if the dict was compacted by this call.
+   *
+   * <p>Must only be called before the dict is visible to other threads; see {@link
+   * Mutability#compact}.
+   */
+  boolean compact() {
+    if (!mutability.isFrozen() || mutability == Mutability.IMMUTABLE) {
+      return false;
+    }
+    if (!contents.containsKey(null) && !contents.containsValue(null)) {
+      // Values converted from Java maps may be null, which ImmutableMap does not support.
+      contents = ImmutableMap.copyOf(contents);
+    }
+    mutability = Mutability.IMMUTABLE;
+    return true;
+  }
+
   @Override
   protected Map<K, V> getContentsUnsafe() {
     return contents;
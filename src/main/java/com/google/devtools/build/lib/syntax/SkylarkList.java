@@ -230,9 +230,13 @@ public abstract class SkylarkList<E> extends BaseMutableList<E>
               + "Lists are mutable, as in Python.")
   public static final class MutableList<E> extends SkylarkList<E> {
 
-    private final ArrayList<E> contents;
+    /** An {@link ArrayList}, or an {@link ImmutableList} once {@link #compact} has been called. */
+    private List<E> contents;
 
-    /** Final except for {@link #unsafeShallowFreeze}; must not be modified any other way. */
+    /**
+     * Final except for {@link #unsafeShallowFreeze} and {@link #compact}; must not be modified any
+     * other way.
+     */
     private Mutability mutability;
 
     private MutableList(
@@ -325,8 +329,31 @@ public abstract class SkylarkList<E> extends BaseMutableList<E>
       return false;
     }
 
+    /**
+     * Replaces the contents of this list by an exact-size immutable copy, if its {@link Mutability}
+     * is frozen. Lists with null elements are trimmed to size instead. Returns true if the list was
+     * compacted by this call.
+     *
+     * <p>Must only be called before the list is visible to other threads; see {@link
+     * Mutability#compact}.
+     */
+    boolean compact() {
+      if (!mutability.isFrozen() || mutability == Mutability.IMMUTABLE) {
+        return false;
+      }
+      if (contents.contains(null)) {
+        // Values converted from Java lists may be null, which ImmutableList does not support.
+        ((ArrayList<E>) contents).trimToSize();
+      } else {
+        contents = ImmutableList.copyOf(contents);
+      }
+      mutability = Mutability.IMMUTABLE;
+      return true;
+    }
+
     @Override
     public ImmutableList<E> getImmutableList() {
+      // ImmutableList.copyOf returns an ImmutableList argument as is.
       return ImmutableList.copyOf(contents);
     }
 
@@ -350,8 +377,8 @@ public abstract class SkylarkList<E> extends BaseMutableList<E>
       return new MutableList<>(newContents, mutability);
     }
 
-    /** More efficient {@link List#addAll} replacement when both lists are {@link ArrayList}s. */
-    private static <T> void addAll(ArrayList<T> addTo, ArrayList<? extends T> addFrom) {
+    /** More efficient {@link List#addAll} replacement when both lists are random-access. */
+    private static <T> void addAll(ArrayList<T> addTo, List<? extends T> addFrom) {
       // Hot code path, skip iterator.
       for (int i = 0; i < addFrom.size(); i++) {
         addTo.add(addFrom.get(i));
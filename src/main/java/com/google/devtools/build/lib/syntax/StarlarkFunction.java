@@ -14,12 +14,15 @@
 package com.google.devtools.build.lib.syntax;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.profiler.SilentCloseable;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkPrinter;
 import com.google.devtools.build.lib.syntax.StarlarkThread.LexicalFrame;
+import com.google.devtools.build.lib.syntax.StarlarkThread.SlotFrame;
+import javax.annotation.Nullable;
 
 /** A StarlarkFunction is the function value created by a Starlark {@code def} statement. */
 public final class StarlarkFunction extends BaseFunction {
@@ -29,6 +32,15 @@ public final class StarlarkFunction extends BaseFunction {
   // we close over the globals at the time of definition
   private final Module definitionGlobals;
 
+  // The slot of each local variable, and the slot of each parameter in signature order, if the
+  // local variables were resolved by ValidationEnvironment; null otherwise.
+  @Nullable private final ImmutableMap<String, Integer> layout;
+  @Nullable private final int[] parameterSlots;
+
+  // The compiled statements, if --experimental_starlark_bytecode is enabled. Compiled on first call.
+  @Nullable private Bytecode bytecode;
+  private volatile boolean compiled;
+
   // TODO(adonovan): make this private. The CodecTests should go through interpreter to instantiate
   // such things.
   public StarlarkFunction(
@@ -38,9 +50,36 @@ public final class StarlarkFunction extends BaseFunction {
       ImmutableList<Object> defaultValues,
       ImmutableList<Statement> statements,
       Module definitionGlobals) {
+    this(name, location, signature, defaultValues, statements, definitionGlobals, null);
+  }
+
+  StarlarkFunction(
+      String name,
+      Location location,
+      FunctionSignature signature,
+      ImmutableList<Object> defaultValues,
+      ImmutableList<Statement> statements,
+      Module definitionGlobals,
+      @Nullable ImmutableList<String> locals) {
     super(name, signature, defaultValues, location);
     this.statements = statements;
     this.definitionGlobals = definitionGlobals;
+    if (locals == null) {
+      this.layout = null;
+      this.parameterSlots = null;
+      return;
+    }
+    ImmutableMap.Builder<String, Integer> layout = ImmutableMap.builder();
+    for (int i = 0; i < locals.size(); i++) {
+      layout.put(locals.get(i), i);
+    }
+    this.layout = layout.build();
+    // The signature lists mandatory parameters before optional ones, unlike the def statement.
+    ImmutableList<String> names = signature.getParameterNames();
+    this.parameterSlots = new int[names.size()];
+    for (int i = 0; i < names.size(); i++) {
+      parameterSlots[i] = this.layout.get(names.get(i));
+    }
   }
 
   public ImmutableList<Statement> getStatements() {
@@ -66,7 +105,10 @@ public final class StarlarkFunction extends BaseFunction {
     }
 
     ImmutableList<String> names = signature.getParameterNames();
-    LexicalFrame lexicalFrame = LexicalFrame.create(thread.mutability(), /*numArgs=*/ names.size());
+    LexicalFrame lexicalFrame =
+        layout != null
+            ? new SlotFrame(thread.mutability(), layout)
+            : LexicalFrame.create(thread.mutability(), /*numArgs=*/ names.size());
     try (SilentCloseable c =
         Profiler.instance().profile(ProfilerTask.STARLARK_USER_FN, getName())) {
       thread.enterScope(this, lexicalFrame, ast, definitionGlobals);
@@ -74,15 +116,37 @@ public final class StarlarkFunction extends BaseFunction {
       // Registering the functions's arguments as variables in the local StarlarkThread
       // foreach loop is not used to avoid iterator overhead
       for (int i = 0; i < names.size(); ++i) {
-        thread.update(names.get(i), arguments[i]);
+        if (parameterSlots != null) {
+          thread.slotUpdate(parameterSlots[i], names.get(i), arguments[i]);
+        } else {
+          thread.update(names.get(i), arguments[i]);
+        }
       }
 
+      // The allocation tracker relies on Eval to maintain the Callstack.
+      if (thread.getSemantics().experimentalStarlarkBytecode() && !Callstack.enabled) {
+        Bytecode code = getBytecode();
+        if (code != null) {
+          return code.exec(thread);
+        }
+      }
       return Eval.execStatements(thread, statements);
     } finally {
       thread.exitScope();
     }
   }
 
+  /** Returns the compiled statements, or null if they can only be executed by {@link Eval}. */
+  @Nullable
+  private Bytecode getBytecode() {
+    // Racing threads may both compile the statements, which is harmless.
+    if (!compiled) {
+      bytecode = Compiler.compile(statements);
+      compiled = true;
+    }
+    return bytecode;
+  }
+
   @Override
   public void repr(SkylarkPrinter printer) {
     Object label = this.definitionGlobals.getLabel();
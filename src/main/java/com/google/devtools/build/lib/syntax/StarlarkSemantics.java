@@ -144,6 +144,8 @@ public abstract class StarlarkSemantics {
 
   public abstract boolean experimentalPlatformsApi();
 
+  public abstract boolean experimentalStarlarkBytecode();
+
   public abstract boolean experimentalStarlarkConfigTransitions();
 
   public abstract boolean experimentalStarlarkUnusedInputsList();
@@ -256,6 +258,7 @@ public abstract class StarlarkSemantics {
           .experimentalEnableAndroidMigrationApis(false)
           .experimentalGoogleLegacyApi(false)
           .experimentalPlatformsApi(false)
+          .experimentalStarlarkBytecode(false)
           .experimentalStarlarkConfigTransitions(true)
           .experimentalStarlarkUnusedInputsList(true)
           .experimentalCcSharedLibrary(false)
@@ -315,6 +318,8 @@ public abstract class StarlarkSemantics {
 
     public abstract Builder experimentalPlatformsApi(boolean value);
 
+    public abstract Builder experimentalStarlarkBytecode(boolean value);
+
     public abstract Builder experimentalStarlarkConfigTransitions(boolean value);
 
     public abstract Builder experimentalStarlarkUnusedInputsList(boolean value);
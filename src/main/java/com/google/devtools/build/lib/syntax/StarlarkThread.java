@@ -104,9 +104,9 @@ import javax.annotation.Nullable;
 // We will remove the FuncallExpression parameter from StarlarkFunction.call.
 // Clients should use getCallerLocation instead.
 // The Continuation class should be deleted.
-// Once the API is small and sound, we can start to represent all
-// the lexical frames within a single function using just an array,
-// indexed by a small integer computed during the validation pass.
+// Once the API is small and sound, we can represent all the lexical
+// frames using just arrays, indexed by a small integer computed during
+// the validation pass, as SlotFrame already does for validated functions.
 public final class StarlarkThread implements Freezable {
 
   /**
@@ -180,6 +180,99 @@ public final class StarlarkThread implements Freezable {
     }
   }
 
+  /**
+   * The lexical frame of a call to a {@link StarlarkFunction} whose local variables were resolved
+   * to slots by {@link ValidationEnvironment}. Variables are stored in an array indexed by slot;
+   * name-based accesses, from unvalidated expressions such as those of the debugger, go through
+   * the layout of the function, and names it does not know are kept in a separate map.
+   */
+  static final class SlotFrame implements LexicalFrame {
+    private final Mutability mutability;
+    // The slot of each local variable of the function, in slot order.
+    private final ImmutableMap<String, Integer> layout;
+    private final Object[] values;
+    @Nullable private LinkedHashMap<String, Object> others;
+
+    SlotFrame(Mutability mutability, ImmutableMap<String, Integer> layout) {
+      Preconditions.checkState(!mutability.isFrozen());
+      this.mutability = mutability;
+      this.layout = layout;
+      this.values = new Object[layout.size()];
+    }
+
+    /** Returns the value of the variable in the given slot, or null if it is unbound. */
+    @Nullable
+    Object get(int slot) {
+      return values[slot];
+    }
+
+    /** Binds the variable in the given slot. */
+    void put(int slot, Object value) throws MutabilityException {
+      Mutability.checkMutable(this, mutability);
+      values[slot] = value;
+    }
+
+    @Override
+    public Mutability mutability() {
+      return mutability;
+    }
+
+    @Nullable
+    @Override
+    public Object get(String varname) {
+      Integer slot = layout.get(varname);
+      if (slot != null) {
+        return values[slot];
+      }
+      return others == null ? null : others.get(varname);
+    }
+
+    @Override
+    public void put(String varname, Object value) throws MutabilityException {
+      Mutability.checkMutable(this, mutability);
+      Integer slot = layout.get(varname);
+      if (slot != null) {
+        values[slot] = value;
+      } else {
+        if (others == null) {
+          others = new LinkedHashMap<>();
+        }
+        others.put(varname, value);
+      }
+    }
+
+    @Override
+    public void remove(String varname) throws MutabilityException {
+      Mutability.checkMutable(this, mutability);
+      Integer slot = layout.get(varname);
+      if (slot != null) {
+        values[slot] = null;
+      } else if (others != null) {
+        others.remove(varname);
+      }
+    }
+
+    @Override
+    public Map<String, Object> getTransitiveBindings() {
+      LinkedHashMap<String, Object> bindings = Maps.newLinkedHashMapWithExpectedSize(values.length);
+      for (Map.Entry<String, Integer> e : layout.entrySet()) {
+        Object value = values[e.getValue()];
+        if (value != null) {
+          bindings.put(e.getKey(), value);
+        }
+      }
+      if (others != null) {
+        bindings.putAll(others);
+      }
+      return bindings;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("<SlotFrame%s>", mutability());
+    }
+  }
+
   private static final class ImmutableEmptyLexicalFrame implements LexicalFrame {
     private static final ImmutableEmptyLexicalFrame INSTANCE = new ImmutableEmptyLexicalFrame();
 
@@ -818,6 +911,37 @@ public final class StarlarkThread implements Freezable {
     }
   }
 
+  /**
+   * Returns the value of the local variable that {@link ValidationEnvironment} resolved to the
+   * given slot of the current function, or null if it is unbound.
+   */
+  Object slotLookup(int slot, String varname) {
+    Frame frame = lexicalFrame;
+    if (frame instanceof SlotFrame) {
+      return ((SlotFrame) frame).get(slot);
+    }
+    // The function was created without the layout of its frame.
+    return frame.get(varname);
+  }
+
+  /**
+   * Binds the local variable that {@link ValidationEnvironment} resolved to the given slot of the
+   * current function.
+   */
+  void slotUpdate(int slot, String varname, Object value) {
+    Frame frame = lexicalFrame;
+    if (!(frame instanceof SlotFrame)) {
+      update(varname, value);
+      return;
+    }
+    try {
+      ((SlotFrame) frame).put(slot, value);
+    } catch (MutabilityException e) {
+      throw new AssertionError(
+          Printer.format("Can't update %s to %r in frozen environment", varname, value), e);
+    }
+  }
+
   /**
    * Returns the value of a variable defined in Local scope. Do not search in any parent scope. This
    * function should be used once the AST has been analysed and we know which variables are local.
@@ -924,6 +1048,39 @@ public final class StarlarkThread implements Freezable {
     return frameListBuilder.build();
   }
 
+  /**
+   * Returns the call stack of this thread, innermost frame first, without bindings. The location of
+   * each frame is that of the call to the next inner frame; for the innermost frame it is the
+   * location of the function itself. (Profiler API)
+   *
+   * <p>Unlike {@link #listFrames}, this may be called by a thread other than the one executing the
+   * code, such as a sampling profiler, in which case the result may be slightly out of date.
+   */
+  public ImmutableList<DebugFrame> getCallStack() {
+    ImmutableList.Builder<DebugFrame> frames = ImmutableList.builder();
+    Continuation currentContinuation = continuation;
+    Location currentLocation =
+        currentContinuation != null ? currentContinuation.function.getLocation() : null;
+    while (currentContinuation != null) {
+      frames.add(
+          DebugFrame.builder()
+              .setGlobalBindings(ImmutableMap.of())
+              .setFunctionName(currentContinuation.function.getName())
+              .setLocation(currentLocation)
+              .build());
+      currentLocation =
+          currentContinuation.caller != null ? currentContinuation.caller.getLocation() : null;
+      currentContinuation = currentContinuation.continuation;
+    }
+    frames.add(
+        DebugFrame.builder()
+            .setGlobalBindings(ImmutableMap.of())
+            .setFunctionName("<top level>")
+            .setLocation(currentLocation)
+            .build());
+    return frames.build();
+  }
+
   /**
    * Given a requested stepping behavior, returns a predicate over the context that tells the
    * debugger when to pause. (Debugger API)
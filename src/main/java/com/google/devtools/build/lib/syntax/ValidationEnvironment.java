@@ -15,6 +15,7 @@
 package com.google.devtools.build.lib.syntax;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.util.SpellChecker;
@@ -89,10 +90,14 @@ public final class ValidationEnvironment extends NodeVisitor {
     private final Map<String, Identifier> variables = new HashMap<>();
     private final Scope scope;
     @Nullable private final Block parent;
+    // The local variables of the enclosing function, indexed by slot. Comprehensions within a
+    // function share the list of the function; it is null outside functions.
+    @Nullable private final List<String> locals;
 
-    Block(Scope scope, @Nullable Block parent) {
+    Block(Scope scope, @Nullable Block parent, @Nullable List<String> locals) {
       this.scope = scope;
       this.parent = parent;
+      this.locals = locals;
     }
   }
 
@@ -116,7 +121,7 @@ public final class ValidationEnvironment extends NodeVisitor {
     this.module = module;
     this.semantics = semantics;
     this.isBuildFile = isBuildFile;
-    block = new Block(Scope.Universe, null);
+    block = new Block(Scope.Universe, null, null);
     for (String name : module.getNames()) {
       block.variables.put(name, PREDECLARED);
     }
@@ -196,8 +201,8 @@ public final class ValidationEnvironment extends NodeVisitor {
     if (lhs instanceof Identifier) {
       if (!isBuildFile) {
         ((Identifier) lhs).setScope(block.scope);
+        setSlot((Identifier) lhs, block);
       }
-      // no-op
     } else if (lhs instanceof IndexExpression) {
       visit(lhs);
     } else if (lhs instanceof ListExpression) {
@@ -228,6 +233,14 @@ public final class ValidationEnvironment extends NodeVisitor {
     // because some AST nodes are shared across multipe ASTs (due to the prelude file).
     if (!isBuildFile) {
       node.setScope(b.scope);
+      setSlot(node, b);
+    }
+  }
+
+  /** Resolves a local variable of a function to its slot in the frame of the function. */
+  private static void setSlot(Identifier id, Block b) {
+    if (b.scope == Scope.Local && b.locals != null) {
+      id.setSlot(b.locals.indexOf(id.getName()));
     }
   }
 
@@ -343,7 +356,7 @@ public final class ValidationEnvironment extends NodeVisitor {
         visit(param.getDefaultValue());
       }
     }
-    openBlock(Scope.Local);
+    block = new Block(Scope.Local, block, new ArrayList<>());
     for (Parameter param : node.getParameters()) {
       if (param.getIdentifier() != null) {
         declare(param.getIdentifier());
@@ -351,6 +364,9 @@ public final class ValidationEnvironment extends NodeVisitor {
     }
     collectDefinitions(node.getStatements());
     visitAll(node.getStatements());
+    if (!isBuildFile) {
+      node.setLocals(ImmutableList.copyOf(block.locals));
+    }
     closeBlock();
   }
 
@@ -382,6 +398,10 @@ public final class ValidationEnvironment extends NodeVisitor {
   /** Declare a variable and add it to the environment. */
   private void declare(Identifier id) {
     Identifier prev = block.variables.putIfAbsent(id.getName(), id);
+    // A comprehension variable shares the slot of a function variable of the same name.
+    if (block.locals != null && !block.locals.contains(id.getName())) {
+      block.locals.add(id.getName());
+    }
 
     // Symbols defined in the module scope cannot be reassigned.
     // TODO(laurentlb): Forbid reassignment in BUILD files too.
@@ -503,7 +523,7 @@ public final class ValidationEnvironment extends NodeVisitor {
 
   /** Open a new lexical block that will contain the future declarations. */
   private void openBlock(Scope scope) {
-    block = new Block(scope, block);
+    block = new Block(scope, block, block == null ? null : block.locals);
   }
 
   /** Close a lexical block (and lose all declarations it contained). */
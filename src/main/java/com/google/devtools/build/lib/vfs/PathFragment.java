@@ -15,7 +15,9 @@ package com.google.devtools.build.lib.vfs;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
 import com.google.devtools.build.lib.actions.CommandLineItem;
+import com.google.devtools.build.lib.concurrent.BlazeInterners;
 import com.google.devtools.build.lib.skyframe.serialization.DeserializationContext;
 import com.google.devtools.build.lib.skyframe.serialization.ObjectCodec;
 import com.google.devtools.build.lib.skyframe.serialization.SerializationContext;
@@ -61,9 +63,18 @@ public final class PathFragment
   public static final char SEPARATOR_CHAR = OS.getSeparator();
   public static final int INVALID_SEGMENT = -1;
 
+  private static final Interner<PathFragment> INTERNER = BlazeInterners.newWeakInterner();
+
   private final String normalizedPath;
   private final int driveStrLength; // 0 for relative paths, 1 on Unix, 3 on Windows
 
+  /**
+   * The {@link OsPathPolicy#hash} of {@link #normalizedPath}, or 0 if not computed yet. Computed
+   * lazily like {@link String#hashCode}, so that short-lived fragments never pay for it. It fits in
+   * the padding of the object on 64-bit JVMs, so it does not grow path fragments.
+   */
+  private int hashCode;
+
   /** Creates a new normalized path fragment. */
   public static PathFragment create(String path) {
     if (path.isEmpty()) {
@@ -102,6 +113,19 @@ public final class PathFragment
     return new PathFragment(normalizedPath, driveStrLength);
   }
 
+  /**
+   * Returns the canonical instance of the given path fragment, so that long-lived objects naming
+   * the same path, such as rooted paths, package identifiers and source artifacts, share one
+   * fragment and its string instead of each holding a copy.
+   *
+   * <p>On case-insensitive file systems, a fragment is only replaced by one of the same spelling, so
+   * that {@link #getPathString} never changes.
+   */
+  public static PathFragment intern(PathFragment pathFragment) {
+    PathFragment interned = INTERNER.intern(pathFragment);
+    return interned.normalizedPath.equals(pathFragment.normalizedPath) ? interned : pathFragment;
+  }
+
   /** This method expects path to already be normalized. */
   private PathFragment(String normalizedPath, int driveStrLength) {
     this.normalizedPath = Preconditions.checkNotNull(normalizedPath);
@@ -355,12 +379,22 @@ public final class PathFragment
     if (o == null || getClass() != o.getClass()) {
       return false;
     }
-    return OS.equals(this.normalizedPath, ((PathFragment) o).normalizedPath);
+    PathFragment other = (PathFragment) o;
+    // Path fragments are mostly compared as keys of hash tables, where both hash codes are known.
+    if (hashCode != 0 && other.hashCode != 0 && hashCode != other.hashCode) {
+      return false;
+    }
+    return OS.equals(this.normalizedPath, other.normalizedPath);
   }
 
   @Override
   public int hashCode() {
-    return OS.hash(this.normalizedPath);
+    int h = hashCode;
+    if (h == 0) {
+      h = OS.hash(this.normalizedPath);
+      hashCode = h;
+    }
+    return h;
   }
 
   @Override
@@ -44,7 +44,8 @@ public class RootedPath implements Serializable {
         rootRelativePath,
         root);
     this.root = root;
-    this.rootRelativePath = rootRelativePath;
+    // Rooted paths are retained in Skyframe keys and values for every file of the build.
+    this.rootRelativePath = PathFragment.intern(rootRelativePath);
   }
 
   /** Returns a rooted path representing {@code rootRelativePath} relative to {@code root}. */
@@ -35,12 +35,13 @@ import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.profiler.SilentCloseable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
@@ -111,6 +112,18 @@ public final class UnixGlob {
         .globAsync(base, patterns, excludeDirectories, dirPred, syscalls);
   }
 
+  private static List<Future<List<Path>>> globAsyncByPatternInternal(
+      Path base,
+      Collection<String> patterns,
+      boolean excludeDirectories,
+      Predicate<Path> dirPred,
+      FilesystemCalls syscalls,
+      Executor executor) {
+    Preconditions.checkNotNull(executor, "%s %s", base, patterns);
+    return new GlobVisitor(executor)
+        .globAsyncByPattern(base, patterns, excludeDirectories, dirPred, syscalls);
+  }
+
   /**
    * Checks that each pattern is valid, splits it into segments and checks
    * that each segment contains only valid wildcards.
@@ -433,6 +446,17 @@ public final class UnixGlob {
       return globAsyncInternal(
           base, patterns, excludeDirectories, pathFilter, syscalls.get(), executor);
     }
+
+    /**
+     * Executes the glob asynchronously, and returns the result of each pattern separately, in the
+     * order the patterns were added. The file system is still traversed once for all patterns.
+     * Canceling any of the returned futures cancels the whole glob. {@link #setExecutor} must have
+     * been called already with a non-null argument.
+     */
+    public List<Future<List<Path>>> globAsyncByPattern() {
+      return globAsyncByPatternInternal(
+          base, patterns, excludeDirectories, pathFilter, syscalls.get(), executor);
+    }
   }
 
   /**
@@ -472,15 +496,85 @@ public final class UnixGlob {
   }
 
   /**
-   * GlobVisitor executes a glob using parallelism, which is useful when
-   * the glob() requires many readdir() calls on high latency filesystems.
+   * The patterns of a glob, compiled into a single automaton, so that a directory is visited once
+   * for all of them.
+   *
+   * <p>The states of the automaton are the positions in the split patterns: state {@code s} either
+   * expects a path segment matching {@code segments[s]}, or, if that is null, is the final state of
+   * the pattern {@code patternOf[s]}. A <code>**</code> segment may match any number of path
+   * segments, including none.
+   */
+  private static final class GlobMatcher {
+    private final String[] segments;
+    private final int[] patternOf;
+    private final BitSet initialStates = new BitSet();
+
+    GlobMatcher(List<String[]> splitPatterns) {
+      int numStates = 0;
+      for (String[] splitPattern : splitPatterns) {
+        numStates += splitPattern.length + 1;
+      }
+      segments = new String[numStates];
+      patternOf = new int[numStates];
+      int state = 0;
+      for (int i = 0; i < splitPatterns.size(); i++) {
+        initialStates.set(state);
+        for (String segment : splitPatterns.get(i)) {
+          segments[state] = segment;
+          patternOf[state++] = i;
+        }
+        patternOf[state++] = i;
+      }
+      close(initialStates);
+    }
+
+    boolean isFinal(int state) {
+      return segments[state] == null;
+    }
+
+    boolean isRecursive(int state) {
+      return "**".equals(segments[state]);
+    }
+
+    /** Adds the states reachable from {@code states} by letting a <code>**</code> match nothing. */
+    void close(BitSet states) {
+      // A state is only ever followed by a greater one, which the iteration visits in turn.
+      for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+        if (isRecursive(s)) {
+          states.set(s + 1);
+        }
+      }
+    }
+
+    /** Returns whether any of the states expects more path segments. */
+    boolean hasNonFinal(BitSet states) {
+      for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+        if (!isFinal(s)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * GlobVisitor executes a glob using parallelism, which is useful when the glob() requires many
+   * readdir() calls on high latency filesystems.
+   *
+   * <p>All patterns are matched in a single traversal: each directory is read at most once, with
+   * the set of automaton states of {@link GlobMatcher} that reach it, and its subdirectories are
+   * queued as separate tasks, so that an executor such as a {@link
+   * java.util.concurrent.ForkJoinPool} can balance sibling subtrees across its threads. A
+   * directory is read with a single readdir(), whose entry types spare a stat() per entry, unless
+   * all its states expect a wildcard-free segment, in which case only those children are stat()ed.
    */
   private static final class GlobVisitor {
     // These collections are used across workers and must therefore be thread-safe.
-    private final Collection<Path> results = Sets.newConcurrentHashSet();
+    private final List<Set<Path>> results = new ArrayList<>();
     private final ConcurrentHashMap<String, Pattern> cache = new ConcurrentHashMap<>();
 
     private final GlobFuture result;
+    private final List<GlobFuture> resultsByPattern = new ArrayList<>();
     private final Executor executor;
     private final AtomicLong totalOps = new AtomicLong(0);
     private final AtomicLong pendingOps = new AtomicLong(0);
@@ -489,6 +583,11 @@ public final class UnixGlob {
     private final AtomicReference<Error> error = new AtomicReference<>();
     private volatile boolean canceled = false;
 
+    private GlobMatcher matcher;
+    private boolean excludeDirectories;
+    private Predicate<Path> dirPred;
+    private FilesystemCalls syscalls;
+
     GlobVisitor(Executor executor) {
       this.executor = executor;
       this.result = new GlobFuture(this);
@@ -534,10 +633,6 @@ public final class UnixGlob {
       }
     }
 
-    private static boolean isRecursivePattern(String pattern) {
-      return "**".equals(pattern);
-    }
-
     /**
      * Same as {@link #glob}, except does so asynchronously and returns a {@link Future} for the
      * result.
@@ -548,42 +643,66 @@ public final class UnixGlob {
         boolean excludeDirectories,
         Predicate<Path> dirPred,
         FilesystemCalls syscalls) {
+      ListenableFuture<List<Path>> immediate =
+          start(base, patterns, excludeDirectories, dirPred, syscalls);
+      return immediate != null ? immediate : result;
+    }
+
+    /**
+     * Same as {@link #globAsync}, except that it returns the result of each pattern separately, in
+     * the order of {@code patterns}. Canceling any of the futures cancels the whole traversal.
+     */
+    List<Future<List<Path>>> globAsyncByPattern(
+        Path base,
+        Collection<String> patterns,
+        boolean excludeDirectories,
+        Predicate<Path> dirPred,
+        FilesystemCalls syscalls) {
+      for (int i = 0; i < patterns.size(); i++) {
+        resultsByPattern.add(new GlobFuture(this));
+      }
+      ListenableFuture<List<Path>> immediate =
+          start(base, patterns, excludeDirectories, dirPred, syscalls);
+      return immediate != null
+          ? Collections.nCopies(patterns.size(), immediate)
+          : ImmutableList.copyOf(resultsByPattern);
+    }
 
+    /**
+     * Starts the traversal, or returns its result if it is known without one: an empty list if
+     * {@code base} is not a directory, or a failed future if it cannot be stat()ed.
+     */
+    private ListenableFuture<List<Path>> start(
+        Path base,
+        Collection<String> patterns,
+        boolean excludeDirectories,
+        Predicate<Path> dirPred,
+        FilesystemCalls syscalls) {
       FileStatus baseStat;
       try {
         baseStat = syscalls.statIfFound(base, Symlinks.FOLLOW);
       } catch (IOException e) {
         return Futures.immediateFailedFuture(e);
       }
-      if (baseStat == null || patterns.isEmpty()) {
+      if (baseStat == null || !baseStat.isDirectory() || patterns.isEmpty()) {
         return Futures.immediateFuture(Collections.<Path>emptyList());
       }
 
-      List<String[]> splitPatterns = checkAndSplitPatterns(patterns);
+      this.matcher = new GlobMatcher(checkAndSplitPatterns(patterns));
+      this.excludeDirectories = excludeDirectories;
+      this.dirPred = dirPred;
+      this.syscalls = syscalls;
+      for (int i = 0; i < patterns.size(); i++) {
+        results.add(Sets.newConcurrentHashSet());
+      }
 
-      // We do a dumb loop, even though it will likely duplicate logical work (note that the
-      // physical filesystem operations are cached). In order to optimize, we would need to keep
-      // track of which patterns shared sub-patterns and which did not (for example consider the
-      // glob [*/*.java, sub/*.java, */*.txt]).
       pendingOps.incrementAndGet();
       try {
-        for (String[] splitPattern : splitPatterns) {
-          int numRecursivePatterns = 0;
-          for (String pattern : splitPattern) {
-            if (isRecursivePattern(pattern)) {
-              ++numRecursivePatterns;
-            }
-          }
-          GlobTaskContext context = numRecursivePatterns > 1
-              ? new RecursiveGlobTaskContext(splitPattern, excludeDirectories, dirPred, syscalls)
-              : new GlobTaskContext(splitPattern, excludeDirectories, dirPred, syscalls);
-          context.queueGlob(base, baseStat.isDirectory(), 0);
-        }
+        queueDirectory(base, (BitSet) matcher.initialStates.clone());
       } finally {
         decrementAndCheckDone();
       }
-
-      return result;
+      return null;
     }
 
     private Throwable getMostSeriousThrowableSoFar() {
@@ -599,16 +718,14 @@ public final class UnixGlob {
       return null;
     }
 
-    /** Should only be called by link {@GlobTaskContext}. */
-    private void queueGlob(final Path base, final boolean baseIsDir, final int idx,
-        final GlobTaskContext context) {
+    private void queueDirectory(final Path directory, final BitSet states) {
       enqueue(
           new Runnable() {
             @Override
             public void run() {
               try (SilentCloseable c =
-                  Profiler.instance().profile(ProfilerTask.VFS_GLOB, base.getPathString())) {
-                reallyGlob(base, baseIsDir, idx, context);
+                  Profiler.instance().profile(ProfilerTask.VFS_GLOB, directory.getPathString())) {
+                visitDirectory(directory, states);
               } catch (IOException e) {
                 ioException.set(e);
               } catch (RuntimeException e) {
@@ -620,20 +737,21 @@ public final class UnixGlob {
 
             @Override
             public String toString() {
+              List<String> remaining = new ArrayList<>();
+              for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+                if (!matcher.isFinal(s)) {
+                  remaining.add(matcher.segments[s]);
+                }
+              }
               return String.format(
-                  "%s glob(include=[%s], exclude_directories=%s)",
-                  base.getPathString(),
-                  "\"" + Joiner.on("\", \"").join(context.patternParts) + "\"",
-                  context.excludeDirectories);
+                  "%s glob(segments=[%s], exclude_directories=%s)",
+                  directory.getPathString(),
+                  "\"" + Joiner.on("\", \"").join(remaining) + "\"",
+                  excludeDirectories);
             }
           });
     }
 
-    /** Should only be called by link {@GlobTaskContext}. */
-    private void queueTask(Runnable runnable) {
-      enqueue(runnable);
-    }
-
     protected void enqueue(final Runnable r) {
       totalOps.incrementAndGet();
       pendingOps.incrementAndGet();
@@ -673,162 +791,102 @@ public final class UnixGlob {
         Throwable mostSeriousThrowable = getMostSeriousThrowableSoFar();
         if (canceled) {
           result.markCanceled();
+          for (GlobFuture patternResult : resultsByPattern) {
+            patternResult.markCanceled();
+          }
         } else if (mostSeriousThrowable != null) {
           result.setException(mostSeriousThrowable);
+          for (GlobFuture patternResult : resultsByPattern) {
+            patternResult.setException(mostSeriousThrowable);
+          }
+        } else if (!resultsByPattern.isEmpty()) {
+          for (int i = 0; i < resultsByPattern.size(); i++) {
+            resultsByPattern.get(i).set(ImmutableList.copyOf(results.get(i)));
+          }
+        } else if (results.size() == 1) {
+          result.set(ImmutableList.copyOf(results.get(0)));
         } else {
-          result.set(ImmutableList.copyOf(results));
-        }
-      }
-    }
-
-    /** A context for evaluating all the subtasks of a single top-level glob task. */
-    private class GlobTaskContext {
-      private final String[] patternParts;
-      private final boolean excludeDirectories;
-      private final Predicate<Path> dirPred;
-      private final FilesystemCalls syscalls;
-
-      GlobTaskContext(
-          String[] patternParts,
-          boolean excludeDirectories,
-          Predicate<Path> dirPred,
-          FilesystemCalls syscalls) {
-        this.patternParts = patternParts;
-        this.excludeDirectories = excludeDirectories;
-        this.dirPred = dirPred;
-        this.syscalls = syscalls;
-      }
-
-      protected void queueGlob(Path base, boolean baseIsDir, int patternIdx) {
-        GlobVisitor.this.queueGlob(base, baseIsDir, patternIdx, this);
-      }
-
-      protected void queueTask(Runnable runnable) {
-        GlobVisitor.this.queueTask(runnable);
-      }
-    }
-
-    /**
-     * A special implementation of {@link GlobTaskContext} that dedupes glob subtasks. Our naive
-     * implementation of recursive patterns means there are multiple ways to enqueue the same
-     * logical subtask.
-     */
-    private class RecursiveGlobTaskContext extends GlobTaskContext {
-
-      private class GlobTask {
-        private final Path base;
-        private final int patternIdx;
-
-        private GlobTask(Path base, int patternIdx) {
-          this.base = base;
-          this.patternIdx = patternIdx;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-          if (!(obj instanceof GlobTask)) {
-            return false;
+          Set<Path> union = new HashSet<>();
+          for (Set<Path> patternResults : results) {
+            union.addAll(patternResults);
           }
-          GlobTask other = (GlobTask) obj;
-          return base.equals(other.base) && patternIdx == other.patternIdx;
-        }
-
-        @Override
-        public int hashCode() {
-          return Objects.hash(base, patternIdx);
-        }
-      }
-
-      private final Set<GlobTask> visitedGlobSubTasks = Sets.newConcurrentHashSet();
-
-      private RecursiveGlobTaskContext(
-          String[] patternParts,
-          boolean excludeDirectories,
-          Predicate<Path> dirPred,
-          FilesystemCalls syscalls) {
-        super(patternParts, excludeDirectories, dirPred, syscalls);
-      }
-
-      @Override
-      protected void queueGlob(Path base, boolean baseIsDir, int patternIdx) {
-        if (visitedGlobSubTasks.add(new GlobTask(base, patternIdx))) {
-          // This is a unique glob task. For example of how duplicates can arise, consider:
-          //   glob(['**/a/**/foo.txt'])
-          // with the only file being
-          //   a/a/foo.txt
-          //
-          // there are multiple ways to reach a/a/foo.txt: one route starts by recursively globbing
-          // 'a/**/foo.txt' in the base directory of the package, and another route starts by
-          // recursively globbing '**/a/**/foo.txt' in subdirectory 'a'.
-          super.queueGlob(base, baseIsDir, patternIdx);
+          result.set(ImmutableList.copyOf(union));
         }
       }
     }
 
     /**
-     * Expressed in Haskell:
-     *
-     * <pre>
-     *  reallyGlob base []     = { base }
-     *  reallyGlob base [x:xs] = union { reallyGlob(f, xs) | f results "base/x" }
-     * </pre>
+     * Matches the entries of {@code directory} against the segments expected by {@code states},
+     * which are closed under {@link GlobMatcher#close}, and queues the subdirectories that some
+     * pattern may descend into.
      */
-    private void reallyGlob(Path base, boolean baseIsDir, int idx, GlobTaskContext context)
-        throws IOException {
-      if (baseIsDir && !context.dirPred.apply(base)) {
+    private void visitDirectory(Path directory, BitSet states) throws IOException {
+      if (!dirPred.apply(directory)) {
         return;
       }
+      addMatches(directory, /*isDir=*/ true, states);
 
-      if (idx == context.patternParts.length) { // Base case.
-        if (!(context.excludeDirectories && baseIsDir)) {
-          results.add(base);
+      BitSet wildcardStates = new BitSet();
+      Map<String, BitSet> literalStates = new HashMap<>();
+      for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+        if (matcher.isFinal(s)) {
+          continue;
+        }
+        String segment = matcher.segments[s];
+        if (isWildcardFree(segment)) {
+          literalStates.computeIfAbsent(segment, k -> new BitSet()).set(s + 1);
+        } else {
+          wildcardStates.set(s);
         }
-
-        return;
-      }
-
-      if (!baseIsDir) {
-        // Nothing to find here.
-        return;
       }
 
-      String pattern = context.patternParts[idx];
-
-      // ** is special: it can match nothing at all.
-      // For example, x/** matches x, **/y matches y, and x/**/y matches x/y.
-      if (isRecursivePattern(pattern)) {
-        context.queueGlob(base, baseIsDir, idx + 1);
+      if (!wildcardStates.isEmpty()) {
+        for (Dirent dent : syscalls.readdir(directory)) {
+          Dirent.Type childType = dent.getType();
+          if (childType == Dirent.Type.UNKNOWN) {
+            // The file is a special file (fifo, etc.). No need to even match against the pattern.
+            continue;
+          }
+          String name = dent.getName();
+          BitSet advanced = literalStates.remove(name);
+          if (advanced == null) {
+            advanced = new BitSet();
+          }
+          // A ** that matches a segment may match further ones, so it stays in its state.
+          BitSet stayed = new BitSet();
+          for (int s = wildcardStates.nextSetBit(0);
+              s >= 0;
+              s = wildcardStates.nextSetBit(s + 1)) {
+            if (matches(matcher.segments[s], name, cache)) {
+              if (matcher.isRecursive(s)) {
+                stayed.set(s);
+              } else {
+                advanced.set(s + 1);
+              }
+            }
+          }
+          if (advanced.isEmpty() && stayed.isEmpty()) {
+            continue;
+          }
+          Path child = directory.getChild(name);
+          if (childType == Dirent.Type.SYMLINK) {
+            processSymlink(child, advanced, stayed);
+          } else {
+            processFileOrDirectory(
+                child, childType == Dirent.Type.DIRECTORY, advanced, stayed);
+          }
+        }
       }
 
-      if (!pattern.contains("*") && !pattern.contains("?")) {
-        // We do not need to do a readdir in this case, just a stat.
-        Path child = base.getChild(pattern);
-        FileStatus status = context.syscalls.statIfFound(child, Symlinks.FOLLOW);
+      // We do not need a readdir for the remaining wildcard-free segments, just a stat.
+      for (Map.Entry<String, BitSet> entry : literalStates.entrySet()) {
+        Path child = directory.getChild(entry.getKey());
+        FileStatus status = syscalls.statIfFound(child, Symlinks.FOLLOW);
         if (status == null || (!status.isDirectory() && !status.isFile())) {
           // The file is a dangling symlink, fifo, does not exist, etc.
-          return;
-        }
-
-        context.queueGlob(child, status.isDirectory(), idx + 1);
-        return;
-      }
-
-      Collection<Dirent> dents = context.syscalls.readdir(base);
-      for (Dirent dent : dents) {
-        Dirent.Type childType = dent.getType();
-        if (childType == Dirent.Type.UNKNOWN) {
-          // The file is a special file (fifo, etc.). No need to even match against the pattern.
           continue;
         }
-        if (matches(pattern, dent.getName(), cache)) {
-          Path child = base.getChild(dent.getName());
-
-          if (childType == Dirent.Type.SYMLINK) {
-            processSymlink(child, idx, context);
-          } else {
-            processFileOrDirectory(child, childType == Dirent.Type.DIRECTORY, idx, context);
-          }
-        }
+        processFileOrDirectory(child, status.isDirectory(), entry.getValue(), new BitSet());
       }
     }
 
@@ -838,13 +896,13 @@ public final class UnixGlob {
      * underlying file system is networked and a single directory contains many symlinks, that can
      * lead to substantial slowness.
      */
-    private void processSymlink(Path path, int idx, GlobTaskContext context) {
-      context.queueTask(
+    private void processSymlink(Path path, BitSet advanced, BitSet stayed) {
+      enqueue(
           () -> {
             try {
-              FileStatus status = context.syscalls.statIfFound(path, Symlinks.FOLLOW);
+              FileStatus status = syscalls.statIfFound(path, Symlinks.FOLLOW);
               if (status != null) {
-                processFileOrDirectory(path, status.isDirectory(), idx, context);
+                processFileOrDirectory(path, status.isDirectory(), advanced, stayed);
               }
             } catch (IOException e) {
               // Intentionally empty. Just ignore symlinks that cannot be stat'ed to leave
@@ -853,13 +911,39 @@ public final class UnixGlob {
           });
     }
 
+    /**
+     * Continues the traversal at a matched directory entry, given the states that expect the
+     * segment after it: {@code advanced} after a regular segment, and {@code stayed} after a
+     * <code>**</code>. Only a ** that matched the entry itself may then match nothing for a file,
+     * since e.g. <code>x/**</code> matches the directory x, but not the file x.
+     */
     private void processFileOrDirectory(
-        Path path, boolean isDir, int idx, GlobTaskContext context) {
-      boolean isRecursivePattern = isRecursivePattern(context.patternParts[idx]);
-      if (isDir) {
-        context.queueGlob(path, /* baseIsDir= */ true, idx + (isRecursivePattern ? 0 : 1));
-      } else if (idx + 1 == context.patternParts.length) {
-        results.add(path);
+        Path path, boolean isDir, BitSet advanced, BitSet stayed) {
+      if (!isDir) {
+        matcher.close(stayed);
+        stayed.or(advanced);
+        addMatches(path, /*isDir=*/ false, stayed);
+        return;
+      }
+      BitSet states = advanced;
+      states.or(stayed);
+      matcher.close(states);
+      if (matcher.hasNonFinal(states)) {
+        queueDirectory(path, states);
+      } else if (!excludeDirectories && dirPred.apply(path)) {
+        // No pattern descends further, so there is nothing to read.
+        addMatches(path, /*isDir=*/ true, states);
+      }
+    }
+
+    private void addMatches(Path path, boolean isDir, BitSet states) {
+      if (excludeDirectories && isDir) {
+        return;
+      }
+      for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+        if (matcher.isFinal(s)) {
+          results.get(matcher.patternOf[s]).add(path);
+        }
       }
     }
   }
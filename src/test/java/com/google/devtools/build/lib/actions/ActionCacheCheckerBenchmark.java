@@ -0,0 +1,167 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import com.google.common.base.Predicates;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.ActionCacheChecker.Token;
+import com.google.devtools.build.lib.actions.cache.ActionCache;
+import com.google.devtools.build.lib.actions.cache.CompactPersistentActionCache;
+import com.google.devtools.build.lib.actions.cache.MappedActionCache;
+import com.google.devtools.build.lib.actions.cache.MetadataHandler;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil.FakeArtifactResolverBase;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil.FakeMetadataHandlerBase;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil.NullAction;
+import com.google.devtools.build.lib.clock.BlazeClock;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Measures the throughput of up-to-date checks when many threads hit the action cache at once, as
+ * they do during a fully cached incremental build.
+ *
+ * <p>This is a timing test that logs its results rather than asserting on them, so it is excluded
+ * from the regular test suite and only run on demand through its manual target.
+ */
+@RunWith(JUnit4.class)
+public class ActionCacheCheckerBenchmark {
+  private static final Logger logger =
+      Logger.getLogger(ActionCacheCheckerBenchmark.class.getName());
+
+  private static final int ACTIONS = 10000;
+  private static final int REPS = 1000000;
+  private static final int[] THREADS = {1, 4, 16};
+
+  private final Map<String, String> clientEnv = ImmutableMap.of();
+  private final Map<Artifact, FileArtifactValue> metadata = new HashMap<>();
+  private final MetadataHandler metadataHandler = new FakeMetadataHandler();
+  private final List<Action> actions = new ArrayList<>();
+  private ActionCacheChecker cacheChecker;
+
+  @Test
+  public void compactActionCache() throws Exception {
+    Path root = createRoot();
+    measure(
+        "compact",
+        new CompactPersistentActionCache(root.getRelative("cache"), BlazeClock.instance()),
+        root);
+  }
+
+  @Test
+  public void mappedActionCache() throws Exception {
+    Path root = createRoot();
+    measure("mapped", new MappedActionCache(root.getRelative("cache")), root);
+  }
+
+  private static Path createRoot() throws Exception {
+    // The mapped cache needs a real file system.
+    JavaIoFileSystem fs = new JavaIoFileSystem(DigestHashFunction.SHA256);
+    return fs.getPath(TestUtils.makeTempDir().getAbsolutePath());
+  }
+
+  private void measure(String cacheType, ActionCache cache, Path root) throws Exception {
+    setUp(cache, root);
+    // Warm up, so that the first measurement doesn't include JIT compilation.
+    checkUpToDate(1, REPS);
+    for (int threads : THREADS) {
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      checkUpToDate(threads, REPS);
+      long nanos = stopwatch.elapsed(TimeUnit.NANOSECONDS);
+      logger.info(
+          String.format(
+              "%s cache, %d threads: %d ns per check", cacheType, threads, nanos / REPS));
+    }
+  }
+
+  private void setUp(ActionCache cache, Path root) throws Exception {
+    cacheChecker =
+        new ActionCacheChecker(
+            cache,
+            new FakeArtifactResolverBase(),
+            new ActionKeyContext(),
+            Predicates.alwaysTrue(),
+            null);
+
+    ArtifactRoot outputRoot = ArtifactRoot.asDerivedRoot(root, root.getRelative("out"));
+    outputRoot.getRoot().asPath().createDirectoryAndParents();
+    for (int i = 0; i < ACTIONS; i++) {
+      Artifact output = ActionsTestUtil.createArtifact(outputRoot, Integer.toString(i));
+      FileSystemUtils.writeContentAsLatin1(output.getPath(), Integer.toString(i));
+      // Stat once up front, so that the benchmark measures the cache rather than the file system.
+      metadata.put(output, FileArtifactValue.createForTesting(output));
+      Action action = new NullAction(output);
+      Token token =
+          cacheChecker.getTokenIfNeedToExecute(
+              action, null, clientEnv, null, metadataHandler, ImmutableMap.of());
+      cacheChecker.updateActionCache(action, token, metadataHandler, clientEnv, ImmutableMap.of());
+      actions.add(action);
+    }
+  }
+
+  /** Runs {@code reps} up-to-date checks, spread over the given number of threads. */
+  private void checkUpToDate(int threads, int reps) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>(threads);
+      for (int t = 0; t < threads; t++) {
+        int offset = t * (ACTIONS / threads);
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < reps / threads; i++) {
+                    Action action = actions.get((offset + i) % ACTIONS);
+                    if (cacheChecker.getTokenIfNeedToExecute(
+                            action, null, clientEnv, null, metadataHandler, ImmutableMap.of())
+                        != null) {
+                      throw new IllegalStateException(action + " is not up to date");
+                    }
+                  }
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private class FakeMetadataHandler extends FakeMetadataHandlerBase {
+    @Override
+    public FileArtifactValue getMetadata(ActionInput input) {
+      return metadata.get(input);
+    }
+
+    @Override
+    public void setDigestForVirtualArtifact(Artifact artifact, byte[] digest) {}
+  }
+}
@@ -0,0 +1,219 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.FileArtifactValue;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link MappedActionCache}. */
+@RunWith(JUnit4.class)
+public class MappedActionCacheTest {
+
+  private Path cacheRoot;
+  private MappedActionCache cache;
+
+  @Before
+  public final void createCache() throws Exception {
+    // The cache maps its files, so it needs a real file system.
+    JavaIoFileSystem fs = new JavaIoFileSystem(DigestHashFunction.SHA256);
+    cacheRoot = fs.getPath(TestUtils.makeTempDir().getAbsolutePath()).getRelative("cache");
+    cache = new MappedActionCache(cacheRoot);
+  }
+
+  @Test
+  public void testGetInvalidKey() {
+    assertThat(cache.get("key")).isNull();
+  }
+
+  @Test
+  public void testPutAndGet() {
+    putKey("key", cache, true);
+    ActionCache.Entry readentry = cache.get("key");
+    assertThat(readentry).isNotNull();
+    assertThat(readentry.getActionKey()).isEqualTo("key");
+    assertThat(readentry.getPaths()).containsExactly("foo/bar");
+    assertThat(cache.get("key").toString()).isEqualTo(readentry.toString());
+  }
+
+  @Test
+  public void testPutOverwrites() {
+    putKey("key", cache, false);
+    putKey("key", cache, true);
+    assertThat(cache.size()).isEqualTo(1);
+    assertThat(cache.get("key").discoversInputs()).isTrue();
+  }
+
+  @Test
+  public void testPutAndRemove() {
+    putKey("key", cache, false);
+    cache.remove("key");
+    assertThat(cache.get("key")).isNull();
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void testSaveAndReload() throws Exception {
+    for (int i = 0; i < 10000; i++) {
+      putKey(Integer.toString(i), cache, i % 2 == 0);
+    }
+    for (int i = 0; i < 10000; i += 3) {
+      cache.remove(Integer.toString(i));
+    }
+    cache.save();
+
+    MappedActionCache newcache = new MappedActionCache(cacheRoot);
+    for (int i = 0; i < 10000; i++) {
+      String key = Integer.toString(i);
+      if (i % 3 == 0) {
+        assertThat(newcache.get(key)).isNull();
+      } else {
+        assertThat(newcache.get(key).toString()).isEqualTo(cache.get(key).toString());
+      }
+    }
+  }
+
+  @Test
+  public void testReloadWithoutSaveRebuildsIndex() throws Exception {
+    putKey("abc", cache, false);
+    cache.save();
+    putKey("xyz", cache, true);
+    cache.remove("abc");
+    String expected = cache.get("xyz").toString();
+
+    // Simulates a server crash: the index was never marked clean again.
+    MappedActionCache newcache = new MappedActionCache(cacheRoot);
+    assertThat(newcache.get("abc")).isNull();
+    assertThat(newcache.get("xyz").toString()).isEqualTo(expected);
+  }
+
+  @Test
+  public void testTornRecordIsDropped() throws Exception {
+    putKey("abc", cache, false);
+    cache.save();
+    putKey("xyz", cache, false);
+    long end = cache.save();
+
+    // Corrupts the last byte of the last record and marks the index dirty.
+    try (RandomAccessFile log =
+        new RandomAccessFile(MappedActionCache.logFile(cacheRoot).getPathFile(), "rw")) {
+      long logEnd = end - MappedActionCache.indexFile(cacheRoot).getFileSize();
+      log.seek(logEnd - 1);
+      int b = log.read();
+      log.seek(logEnd - 1);
+      log.write(b ^ 0xff);
+    }
+    try (RandomAccessFile index =
+        new RandomAccessFile(MappedActionCache.indexFile(cacheRoot).getPathFile(), "rw")) {
+      // Clears the "clean" flag in the index header.
+      index.seek(32);
+      index.writeInt(0);
+    }
+
+    MappedActionCache newcache = new MappedActionCache(cacheRoot);
+    assertThat(newcache.get("abc")).isNotNull();
+    assertThat(newcache.get("xyz")).isNull();
+    putKey("def", newcache, false);
+    assertThat(newcache.get("def")).isNotNull();
+  }
+
+  @Test
+  public void testCompaction() throws Exception {
+    for (int round = 0; round < 50; round++) {
+      for (int i = 0; i < 2000; i++) {
+        putKey(Integer.toString(i), cache, true);
+      }
+    }
+    long uncompacted = MappedActionCache.logFile(cacheRoot).getFileSize();
+    long saved = cache.save();
+    assertThat(saved).isLessThan(uncompacted / 4);
+    assertThat(cache.size()).isEqualTo(2000);
+
+    MappedActionCache newcache = new MappedActionCache(cacheRoot);
+    for (int i = 0; i < 2000; i++) {
+      String key = Integer.toString(i);
+      assertThat(newcache.get(key).toString()).isEqualTo(cache.get(key).toString());
+    }
+  }
+
+  @Test
+  public void testConcurrentReadersSeeConsistentEntries() throws Exception {
+    putKey("stable", cache, true);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> readers = new ArrayList<>();
+      for (int t = 0; t < 3; t++) {
+        readers.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < 20000; i++) {
+                    ActionCache.Entry entry = cache.get("stable");
+                    assertThat(entry).isNotNull();
+                    assertThat(entry.getActionKey()).isEqualTo("stable");
+                  }
+                }));
+      }
+      // Grows the index and the log several times while the readers are running.
+      Future<?> writer =
+          executor.submit(
+              () -> {
+                for (int i = 0; i < 20000; i++) {
+                  putKey(Integer.toString(i), cache, false);
+                }
+              });
+      writer.get();
+      for (Future<?> reader : readers) {
+        reader.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(cache.size()).isEqualTo(20001);
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    putKey("key", cache, false);
+    cache.clear();
+    assertThat(cache.get("key")).isNull();
+    putKey("key", cache, false);
+    cache.save();
+    assertThat(new MappedActionCache(cacheRoot).get("key")).isNotNull();
+  }
+
+  private static void putKey(String key, ActionCache ac, boolean discoversInputs) {
+    ActionCache.Entry entry =
+        new ActionCache.Entry(key, ImmutableMap.<String, String>of("k", "v"), discoversInputs);
+    entry.addFile(
+        PathFragment.create("foo/bar"), FileArtifactValue.createForDirectoryWithMtime(1234));
+    entry.getFileDigest();
+    ac.put(key, entry);
+  }
+}
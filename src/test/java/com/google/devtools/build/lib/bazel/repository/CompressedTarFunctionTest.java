@@ -14,14 +14,26 @@
 
 package com.google.devtools.build.lib.bazel.repository;
 
+import static com.google.common.truth.Truth.assertThat;
 import static com.google.devtools.build.lib.bazel.repository.TestArchiveDescriptor.INNER_FOLDER_NAME;
 import static com.google.devtools.build.lib.bazel.repository.TestArchiveDescriptor.ROOT_FOLDER_NAME;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -64,6 +76,62 @@ public class CompressedTarFunctionTest {
     archiveDescriptor.assertOutputFiles(outputDir, INNER_FOLDER_NAME);
   }
 
+  /**
+   * Test that small files, which are written in the background, are complete before a later entry
+   * overwrites them or links to them.
+   */
+  @Test
+  public void testDecompressDuplicateEntryAndHardLinkToSmallFile() throws Exception {
+    ByteArrayOutputStream tarball = new ByteArrayOutputStream();
+    try (TarArchiveOutputStream tarStream = new TarArchiveOutputStream(tarball)) {
+      addFile(tarStream, "dir/duplicate", "first");
+      addFile(tarStream, "dir/duplicate", "second");
+      addFile(tarStream, "dir/file", "contents");
+      TarArchiveEntry link = new TarArchiveEntry("dir/link", TarConstants.LF_LINK);
+      link.setLinkName("dir/file");
+      tarStream.putArchiveEntry(link);
+      tarStream.closeArchiveEntry();
+    }
+    // Slow down the background writes, so that the entries after them are handled first unless
+    // the extraction waits for them.
+    InMemoryFileSystem fs =
+        new InMemoryFileSystem() {
+          @Override
+          protected OutputStream getOutputStream(Path path, boolean append) throws IOException {
+            Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+            return super.getOutputStream(path, append);
+          }
+        };
+    Path repositoryPath = fs.getPath("/repo");
+
+    new CompressedTarFunction() {
+      @Override
+      protected InputStream getDecompressorStream(DecompressorDescriptor descriptor) {
+        return new ByteArrayInputStream(tarball.toByteArray());
+      }
+    }.decompress(
+        DecompressorDescriptor.builder()
+            .setArchivePath(repositoryPath.getRelative("archive.tar"))
+            .setRepositoryPath(repositoryPath)
+            .setDecompressor(TarFunction.INSTANCE)
+            .build());
+
+    assertThat(FileSystemUtils.readContent(repositoryPath.getRelative("dir/duplicate"), UTF_8))
+        .isEqualTo("second");
+    assertThat(FileSystemUtils.readContent(repositoryPath.getRelative("dir/link"), UTF_8))
+        .isEqualTo("contents");
+  }
+
+  private static void addFile(TarArchiveOutputStream tarStream, String name, String contents)
+      throws IOException {
+    byte[] bytes = contents.getBytes(UTF_8);
+    TarArchiveEntry entry = new TarArchiveEntry(name);
+    entry.setSize(bytes.length);
+    tarStream.putArchiveEntry(entry);
+    tarStream.write(bytes);
+    tarStream.closeArchiveEntry();
+  }
+
   private Path decompress(DecompressorDescriptor.Builder descriptorBuilder) throws Exception {
     descriptorBuilder.setDecompressor(TarGzFunction.INSTANCE);
     return new CompressedTarFunction() {
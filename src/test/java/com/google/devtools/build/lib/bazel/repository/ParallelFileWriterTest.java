@@ -0,0 +1,237 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.bazel.repository;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ParallelFileWriter}. */
+@RunWith(JUnit4.class)
+public class ParallelFileWriterTest {
+
+  /** Writes of files named "blocked" do not start until {@link #unblock} is counted down. */
+  private final CountDownLatch unblock = new CountDownLatch(1);
+
+  private final ExecutorService caller = Executors.newSingleThreadExecutor();
+  private Path root;
+
+  @Before
+  public void setUpFileSystem() throws Exception {
+    InMemoryFileSystem fs =
+        new InMemoryFileSystem() {
+          @Override
+          protected OutputStream getOutputStream(Path path, boolean append) throws IOException {
+            if (path.getBaseName().equals("blocked")) {
+              try {
+                unblock.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+              }
+            }
+            return super.getOutputStream(path, append);
+          }
+        };
+    root = fs.getPath("/out");
+    root.createDirectoryAndParents();
+  }
+
+  @After
+  public void shutDownCaller() {
+    unblock.countDown();
+    caller.shutdownNow();
+  }
+
+  @Test
+  public void write_setsContentsModeAndModificationTime() throws Exception {
+    Path file = root.getRelative("file");
+    try (ParallelFileWriter writer = new ParallelFileWriter()) {
+      writer.write(file, bytes("contents"), 0555, 12345000L);
+      writer.awaitAll();
+    }
+
+    assertThat(FileSystemUtils.readContent(file, UTF_8)).isEqualTo("contents");
+    assertThat(file.isWritable()).isFalse();
+    assertThat(file.isExecutable()).isTrue();
+    assertThat(file.getLastModifiedTime()).isEqualTo(12345000L);
+  }
+
+  @Test
+  public void write_emptyFile() throws Exception {
+    Path file = root.getRelative("empty");
+    try (ParallelFileWriter writer = new ParallelFileWriter()) {
+      writer.write(file, new byte[0], 0644, 0L);
+      writer.awaitAll();
+    }
+
+    assertThat(file.exists()).isTrue();
+    assertThat(file.getFileSize()).isEqualTo(0);
+  }
+
+  @Test
+  public void write_samePathTwice_lastWriteWins() throws Exception {
+    Path file = root.getRelative("blocked");
+    try (ParallelFileWriter writer =
+        new ParallelFileWriter(/* threads= */ 4, /* maxBytesInFlight= */ 1024)) {
+      writer.write(file, bytes("first"), 0644, 0L);
+      Future<?> second = caller.submit(() -> writeInBackground(writer, file, bytes("second")));
+
+      // The second write must wait for the first, which cannot finish yet.
+      assertThrows(TimeoutException.class, () -> second.get(100, TimeUnit.MILLISECONDS));
+      unblock.countDown();
+      second.get(1, TimeUnit.MINUTES);
+      writer.awaitAll();
+    }
+
+    assertThat(FileSystemUtils.readContent(file, UTF_8)).isEqualTo("second");
+  }
+
+  @Test
+  public void awaitIfPending_waitsForPendingWriteOfPath() throws Exception {
+    Path file = root.getRelative("blocked");
+    try (ParallelFileWriter writer = new ParallelFileWriter()) {
+      writer.write(file, bytes("contents"), 0644, 0L);
+      Future<?> await = caller.submit(() -> awaitInBackground(writer, file));
+
+      assertThrows(TimeoutException.class, () -> await.get(100, TimeUnit.MILLISECONDS));
+      unblock.countDown();
+      await.get(1, TimeUnit.MINUTES);
+      // The link target is complete once awaitIfPending returns, as the extractors rely on.
+      Path link = root.getRelative("link");
+      FileSystemUtils.createHardLink(link, file);
+      assertThat(FileSystemUtils.readContent(link, UTF_8)).isEqualTo("contents");
+    }
+  }
+
+  @Test
+  public void awaitIfPending_doesNotWaitForOtherPaths() throws Exception {
+    try (ParallelFileWriter writer = new ParallelFileWriter()) {
+      writer.write(root.getRelative("blocked"), bytes("contents"), 0644, 0L);
+
+      // Returns immediately although the write of "blocked" is still pending.
+      writer.awaitIfPending(root.getRelative("other"));
+      assertThat(root.getRelative("blocked").exists()).isFalse();
+      unblock.countDown();
+      writer.awaitAll();
+    }
+  }
+
+  @Test
+  public void write_blocksWhileBytesInFlightExceedBound() throws Exception {
+    try (ParallelFileWriter writer =
+        new ParallelFileWriter(/* threads= */ 4, /* maxBytesInFlight= */ 10)) {
+      writer.write(root.getRelative("blocked"), bytes("0123456789"), 0644, 0L);
+      Future<?> next =
+          caller.submit(() -> writeInBackground(writer, root.getRelative("next"), bytes("x")));
+
+      assertThrows(TimeoutException.class, () -> next.get(100, TimeUnit.MILLISECONDS));
+      unblock.countDown();
+      next.get(1, TimeUnit.MINUTES);
+      writer.awaitAll();
+    }
+
+    assertThat(FileSystemUtils.readContent(root.getRelative("next"), UTF_8)).isEqualTo("x");
+  }
+
+  @Test
+  public void write_largerThanBound_doesNotDeadlock() throws Exception {
+    Path file = root.getRelative("large");
+    try (ParallelFileWriter writer =
+        new ParallelFileWriter(/* threads= */ 1, /* maxBytesInFlight= */ 4)) {
+      writer.write(file, bytes("more than four bytes"), 0644, 0L);
+      writer.write(root.getRelative("small"), bytes("abc"), 0644, 0L);
+      writer.awaitAll();
+    }
+
+    assertThat(FileSystemUtils.readContent(file, UTF_8)).isEqualTo("more than four bytes");
+  }
+
+  @Test
+  public void awaitAll_rethrowsWriteError() throws Exception {
+    try (ParallelFileWriter writer = new ParallelFileWriter()) {
+      writer.write(root.getRelative("missing/file"), bytes("contents"), 0644, 0L);
+      writer.write(root.getRelative("file"), bytes("contents"), 0644, 0L);
+
+      assertThrows(FileNotFoundException.class, writer::awaitAll);
+      // The error is reported once, after the other writes completed.
+      assertThat(root.getRelative("file").exists()).isTrue();
+      writer.awaitAll();
+    }
+  }
+
+  @Test
+  public void awaitIfPending_rethrowsWriteError() throws Exception {
+    Path file = root.getRelative("missing/blocked");
+    try (ParallelFileWriter writer = new ParallelFileWriter()) {
+      writer.write(file, bytes("contents"), 0644, 0L);
+      Future<?> await = caller.submit(() -> awaitInBackground(writer, file));
+      unblock.countDown();
+
+      ExecutionException e =
+          assertThrows(ExecutionException.class, () -> await.get(1, TimeUnit.MINUTES));
+      assertThat(e).hasCauseThat().isInstanceOf(FileNotFoundException.class);
+    }
+  }
+
+  @Test
+  public void close_cancelsQueuedWrites() throws Exception {
+    Path queued = root.getRelative("queued");
+    ParallelFileWriter writer =
+        new ParallelFileWriter(/* threads= */ 1, /* maxBytesInFlight= */ 1024);
+    writer.write(root.getRelative("blocked"), bytes("contents"), 0644, 0L);
+    writer.write(queued, bytes("contents"), 0644, 0L);
+
+    writer.close();
+    unblock.countDown();
+
+    assertThrows(CancellationException.class, writer::awaitAll);
+    assertThat(queued.exists()).isFalse();
+  }
+
+  private static Void writeInBackground(ParallelFileWriter writer, Path path, byte[] contents)
+      throws Exception {
+    writer.write(path, contents, 0644, 0L);
+    return null;
+  }
+
+  private static Void awaitInBackground(ParallelFileWriter writer, Path path) throws Exception {
+    writer.awaitIfPending(path);
+    return null;
+  }
+
+  private static byte[] bytes(String contents) {
+    return contents.getBytes(UTF_8);
+  }
+}
@@ -15,14 +15,23 @@
 package com.google.devtools.build.lib.bazel.repository.cache;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache.KeyType;
 import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.vfs.Dirent;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -204,4 +213,248 @@ public class RepositoryCacheTest {
     Path lookupNoId = repositoryCache.get(downloadedFileSha256, targetPath, KeyType.SHA256);
     assertThat(lookupNoId).isEqualTo(targetPath);
   }
+
+  @Test
+  public void testExtractedTree() throws Exception {
+    repositoryCache.setCacheExtractedTrees(true);
+    assertThat(
+            repositoryCache.getExtractedTree(
+                downloadedFileSha256, KeyType.SHA256, "", "", scratch.dir("/first")))
+        .isFalse();
+
+    Path extracted =
+        repositoryCache.createExtractedTreeDirectory(downloadedFileSha256, KeyType.SHA256);
+    scratch.file(extracted.getRelative("dir/file").getPathString(), "contents");
+    extracted.getRelative("dir/link").createSymbolicLink(extracted.getRelative("dir/file"));
+    repositoryCache.putExtractedTree(downloadedFileSha256, KeyType.SHA256, "", "", extracted);
+    assertThat(extracted.exists()).isFalse();
+
+    Path target = scratch.dir("/second");
+    assertThat(
+            repositoryCache.getExtractedTree(downloadedFileSha256, KeyType.SHA256, "", "", target))
+        .isTrue();
+    Path file = target.getRelative("dir/file");
+    assertThat(FileSystemUtils.readContent(file, Charset.defaultCharset())).isEqualTo("contents\n");
+    assertThat(target.getRelative("dir/link").readSymbolicLink().getPathString())
+        .isEqualTo("../dir/file");
+    assertThat(
+            repositoryCache.getExtractedTree(
+                downloadedFileSha256, KeyType.SHA256, "tar.gz", "", scratch.dir("/third")))
+        .isFalse();
+  }
+
+  @Test
+  public void testExtractedTreeIsCopiedUnlessHardlinking() throws Exception {
+    repositoryCache.setCacheExtractedTrees(true);
+    Path extracted =
+        repositoryCache.createExtractedTreeDirectory(downloadedFileSha256, KeyType.SHA256);
+    scratch.file(extracted.getRelative("file").getPathString(), "contents");
+    repositoryCache.putExtractedTree(downloadedFileSha256, KeyType.SHA256, "", "", extracted);
+
+    Path first = scratch.dir("/first");
+    repositoryCache.getExtractedTree(downloadedFileSha256, KeyType.SHA256, "", "", first);
+    scratch.overwriteFile("/first/file", "modified");
+    Path second = scratch.dir("/second");
+    repositoryCache.getExtractedTree(downloadedFileSha256, KeyType.SHA256, "", "", second);
+    assertThat(FileSystemUtils.readContent(second.getRelative("file"), Charset.defaultCharset()))
+        .isEqualTo("contents\n");
+
+    repositoryCache.setHardlink(true);
+    Path third = scratch.dir("/third");
+    repositoryCache.getExtractedTree(downloadedFileSha256, KeyType.SHA256, "", "", third);
+    assertThat(third.getRelative("file").stat().getNodeId())
+        .isNotEqualTo(second.getRelative("file").stat().getNodeId());
+    Path fourth = scratch.dir("/fourth");
+    repositoryCache.getExtractedTree(downloadedFileSha256, KeyType.SHA256, "", "", fourth);
+    assertThat(fourth.getRelative("file").stat().getNodeId())
+        .isEqualTo(third.getRelative("file").stat().getNodeId());
+  }
+
+  @Test
+  public void testPutExtractedTreeKeepsTreeAddedConcurrently() throws Exception {
+    // Another server adds the same tree between the check for the tree and the rename onto it.
+    InMemoryFileSystem fs =
+        new InMemoryFileSystem() {
+          @Override
+          public void renameTo(Path sourcePath, Path targetPath) throws IOException {
+            FileSystemUtils.createDirectoryAndParents(targetPath);
+            FileSystemUtils.writeContent(
+                targetPath.getRelative("file"),
+                Charset.defaultCharset(),
+                "extracted by another server");
+            super.renameTo(sourcePath, targetPath);
+          }
+        };
+    Scratch otherScratch = new Scratch(fs);
+    RepositoryCache cache = new RepositoryCache();
+    cache.setRepositoryCachePath(otherScratch.dir("/repository_cache"));
+    cache.setCacheExtractedTrees(true);
+    Path extracted = cache.createExtractedTreeDirectory(downloadedFileSha256, KeyType.SHA256);
+    otherScratch.file(extracted.getRelative("file").getPathString(), "contents");
+
+    cache.putExtractedTree(downloadedFileSha256, KeyType.SHA256, "", "", extracted);
+
+    assertThat(extracted.exists()).isFalse();
+    Path target = otherScratch.dir("/target");
+    assertThat(cache.getExtractedTree(downloadedFileSha256, KeyType.SHA256, "", "", target))
+        .isTrue();
+    assertThat(FileSystemUtils.readContent(target.getRelative("file"), Charset.defaultCharset()))
+        .isEqualTo("extracted by another server");
+  }
+
+  @Test
+  public void testGetExtractedTreeCopiesOutsideTheLock() throws Exception {
+    AtomicReference<Runnable> duringCopy = new AtomicReference<>(() -> {});
+    InMemoryFileSystem fs =
+        new InMemoryFileSystem() {
+          @Override
+          protected Collection<Dirent> readdir(Path path, boolean followSymlinks)
+              throws IOException {
+            duringCopy.getAndSet(() -> {}).run();
+            return super.readdir(path, followSymlinks);
+          }
+        };
+    Scratch otherScratch = new Scratch(fs);
+    RepositoryCache cache = new RepositoryCache();
+    cache.setRepositoryCachePath(otherScratch.dir("/repository_cache"));
+    cache.setCacheExtractedTrees(true);
+    String sha256 = cache.put(otherScratch.file("/archive", "archive"), KeyType.SHA256);
+    Path extracted = cache.createExtractedTreeDirectory(sha256, KeyType.SHA256);
+    otherScratch.file(extracted.getRelative("file").getPathString(), "contents");
+    cache.putExtractedTree(sha256, KeyType.SHA256, "", "", extracted);
+    cache.setMaxSize(1);
+
+    // Another thread evicts while the tree is being copied. It neither waits for the copy nor
+    // deletes the tree.
+    AtomicReference<Integer> evictedDuringCopy = new AtomicReference<>();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    duringCopy.set(
+        () -> {
+          try {
+            evictedDuringCopy.set(
+                executor.submit(cache::evictLeastRecentlyUsed).get(1, TimeUnit.MINUTES));
+          } catch (Exception e) {
+            throw new IllegalStateException(e);
+          }
+        });
+    Path target = otherScratch.dir("/target");
+    try {
+      assertThat(cache.getExtractedTree(sha256, KeyType.SHA256, "", "", target)).isTrue();
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertThat(evictedDuringCopy.get()).isEqualTo(0);
+    assertThat(FileSystemUtils.readContent(target.getRelative("file"), Charset.defaultCharset()))
+        .isEqualTo("contents\n");
+    assertThat(cache.evictLeastRecentlyUsed()).isEqualTo(1);
+  }
+
+  @Test
+  public void testEvictLeastRecentlyUsed() throws Exception {
+    String oldSha256 = repositoryCache.put(downloadedFile, KeyType.SHA256);
+    Path newFile = scratch.file("new.tmp", Charset.defaultCharset(), "new contents");
+    String newSha256 = repositoryCache.put(newFile, KeyType.SHA256);
+    Path downloads = KeyType.SHA256.getCachePath(contentAddressableCachePath);
+    downloads
+        .getRelative(oldSha256)
+        .getChild(RepositoryCache.DEFAULT_CACHE_FILENAME)
+        .setLastModifiedTime(1000);
+    downloads
+        .getRelative(newSha256)
+        .getChild(RepositoryCache.DEFAULT_CACHE_FILENAME)
+        .setLastModifiedTime(2000);
+
+    // Without a maximum size nothing is evicted.
+    assertThat(repositoryCache.evictLeastRecentlyUsed()).isEqualTo(0);
+
+    repositoryCache.setMaxSize(repositoryCache.getUsage().getBytes() - 1);
+    assertThat(repositoryCache.evictLeastRecentlyUsed()).isEqualTo(1);
+    assertThat(repositoryCache.exists(oldSha256, KeyType.SHA256)).isFalse();
+    assertThat(repositoryCache.exists(newSha256, KeyType.SHA256)).isTrue();
+    assertThat(repositoryCache.getUsage().getEntries()).isEqualTo(1);
+  }
+
+  @Test
+  public void testEvictionOnlyListsCacheOverRecordedSize() throws Exception {
+    String sha256 = repositoryCache.put(downloadedFile, KeyType.SHA256);
+    Path totalSize = repositoryCachePath.getChild(RepositoryCache.TOTAL_SIZE_FILENAME);
+    long size = downloadedFile.getFileSize();
+
+    // The first eviction lists the cache and records its size.
+    repositoryCache.setMaxSize(1000);
+    assertThat(repositoryCache.evictLeastRecentlyUsed()).isEqualTo(0);
+    assertThat(FileSystemUtils.readContent(totalSize, UTF_8)).isEqualTo(Long.toString(size));
+
+    Path otherFile = scratch.file("other.tmp", Charset.defaultCharset(), "other contents");
+    repositoryCache.put(otherFile, KeyType.SHA256);
+    repositoryCache.put(otherFile, KeyType.SHA256);
+    assertThat(FileSystemUtils.readContent(totalSize, UTF_8))
+        .isEqualTo(Long.toString(size + otherFile.getFileSize()));
+
+    // Within the recorded size, the cache is not listed.
+    FileSystemUtils.writeContent(totalSize, UTF_8, "0");
+    repositoryCache.setMaxSize(1);
+    assertThat(repositoryCache.evictLeastRecentlyUsed()).isEqualTo(0);
+    assertThat(repositoryCache.exists(sha256, KeyType.SHA256)).isTrue();
+
+    FileSystemUtils.writeContent(totalSize, UTF_8, "2");
+    assertThat(repositoryCache.evictLeastRecentlyUsed()).isEqualTo(2);
+    assertThat(repositoryCache.getUsage().getEntries()).isEqualTo(0);
+    assertThat(FileSystemUtils.readContent(totalSize, UTF_8)).isEqualTo("0");
+  }
+
+  @Test
+  public void testEvictionDeletesTrashAndTreeSizes() throws Exception {
+    repositoryCache.setCacheExtractedTrees(true);
+    repositoryCache.put(downloadedFile, KeyType.SHA256);
+    Path extracted =
+        repositoryCache.createExtractedTreeDirectory(downloadedFileSha256, KeyType.SHA256);
+    scratch.file(extracted.getRelative("dir/file").getPathString(), "tree contents");
+    repositoryCache.putExtractedTree(downloadedFileSha256, KeyType.SHA256, "", "", extracted);
+    Path leftover = scratch.file("/repository_cache/trash/interrupted/file", "leftover");
+
+    // The size of the tree is recorded, so changes to it are not counted.
+    long size = repositoryCache.getUsage().getBytes();
+    assertThat(size).isEqualTo(downloadedFile.getFileSize() + "tree contents\n".length());
+    Path trees =
+        KeyType.SHA256
+            .getCachePath(repositoryCachePath.getChild("extracted"))
+            .getChild(downloadedFileSha256);
+    for (Path tree : trees.getDirectoryEntries()) {
+      if (tree.isDirectory()) {
+        scratch.file(tree.getRelative("new").getPathString(), "new");
+      }
+    }
+    assertThat(repositoryCache.getUsage().getBytes()).isEqualTo(size);
+
+    repositoryCache.setMaxSize(1);
+    assertThat(repositoryCache.evictLeastRecentlyUsed()).isEqualTo(1);
+    assertThat(trees.getDirectoryEntries()).isEmpty();
+    assertThat(leftover.getParentDirectory().exists()).isFalse();
+    assertThat(repositoryCachePath.getChild("trash").getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void testUsageByRepository() throws Exception {
+    String sha256 = repositoryCache.put(downloadedFile, KeyType.SHA256);
+    Path otherFile = scratch.file("other.tmp", Charset.defaultCharset(), "other contents");
+    String otherSha256 = repositoryCache.put(otherFile, KeyType.SHA256);
+    repositoryCache.put(scratch.file("unused.tmp", "unused"), KeyType.SHA256);
+    repositoryCache.recordUse(sha256, KeyType.SHA256, "a");
+    repositoryCache.recordUse(sha256, KeyType.SHA256, "b");
+    repositoryCache.recordUse(sha256, KeyType.SHA256, "b");
+    repositoryCache.recordUse(otherSha256, KeyType.SHA256, "b");
+
+    ImmutableSortedMap<String, RepositoryCache.Usage> usage =
+        repositoryCache.getUsageByRepository();
+    assertThat(usage.keySet()).containsExactly("", "a", "b").inOrder();
+    assertThat(usage.get("a").getEntries()).isEqualTo(1);
+    assertThat(usage.get("a").getBytes()).isEqualTo(downloadedFile.getFileSize());
+    assertThat(usage.get("b").getEntries()).isEqualTo(2);
+    assertThat(usage.get("b").getBytes())
+        .isEqualTo(downloadedFile.getFileSize() + otherFile.getFileSize());
+    assertThat(usage.get("").getEntries()).isEqualTo(1);
+    assertThat(repositoryCache.getUsage().getEntries()).isEqualTo(3);
+  }
 }
@@ -0,0 +1,272 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.bazel.repository.downloader;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.bazel.repository.downloader.DownloaderTestUtils.sendLines;
+import static com.google.devtools.build.lib.bazel.repository.downloader.HttpParser.readHttpRequest;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.mockito.Mockito.mock;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache;
+import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache.KeyType;
+import com.google.devtools.build.lib.events.ExtendedEventHandler;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.DigestHashFunction.DefaultHashFunctionNotSetException;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DownloadPrefetcher}. */
+@RunWith(JUnit4.class)
+public class DownloadPrefetcherTest {
+
+  private static final Checksum HELLO_SHA256 =
+      Checksum.fromString(
+          KeyType.SHA256, "2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824");
+  private static final Checksum WORLD_SHA256 =
+      Checksum.fromString(
+          KeyType.SHA256, "486ea46224d1bb4fb680f34f7c9ad96a8f24ec88be73ea8e5a6c65260e9cb8a7");
+
+  @Rule public final TemporaryFolder workingDir = new TemporaryFolder();
+
+  @Rule public final Timeout timeout = new Timeout(30, SECONDS);
+
+  private final RepositoryCache repositoryCache = new RepositoryCache();
+  private final HttpDownloader httpDownloader = new HttpDownloader(repositoryCache);
+  private final ExecutorService executor = Executors.newFixedThreadPool(2);
+  private final ExtendedEventHandler eventHandler = mock(ExtendedEventHandler.class);
+  private final JavaIoFileSystem fs;
+  private Path root;
+
+  public DownloadPrefetcherTest() throws DefaultHashFunctionNotSetException {
+    try {
+      DigestHashFunction.setDefault(DigestHashFunction.SHA256);
+    } catch (DigestHashFunction.DefaultAlreadySetException e) {
+      // Do nothing.
+    }
+    fs = new JavaIoFileSystem();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    root = fs.getPath(workingDir.getRoot().getAbsolutePath());
+    repositoryCache.setRepositoryCachePath(root.getRelative("cache"));
+  }
+
+  @After
+  public void after() {
+    httpDownloader.getPrefetcher().stop();
+    executor.shutdownNow();
+  }
+
+  /** Serves "hello" to the first request, and counts the connections. */
+  private Future<?> serveHelloOnce(ServerSocket server, AtomicInteger connections) {
+    return serveHelloOnce(server, connections, new HashMap<>());
+  }
+
+  /** Like above, and also stores the headers of the request in {@code headers}. */
+  private Future<?> serveHelloOnce(
+      ServerSocket server, AtomicInteger connections, Map<String, String> headers) {
+    return executor.submit(
+        () -> {
+          try (Socket socket = server.accept()) {
+            connections.incrementAndGet();
+            readHttpRequest(socket.getInputStream(), headers);
+            sendLines(
+                socket,
+                "HTTP/1.1 200 OK",
+                "Date: Fri, 31 Dec 1999 23:59:59 GMT",
+                "Connection: close",
+                "Content-Type: text/plain",
+                "Content-Length: 5",
+                "",
+                "hello");
+          }
+          return null;
+        });
+  }
+
+  @Test
+  public void prefetchedFileIsDownloadedFromRepositoryCache() throws Exception {
+    AtomicInteger connections = new AtomicInteger();
+    try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName(null))) {
+      Future<?> served = serveHelloOnce(server, connections);
+      URL url = new URL(String.format("http://localhost:%d/hello.txt", server.getLocalPort()));
+      DownloadPrefetcher prefetcher = httpDownloader.getPrefetcher();
+      prefetcher.start(2, root.getRelative("prefetch"), eventHandler, ImmutableMap.of());
+
+      prefetcher.prefetch(ImmutableList.of(url), HELLO_SHA256, "", "hello", /* netrc= */ null);
+      // A second prefetch of the same file is ignored.
+      prefetcher.prefetch(ImmutableList.of(url), HELLO_SHA256, "", "hello", /* netrc= */ null);
+      // The download waits for the prefetch once it has started.
+      served.get();
+      Path output = root.getRelative("output");
+      output.createDirectoryAndParents();
+      Path downloaded =
+          httpDownloader.download(
+              ImmutableList.of(url),
+              ImmutableMap.of(),
+              Optional.of(HELLO_SHA256),
+              "",
+              Optional.of(""),
+              output,
+              eventHandler,
+              ImmutableMap.of(),
+              "hello");
+
+      assertThat(connections.get()).isEqualTo(1);
+      assertThat(new String(FileSystemUtils.readContent(downloaded), UTF_8)).isEqualTo("hello");
+      assertThat(repositoryCache.exists(HELLO_SHA256.toString(), KeyType.SHA256)).isTrue();
+      assertThat(root.getRelative("prefetch").getDirectoryEntries()).isEmpty();
+    }
+  }
+
+  @Test
+  public void prefetchIsIgnoredUnlessStarted() throws Exception {
+    DownloadPrefetcher prefetcher = httpDownloader.getPrefetcher();
+    prefetcher.prefetch(
+        ImmutableList.of(new URL("http://localhost:1/hello.txt")),
+        HELLO_SHA256,
+        "",
+        "hello",
+        /* netrc= */ null);
+    prefetcher.start(0, root.getRelative("prefetch"), eventHandler, ImmutableMap.of());
+    prefetcher.prefetch(
+        ImmutableList.of(new URL("http://localhost:1/hello.txt")),
+        HELLO_SHA256,
+        "",
+        "hello",
+        /* netrc= */ null);
+
+    assertThat(root.getRelative("prefetch").exists()).isFalse();
+    assertThat(repositoryCache.exists(HELLO_SHA256.toString(), KeyType.SHA256)).isFalse();
+  }
+
+  @Test
+  public void prefetchAuthenticatesWithNetrcFile() throws Exception {
+    Path netrc = root.getRelative("netrc");
+    FileSystemUtils.writeIsoLatin1(
+        netrc,
+        "machine example.com login nobody password nothing",
+        "machine localhost",
+        "login foo",
+        "password bar");
+    AtomicInteger connections = new AtomicInteger();
+    Map<String, String> headers = new ConcurrentHashMap<>();
+    try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName(null))) {
+      Future<?> served = serveHelloOnce(server, connections, headers);
+      URL url = new URL(String.format("http://localhost:%d/hello.txt", server.getLocalPort()));
+      DownloadPrefetcher prefetcher = httpDownloader.getPrefetcher();
+      prefetcher.start(1, root.getRelative("prefetch"), eventHandler, ImmutableMap.of());
+
+      prefetcher.prefetch(ImmutableList.of(url), HELLO_SHA256, "", "hello", netrc.getPathString());
+      served.get();
+      prefetcher.awaitPrefetch(HELLO_SHA256);
+
+      assertThat(headers).containsEntry("authorization", "Basic Zm9vOmJhcg==");
+      assertThat(repositoryCache.exists(HELLO_SHA256.toString(), KeyType.SHA256)).isTrue();
+    }
+  }
+
+  @Test
+  public void queuedPrefetchIsTakenOverByDownload() throws Exception {
+    CountDownLatch accepted = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger connections = new AtomicInteger();
+    try (ServerSocket slowServer = new ServerSocket(0, 1, InetAddress.getByName(null));
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName(null))) {
+      // Keeps the only prefetch thread busy until released.
+      Future<?> slowServed =
+          executor.submit(
+              () -> {
+                try (Socket socket = slowServer.accept()) {
+                  accepted.countDown();
+                  readHttpRequest(socket.getInputStream());
+                  release.await();
+                }
+                return null;
+              });
+      Future<?> served = serveHelloOnce(server, connections);
+      URL slowUrl =
+          new URL(String.format("http://localhost:%d/slow.txt", slowServer.getLocalPort()));
+      URL url = new URL(String.format("http://localhost:%d/hello.txt", server.getLocalPort()));
+      DownloadPrefetcher prefetcher = httpDownloader.getPrefetcher();
+      prefetcher.start(1, root.getRelative("prefetch"), eventHandler, ImmutableMap.of());
+      prefetcher.prefetch(ImmutableList.of(slowUrl), WORLD_SHA256, "", "slow", /* netrc= */ null);
+      accepted.await();
+      prefetcher.prefetch(ImmutableList.of(url), HELLO_SHA256, "", "hello", /* netrc= */ null);
+
+      // Does not wait for the prefetch of "hello", which is queued behind the slow one.
+      Path output = root.getRelative("output");
+      output.createDirectoryAndParents();
+      Path downloaded =
+          httpDownloader.download(
+              ImmutableList.of(url),
+              ImmutableMap.of(),
+              Optional.of(HELLO_SHA256),
+              "",
+              Optional.of(""),
+              output,
+              eventHandler,
+              ImmutableMap.of(),
+              "hello");
+
+      served.get();
+      assertThat(connections.get()).isEqualTo(1);
+      assertThat(new String(FileSystemUtils.readContent(downloaded), UTF_8)).isEqualTo("hello");
+      release.countDown();
+      slowServed.get();
+    }
+  }
+
+  @Test
+  public void prefetchIsIgnoredForRelativeNetrcFile() throws Exception {
+    DownloadPrefetcher prefetcher = httpDownloader.getPrefetcher();
+    prefetcher.start(1, root.getRelative("prefetch"), eventHandler, ImmutableMap.of());
+    prefetcher.prefetch(
+        ImmutableList.of(new URL("http://localhost:1/hello.txt")),
+        HELLO_SHA256,
+        "",
+        "hello",
+        "netrc");
+    prefetcher.awaitPrefetch(HELLO_SHA256);
+
+    assertThat(root.getRelative("prefetch").exists()).isFalse();
+  }
+}
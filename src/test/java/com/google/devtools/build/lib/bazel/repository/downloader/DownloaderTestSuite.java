@@ -21,6 +21,7 @@ import org.junit.runners.Suite.SuiteClasses;
 /** Test suite for downloader package. */
 @RunWith(Suite.class)
 @SuiteClasses({
+  DownloadPrefetcherTest.class,
   HashInputStreamTest.class,
   HttpConnectorMultiplexerIntegrationTest.class,
   HttpConnectorMultiplexerTest.class,
@@ -28,8 +29,10 @@ import org.junit.runners.Suite.SuiteClasses;
   HttpDownloaderTest.class,
   HttpStreamTest.class,
   HttpUtilsTest.class,
+  NetrcTest.class,
   ProgressInputStreamTest.class,
   ProxyHelperTest.class,
+  RangeDownloaderTest.class,
   RetryingInputStreamTest.class,
 })
 public class DownloaderTestSuite {}
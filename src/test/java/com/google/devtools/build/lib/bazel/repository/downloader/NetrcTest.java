@@ -0,0 +1,211 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.bazel.repository.downloader;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.lib.skylarkinterface.Param;
+import com.google.devtools.build.lib.skylarkinterface.SkylarkCallable;
+import com.google.devtools.build.lib.skylarkinterface.SkylarkModule;
+import com.google.devtools.build.lib.skylarkinterface.SkylarkValue;
+import com.google.devtools.build.lib.syntax.EvalException;
+import com.google.devtools.build.lib.syntax.EvalUtils;
+import com.google.devtools.build.lib.syntax.ParserInput;
+import com.google.devtools.build.lib.syntax.SkylarkList.Tuple;
+import com.google.devtools.build.lib.syntax.StarlarkThread;
+import com.google.devtools.build.lib.testutil.TestMode;
+import com.google.devtools.build.runfiles.Runfiles;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link Netrc}. */
+@RunWith(JUnit4.class)
+public class NetrcTest {
+
+  @Test
+  public void testAuthHeadersForMachinesWithLoginAndPassword() throws Exception {
+    Netrc netrc =
+        Netrc.parse(
+            String.join(
+                "\n",
+                "machine foo.example.org login foo password bar",
+                "machine nopassword.example.org",
+                "  login baz",
+                "macdef init",
+                "machine macro.example.org login x password y",
+                "",
+                "default login anonymous password secret",
+                "machine bar.example.org",
+                "  login a",
+                "  password b"));
+
+    assertThat(
+            netrc.getAuthHeaders(
+                ImmutableList.of(
+                    new URL("https://foo.example.org/file.tar.gz"),
+                    new URL("http://bar.example.org:8080/file.tar.gz"),
+                    new URL("ftp://foo.example.org/file.tar.gz"),
+                    new URL("https://nopassword.example.org/file.tar.gz"),
+                    new URL("https://macro.example.org/file.tar.gz"),
+                    new URL("https://unknown.example.org/file.tar.gz"))))
+        .containsExactly(
+            new URI("https://foo.example.org/file.tar.gz"),
+            ImmutableMap.of("Authorization", "Basic Zm9vOmJhcg=="),
+            new URI("http://bar.example.org:8080/file.tar.gz"),
+            ImmutableMap.of("Authorization", "Basic YTpi"));
+  }
+
+  @Test
+  public void testUnexpectedTokenIsAnError() throws Exception {
+    assertThrows(
+        IOException.class, () -> Netrc.parse("machine foo.example.org user foo password bar"));
+  }
+
+  private static final ImmutableList<String> URLS =
+      ImmutableList.of(
+          "https://foo.example.org/file.tar.gz",
+          "http://bar.example.org:8080/file.tar.gz",
+          "ftp://foo.example.org/file.tar.gz",
+          "https://nopassword.example.org/file.tar.gz",
+          "https://macro.example.org/file.tar.gz",
+          "https://user@foo.example.org/file.tar.gz",
+          "https://foo.example.org?file.tar.gz",
+          "https://unknown.example.org/file.tar.gz");
+
+  /** Checks that {@code read_netrc} and {@code use_netrc} agree with {@link Netrc}. */
+  @Test
+  public void testSameAsStarlark() throws Exception {
+    assertSameAsStarlark(
+        "machine foo.example.org login foo password bar",
+        "machine nopassword.example.org",
+        "  login baz",
+        "macdef init",
+        "machine macro.example.org login x password y",
+        "",
+        "default login anonymous password secret",
+        "machine bar.example.org",
+        "  login a",
+        "  password b");
+    // A later entry for the same machine replaces the earlier one.
+    assertSameAsStarlark(
+        "machine foo.example.org login foo password bar",
+        "machine foo.example.org login foo",
+        "machine bar.example.org login a password b",
+        "machine bar.example.org login c password d");
+    // Other line endings and whitespace.
+    assertSameAsStarlark(
+        "machine\tfoo.example.org login foo password bar\r\nmachine bar.example.org\r"
+            + "login\u000Ba password\u00A0b  account c\n");
+    // Tokens on the line of a macro definition are not part of the macro.
+    assertSameAsStarlark(
+        "machine macro.example.org macdef init login x password y",
+        "cd /pub",
+        "",
+        "machine foo.example.org login foo password bar");
+    // Empty and malformed files.
+    assertSameAsStarlark("");
+    assertSameAsStarlark("login foo password bar");
+    assertSameAsStarlark("machine foo.example.org login");
+    assertSameAsStarlark("machine foo.example.org user foo password bar");
+  }
+
+  private static void assertSameAsStarlark(String... lines) throws Exception {
+    String contents = String.join("\n", lines);
+    Map<URI, Map<String, String>> expected;
+    try {
+      expected = useNetrcInStarlark(contents);
+    } catch (EvalException e) {
+      assertThrows(IOException.class, () -> Netrc.parse(contents));
+      return;
+    }
+    List<URL> urls = new ArrayList<>();
+    for (String url : URLS) {
+      urls.add(new URL(url));
+    }
+    assertThat(Netrc.parse(contents).getAuthHeaders(urls))
+        .named("headers for " + contents)
+        .containsExactlyEntriesIn(expected);
+  }
+
+  /**
+   * Computes the authorization headers for {@link #URLS} with {@code read_netrc} and {@code
+   * use_netrc}, in the form {@link Netrc#getAuthHeaders} returns them.
+   */
+  private static Map<URI, Map<String, String>> useNetrcInStarlark(String contents)
+      throws Exception {
+    String utils =
+        new String(
+            Files.readAllBytes(
+                Paths.get(
+                    Runfiles.create().rlocation("io_bazel/tools/build_defs/repo/utils.bzl"))),
+            UTF_8);
+    StarlarkThread thread =
+        TestMode.SKYLARK.createStarlarkThread(
+            NullEventHandler.INSTANCE,
+            ImmutableMap.of(
+                "ctx", new FakeRepositoryContext(contents), "urls", Tuple.copyOf(URLS)));
+    EvalUtils.exec(ParserInput.create(utils, null), thread);
+    Map<?, ?> auth =
+        (Map<?, ?>)
+            EvalUtils.eval(
+                ParserInput.fromLines("use_netrc(read_netrc(ctx, '.netrc'), urls)"), thread);
+
+    Map<URI, Map<String, String>> headers = new HashMap<>();
+    for (Map.Entry<?, ?> entry : auth.entrySet()) {
+      Map<?, ?> value = (Map<?, ?>) entry.getValue();
+      String credentials = value.get("login") + ":" + value.get("password");
+      headers.put(
+          new URI((String) entry.getKey()),
+          ImmutableMap.of(
+              "Authorization",
+              "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(UTF_8))));
+    }
+    return headers;
+  }
+
+  /** A repository context whose only file is the {@code .netrc} file. */
+  @SkylarkModule(name = "repository_ctx", doc = "")
+  public static final class FakeRepositoryContext implements SkylarkValue {
+    private final String netrc;
+
+    FakeRepositoryContext(String netrc) {
+      this.netrc = netrc;
+    }
+
+    @SkylarkCallable(
+        name = "read",
+        parameters = {@Param(name = "path", type = String.class)},
+        documented = false)
+    public String read(String path) {
+      assertThat(path).isEqualTo(".netrc");
+      return netrc;
+    }
+  }
+}
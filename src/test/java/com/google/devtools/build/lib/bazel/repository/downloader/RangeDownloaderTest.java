@@ -0,0 +1,245 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.bazel.repository.downloader;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.mockito.Mockito.mock;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.bazel.repository.cache.RepositoryCache.KeyType;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.util.Sleeper;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.DigestHashFunction.DefaultHashFunctionNotSetException;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link RangeDownloader}. */
+@RunWith(JUnit4.class)
+public class RangeDownloaderTest {
+
+  private static final int CHUNK_SIZE = 1000;
+  private static final int CHUNKS = 10;
+
+  @Rule public final TemporaryFolder workingDir = new TemporaryFolder();
+
+  @Rule public final Timeout timeout = new Timeout(30, SECONDS);
+
+  private final EventHandler eventHandler = mock(EventHandler.class);
+  private final HttpConnector connector =
+      new HttpConnector(
+          Locale.US, eventHandler, new ProxyHelper(ImmutableMap.of()), mock(Sleeper.class));
+  private final byte[] content = new byte[CHUNK_SIZE * CHUNKS - 123];
+  private final Checksum checksum;
+  private final JavaIoFileSystem fs;
+  private Path destination;
+  private Path partialFile;
+
+  public RangeDownloaderTest() throws DefaultHashFunctionNotSetException {
+    try {
+      DigestHashFunction.setDefault(DigestHashFunction.SHA256);
+    } catch (DigestHashFunction.DefaultAlreadySetException e) {
+      // Do nothing.
+    }
+    fs = new JavaIoFileSystem();
+    new Random(42).nextBytes(content);
+    checksum = Checksum.fromString(KeyType.SHA256, Hashing.sha256().hashBytes(content).toString());
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    Path root = fs.getPath(workingDir.getRoot().getAbsolutePath());
+    destination = root.getRelative("out/file.tar.gz");
+    partialFile = root.getRelative("partial/file");
+  }
+
+  private RangeDownloader newRangeDownloader(int connections) {
+    return newRangeDownloader(connections, new Semaphore(connections));
+  }
+
+  private RangeDownloader newRangeDownloader(int connections, Semaphore permits) {
+    return new RangeDownloader(connector, eventHandler, connections, CHUNK_SIZE, permits);
+  }
+
+  private static long countRanges(ImmutableList<String> ranges) {
+    // Ignore the request that asks for the first byte to find out the size.
+    return ranges.stream().filter(range -> !range.equals("bytes=0-0")).count();
+  }
+
+  @Test
+  public void downloadsRangesFromAllMirrors() throws Exception {
+    try (TestHttpServer mirror1 = new TestHttpServer(content);
+        TestHttpServer mirror2 = new TestHttpServer(content)) {
+      boolean downloaded =
+          newRangeDownloader(3)
+              .download(
+                  ImmutableList.of(mirror1.getUrl("file.tar.gz"), mirror2.getUrl("file.tar.gz")),
+                  ImmutableMap.of(),
+                  checksum,
+                  destination,
+                  partialFile);
+
+      assertThat(downloaded).isTrue();
+      assertThat(FileSystemUtils.readContent(destination)).isEqualTo(content);
+      assertThat(partialFile.getParentDirectory().getDirectoryEntries()).isEmpty();
+      assertThat(countRanges(mirror1.getRanges())).isEqualTo(CHUNKS / 2);
+      assertThat(countRanges(mirror2.getRanges())).isEqualTo(CHUNKS / 2);
+    }
+  }
+
+  @Test
+  public void connectsOnlyWithPermits() throws Exception {
+    Semaphore permits = new Semaphore(0);
+    try (TestHttpServer server = new TestHttpServer(content)) {
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      Future<Boolean> downloaded =
+          executor.submit(
+              () ->
+                  newRangeDownloader(/* connections= */ 4, permits)
+                      .download(
+                          ImmutableList.of(server.getUrl("file.tar.gz")),
+                          ImmutableMap.of(),
+                          checksum,
+                          destination,
+                          partialFile));
+      try {
+        assertThrows(TimeoutException.class, () -> downloaded.get(1, SECONDS));
+        assertThat(server.getRanges()).isEmpty();
+
+        permits.release();
+        assertThat(downloaded.get()).isTrue();
+      } finally {
+        executor.shutdownNow();
+      }
+
+      assertThat(FileSystemUtils.readContent(destination)).isEqualTo(content);
+      assertThat(permits.availablePermits()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void resumesFailedDownload() throws Exception {
+    try (TestHttpServer failing = new TestHttpServer(content)) {
+      // The size request and 4 ranges succeed.
+      failing.failRangeRequestsAfter(5);
+      assertThrows(
+          IOException.class,
+          () ->
+              newRangeDownloader(1)
+                  .download(
+                      ImmutableList.of(failing.getUrl("file.tar.gz")),
+                      ImmutableMap.of(),
+                      checksum,
+                      destination,
+                      partialFile));
+      assertThat(destination.exists()).isFalse();
+    }
+
+    try (TestHttpServer server = new TestHttpServer(content)) {
+      boolean downloaded =
+          newRangeDownloader(2)
+              .download(
+                  ImmutableList.of(server.getUrl("file.tar.gz")),
+                  ImmutableMap.of(),
+                  checksum,
+                  destination,
+                  partialFile);
+
+      assertThat(downloaded).isTrue();
+      assertThat(FileSystemUtils.readContent(destination)).isEqualTo(content);
+      assertThat(countRanges(server.getRanges())).isEqualTo(CHUNKS - 4);
+    }
+  }
+
+  @Test
+  public void fallsBackToOtherMirrorsForFailedRanges() throws Exception {
+    try (TestHttpServer failing = new TestHttpServer(content);
+        TestHttpServer server = new TestHttpServer(content)) {
+      failing.failRangeRequestsAfter(1);
+      boolean downloaded =
+          newRangeDownloader(2)
+              .download(
+                  ImmutableList.of(failing.getUrl("file.tar.gz"), server.getUrl("file.tar.gz")),
+                  ImmutableMap.of(),
+                  checksum,
+                  destination,
+                  partialFile);
+
+      assertThat(downloaded).isTrue();
+      assertThat(FileSystemUtils.readContent(destination)).isEqualTo(content);
+      assertThat(countRanges(server.getRanges())).isEqualTo(CHUNKS);
+    }
+  }
+
+  @Test
+  public void doesNotDownloadWithoutRangeSupport() throws Exception {
+    try (TestHttpServer server = new TestHttpServer(content)) {
+      server.setSupportsRanges(false);
+      boolean downloaded =
+          newRangeDownloader(2)
+              .download(
+                  ImmutableList.of(server.getUrl("file.tar.gz")),
+                  ImmutableMap.of(),
+                  checksum,
+                  destination,
+                  partialFile);
+
+      assertThat(downloaded).isFalse();
+      assertThat(destination.exists()).isFalse();
+      assertThat(partialFile.exists()).isFalse();
+    }
+  }
+
+  @Test
+  public void discardsRangesOfCorruptDownload() throws Exception {
+    byte[] corrupt = content.clone();
+    corrupt[CHUNK_SIZE + 1]++;
+    try (TestHttpServer server = new TestHttpServer(corrupt)) {
+      IOException e =
+          assertThrows(
+              IOException.class,
+              () ->
+                  newRangeDownloader(2)
+                      .download(
+                          ImmutableList.of(server.getUrl("file.tar.gz")),
+                          ImmutableMap.of(),
+                          checksum,
+                          destination,
+                          partialFile));
+
+      assertThat(e).hasMessageThat().contains("does not match expected");
+      assertThat(partialFile.getParentDirectory().getDirectoryEntries()).isEmpty();
+    }
+  }
+}
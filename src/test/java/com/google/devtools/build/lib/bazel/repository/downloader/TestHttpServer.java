@@ -0,0 +1,153 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.bazel.repository.downloader;
+
+import static com.google.devtools.build.lib.bazel.repository.downloader.DownloaderTestUtils.sendLines;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Local HTTP server for downloader tests, which serves the same content at every path and supports
+ * single range requests.
+ *
+ * <p>Every response closes its connection.
+ */
+final class TestHttpServer implements AutoCloseable {
+
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+  private final byte[] content;
+  private final ServerSocket server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final AtomicInteger rangeRequestsBeforeFailure = new AtomicInteger(Integer.MAX_VALUE);
+  private volatile boolean supportsRanges = true;
+
+  @GuardedBy("this")
+  private final List<String> ranges = new ArrayList<>();
+
+  TestHttpServer(byte[] content) throws IOException {
+    this.content = content;
+    this.server = new ServerSocket(0, 50, InetAddress.getByName(null));
+    executor.submit(this::acceptConnections);
+  }
+
+  URL getUrl(String path) throws MalformedURLException {
+    return new URL(String.format("http://localhost:%d/%s", server.getLocalPort(), path));
+  }
+
+  /** Makes the server ignore the Range header and always send the whole content. */
+  void setSupportsRanges(boolean supportsRanges) {
+    this.supportsRanges = supportsRanges;
+  }
+
+  /** Makes the server answer 404 to all range requests after the first {@code count} ones. */
+  void failRangeRequestsAfter(int count) {
+    rangeRequestsBeforeFailure.set(count);
+  }
+
+  /** Returns the Range headers of the requests the server answered so far. */
+  synchronized ImmutableList<String> getRanges() {
+    return ImmutableList.copyOf(ranges);
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.close();
+    executor.shutdownNow();
+  }
+
+  private void acceptConnections() {
+    while (true) {
+      Socket socket;
+      try {
+        socket = server.accept();
+      } catch (IOException e) {
+        // The server was closed.
+        return;
+      }
+      executor.submit(
+          () -> {
+            try (Socket s = socket) {
+              serve(s);
+            }
+            return null;
+          });
+    }
+  }
+
+  private void serve(Socket socket) throws IOException {
+    Map<String, String> request = new HashMap<>();
+    InputStream in = socket.getInputStream();
+    HttpParser.readHttpRequest(in, request);
+    Matcher range = RANGE.matcher(request.getOrDefault("range", ""));
+    if (!supportsRanges || !range.matches()) {
+      send(socket, "200 OK", content, 0, content.length);
+      return;
+    }
+    synchronized (this) {
+      ranges.add(request.get("range"));
+    }
+    if (rangeRequestsBeforeFailure.getAndDecrement() <= 0) {
+      sendLines(socket, "HTTP/1.1 404 Not Found", "Connection: close", "Content-Length: 0", "", "");
+      return;
+    }
+    int start = Integer.parseInt(range.group(1));
+    int end = Math.min(Integer.parseInt(range.group(2)), content.length - 1);
+    send(
+        socket,
+        "206 Partial Content",
+        content,
+        start,
+        end - start + 1,
+        String.format("Content-Range: bytes %d-%d/%d", start, end, content.length),
+        "Accept-Ranges: bytes");
+  }
+
+  private static void send(
+      Socket socket, String status, byte[] content, int offset, int length, String... headers)
+      throws IOException {
+    List<String> lines = new ArrayList<>();
+    lines.add("HTTP/1.1 " + status);
+    lines.add("Connection: close");
+    lines.add("Content-Type: application/octet-stream");
+    lines.add("Content-Length: " + length);
+    for (String header : headers) {
+      lines.add(header);
+    }
+    lines.add("");
+    lines.add("");
+    sendLines(socket, lines.toArray(new String[0]));
+    OutputStream out = socket.getOutputStream();
+    out.write(content, offset, length);
+    out.flush();
+  }
+}
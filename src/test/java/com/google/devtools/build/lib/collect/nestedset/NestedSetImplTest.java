@@ -20,6 +20,8 @@ import com.google.common.collect.Lists;
 import com.google.common.testing.EqualsTester;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -234,6 +236,98 @@ public class NestedSetImplTest {
     }
   }
 
+  /** Checks that iterating over a set visits the same elements in the same order as toList(). */
+  @Test
+  public void streamingIterationMatchesToList() {
+    for (Order order : Order.values()) {
+      NestedSet<String> shared = new NestedSetBuilder<String>(order).add("a").add("b").build();
+      NestedSet<String> left =
+          new NestedSetBuilder<String>(order).add("c").addTransitive(shared).build();
+      NestedSet<String> right =
+          new NestedSetBuilder<String>(order).add("a").add("d").addTransitive(shared).build();
+      NestedSet<String> empty = new NestedSetBuilder<String>(order).build();
+
+      for (int round = 0; round < 2; round++) {
+        // The first round expands each set, the second one replays the memo.
+        NestedSet<String> set =
+            new NestedSetBuilder<String>(order)
+                .add("e")
+                .add("c")
+                .addTransitive(left)
+                .addTransitive(empty)
+                .addTransitive(right)
+                .build();
+        for (NestedSet<String> s : Lists.newArrayList(set, left, shared, empty)) {
+          List<String> iterated = Lists.newArrayList(s.iterator());
+          List<String> visited = new ArrayList<>();
+          s.forEach(visited::add);
+          assertThat(iterated).containsExactlyElementsIn(s.toList()).inOrder();
+          assertThat(visited).containsExactlyElementsIn(s.toList()).inOrder();
+        }
+      }
+    }
+  }
+
+  @Test
+  public void streamingIterationOfDeepSet() {
+    NestedSet<Integer> set = NestedSetBuilder.<Integer>stableOrder().add(0).build();
+    for (int i = 1; i < 100; i++) {
+      set = NestedSetBuilder.<Integer>stableOrder().add(i).add(i - 1).addTransitive(set).build();
+    }
+    set.toList();
+    assertThat(Lists.newArrayList(set.iterator()))
+        .containsExactlyElementsIn(set.toList())
+        .inOrder();
+  }
+
+  @Test
+  public void sizeAndDepthMetadata() {
+    NestedSet<String> empty = nestedSetBuilder().build();
+    NestedSet<String> singleton = nestedSetBuilder("a").build();
+    NestedSet<String> leaf = nestedSetBuilder("a", "b", "c").build();
+    NestedSet<String> wrapper = nestedSetBuilder().addTransitive(leaf).build();
+    NestedSet<String> nested =
+        nestedSetBuilder("c", "d").addTransitive(leaf).addTransitive(singleton).build();
+    NestedSet<String> diamond =
+        nestedSetBuilder("e")
+            .addTransitive(nested)
+            .addTransitive(nestedSetBuilder("f").addTransitive(leaf).build())
+            .build();
+
+    assertThat(empty.getSizeUpperBound()).isEqualTo(0);
+    assertThat(empty.getDepth()).isEqualTo(0);
+    assertThat(empty.getSizeIfKnown()).isEqualTo(0);
+    assertThat(singleton.getSizeUpperBound()).isEqualTo(1);
+    assertThat(singleton.getDepth()).isEqualTo(0);
+    assertThat(singleton.getSizeIfKnown()).isEqualTo(1);
+    assertThat(leaf.getSizeUpperBound()).isEqualTo(3);
+    assertThat(leaf.getDepth()).isEqualTo(1);
+    assertThat(leaf.getSizeIfKnown()).isEqualTo(3);
+    assertThat(wrapper.getSizeUpperBound()).isEqualTo(3);
+    assertThat(wrapper.getDepth()).isEqualTo(1);
+    // "a" from the singleton is hoisted, and then deduplicated against the direct elements.
+    assertThat(nested.getSizeUpperBound()).isEqualTo(6);
+    assertThat(nested.getDepth()).isEqualTo(2);
+    assertThat(diamond.getSizeUpperBound()).isEqualTo(11);
+    assertThat(diamond.getDepth()).isEqualTo(3);
+
+    assertThat(diamond.getSizeIfKnown()).isEqualTo(-1);
+    assertThat(diamond.toList()).hasSize(6);
+    assertThat(diamond.getSizeIfKnown()).isEqualTo(6);
+  }
+
+  @Test
+  public void sizeAndDepthMetadataOfDeserializedSet() {
+    Object[] shared = {"a", "b"};
+    NestedSet<String> set =
+        NestedSet.forDeserialization(
+            Order.STABLE_ORDER, new Object[] {"c", shared, new Object[] {"d", shared}});
+
+    assertThat(set.getSizeUpperBound()).isEqualTo(6);
+    assertThat(set.getDepth()).isEqualTo(3);
+    assertThat(nestedSetBuilder("e").addTransitive(set).build().getSizeUpperBound()).isEqualTo(7);
+  }
+
   private NestedSet<Integer> createNestedSet(Order order, int numDirects, int numTransitives,
       Order transitiveOrder) {
     NestedSetBuilder<Integer> builder = new NestedSetBuilder<>(order);
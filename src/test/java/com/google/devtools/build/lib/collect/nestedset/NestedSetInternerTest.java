@@ -0,0 +1,94 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link NestedSetInterner}. */
+@RunWith(JUnit4.class)
+public class NestedSetInternerTest {
+
+  @Before
+  public final void enableInterning() {
+    NestedSetInterner.setEnabled(true);
+    NestedSetInterner.resetStatistics();
+  }
+
+  @After
+  public final void disableInterning() {
+    NestedSetInterner.setEnabled(false);
+  }
+
+  private static NestedSet<String> buildToolchain() {
+    NestedSet<String> headers =
+        NestedSetBuilder.<String>stableOrder().add("stdio.h").add("stdlib.h").build();
+    return NestedSetBuilder.<String>stableOrder()
+        .add("cc")
+        .add("ld")
+        .addTransitive(headers)
+        .build();
+  }
+
+  @Test
+  public void equalSetsAreShared() {
+    NestedSet<String> first = buildToolchain();
+    NestedSet<String> second = buildToolchain();
+
+    assertThat(second).isSameInstanceAs(first);
+    // Both the headers and the toolchain set were replaced.
+    assertThat(NestedSetInterner.getHits()).isEqualTo(2);
+    assertThat(NestedSetInterner.getSavedBytes()).isGreaterThan(0L);
+  }
+
+  @Test
+  public void differentSetsAreNotShared() {
+    NestedSet<String> stable = NestedSetBuilder.<String>stableOrder().add("a").add("b").build();
+    NestedSet<String> compile = NestedSetBuilder.<String>compileOrder().add("a").add("b").build();
+    NestedSet<String> reordered = NestedSetBuilder.<String>stableOrder().add("b").add("a").build();
+    NestedSet<String> nested =
+        NestedSetBuilder.<String>stableOrder().add("a").addTransitive(reordered).build();
+
+    assertThat(compile).isNotSameInstanceAs(stable);
+    assertThat(reordered).isNotSameInstanceAs(stable);
+    assertThat(nested).isNotSameInstanceAs(stable);
+    assertThat(NestedSetInterner.getHits()).isEqualTo(0);
+  }
+
+  @Test
+  public void equalButDistinctElementsAreNotShared() {
+    // Equal elements need not be interchangeable, like artifacts with different owners.
+    String a1 = new String("a");
+    String a2 = new String("a");
+    NestedSet<String> first = NestedSetBuilder.<String>stableOrder().add(a1).add("b").build();
+    NestedSet<String> second = NestedSetBuilder.<String>stableOrder().add(a2).add("b").build();
+
+    assertThat(second).isNotSameInstanceAs(first);
+    assertThat(second.toList().get(0)).isSameInstanceAs(a2);
+    assertThat(NestedSetInterner.getHits()).isEqualTo(0);
+  }
+
+  @Test
+  public void disabledInterningBuildsNewSets() {
+    NestedSetInterner.setEnabled(false);
+
+    assertThat(buildToolchain()).isNotSameInstanceAs(buildToolchain());
+    assertThat(NestedSetInterner.getHits()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,167 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.dynamic;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.ActionOwner;
+import com.google.devtools.build.lib.actions.BaseSpawn;
+import com.google.devtools.build.lib.actions.EmptyRunfilesSupplier;
+import com.google.devtools.build.lib.actions.ResourceSet;
+import com.google.devtools.build.lib.actions.Spawn;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil.NullAction;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.dynamic.SpawnRaceHistory.Decision;
+import com.google.devtools.build.lib.dynamic.SpawnRaceHistory.Mode;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SpawnRaceHistory}. */
+@RunWith(JUnit4.class)
+public class SpawnRaceHistoryTest {
+  private final SpawnRaceHistory history = new SpawnRaceHistory();
+
+  private static Spawn newSpawn(String mnemonic, String label) {
+    ActionOwner owner =
+        ActionOwner.create(
+            Label.parseAbsoluteUnchecked(label),
+            ImmutableList.of(),
+            null,
+            "dummy-configuration-mnemonic",
+            null,
+            "dummy-configuration",
+            null,
+            null,
+            ImmutableMap.of(),
+            null);
+    NullAction action =
+        new NullAction(owner, ActionsTestUtil.DUMMY_ARTIFACT) {
+          @Override
+          public String getMnemonic() {
+            return mnemonic;
+          }
+        };
+    return new BaseSpawn(
+        ImmutableList.of(),
+        ImmutableMap.of(),
+        ImmutableMap.of(),
+        EmptyRunfilesSupplier.INSTANCE,
+        action,
+        ResourceSet.create(1, 0, 0));
+  }
+
+  private void recordRaces(Spawn spawn, int count, boolean localWon, long latencyMillis) {
+    for (int i = 0; i < count; i++) {
+      history.recordRace(spawn, localWon, latencyMillis);
+    }
+  }
+
+  @Test
+  public void racesWithDefaultDelayWithoutEnoughHistory() {
+    Spawn spawn = newSpawn("Javac", "//foo:a");
+    recordRaces(spawn, SpawnRaceHistory.MIN_SAMPLES - 1, /*localWon=*/ false, 100);
+
+    Decision decision = history.decide(spawn, 1000);
+    assertThat(decision.getMode()).isEqualTo(Mode.RACE);
+    assertThat(decision.getLocalDelayMillis()).isEqualTo(1000);
+  }
+
+  @Test
+  public void runsRemotelyOnlyIfRemoteAlwaysWins() {
+    Spawn spawn = newSpawn("Javac", "//foo:a");
+    recordRaces(spawn, SpawnRaceHistory.MIN_SAMPLES, /*localWon=*/ false, 100);
+
+    for (int i = 1; i < SpawnRaceHistory.EXPLORATION_INTERVAL; i++) {
+      assertThat(history.decide(spawn, 0).getMode()).isEqualTo(Mode.REMOTE_ONLY);
+    }
+    // Every so often the spawn is raced anyway, in case local execution has become competitive.
+    assertThat(history.decide(spawn, 0).getMode()).isEqualTo(Mode.RACE);
+    assertThat(history.decide(spawn, 0).getMode()).isEqualTo(Mode.REMOTE_ONLY);
+  }
+
+  @Test
+  public void runsLocallyOnlyIfLocalAlwaysWins() {
+    Spawn spawn = newSpawn("Javac", "//foo:a");
+    recordRaces(spawn, SpawnRaceHistory.MIN_SAMPLES, /*localWon=*/ true, 100);
+
+    assertThat(history.decide(spawn, 0).getMode()).isEqualTo(Mode.LOCAL_ONLY);
+  }
+
+  @Test
+  public void delaysLocalBranchByRemoteLatencyIfRemoteUsuallyWins() {
+    Spawn spawn = newSpawn("Javac", "//foo:a");
+    recordRaces(spawn, 3, /*localWon=*/ true, 100);
+    recordRaces(spawn, 10, /*localWon=*/ false, 2000);
+
+    Decision decision = history.decide(spawn, 0);
+    assertThat(decision.getMode()).isEqualTo(Mode.RACE);
+    assertThat(decision.getLocalDelayMillis()).isEqualTo(2000);
+  }
+
+  @Test
+  public void learnedLocalDelayIsCapped() {
+    Spawn spawn = newSpawn("Javac", "//foo:a");
+    recordRaces(spawn, 3, /*localWon=*/ true, 100);
+    recordRaces(spawn, 10, /*localWon=*/ false, 60_000);
+
+    assertThat(history.decide(spawn, 0).getLocalDelayMillis())
+        .isEqualTo(SpawnRaceHistory.MAX_LOCAL_DELAY_MILLIS);
+  }
+
+  @Test
+  public void doesNotDelayLocalBranchIfLocalUsuallyWins() {
+    Spawn spawn = newSpawn("Javac", "//foo:a");
+    recordRaces(spawn, 3, /*localWon=*/ false, 2000);
+    recordRaces(spawn, 10, /*localWon=*/ true, 100);
+
+    Decision decision = history.decide(spawn, 1000);
+    assertThat(decision.getMode()).isEqualTo(Mode.RACE);
+    assertThat(decision.getLocalDelayMillis()).isEqualTo(0);
+  }
+
+  @Test
+  public void prefersTargetHistoryOverMnemonicHistory() {
+    Spawn local = newSpawn("Javac", "//foo:local");
+    Spawn remote = newSpawn("Javac", "//foo:remote");
+    Spawn unknown = newSpawn("Javac", "//foo:unknown");
+    recordRaces(local, SpawnRaceHistory.MIN_SAMPLES, /*localWon=*/ true, 100);
+    recordRaces(remote, 3 * SpawnRaceHistory.MIN_SAMPLES, /*localWon=*/ false, 100);
+
+    assertThat(history.decide(local, 0).getMode()).isEqualTo(Mode.LOCAL_ONLY);
+    assertThat(history.decide(remote, 0).getMode()).isEqualTo(Mode.REMOTE_ONLY);
+    // Falls back to the mnemonic, where remote execution has won most of the recent races.
+    assertThat(history.decide(unknown, 0).getMode()).isEqualTo(Mode.REMOTE_ONLY);
+  }
+
+  @Test
+  public void dropsHistoryOfLeastRecentlyRacedTargets() {
+    SpawnRaceHistory boundedHistory = new SpawnRaceHistory(/*maxTargets=*/ 1);
+    Spawn local = newSpawn("Javac", "//foo:local");
+    Spawn remote = newSpawn("Javac", "//foo:remote");
+    for (int i = 0; i < SpawnRaceHistory.MIN_SAMPLES; i++) {
+      boundedHistory.recordRace(local, /*localWon=*/ true, 100);
+    }
+    for (int i = 0; i < 3 * SpawnRaceHistory.MIN_SAMPLES; i++) {
+      boundedHistory.recordRace(remote, /*localWon=*/ false, 100);
+    }
+
+    assertThat(boundedHistory.decide(remote, 0).getMode()).isEqualTo(Mode.REMOTE_ONLY);
+    // The history of //foo:local was dropped, so the mnemonic history is used instead.
+    assertThat(boundedHistory.decide(local, 0).getMode()).isEqualTo(Mode.REMOTE_ONLY);
+  }
+}
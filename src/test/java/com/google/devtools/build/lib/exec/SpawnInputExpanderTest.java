@@ -363,6 +363,57 @@ public class SpawnInputExpanderTest {
     assertThat(inputMappings).containsEntry(PathFragment.create("out/treeArtifact/file2"), file2);
   }
 
+  @Test
+  public void testArtifactInputReplacesOtherInputWithSameExecPath() throws Exception {
+    Artifact artifact =
+        ActionsTestUtil.createArtifact(
+            ArtifactRoot.asSourceRoot(Root.fromPath(fs.getPath("/root"))),
+            fs.getPath("/root/dir/file"));
+
+    Spawn spawn =
+        new SpawnBuilder("/bin/echo", "Hello World")
+            .withInput(artifact)
+            .withInput("dir/file")
+            .withInput("dir/other")
+            .build();
+    inputMappings =
+        expander.getInputMapping(
+            spawn,
+            NO_ARTIFACT_EXPANDER,
+            ArtifactPathResolver.IDENTITY,
+            new FakeActionInputFileCache(),
+            true);
+    assertThat(inputMappings).hasSize(2);
+    assertThat(inputMappings).containsEntry(PathFragment.create("dir/file"), artifact);
+  }
+
+  @Test
+  public void testRunfilesReplaceInputsWithSameExecPath() throws Exception {
+    Artifact artifact =
+        ActionsTestUtil.createArtifact(
+            ArtifactRoot.asSourceRoot(Root.fromPath(fs.getPath("/root"))),
+            fs.getPath("/root/dir/file"));
+    Runfiles runfiles = new Runfiles.Builder("workspace").addArtifact(artifact).build();
+    RunfilesSupplier supplier = new RunfilesSupplierImpl(PathFragment.create("runfiles"), runfiles);
+    FakeActionInputFileCache mockCache = new FakeActionInputFileCache();
+    mockCache.put(
+        artifact,
+        FileArtifactValue.createForNormalFile(
+            FAKE_DIGEST, /*proxy=*/ null, 0L, /*isShareable=*/ true));
+
+    Spawn spawn =
+        new SpawnBuilder("/bin/echo", "Hello World")
+            .withInput("runfiles/workspace/dir/file")
+            .withRunfilesSupplier(supplier)
+            .build();
+    inputMappings =
+        expander.getInputMapping(
+            spawn, NO_ARTIFACT_EXPANDER, ArtifactPathResolver.IDENTITY, mockCache, true);
+    assertThat(inputMappings).hasSize(1);
+    assertThat(inputMappings)
+        .containsEntry(PathFragment.create("runfiles/workspace/dir/file"), artifact);
+  }
+
   private SpecialArtifact createTreeArtifact(String relPath) throws IOException {
     return createSpecialArtifact(relPath, SpecialArtifactType.TREE);
   }
@@ -0,0 +1,158 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.testutil.TestRuleClassProvider;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Measures the attribute storage of a synthetic set of rules, shaped like those of large
+ * generated packages: a few explicitly set attributes per rule, and defaults for all others.
+ *
+ * <p>This is a timing test that logs its results rather than asserting on them, so it is excluded
+ * from the regular test suite and only run on demand through its manual target.
+ */
+@RunWith(JUnit4.class)
+public class AttributeContainerBenchmark {
+  private static final Logger logger =
+      Logger.getLogger(AttributeContainerBenchmark.class.getName());
+
+  private static final ImmutableList<String> RULE_CLASSES =
+      ImmutableList.of("cc_library", "java_library", "genrule", "sh_test");
+
+  /** The number of rules of a large package, all of which are live at the same time. */
+  private static final int RULES = 1000;
+
+  /** The number of rules whose retained heap is measured. */
+  private static final int RETAINED_RULES = 100000;
+
+  private static final int WARMUP_REPS = 100;
+  private static final int REPS = 1000;
+
+  private List<RuleClass> ruleClasses;
+
+  @Before
+  public final void getRuleClasses() {
+    ruleClasses = new ArrayList<>();
+    for (String name : RULE_CLASSES) {
+      ruleClasses.add(TestRuleClassProvider.getRuleClassProvider().getRuleClassMap().get(name));
+    }
+  }
+
+  @Test
+  public void populate() {
+    // Warm up, so that the measurement doesn't include JIT compilation.
+    populate(WARMUP_REPS);
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    populate(REPS);
+    logger.info(
+        String.format(
+            "populate: %d ns per rule",
+            stopwatch.elapsed(TimeUnit.NANOSECONDS) / ((long) REPS * RULES)));
+  }
+
+  @Test
+  public void get() {
+    AttributeContainer[] containers = newContainers(RULES);
+    // Warm up, so that the measurement doesn't include JIT compilation.
+    get(containers, WARMUP_REPS);
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    get(containers, REPS);
+    logger.info(
+        String.format(
+            "get: %d ns per lookup",
+            stopwatch.elapsed(TimeUnit.NANOSECONDS) / ((long) REPS * RULES * 2)));
+  }
+
+  @Test
+  public void retainedHeap() {
+    long before = usedHeap();
+    AttributeContainer[] containers = newContainers(RETAINED_RULES);
+    long after = usedHeap();
+    logger.info(
+        String.format(
+            "retained heap: about %d bytes per rule for %d rules",
+            (after - before) / containers.length, containers.length));
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private void populate(int reps) {
+    for (int i = 0; i < reps; i++) {
+      newContainers(RULES);
+    }
+  }
+
+  private static int get(AttributeContainer[] containers, int reps) {
+    int found = 0;
+    for (int i = 0; i < reps; i++) {
+      for (AttributeContainer container : containers) {
+        if (container.getAttr("name") != null) {
+          found++;
+        }
+        if (container.getAttr("tags") != null) {
+          found++;
+        }
+      }
+    }
+    return found;
+  }
+
+  private AttributeContainer[] newContainers(int rules) {
+    AttributeContainer[] containers = new AttributeContainer[rules];
+    for (int j = 0; j < rules; j++) {
+      containers[j] = newContainer(ruleClasses.get(j % ruleClasses.size()), j);
+    }
+    return containers;
+  }
+
+  /** Sets the attributes of a rule the way {@link RuleClass} does when creating it. */
+  private static AttributeContainer newContainer(RuleClass ruleClass, int id) {
+    AttributeContainer container = new AttributeContainer(ruleClass);
+    for (int i = 0; i < ruleClass.getAttributeCount(); i++) {
+      Attribute attribute = ruleClass.getAttribute(i);
+      switch (attribute.getName()) {
+        case "name":
+          container.setAttributeValue(attribute, "rule_" + id, true);
+          break;
+        case "srcs":
+        case "outs":
+          container.setAttributeValue(
+              attribute,
+              ImmutableList.of(Label.parseAbsoluteUnchecked("//generated:rule_" + id + ".out")),
+              true);
+          break;
+        default:
+          container.setAttributeValue(attribute, attribute.getDefaultValueUnchecked(), false);
+      }
+    }
+    return container;
+  }
+}
@@ -72,6 +72,50 @@ public class AttributeContainerTest {
     assertThat(container.isAttributeValueExplicitlySpecified(attribute2)).isFalse();
   }
 
+  @Test
+  public void testDefaultValuesAreServedFromRuleClass() throws Exception {
+    Object defaultValue = attribute1.getDefaultValueUnchecked();
+    assertThat(container.getAttr(attribute1.getName())).isSameInstanceAs(defaultValue);
+
+    Object someValue = new Object();
+    container.setAttributeValue(attribute1, someValue, false);
+    assertThat(container.getAttr(attribute1.getName())).isSameInstanceAs(someValue);
+
+    container.setAttributeValue(attribute1, defaultValue, false);
+    assertThat(container.getAttr(attribute1.getName())).isSameInstanceAs(defaultValue);
+    assertThat(container.isAttributeValueExplicitlySpecified(attribute1)).isFalse();
+
+    // An explicit default is still recorded as explicit.
+    container.setAttributeValue(attribute1, defaultValue, true);
+    assertThat(container.getAttr(attribute1.getName())).isSameInstanceAs(defaultValue);
+    assertThat(container.isAttributeValueExplicitlySpecified(attribute1)).isTrue();
+  }
+
+  @Test
+  public void testSparseValues() throws Exception {
+    int numAttributes = ruleClass.getAttributeCount();
+    Object[] expected = new Object[numAttributes];
+    for (int i = 0; i < numAttributes; i++) {
+      expected[i] = ruleClass.getAttribute(i).getDefaultValueUnchecked();
+    }
+    Random rng = new Random(0);
+    for (int step = 0; step < 1000; step++) {
+      int index = rng.nextInt(numAttributes);
+      Attribute attribute = ruleClass.getAttribute(index);
+      // Alternate between values, nulls and defaults, which need not be stored.
+      int choice = rng.nextInt(3);
+      Object value =
+          choice == 0
+              ? new Object()
+              : choice == 1 ? null : attribute.getDefaultValueUnchecked();
+      container.setAttributeValue(attribute, value, false);
+      expected[index] = value;
+      for (int i = 0; i < numAttributes; i++) {
+        assertThat(container.getAttributeValue(i)).isSameInstanceAs(expected[i]);
+      }
+    }
+  }
+
   @Test
   public void testPackedState() throws Exception {
     Random rng = new Random();
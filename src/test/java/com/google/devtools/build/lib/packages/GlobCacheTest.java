@@ -197,6 +197,23 @@ public class GlobCacheTest {
         .containsExactly("first.txt", "second.txt", "first.js");
   }
 
+  @Test
+  public void testGlobsOfOneCallAreCachedSeparately() throws Exception {
+    assertThat(cache.globUnsorted(list("*.txt", "**/first.js", "bar/*"), NONE, false, false))
+        .containsExactly(
+            "first.txt", "second.txt", "first.js", "foo/first.js", "bar/first.js", "bar/second.js");
+    assertThat(cache.getKeySet())
+        .containsExactly(
+            Pair.of("*.txt", false), Pair.of("**/first.js", false), Pair.of("bar/*", false));
+    assertThat(cache.getGlobUnsorted("bar/*")).containsExactly("bar/first.js", "bar/second.js");
+
+    BadGlobException e =
+        assertThrows(
+            BadGlobException.class,
+            () -> cache.globUnsorted(list("*.java", "nothing/*"), NONE, false, false));
+    assertThat(e).hasMessageThat().contains("glob pattern '*.java' didn't match anything");
+  }
+
   @Test
   public void testRecursiveGlobDoesNotMatchSubpackage() throws Exception {
     List<String> glob = cache.getGlobUnsorted("**/*.js");
@@ -15,12 +15,14 @@
 package com.google.devtools.build.lib.profiler;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import com.google.common.io.ByteStreams;
 import com.google.devtools.build.lib.profiler.MemoryProfiler.MemoryProfileStableHeapParameters;
 import com.google.devtools.build.lib.profiler.MemoryProfiler.Sleeper;
+import java.io.ByteArrayOutputStream;
 import java.lang.management.MemoryMXBean;
 import java.time.Duration;
 import java.util.ArrayList;
@@ -67,6 +69,22 @@ public class MemoryProfilerTest {
     verify(bean, times(4)).gc();
   }
 
+  @Test
+  public void profilerWritesRegisteredStatistics() throws Exception {
+    MemoryProfiler profiler = MemoryProfiler.instance();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    profiler.start(out);
+    profiler.registerStatistic("cache:saved_bytes", () -> 42);
+    try {
+      profiler.markPhase(ProfilePhase.LOAD);
+    } finally {
+      profiler.unregisterStatistic("cache:saved_bytes");
+      profiler.stop();
+    }
+    assertThat(new String(out.toByteArray(), UTF_8))
+        .contains("Initialize command:cache:saved_bytes:42\n");
+  }
+
   private static class RecordingSleeper implements Sleeper {
     private final List<Duration> sleeps = new ArrayList<>();
 
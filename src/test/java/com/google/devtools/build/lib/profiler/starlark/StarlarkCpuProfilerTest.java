@@ -0,0 +1,144 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler.starlark;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.syntax.BaseFunction;
+import com.google.devtools.build.lib.syntax.EvalUtils;
+import com.google.devtools.build.lib.syntax.FuncallExpression;
+import com.google.devtools.build.lib.syntax.Mutability;
+import com.google.devtools.build.lib.syntax.ParserInput;
+import com.google.devtools.build.lib.syntax.Runtime;
+import com.google.devtools.build.lib.syntax.RunningThreads;
+import com.google.devtools.build.lib.syntax.StarlarkThread;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.perftools.profiles.ProfileProto.Function;
+import com.google.perftools.profiles.ProfileProto.Location;
+import com.google.perftools.profiles.ProfileProto.Profile;
+import com.google.perftools.profiles.ProfileProto.Sample;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link StarlarkCpuProfiler}. */
+@RunWith(JUnit4.class)
+public class StarlarkCpuProfilerTest {
+
+  @After
+  public void stopRecording() {
+    RunningThreads.setEnabled(false);
+  }
+
+  /** Executes the program in a thread that defines {@code sample()}, which samples all threads. */
+  private static void exec(StarlarkCpuProfiler profiler, String... lines) throws Exception {
+    StarlarkThread thread =
+        StarlarkThread.builder(Mutability.create("test")).useDefaultSemantics().build();
+    thread.update(
+        "sample",
+        new BaseFunction("sample") {
+          @Override
+          public Object call(
+              List<Object> args,
+              Map<String, Object> kwargs,
+              FuncallExpression ast,
+              StarlarkThread thread) {
+            profiler.sample();
+            return Runtime.NONE;
+          }
+        });
+    EvalUtils.exec(
+        ParserInput.create(String.join("\n", lines), PathFragment.create("pkg/foo.bzl")), thread);
+  }
+
+  @Test
+  public void samplesStarlarkCallStacks() throws Exception {
+    StarlarkCpuProfiler profiler = new StarlarkCpuProfiler(Duration.ofMillis(10));
+    RunningThreads.setEnabled(true);
+    exec(
+        profiler,
+        "def g():", //
+        "  sample()",
+        "def f():",
+        "  g()",
+        "  g()",
+        "f()");
+    Profile profile = profiler.createProfile();
+
+    assertThat(profile.getSampleList()).hasSize(2);
+    List<List<String>> callstacks = new ArrayList<>();
+    for (Sample sample : profile.getSampleList()) {
+      callstacks.add(sampleToCallstack(profile, sample));
+      assertThat(sample.getValue(0)).isEqualTo(1);
+      assertThat(sample.getValue(1)).isEqualTo(Duration.ofMillis(10).toNanos());
+    }
+    assertThat(callstacks)
+        .containsExactly(
+            ImmutableList.of("g pkg/foo.bzl:1", "f pkg/foo.bzl:4", "<top level> pkg/foo.bzl:6"),
+            ImmutableList.of("g pkg/foo.bzl:1", "f pkg/foo.bzl:5", "<top level> pkg/foo.bzl:6"));
+  }
+
+  @Test
+  public void ignoresThreadsNotExecutingStarlark() throws Exception {
+    StarlarkCpuProfiler profiler = new StarlarkCpuProfiler(Duration.ofMillis(10));
+    RunningThreads.setEnabled(true);
+    exec(profiler, "x = 1");
+    profiler.sample();
+
+    assertThat(profiler.createProfile().getSampleList()).isEmpty();
+  }
+
+  @Test
+  public void writesGzippedProfile() throws Exception {
+    StarlarkCpuProfiler profiler = StarlarkCpuProfiler.start(Duration.ofMillis(1));
+    Profile profile = profiler.stop();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    StarlarkCpuProfiler.write(profile, out);
+
+    Profile read =
+        Profile.parseFrom(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())));
+    assertThat(read).isEqualTo(profile);
+    List<String> sampleTypes = new ArrayList<>();
+    for (int i = 0; i < read.getSampleTypeCount(); i++) {
+      sampleTypes.add(read.getStringTable((int) read.getSampleType(i).getType()));
+    }
+    assertThat(sampleTypes).containsExactly("samples", "cpu", "alloc_space").inOrder();
+  }
+
+  /** Formats a callstack as (function) (file):(line), innermost first. */
+  private static List<String> sampleToCallstack(Profile profile, Sample sample) {
+    List<String> result = new ArrayList<>();
+    for (long locationId : sample.getLocationIdList()) {
+      Location location = profile.getLocation((int) locationId - 1);
+      assertThat(location.getLineList()).hasSize(1);
+      Function function = profile.getFunction((int) location.getLine(0).getFunctionId() - 1);
+      result.add(
+          String.format(
+              "%s %s:%d",
+              profile.getStringTable((int) function.getName()),
+              profile.getStringTable((int) function.getFilename()),
+              location.getLine(0).getLine()));
+    }
+    return result;
+  }
+}
@@ -29,6 +29,8 @@ import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.ArtifactRoot;
 import com.google.devtools.build.lib.actions.FileArtifactValue;
 import com.google.devtools.build.lib.actions.FileArtifactValue.RemoteFileArtifactValue;
+import com.google.devtools.build.lib.actions.LostInputsExecException;
+import com.google.devtools.build.lib.actions.LostInputsExecException.LostInputsIOException;
 import com.google.devtools.build.lib.actions.MetadataProvider;
 import com.google.devtools.build.lib.actions.cache.VirtualActionInput;
 import com.google.devtools.build.lib.actions.util.ActionsTestUtil;
@@ -91,7 +93,8 @@ public class RemoteActionInputFetcherTest {
     AbstractRemoteActionCache remoteCache =
         new StaticRemoteActionCache(options, digestUtil, cacheEntries);
     RemoteActionInputFetcher actionInputFetcher =
-        new RemoteActionInputFetcher(remoteCache, execRoot, Context.current());
+        new RemoteActionInputFetcher(
+            remoteCache, execRoot, Context.current(), /* reportLostInputs= */ false);
 
     // act
     actionInputFetcher.prefetchFiles(metadata.keySet(), metadataProvider);
@@ -115,7 +118,8 @@ public class RemoteActionInputFetcherTest {
     AbstractRemoteActionCache remoteCache =
         new StaticRemoteActionCache(options, digestUtil, new HashMap<>());
     RemoteActionInputFetcher actionInputFetcher =
-        new RemoteActionInputFetcher(remoteCache, execRoot, Context.current());
+        new RemoteActionInputFetcher(
+            remoteCache, execRoot, Context.current(), /* reportLostInputs= */ false);
     VirtualActionInput a = new StringActionInput("hello world", PathFragment.create("file1"));
 
     // act
@@ -141,7 +145,8 @@ public class RemoteActionInputFetcherTest {
     AbstractRemoteActionCache remoteCache =
         new StaticRemoteActionCache(options, digestUtil, new HashMap<>());
     RemoteActionInputFetcher actionInputFetcher =
-        new RemoteActionInputFetcher(remoteCache, execRoot, Context.current());
+        new RemoteActionInputFetcher(
+            remoteCache, execRoot, Context.current(), /* reportLostInputs= */ false);
 
     // act
     assertThrows(
@@ -153,6 +158,70 @@ public class RemoteActionInputFetcherTest {
     assertThat(actionInputFetcher.downloadsInProgress).isEmpty();
   }
 
+  @Test
+  public void testEvictedFileIsReportedAsLostInput() throws Exception {
+    // Test that inputs that were evicted from the remote cache can be regenerated via rewinding
+
+    // arrange
+    Map<ActionInput, FileArtifactValue> metadata = new HashMap<>();
+    Map<Digest, ByteString> cacheEntries = new HashMap<>();
+    Artifact a1 = createRemoteArtifact("file1", "hello world", metadata, cacheEntries);
+    Artifact a2 =
+        createRemoteArtifact("file2", "fizz buzz", metadata, /* cacheEntries= */ new HashMap<>());
+    MetadataProvider metadataProvider = new StaticMetadataProvider(metadata);
+    AbstractRemoteActionCache remoteCache =
+        new StaticRemoteActionCache(options, digestUtil, cacheEntries);
+    RemoteActionInputFetcher actionInputFetcher =
+        new RemoteActionInputFetcher(
+            remoteCache, execRoot, Context.current(), /* reportLostInputs= */ true);
+
+    // act
+    LostInputsIOException e =
+        assertThrows(
+            LostInputsIOException.class,
+            () -> actionInputFetcher.prefetchFiles(ImmutableList.of(a1, a2), metadataProvider));
+
+    // assert
+    String a2Hash =
+        DigestUtil.buildDigest(metadata.get(a2).getDigest(), metadata.get(a2).getSize())
+            .getHash();
+    LostInputsExecException lostInputs = e.getLostInputsExecException();
+    assertThat(lostInputs.getLostInputs()).containsExactly(a2Hash, a2);
+    assertThat(lostInputs.getInputOwners().getOwner(a2)).isNull();
+    assertThat(actionInputFetcher.downloadedFiles()).containsExactly(a1.getPath());
+    assertThat(actionInputFetcher.downloadsInProgress).isEmpty();
+  }
+
+  @Test
+  public void testEvictedFileFailsWithoutRewinding() throws Exception {
+    // Test that evicted inputs are a plain error if they can't be regenerated via rewinding
+
+    // arrange
+    Map<ActionInput, FileArtifactValue> metadata = new HashMap<>();
+    Artifact a =
+        createRemoteArtifact("file1", "hello world", metadata, /* cacheEntries= */ new HashMap<>());
+    MetadataProvider metadataProvider = new StaticMetadataProvider(metadata);
+    AbstractRemoteActionCache remoteCache =
+        new StaticRemoteActionCache(options, digestUtil, new HashMap<>());
+    RemoteActionInputFetcher actionInputFetcher =
+        new RemoteActionInputFetcher(
+            remoteCache, execRoot, Context.current(), /* reportLostInputs= */ false);
+
+    // act
+    IOException e =
+        assertThrows(
+            IOException.class,
+            () -> actionInputFetcher.prefetchFiles(ImmutableList.of(a), metadataProvider));
+
+    // assert
+    String hash =
+        DigestUtil.buildDigest(metadata.get(a).getDigest(), metadata.get(a).getSize()).getHash();
+    assertThat(e).isNotInstanceOf(LostInputsIOException.class);
+    assertThat(e).hasMessageThat().contains("Failed to fetch file with hash '" + hash + "'");
+    assertThat(actionInputFetcher.downloadedFiles()).isEmpty();
+    assertThat(actionInputFetcher.downloadsInProgress).isEmpty();
+  }
+
   @Test
   public void testIgnoreNoneRemoteFiles() throws Exception {
     // Test that files that are not remote are not downloaded
@@ -166,7 +235,8 @@ public class RemoteActionInputFetcherTest {
     AbstractRemoteActionCache remoteCache =
         new StaticRemoteActionCache(options, digestUtil, new HashMap<>());
     RemoteActionInputFetcher actionInputFetcher =
-        new RemoteActionInputFetcher(remoteCache, execRoot, Context.current());
+        new RemoteActionInputFetcher(
+            remoteCache, execRoot, Context.current(), /* reportLostInputs= */ false);
 
     // act
     actionInputFetcher.prefetchFiles(ImmutableList.of(a), metadataProvider);
@@ -185,7 +255,8 @@ public class RemoteActionInputFetcherTest {
     AbstractRemoteActionCache remoteCache =
         new StaticRemoteActionCache(options, digestUtil, cacheEntries);
     RemoteActionInputFetcher actionInputFetcher =
-        new RemoteActionInputFetcher(remoteCache, execRoot, Context.current());
+        new RemoteActionInputFetcher(
+            remoteCache, execRoot, Context.current(), /* reportLostInputs= */ false);
 
     // act
     actionInputFetcher.downloadFile(a1.getPath(), metadata.get(a1));
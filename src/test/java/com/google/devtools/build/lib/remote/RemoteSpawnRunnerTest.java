@@ -38,15 +38,20 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.EventBus;
+import com.google.common.hash.HashCode;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListeningScheduledExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputHelper;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.ArtifactRoot;
 import com.google.devtools.build.lib.actions.CommandLines.ParamFileActionInput;
 import com.google.devtools.build.lib.actions.ExecutionRequirements;
+import com.google.devtools.build.lib.actions.FileArtifactValue.RemoteFileArtifactValue;
+import com.google.devtools.build.lib.actions.LostInputsExecException;
 import com.google.devtools.build.lib.actions.ParameterFile.ParameterFileType;
 import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.actions.SimpleSpawn;
@@ -69,6 +74,7 @@ import com.google.devtools.build.lib.remote.options.RemoteOptions;
 import com.google.devtools.build.lib.remote.options.RemoteOutputsMode;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
 import com.google.devtools.build.lib.remote.util.FakeSpawnExecutionContext;
+import com.google.devtools.build.lib.remote.util.StaticMetadataProvider;
 import com.google.devtools.build.lib.util.ExitCode;
 import com.google.devtools.build.lib.util.io.FileOutErr;
 import com.google.devtools.build.lib.vfs.DigestHashFunction;
@@ -456,6 +462,68 @@ public class RemoteSpawnRunnerTest {
     verify(localRunner).exec(eq(spawn), eq(policy));
   }
 
+  @Test
+  public void evictedRemoteInputsAreReportedAsLostWithRewinding() throws Exception {
+    ActionInput input = ActionInputHelper.fromPath("remote-only");
+    Digest digest = digestUtil.computeAsUtf8("remote contents");
+    Spawn spawn = newSpawnWithInput(input);
+    SpawnExecutionContext policy =
+        new FakeSpawnExecutionContext(spawn, remoteMetadata(input, digest), execRoot, outErr);
+    RemoteSpawnRunner runner = newSpawnRunner(/* reportLostInputs= */ true);
+    when(cache.getCachedActionResult(any(ActionKey.class))).thenReturn(null);
+    when(executor.executeRemotely(any(ExecuteRequest.class)))
+        .thenThrow(new IOException("input is missing"));
+    when(cache.findMissingDigests(any()))
+        .thenReturn(Futures.immediateFuture(ImmutableSet.of(digest)));
+
+    LostInputsExecException e =
+        assertThrows(LostInputsExecException.class, () -> runner.exec(spawn, policy));
+
+    assertThat(e.getLostInputs()).containsExactly(digest.getHash(), input);
+    verify(localRunner, never()).exec(any(), any());
+  }
+
+  @Test
+  public void evictedRemoteInputsFailTheSpawnWithoutRewinding() throws Exception {
+    ActionInput input = ActionInputHelper.fromPath("remote-only");
+    Digest digest = digestUtil.computeAsUtf8("remote contents");
+    Spawn spawn = newSpawnWithInput(input);
+    SpawnExecutionContext policy =
+        new FakeSpawnExecutionContext(spawn, remoteMetadata(input, digest), execRoot, outErr);
+    RemoteSpawnRunner runner = newSpawnRunner(/* reportLostInputs= */ false);
+    when(cache.getCachedActionResult(any(ActionKey.class))).thenReturn(null);
+    when(executor.executeRemotely(any(ExecuteRequest.class)))
+        .thenThrow(new IOException("input is missing"));
+
+    SpawnResult result = runner.exec(spawn, policy);
+
+    assertThat(result.status()).isEqualTo(Status.EXECUTION_FAILED);
+    assertThat(result.getFailureMessage()).contains("input is missing");
+    verify(cache, never()).findMissingDigests(any());
+  }
+
+  private static Spawn newSpawnWithInput(ActionInput input) {
+    return new SimpleSpawn(
+        new FakeOwner("foo", "bar"),
+        /*arguments=*/ ImmutableList.of(),
+        /*environment=*/ ImmutableMap.of(),
+        /*executionInfo=*/ ImmutableMap.of(),
+        /*inputs=*/ ImmutableList.of(input),
+        /*outputs=*/ ImmutableList.of(),
+        ResourceSet.ZERO);
+  }
+
+  /** Returns metadata that says that {@code input} only exists remotely. */
+  private static StaticMetadataProvider remoteMetadata(ActionInput input, Digest digest) {
+    return new StaticMetadataProvider(
+        ImmutableMap.of(
+            input,
+            new RemoteFileArtifactValue(
+                HashCode.fromString(digest.getHash()).asBytes(),
+                digest.getSizeBytes(),
+                /* locationIndex= */ 1)));
+  }
+
   @Test
   public void testLocalFallbackFailureRemoteExecutorFailure() throws Exception {
     remoteOptions.remoteLocalFallback = true;
@@ -821,7 +889,8 @@ public class RemoteSpawnRunnerTest {
             retrier,
             digestUtil,
             logDir,
-            /* filesToDownload= */ ImmutableSet.of());
+            /* filesToDownload= */ ImmutableSet.of(),
+            /* reportLostInputs= */ false);
 
     ExecuteResponse succeeded =
         ExecuteResponse.newBuilder()
@@ -999,11 +1068,30 @@ public class RemoteSpawnRunnerTest {
         /* verboseFailures= */ false, executor, /* reporter= */ null, topLevelOutputs);
   }
 
+  private RemoteSpawnRunner newSpawnRunner(boolean reportLostInputs) {
+    return newSpawnRunner(
+        /* verboseFailures= */ false,
+        executor,
+        /* reporter= */ null,
+        /* topLevelOutputs= */ ImmutableSet.of(),
+        reportLostInputs);
+  }
+
   private RemoteSpawnRunner newSpawnRunner(
       boolean verboseFailures,
       @Nullable GrpcRemoteExecutor executor,
       @Nullable Reporter reporter,
       ImmutableSet<ActionInput> topLevelOutputs) {
+    return newSpawnRunner(
+        verboseFailures, executor, reporter, topLevelOutputs, /* reportLostInputs= */ false);
+  }
+
+  private RemoteSpawnRunner newSpawnRunner(
+      boolean verboseFailures,
+      @Nullable GrpcRemoteExecutor executor,
+      @Nullable Reporter reporter,
+      ImmutableSet<ActionInput> topLevelOutputs,
+      boolean reportLostInputs) {
     return new RemoteSpawnRunner(
         execRoot,
         remoteOptions,
@@ -1018,6 +1106,7 @@ public class RemoteSpawnRunnerTest {
         retrier,
         digestUtil,
         logDir,
-        topLevelOutputs);
+        topLevelOutputs,
+        reportLostInputs);
   }
 }
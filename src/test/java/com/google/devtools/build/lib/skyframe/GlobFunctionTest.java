@@ -159,6 +159,8 @@ public abstract class GlobFunctionTest {
 
     Map<SkyFunctionName, SkyFunction> skyFunctions = new HashMap<>();
     skyFunctions.put(SkyFunctions.GLOB, new GlobFunction(alwaysUseDirListing()));
+    skyFunctions.put(
+        SkyFunctions.FILTERED_DIRECTORY_LISTING, new FilteredDirectoryListingFunction());
     skyFunctions.put(
         SkyFunctions.DIRECTORY_LISTING_STATE,
         new DirectoryListingStateFunction(
@@ -801,6 +803,61 @@ public abstract class GlobFunctionTest {
     assertGlobMatches("symlinks/*.txt", "symlinks/existing.txt");
   }
 
+  private FilteredDirectoryListingValue getFilteredListing(String dir, String pattern)
+      throws Exception {
+    return (FilteredDirectoryListingValue)
+        evaluator.getExistingValue(
+            FilteredDirectoryListingValue.key(
+                PKG_ID.getRepository(),
+                RootedPath.toRootedPath(Root.fromPath(root), pkgPath.getRelative(dir)),
+                pattern));
+  }
+
+  @Test
+  public void testFilteredDirectoryListingIsSharedByGlobs() throws Exception {
+    assertGlobMatches("foo/*", "foo/bar", "foo/barnacle");
+    FilteredDirectoryListingValue listing = getFilteredListing("foo", "*");
+    assertThat(listing).isNotNull();
+
+    assertGlobMatches("foo/*/wiz", "foo/bar/wiz", "foo/barnacle/wiz");
+    assertThat(getFilteredListing("foo", "*")).isSameInstanceAs(listing);
+  }
+
+  @Test
+  public void testFilteredDirectoryListingOnlyResolvesEntriesMatchingPattern() throws Exception {
+    FileSystemUtils.ensureSymbolicLink(pkgPath.getRelative("a2/dangling"), "nope");
+    FileSystemUtils.createEmptyFile(pkgPath.getRelative("a2/file.txt"));
+
+    assertGlobMatches("a2/*.txt", "a2/file.txt");
+    assertThat(getFilteredListing("a2", "*.txt").getDirents())
+        .containsExactly(new Dirent("file.txt", Dirent.Type.FILE));
+    // Neither the symlink nor the subpackage can match, so they aren't looked up.
+    assertThat(
+            evaluator.getExistingValue(
+                FileValue.key(
+                    RootedPath.toRootedPath(
+                        Root.fromPath(root), pkgPath.getRelative("a2/dangling")))))
+        .isNull();
+    assertThat(
+            evaluator.getExistingValue(
+                PackageLookupValue.key(
+                    PackageIdentifier.createInMainRepo(
+                        PKG_ID.getPackageFragment().getRelative("a2/b2")))))
+        .isNull();
+  }
+
+  @Test
+  public void testFilteredDirectoryListingResolvesSymlinksAndOmitsSubpackages() throws Exception {
+    FileSystemUtils.ensureSymbolicLink(pkgPath.getRelative("a2/dangling"), "nope");
+    FileSystemUtils.ensureSymbolicLink(pkgPath.getRelative("a2/link"), "b2/c");
+    FileSystemUtils.createEmptyFile(pkgPath.getRelative("a2/file"));
+
+    assertGlobMatches("a2/*", "a2/file", "a2/link");
+    assertThat(getFilteredListing("a2", "*").getDirents())
+        .containsExactly(
+            new Dirent("file", Dirent.Type.FILE), new Dirent("link", Dirent.Type.DIRECTORY));
+  }
+
   private static final class CustomInMemoryFs extends InMemoryFileSystem {
 
     private Map<Path, FileStatus> stubbedStats = Maps.newHashMap();
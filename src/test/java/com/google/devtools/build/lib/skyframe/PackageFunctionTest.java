@@ -25,7 +25,10 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.eventbus.EventBus;
 import com.google.devtools.build.lib.actions.FileStateValue;
+import com.google.devtools.build.lib.analysis.AnalysisResult;
+import com.google.devtools.build.lib.analysis.ConfiguredTarget;
 import com.google.devtools.build.lib.analysis.util.BuildViewTestCase;
 import com.google.devtools.build.lib.clock.BlazeClock;
 import com.google.devtools.build.lib.cmdline.Label;
@@ -359,6 +362,116 @@ public class PackageFunctionTest extends BuildViewTestCase {
     assertSrcs(validPackageWithoutErrors(skyKey), "foo", "//foo:a.config", "//foo:b.txt");
   }
 
+  private void invalidateBuildFile(String path) throws Exception {
+    getSkyframeExecutor()
+        .invalidateFilesUnderPathForTesting(
+            reporter,
+            ModifiedFileSet.builder().modify(PathFragment.create(path)).build(),
+            Root.fromPath(rootDirectory));
+  }
+
+  @Test
+  public void testChangePruningReusesPackageUnaffectedByEdit() throws Exception {
+    scratch.file(
+        "foo/BUILD",
+        "sh_library(name = 'a', srcs = ['a.sh'], deps = select({'//conditions:default': []}))",
+        "sh_library(name = 'b', srcs = ['b.sh'])");
+    PackageCacheOptions packageCacheOptions = Options.getDefaults(PackageCacheOptions.class);
+    packageCacheOptions.defaultVisibility = ConstantRuleVisibility.PUBLIC;
+    packageCacheOptions.packageChangePruning = true;
+    getSkyframeExecutor()
+        .preparePackageLoading(
+            new PathPackageLocator(
+                outputBase,
+                ImmutableList.of(Root.fromPath(rootDirectory)),
+                BazelSkyframeExecutorConstants.BUILD_FILES_BY_PRIORITY),
+            packageCacheOptions,
+            Options.getDefaults(StarlarkSemanticsOptions.class),
+            UUID.randomUUID(),
+            ImmutableMap.<String, String>of(),
+            tsgm);
+    getSkyframeExecutor().setActionEnv(ImmutableMap.<String, String>of());
+    SkyKey skyKey = PackageValue.key(PackageIdentifier.parse("@//foo"));
+    Package pkg = validPackageWithoutErrors(skyKey);
+
+    // Comments and reordering do not change the targets.
+    scratch.overwriteFile(
+        "foo/BUILD",
+        "# A comment.",
+        "sh_library(name = 'b', srcs = ['b.sh'])",
+        "sh_library(name = 'a', srcs = ['a.sh'], deps = select({'//conditions:default': []}))");
+    invalidateBuildFile("foo/BUILD");
+    assertThat(validPackageWithoutErrors(skyKey)).isSameInstanceAs(pkg);
+
+    scratch.overwriteFile(
+        "foo/BUILD",
+        "sh_library(name = 'b', srcs = ['b.sh', 'c.sh'])",
+        "sh_library(name = 'a', srcs = ['a.sh'], deps = select({'//conditions:default': []}))");
+    invalidateBuildFile("foo/BUILD");
+    Package changed = validPackageWithoutErrors(skyKey);
+    assertThat(changed).isNotSameInstanceAs(pkg);
+    assertSrcs(changed, "b", "//foo:b.sh", "//foo:c.sh");
+  }
+
+  @Test
+  public void testChangePruningReusesUnchangedTargetsOfChangedPackage() throws Exception {
+    setPackageCacheOptions("--experimental_package_change_pruning");
+    scratch.file(
+        "foo/BUILD",
+        "sh_library(name = 'a', srcs = ['a.sh'])",
+        "sh_library(name = 'b', srcs = ['b.sh'])");
+    scratch.file("bar/BUILD", "sh_library(name = 'c', deps = ['//foo:a'])");
+    analyze("//foo:b", "//bar:c");
+    ConfiguredTarget a = getConfiguredTarget("//foo:a");
+    ConfiguredTarget b = getConfiguredTarget("//foo:b");
+    ConfiguredTarget c = getConfiguredTarget("//bar:c");
+
+    scratch.overwriteFile(
+        "foo/BUILD",
+        "sh_library(name = 'a', srcs = ['a.sh'])",
+        "sh_library(name = 'b', srcs = ['b.sh', 'c.sh'])");
+    invalidateBuildFile("foo/BUILD");
+
+    // Only //foo:b changed, so neither //foo:a nor its dependent //bar:c is analyzed again.
+    assertThat(getConfiguredTarget("//foo:a")).isSameInstanceAs(a);
+    assertThat(getConfiguredTarget("//bar:c")).isSameInstanceAs(c);
+    assertThat(getConfiguredTarget("//foo:b")).isNotSameInstanceAs(b);
+    // //bar:c still refers to the previous instance of //foo, //foo:b to the new one.
+    assertThat(analyze("//foo:b", "//bar:c").getPackageRoots().getPackageRootsMap().get().keySet())
+        .containsAtLeast(PackageIdentifier.parse("@//foo"), PackageIdentifier.parse("@//bar"));
+    assertSrcs(
+        validPackageWithoutErrors(PackageValue.key(PackageIdentifier.parse("@//foo"))),
+        "b",
+        "//foo:b.sh",
+        "//foo:c.sh");
+  }
+
+  private AnalysisResult analyze(String... targets) throws Exception {
+    return update(
+        ImmutableList.copyOf(targets),
+        /*keepGoing=*/ false,
+        /*loadingPhaseThreads=*/ 1,
+        /*doAnalysis=*/ true,
+        new EventBus());
+  }
+
+  @Test
+  public void testTargetsOfChangedPackageAreAnalyzedAgainWithoutChangePruning() throws Exception {
+    scratch.file(
+        "foo/BUILD",
+        "sh_library(name = 'a', srcs = ['a.sh'])",
+        "sh_library(name = 'b', srcs = ['b.sh'])");
+    ConfiguredTarget a = getConfiguredTarget("//foo:a");
+
+    scratch.overwriteFile(
+        "foo/BUILD",
+        "sh_library(name = 'a', srcs = ['a.sh'])",
+        "sh_library(name = 'b', srcs = ['b.sh', 'c.sh'])");
+    invalidateBuildFile("foo/BUILD");
+
+    assertThat(getConfiguredTarget("//foo:a")).isNotSameInstanceAs(a);
+  }
+
   /**
    * Tests that a symlink to a file outside of the package root is handled consistently. If the
    * default behavior of Bazel was changed from {@code
@@ -57,6 +57,7 @@ import java.util.List;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
@@ -233,6 +234,69 @@ public class ParallelBuilderTest extends TimestampBuilderTestCase {
     buildArtifacts(bar);
   }
 
+  @Test
+  public void testOffloadedExecution() throws Exception {
+    options.parse("--experimental_execution_offload_threads=2");
+    List<String> threads = Collections.synchronizedList(new ArrayList<>());
+    Runnable recordThread = () -> threads.add(Thread.currentThread().getName());
+    Artifact foo = createDerivedArtifact("foo");
+    Artifact bar = createDerivedArtifact("bar");
+    registerAction(new TestAction(recordThread, emptySet, ImmutableList.of(foo)));
+    registerAction(new TestAction(recordThread, ImmutableSet.of(foo), ImmutableList.of(bar)));
+
+    buildArtifacts(createBuilder(1, false), bar);
+
+    assertThat(threads).hasSize(2);
+    for (String thread : threads) {
+      assertThat(thread).startsWith("action-execution-");
+    }
+  }
+
+  @Test
+  public void testOffloadedExecutionFailure() throws Exception {
+    options.parse("--experimental_execution_offload_threads=2");
+    Artifact foo = createDerivedArtifact("foo");
+    Callable<Void> makeFoo =
+        new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            throw new IOException("building 'foo' is supposed to fail");
+          }
+        };
+    registerAction(new TestAction(makeFoo, Artifact.NO_ARTIFACTS, ImmutableList.of(foo)));
+    reporter.removeHandler(failFastHandler);
+
+    BuildFailedException e = assertThrows(BuildFailedException.class, () -> buildArtifacts(foo));
+    assertThat(e).hasMessageThat().contains("building 'foo' is supposed to fail");
+    assertContainsEvent("building 'foo' is supposed to fail");
+  }
+
+  @Test
+  public void testOffloadedExecutionRethrowsUncheckedExceptions() throws Exception {
+    options.parse("--experimental_execution_offload_threads=2");
+    IllegalArgumentException crash = new IllegalArgumentException("action crashed");
+    Artifact foo = createDerivedArtifact("foo");
+    registerAction(
+        new TestAction(TestAction.NO_EFFECT, Artifact.NO_ARTIFACTS, ImmutableList.of(foo)) {
+          @Override
+          public ActionResult execute(ActionExecutionContext actionExecutionContext) {
+            throw crash;
+          }
+        });
+    reporter.removeHandler(failFastHandler);
+
+    RuntimeException e =
+        assertThrows(RuntimeException.class, () -> buildArtifacts(createBuilder(1, false), foo));
+    // The evaluator may wrap the crash, but the offload pool must not.
+    for (Throwable t = e; t != crash; t = t.getCause()) {
+      assertThat(t).isNotNull();
+      assertThat(t.getCause()).isNotInstanceOf(ExecutionException.class);
+      if (t.getCause() == crash) {
+        assertThat(t).isNotInstanceOf(IllegalStateException.class);
+      }
+    }
+  }
+
   @Test
   public void testUpdateCacheError() throws Exception {
     FileSystem fs = new InMemoryFileSystem() {
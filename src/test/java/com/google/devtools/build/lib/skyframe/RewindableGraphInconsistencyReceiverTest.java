@@ -0,0 +1,86 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
+import static org.mockito.Mockito.mock;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.skyframe.GraphInconsistencyReceiver;
+import com.google.devtools.build.skyframe.GraphInconsistencyReceiver.Inconsistency;
+import com.google.devtools.build.skyframe.SkyKey;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link RewindableGraphInconsistencyReceiver}. */
+@RunWith(JUnit4.class)
+public class RewindableGraphInconsistencyReceiverTest {
+
+  private final SkyKey key = mock(SkyKey.class);
+  private final SkyKey otherKey = mock(SkyKey.class);
+  private final RewindableGraphInconsistencyReceiver receiver =
+      new RewindableGraphInconsistencyReceiver(GraphInconsistencyReceiver.THROWING);
+
+  @Test
+  public void disabledByDefault() {
+    assertThat(receiver.isRewindingEnabled()).isFalse();
+    for (Inconsistency inconsistency : Inconsistency.values()) {
+      assertThrows(
+          IllegalStateException.class,
+          () ->
+              receiver.noteInconsistencyAndMaybeThrow(
+                  key, ImmutableList.of(otherKey), inconsistency));
+    }
+  }
+
+  @Test
+  public void enabled_toleratesRewindingInconsistencies() {
+    receiver.setRewindingEnabled(true);
+
+    receiver.noteInconsistencyAndMaybeThrow(key, null, Inconsistency.RESET_REQUESTED);
+    receiver.noteInconsistencyAndMaybeThrow(
+        key, ImmutableList.of(otherKey), Inconsistency.PARENT_FORCE_REBUILD_OF_CHILD);
+    receiver.noteInconsistencyAndMaybeThrow(
+        key, ImmutableList.of(otherKey), Inconsistency.BUILDING_PARENT_FOUND_UNDONE_CHILD);
+  }
+
+  @Test
+  public void enabled_delegatesOtherInconsistencies() {
+    receiver.setRewindingEnabled(true);
+
+    for (Inconsistency inconsistency :
+        ImmutableList.of(
+            Inconsistency.CHILD_MISSING_FOR_DIRTY_NODE,
+            Inconsistency.PARENT_FORCE_REBUILD_OF_MISSING_CHILD,
+            Inconsistency.ALREADY_DECLARED_CHILD_MISSING)) {
+      assertThrows(
+          IllegalStateException.class,
+          () ->
+              receiver.noteInconsistencyAndMaybeThrow(
+                  key, ImmutableList.of(otherKey), inconsistency));
+    }
+  }
+
+  @Test
+  public void disabledAgain_delegatesRewindingInconsistencies() {
+    receiver.setRewindingEnabled(true);
+    receiver.setRewindingEnabled(false);
+
+    assertThrows(
+        IllegalStateException.class,
+        () -> receiver.noteInconsistencyAndMaybeThrow(key, null, Inconsistency.RESET_REQUESTED));
+  }
+}
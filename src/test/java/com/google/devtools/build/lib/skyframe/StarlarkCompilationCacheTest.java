@@ -0,0 +1,176 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.skyframe.serialization.AutoRegistry;
+import com.google.devtools.build.lib.syntax.EvalUtils;
+import com.google.devtools.build.lib.syntax.Mutability;
+import com.google.devtools.build.lib.syntax.ParserInput;
+import com.google.devtools.build.lib.syntax.StarlarkFile;
+import com.google.devtools.build.lib.syntax.StarlarkSemantics;
+import com.google.devtools.build.lib.syntax.StarlarkThread;
+import com.google.devtools.build.lib.syntax.ValidationEnvironment;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link StarlarkCompilationCache}. */
+@RunWith(JUnit4.class)
+public class StarlarkCompilationCacheTest {
+
+  private static final PathFragment PATH = PathFragment.create("/workspace/pkg/foo.bzl");
+  private static final byte[] DIGEST = {1, 2, 3};
+
+  private final Path directory = new InMemoryFileSystem().getPath("/output_base/starlark-cache");
+
+  private static StarlarkFile parseAndValidate(String... lines) {
+    StarlarkFile file = StarlarkFile.parse(ParserInput.create(String.join("\n", lines), PATH));
+    ValidationEnvironment.validateFile(
+        file, StarlarkThread.DEFAULT_GLOBALS, StarlarkSemantics.DEFAULT_SEMANTICS, false);
+    return file;
+  }
+
+  private String key(StarlarkCompilationCache cache) {
+    return cache.key(PATH, DIGEST, StarlarkSemantics.DEFAULT_SEMANTICS, ImmutableSet.of("len"));
+  }
+
+  @Test
+  public void cachedFileCanBeExecuted() throws Exception {
+    StarlarkCompilationCache cache = new StarlarkCompilationCache(directory, "install");
+    cache.put(
+        key(cache),
+        parseAndValidate(
+            "def f(x):", //
+            "  return [y * 2 for y in x if y != 2]",
+            "result = f([1, 2, 3])"));
+
+    // A new server reads the entry written by the previous one.
+    StarlarkCompilationCache newCache = new StarlarkCompilationCache(directory, "install");
+    StarlarkFile file = newCache.get(key(newCache));
+
+    assertThat(file).isNotNull();
+    assertThat(file.ok()).isTrue();
+    assertThat(file.getStatements()).hasSize(2);
+    StarlarkThread thread =
+        StarlarkThread.builder(Mutability.create("test"))
+            .setGlobals(StarlarkThread.DEFAULT_GLOBALS)
+            .useDefaultSemantics()
+            .build();
+    EvalUtils.exec(file, thread);
+    assertThat(thread.moduleLookup("result").toString()).isEqualTo("[2, 6]");
+  }
+
+  @Test
+  public void keyDependsOnFileSemanticsAndInstallation() throws Exception {
+    StarlarkCompilationCache cache = new StarlarkCompilationCache(directory, "install");
+    String key = key(cache);
+
+    assertThat(key).isEqualTo(key(new StarlarkCompilationCache(directory, "install")));
+    assertThat(key).isNotEqualTo(key(new StarlarkCompilationCache(directory, "other")));
+    assertThat(key)
+        .isNotEqualTo(
+            cache.key(
+                PATH,
+                new byte[] {1, 2, 4},
+                StarlarkSemantics.DEFAULT_SEMANTICS,
+                ImmutableSet.of("len")));
+    assertThat(key)
+        .isNotEqualTo(
+            cache.key(
+                PathFragment.create("/workspace/pkg/bar.bzl"),
+                DIGEST,
+                StarlarkSemantics.DEFAULT_SEMANTICS,
+                ImmutableSet.of("len")));
+    assertThat(key)
+        .isNotEqualTo(
+            cache.key(
+                PATH,
+                DIGEST,
+                StarlarkSemantics.builderWithDefaults().experimentalStarlarkBytecode(true).build(),
+                ImmutableSet.of("len")));
+    assertThat(key)
+        .isNotEqualTo(
+            cache.key(PATH, DIGEST, StarlarkSemantics.DEFAULT_SEMANTICS, ImmutableSet.of("str")));
+  }
+
+  @Test
+  public void doesNotCacheFilesWithErrors() throws Exception {
+    StarlarkCompilationCache cache = new StarlarkCompilationCache(directory, "install");
+    StarlarkFile file = parseAndValidate("x = undefined");
+    assertThat(file.ok()).isFalse();
+
+    cache.put(key(cache), file);
+
+    assertThat(cache.get(key(cache))).isNull();
+  }
+
+  @Test
+  public void ignoresUnreadableEntries() throws Exception {
+    StarlarkCompilationCache cache = new StarlarkCompilationCache(directory, "install");
+    Path installationDirectory = directory.getChild("install");
+    installationDirectory.createDirectoryAndParents();
+    FileSystemUtils.writeContent(
+        installationDirectory.getChild(key(cache)), "garbage".getBytes(UTF_8));
+
+    assertThat(cache.get(key(cache))).isNull();
+  }
+
+  @Test
+  public void deletesEntriesOfOtherInstallations() throws Exception {
+    StarlarkCompilationCache oldCache = new StarlarkCompilationCache(directory, "old");
+    oldCache.put(key(oldCache), parseAndValidate("x = 1"));
+    assertThat(directory.getChild("old").exists()).isTrue();
+
+    StarlarkCompilationCache cache = new StarlarkCompilationCache(directory, "install");
+    cache.setEnabled(true);
+
+    assertThat(directory.getChild("old").exists()).isFalse();
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedEntriesOverMaxSize() throws Exception {
+    StarlarkFile file = parseAndValidate("x = 1");
+    StarlarkCompilationCache probe =
+        new StarlarkCompilationCache(
+            directory.getRelative("../probe"), "install", AutoRegistry::get, Long.MAX_VALUE);
+    probe.setEnabled(true);
+    probe.put("entry", file);
+    long entrySize = directory.getRelative("../probe/install/entry").getFileSize();
+    // Room for two entries, but not for three.
+    StarlarkCompilationCache cache =
+        new StarlarkCompilationCache(
+            directory, "install", AutoRegistry::get, entrySize * 5 / 2);
+    cache.setEnabled(true);
+    Path installationDirectory = directory.getChild("install");
+
+    cache.put("a", file);
+    cache.put("b", file);
+    installationDirectory.getChild("a").setLastModifiedTime(1000);
+    installationDirectory.getChild("b").setLastModifiedTime(2000);
+    assertThat(cache.get("a")).isNotNull();
+    cache.put("c", file);
+
+    assertThat(cache.get("a")).isNotNull();
+    assertThat(cache.get("b")).isNull();
+    assertThat(cache.get("c")).isNotNull();
+  }
+}
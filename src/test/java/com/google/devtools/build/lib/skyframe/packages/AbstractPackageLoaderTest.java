@@ -22,6 +22,7 @@ import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.eventbus.EventBus;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.events.StoredEventHandler;
@@ -34,6 +35,17 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.Root;
 import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -45,9 +57,19 @@ public abstract class AbstractPackageLoaderTest {
   protected Root root;
   private Reporter reporter;
 
+  /** Called before any file is read, so that tests can control the order packages load in. */
+  private volatile Consumer<Path> beforeRead = path -> {};
+
   @Before
   public final void init() throws Exception {
-    fs = new InMemoryFileSystem();
+    fs =
+        new InMemoryFileSystem() {
+          @Override
+          protected InputStream getInputStream(Path path) throws IOException {
+            beforeRead.accept(path);
+            return super.getInputStream(path);
+          }
+        };
     workspaceDir = fs.getPath("/workspace/");
     workspaceDir.createDirectoryAndParents();
     root = Root.fromPath(workspaceDir);
@@ -136,6 +158,70 @@ public abstract class AbstractPackageLoaderTest {
     assertNoEvents(handler.getEvents());
   }
 
+  @Test
+  public void loadPackagesStreaming() throws Exception {
+    PackageLoader pkgLoader = newPackageLoaderBuilder().setStreamingBatchSize(2).build();
+    file("defs/defs.bzl", "def f(x):", "  native.sh_library(name = x)");
+    file("defs/BUILD");
+    file("good1/BUILD", "load('//defs:defs.bzl', 'f')", "f('good1')");
+    file("good2/BUILD", "load('//defs:defs.bzl', 'f')", "f('good2')");
+    file("good3/BUILD", "load('//defs:defs.bzl', 'f')", "f('good3')");
+    PackageIdentifier pkgId1 = PackageIdentifier.createInMainRepo(PathFragment.create("good1"));
+    PackageIdentifier pkgId2 = PackageIdentifier.createInMainRepo(PathFragment.create("good2"));
+    PackageIdentifier pkgId3 = PackageIdentifier.createInMainRepo(PathFragment.create("good3"));
+    PackageIdentifier nope = PackageIdentifier.createInMainRepo(PathFragment.create("nope"));
+
+    Map<PackageIdentifier, PackageLoader.PackageOrException> pkgs = new ConcurrentHashMap<>();
+    pkgLoader.loadPackagesStreaming(
+        ImmutableList.of(pkgId1, nope, pkgId2, pkgId1, pkgId3),
+        (pkgId, pkgOrException) -> assertThat(pkgs.put(pkgId, pkgOrException)).isNull());
+
+    assertThat(pkgs.keySet()).containsExactly(pkgId1, nope, pkgId2, pkgId3);
+    assertThat(pkgs.get(pkgId1).get().getTarget("good1").getAssociatedRule().getRuleClass())
+        .isEqualTo("sh_library");
+    assertThat(pkgs.get(pkgId2).get().getTarget("good2").getAssociatedRule().getRuleClass())
+        .isEqualTo("sh_library");
+    assertThat(pkgs.get(pkgId3).get().getTarget("good3").getAssociatedRule().getRuleClass())
+        .isEqualTo("sh_library");
+    NoSuchPackageException expected =
+        assertThrows(NoSuchPackageException.class, () -> pkgs.get(nope).get());
+    assertThat(expected).hasMessageThat().startsWith("no such package 'nope'");
+    assertNoEvents(handler.getEvents());
+  }
+
+  @Test
+  public void loadPackagesStreamingPassesPackagesBeforeTheirBatchIsDone() throws Exception {
+    PackageLoader pkgLoader =
+        newPackageLoaderBuilder().setSkyframeThreads(2).setStreamingBatchSize(2).build();
+    file("fast/BUILD", "sh_library(name = 'fast')");
+    Path slowBuildFile = file("slow/BUILD", "sh_library(name = 'slow')");
+    PackageIdentifier fast = PackageIdentifier.createInMainRepo(PathFragment.create("fast"));
+    PackageIdentifier slow = PackageIdentifier.createInMainRepo(PathFragment.create("slow"));
+    // Reading slow/BUILD waits until the callback has seen the other package of the same batch.
+    CountDownLatch fastPassed = new CountDownLatch(1);
+    AtomicBoolean slowWaitedForFast = new AtomicBoolean();
+    beforeRead =
+        path -> {
+          if (path.equals(slowBuildFile)) {
+            slowWaitedForFast.set(
+                Uninterruptibles.awaitUninterruptibly(fastPassed, 1, TimeUnit.MINUTES));
+          }
+        };
+
+    List<PackageIdentifier> passed = Collections.synchronizedList(new ArrayList<>());
+    pkgLoader.loadPackagesStreaming(
+        ImmutableList.of(slow, fast),
+        (pkgId, pkgOrException) -> {
+          passed.add(pkgId);
+          if (pkgId.equals(fast)) {
+            fastPassed.countDown();
+          }
+        });
+
+    assertThat(slowWaitedForFast.get()).isTrue();
+    assertThat(passed).containsExactly(fast, slow).inOrder();
+  }
+
   @Test
   public void simpleGoodPackage_Skylark() throws Exception {
     PackageLoader pkgLoader = newPackageLoader();
@@ -3120,6 +3120,72 @@ public class SkylarkIntegrationTest extends BuildViewTestCase {
     }
   }
 
+  /** Skylark integration test that forces inlining, and loads independent imports in parallel. */
+  @RunWith(JUnit4.class)
+  public static class SkylarkIntegrationTestsWithParallelInlineCalls
+      extends SkylarkIntegrationTestsWithInlineCalls {
+
+    @Before
+    public final void initializeParallelLookupFunctions() throws Exception {
+      ImmutableMap<SkyFunctionName, ? extends SkyFunction> skyFunctions =
+          ((InMemoryMemoizingEvaluator) getSkyframeExecutor().getEvaluatorForTesting())
+              .getSkyFunctionsForTesting();
+      SkylarkImportLookupFunction skylarkImportLookupFunction =
+          new SkylarkImportLookupFunction(
+              this.getRuleClassProvider(),
+              this.getPackageFactory(),
+              /*starlarkImportLookupValueCacheSize=*/ 2);
+      skylarkImportLookupFunction.resetCache();
+      skylarkImportLookupFunction.setInliningThreads(4);
+      ((PackageFunction) skyFunctions.get(SkyFunctions.PACKAGE))
+          .setSkylarkImportLookupFunctionForInliningForTesting(skylarkImportLookupFunction);
+    }
+
+    @Test
+    public void testDiamondImportIsLoadedOnce() throws Exception {
+      scratch.file("test/skylark/base.bzl", "def f():", "  pass");
+      for (String side : new String[] {"left", "right"}) {
+        scratch.file(
+            "test/skylark/" + side + ".bzl",
+            "load('//test/skylark:base.bzl', 'f')",
+            side + " = f");
+      }
+      scratch.file(
+          "test/skylark/top.bzl",
+          "load('//test/skylark:left.bzl', 'left')",
+          "load('//test/skylark:right.bzl', 'right')",
+          "def check():",
+          "  if left != right:",
+          "    fail('base.bzl was loaded twice')",
+          "check()");
+      scratch.file(
+          "test/skylark/BUILD",
+          "load('//test/skylark:top.bzl', 'check')",
+          "load('//test/skylark:left.bzl', 'left')",
+          "genrule(name = 'rule')");
+
+      assertThat(getTarget("//test/skylark:rule")).isNotNull();
+    }
+
+    @Test
+    public void testImportCycleAcrossParallelImports() throws Exception {
+      scratch.file("test/skylark/ext1.bzl", "load('//test/skylark:ext2.bzl', 'symbol2')");
+      scratch.file("test/skylark/ext2.bzl", "load('//test/skylark:ext1.bzl', 'symbol1')");
+
+      scratch.file(
+          "test/skylark/BUILD",
+          "load('//test/skylark:ext1.bzl', 'symbol1')",
+          "load('//test/skylark:ext2.bzl', 'symbol2')",
+          "genrule(name = 'rule')");
+
+      reporter.removeHandler(failFastHandler);
+      BuildFileContainsErrorsException e =
+          assertThrows(
+              BuildFileContainsErrorsException.class, () -> getTarget("//test/skylark:rule"));
+      assertThat(e).hasMessageThat().contains("Starlark import cycle: [//test/skylark:ext");
+    }
+  }
+
   @Test
   public void testUnhashableInDictForbidden() throws Exception {
     setSkylarkSemanticsOptions("--incompatible_disallow_dict_lookup_unhashable_keys=true");
@@ -0,0 +1,160 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Compares the speed of Starlark functions executed as {@link Bytecode} with the same functions
+ * evaluated by {@link Eval}, on workloads modelled after the macros that dominate loading time.
+ *
+ * <p>This is a timing test that logs its results rather than asserting on them, so it is excluded
+ * from the regular test suite and only run on demand through its manual target. It only asserts
+ * that both ways of executing a workload compute the same result.
+ */
+@RunWith(JUnit4.class)
+public class BytecodeBenchmark {
+  private static final Logger logger = Logger.getLogger(BytecodeBenchmark.class.getName());
+
+  private static final int WARMUP_REPS = 200;
+  private static final int REPS = 1000;
+
+  /** Workloads, each of which defines a function {@code run} without parameters. */
+  enum Workload {
+    /** A macro that declares a library and a test for each source file, like rules_* macros do. */
+    MACRO(
+        "def _target(name, src, deps, visibility):",
+        "  attrs = {'name': name, 'srcs': [src], 'deps': list(deps)}",
+        "  if src.endswith('_test.cc'):",
+        "    attrs['size'] = 'small'",
+        "    attrs['tags'] = ['unit'] + (['manual'] if 'flaky' in name else [])",
+        "  else:",
+        "    attrs['visibility'] = visibility",
+        "  return attrs",
+        "def run():",
+        "  targets = []",
+        "  deps = ['//base', '//base:logging', '//third_party/absl']",
+        "  for i in range(200):",
+        "    src = 'file_%d%s' % (i, '_test.cc' if i % 4 == 0 else '.cc')",
+        "    name = src.replace('.cc', '').replace('/', '_')",
+        "    targets.append(_target(name, src, deps, ['//visibility:public']))",
+        "  return len(targets)"),
+    /** Merges and normalizes compiler flags and attributes, as toolchain macros do. */
+    FLAGS(
+        "_DEFAULTS = {'copts': ['-Wall', '-Werror'], 'defines': ['NDEBUG'], 'linkopts': []}",
+        "def _merge(base, extra):",
+        "  merged = dict(base)",
+        "  for key, values in extra.items():",
+        "    old = merged.get(key, [])",
+        "    merged[key] = old + [v for v in values if v not in old]",
+        "  return merged",
+        "def run():",
+        "  result = _DEFAULTS",
+        "  for i in range(100):",
+        "    result = _merge(result, {'copts': ['-O%d' % (i % 3)], 'defines': ['V=%d' % i]})",
+        "    n = 0",
+        "    for opts in result.values():",
+        "      n += len(opts)",
+        "  return n"),
+    /** Parses and canonicalizes label strings. */
+    LABELS(
+        "def _canonical(label, package):",
+        "  if label.startswith(':'):",
+        "    return '//%s%s' % (package, label)",
+        "  if not label.startswith('//'):",
+        "    return '//%s:%s' % (package, label)",
+        "  pkg, _, name = label[2:].partition(':')",
+        "  if not name:",
+        "    name = pkg.split('/')[-1]",
+        "  return '//%s:%s' % (pkg, name)",
+        "def run():",
+        "  seen = {}",
+        "  for i in range(300):",
+        "    for label in [':lib%d' % i, 'src%d' % i, '//foo/bar%d' % (i % 10), '//a/b:c']:",
+        "      seen[_canonical(label, 'pkg/sub')] = True",
+        "  return len(seen)");
+
+    private final String[] lines;
+
+    Workload(String... lines) {
+      this.lines = lines;
+    }
+  }
+
+  @Test
+  public void macro() throws Exception {
+    measure(Workload.MACRO);
+  }
+
+  @Test
+  public void flags() throws Exception {
+    measure(Workload.FLAGS);
+  }
+
+  @Test
+  public void labels() throws Exception {
+    measure(Workload.LABELS);
+  }
+
+  private static void measure(Workload workload) throws Exception {
+    Object evalResult = measure(workload, /* bytecode= */ false);
+    Object bytecodeResult = measure(workload, /* bytecode= */ true);
+    assertWithMessage("result of %s", workload).that(bytecodeResult).isEqualTo(evalResult);
+  }
+
+  /** Logs the time per call of the workload's {@code run} function, and returns its result. */
+  private static Object measure(Workload workload, boolean bytecode) throws Exception {
+    StarlarkSemantics semantics =
+        StarlarkSemantics.builderWithDefaults().experimentalStarlarkBytecode(bytecode).build();
+    StarlarkThread thread =
+        StarlarkThread.builder(Mutability.create("benchmark"))
+            .setGlobals(StarlarkThread.DEFAULT_GLOBALS)
+            .setSemantics(semantics)
+            .build();
+    StarlarkFile file = StarlarkFile.parse(ParserInput.fromLines(workload.lines));
+    ValidationEnvironment.validateFile(file, thread.getGlobals(), semantics, false);
+    if (!file.ok()) {
+      throw new SyntaxError(file.errors());
+    }
+    EvalUtils.exec(file, thread);
+    BaseFunction run = (BaseFunction) thread.moduleLookup("run");
+
+    // Warm up, so that the measurement doesn't include JIT compilation.
+    call(run, thread, WARMUP_REPS);
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    Object result = call(run, thread, REPS);
+    long nanos = stopwatch.elapsed(TimeUnit.NANOSECONDS);
+    logger.info(
+        String.format(
+            "%s, %s: %d ns per call", workload, bytecode ? "bytecode" : "eval", nanos / REPS));
+    return result;
+  }
+
+  private static Object call(BaseFunction run, StarlarkThread thread, int reps) throws Exception {
+    Object result = null;
+    for (int i = 0; i < reps; i++) {
+      result = run.call(ImmutableList.of(), ImmutableMap.of(), null, thread);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,225 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.syntax.util.EvaluationTestCase;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link Compiler} and {@link Bytecode}, which check that compiled functions behave
+ * exactly like functions evaluated by {@link Eval}.
+ */
+@RunWith(JUnit4.class)
+public class CompilerTest extends EvaluationTestCase {
+
+  /** Executes the program in a new thread, and returns the printed value of {@code result}. */
+  private String run(boolean bytecode, String... lines) throws Exception {
+    thread = newStarlarkThreadWithSkylarkOptions("--experimental_starlark_bytecode=" + bytecode);
+    exec(lines);
+    return Printer.repr(lookup("result"));
+  }
+
+  private void assertSameResult(String... lines) throws Exception {
+    assertThat(run(true, lines)).isEqualTo(run(false, lines));
+  }
+
+  /** Returns the error message, including the stack trace, of executing the program. */
+  private String runAndGetError(boolean bytecode, String... lines) throws Exception {
+    try {
+      run(bytecode, lines);
+    } catch (EvalException e) {
+      return e.getMessage();
+    }
+    fail("expected an error");
+    return null;
+  }
+
+  private void assertSameError(String... lines) throws Exception {
+    assertThat(runAndGetError(true, lines)).isEqualTo(runAndGetError(false, lines));
+  }
+
+  @Test
+  public void compilesFunctionBodies() throws Exception {
+    exec(
+        "def f(x):",
+        "  for i in range(3):",
+        "    if i == x:",
+        "      return i",
+        "  return None");
+    StarlarkFunction f = (StarlarkFunction) lookup("f");
+
+    assertThat(Compiler.compile(f.getStatements())).isNotNull();
+  }
+
+  @Test
+  public void expressions() throws Exception {
+    assertSameResult(
+        "def f(a, b = 2, *args, **kwargs):",
+        "  x = [a, b, -a, a + b * 3, a // b, 'x' * b, (a, b), not a]",
+        "  y = {'a': a, 'b': b if b > a else a, 'c': a and b, 'd': a or b}",
+        "  z = 'a %s b' % a",
+        "  return x, y, z, args, kwargs, [i * 2 for i in x[:3]], {k: 1 for k in y}",
+        "result = [f(1), f(3, 4, 5, e = 6), f(*[0, 1], **{'g': 7})]");
+  }
+
+  @Test
+  public void methodCalls() throws Exception {
+    assertSameResult(
+        "def f(s):",
+        "  l = []",
+        "  l.append(s.upper())",
+        "  l.extend(s.split(','))",
+        "  d = dict(a = len(l))",
+        "  d.update(b = l.pop())",
+        "  return l, d, ','.join(l), s.replace('a', 'z')",
+        "result = f('a,b,c')");
+  }
+
+  @Test
+  public void assignments() throws Exception {
+    assertSameResult(
+        "def f():",
+        "  a, (b, c) = 1, [2, 3]",
+        "  l = [0, 1]",
+        "  d = {}",
+        "  l[0], d['x'] = 'first', 'x'",
+        "  a += 10",
+        "  l[1] += 5",
+        "  d['x'] += 'y'",
+        "  l += [c]",
+        "  return a, b, c, l, d",
+        "result = f()");
+  }
+
+  @Test
+  public void loops() throws Exception {
+    assertSameResult(
+        "def f(n):",
+        "  out = []",
+        "  for i in range(n):",
+        "    if i % 2 == 0:",
+        "      continue",
+        "    for j in range(i):",
+        "      if j > 2:",
+        "        break",
+        "      out.append((i, j))",
+        "    if i > 6:",
+        "      break",
+        "  return out",
+        "result = f(10)");
+  }
+
+  @Test
+  public void returnInLoopUnlocksIterable() throws Exception {
+    assertThat(
+            run(
+                true,
+                "def first(l):",
+                "  for x in l:",
+                "    for y in l:",
+                "      return y",
+                "l = [1, 2]",
+                "first(l)",
+                "l.append(3)",
+                "result = l"))
+        .isEqualTo("[1, 2, 3]");
+  }
+
+  @Test
+  public void mutationDuringIteration() throws Exception {
+    assertSameError(
+        "def f(l):",
+        "  for x in l:",
+        "    l.append(x)",
+        "result = f([1])");
+  }
+
+  @Test
+  public void errors() throws Exception {
+    assertSameError(
+        "def g(d, k):",
+        "  return d[k]",
+        "def f(x):",
+        "  return [1, g({}, x)][1]",
+        "result = f('missing')");
+    assertSameError(
+        "def f():",
+        "  x = y",
+        "  y = 1",
+        "result = f()");
+    assertSameError(
+        "def f():",
+        "  a, b = [1, 2, 3]",
+        "result = f()");
+    assertSameError(
+        "def f(x):",
+        "  return {x: 1, 'a': 2}",
+        "result = f('a')");
+    assertSameError(
+        "def g(**kwargs):",
+        "  return kwargs",
+        "def f():",
+        "  return g(a = 1, **{'a': 2})",
+        "result = f()");
+    assertSameError(
+        "def f(x):",
+        "  return x.nope",
+        "result = f(1)");
+  }
+
+  @Test
+  public void notifiesDebuggerBeforeEachStatement() throws Exception {
+    String[] program = {
+      "def f(n):",
+      "  x = 0",
+      "  for i in range(n):",
+      "    x += i",
+      "  return x",
+      "result = f(2)"
+    };
+    List<Integer> eval = recordDebuggedLines(false, program);
+    List<Integer> bytecode = recordDebuggedLines(true, program);
+
+    assertThat(bytecode).isEqualTo(eval);
+    assertThat(bytecode).containsExactly(1, 6, 2, 3, 4, 4, 5).inOrder();
+  }
+
+  private List<Integer> recordDebuggedLines(boolean bytecode, String... lines) throws Exception {
+    List<Integer> debuggedLines = new ArrayList<>();
+    EvalUtils.setDebugger(
+        new Debugger() {
+          @Override
+          public void before(StarlarkThread thread, Location loc) {
+            debuggedLines.add(loc.getStartLine());
+          }
+
+          @Override
+          public void close() {}
+        });
+    try {
+      run(bytecode, lines);
+    } finally {
+      EvalUtils.setDebugger(null);
+    }
+    return debuggedLines;
+  }
+}
@@ -117,6 +117,17 @@ public class FunctionTest extends EvaluationTestCase {
     assertThat(lookup("c")).isEqualTo(2);
   }
 
+  @Test
+  public void testFunctionComprehensionVariableShadowsLocal() throws Exception {
+    exec(
+        "def func(x):",
+        "  y = [x * 2 for x in range(x)]",
+        "  z = [(x, w) for w in y if w > x]",
+        "  return x, y, z",
+        "c = func(3)\n");
+    assertThat(Printer.repr(lookup("c"))).isEqualTo("(3, [0, 2, 4], [(3, 4)])");
+  }
+
   @Test
   public void testFunctionDefLocalVariableReferencedBeforeAssignment() throws Exception {
     checkEvalErrorContains(
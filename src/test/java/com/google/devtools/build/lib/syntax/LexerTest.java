@@ -202,6 +202,30 @@ public class LexerTest {
     assertThat(lastError.toString()).contains("invalid character: 'ä'");
   }
 
+  @Test
+  public void testRepeatedIdentifiersAndStringsShareValues() throws Exception {
+    // Enough distinct names to grow the lexer's string table.
+    StringBuilder input = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      input.append("x").append(i).append(" = 'v").append(i).append("'\n");
+    }
+    input.append("x7 = 'v7' + x7 + 'x7' + \"x7\" + 'a\\tb' + 'a\\tb'\n");
+    Token[] tokens = tokens(input.toString());
+    assertThat(errors).isEmpty();
+
+    Token[] last = new Token[13];
+    System.arraycopy(tokens, tokens.length - 15, last, 0, 13);
+    assertThat(values(last))
+        .isEqualTo(
+            "IDENTIFIER(x7) EQUALS STRING(v7) PLUS IDENTIFIER(x7) PLUS STRING(x7) PLUS STRING(x7) "
+                + "PLUS STRING(a\tb) PLUS STRING(a\tb)");
+    assertThat(last[0].value).isSameInstanceAs(tokens[7 * 4].value);
+    assertThat(last[2].value).isSameInstanceAs(tokens[7 * 4 + 2].value);
+    assertThat(last[4].value).isSameInstanceAs(last[0].value);
+    assertThat(last[6].value).isSameInstanceAs(last[0].value);
+    assertThat(last[8].value).isSameInstanceAs(last[0].value);
+  }
+
   @Test
   public void testCrLf() throws Exception {
     assertThat(names(tokens("\r\n\r\n"))).isEqualTo("NEWLINE EOF");
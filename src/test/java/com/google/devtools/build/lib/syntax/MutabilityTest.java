@@ -17,10 +17,16 @@ package com.google.devtools.build.lib.syntax;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.devtools.build.lib.testutil.MoreAsserts.assertThrows;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.syntax.Mutability.Freezable;
 import com.google.devtools.build.lib.syntax.Mutability.MutabilityException;
+import com.google.devtools.build.lib.syntax.SkylarkList.MutableList;
+import com.google.devtools.build.lib.syntax.SkylarkList.Tuple;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import java.util.Arrays;
+import java.util.HashMap;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -255,4 +261,65 @@ public final class MutabilityTest {
     Mutability mutability = Mutability.createAllowingShallowFreeze("test");
     Freezable.checkUnsafeShallowFreezePrecondition(new DummyFreezable(mutability));
   }
+
+  @Test
+  public void compact_ReplacesFrozenListsAndDictsReachableFromValue() throws Exception {
+    Mutability mutability = Mutability.create("test");
+    MutableList<Object> inner = MutableList.copyOf(mutability, ImmutableList.of(1, 2));
+    SkylarkDict<String, Object> dict =
+        SkylarkDict.copyOf(mutability, ImmutableMap.of("b", inner, "a", 3));
+    MutableList<Object> outer =
+        MutableList.copyOf(mutability, ImmutableList.of(dict, Tuple.of(inner)));
+    mutability.freeze();
+
+    mutability.compact(outer);
+
+    for (Freezable value : ImmutableList.<Freezable>of(outer, dict, inner)) {
+      assertThat(value.mutability()).isSameInstanceAs(Mutability.IMMUTABLE);
+      assertCheckMutableFailsBecauseFrozen(value, mutability);
+    }
+    assertThat(inner.getImmutableList()).isSameInstanceAs(inner.getImmutableList());
+    assertThat(Printer.repr(outer)).isEqualTo("[{\"b\": [1, 2], \"a\": 3}, ([1, 2],)]");
+    assertThat(dict.get("a")).isEqualTo(3);
+  }
+
+  @Test
+  public void compact_IgnoresValuesOfOtherMutabilities() throws Exception {
+    Mutability other = Mutability.create("other");
+    MutableList<Object> inner = MutableList.copyOf(other, ImmutableList.of(1));
+    Mutability mutability = Mutability.create("test");
+    MutableList<Object> outer = MutableList.copyOf(mutability, ImmutableList.of(inner));
+    mutability.freeze();
+
+    mutability.compact(outer);
+
+    assertThat(outer.mutability()).isSameInstanceAs(Mutability.IMMUTABLE);
+    assertThat(inner.mutability()).isSameInstanceAs(other);
+    Mutability.checkMutable(inner, other);
+  }
+
+  @Test
+  public void compact_KeepsNullElements() throws Exception {
+    Mutability mutability = Mutability.create("test");
+    MutableList<Object> list = MutableList.copyOf(mutability, Arrays.asList(1, null));
+    SkylarkDict<String, Object> dict = SkylarkDict.copyOf(mutability, new HashMap<>());
+    dict.put("a", null, Location.BUILTIN, mutability);
+    MutableList<Object> outer = MutableList.copyOf(mutability, ImmutableList.of(list, dict));
+    mutability.freeze();
+
+    mutability.compact(outer);
+
+    assertThat(list.mutability()).isSameInstanceAs(Mutability.IMMUTABLE);
+    assertThat(list).containsExactly(1, null).inOrder();
+    assertThat(dict.mutability()).isSameInstanceAs(Mutability.IMMUTABLE);
+    assertThat(dict).containsExactly("a", null);
+  }
+
+  @Test
+  public void compact_FailsBeforeFreeze() throws Exception {
+    Mutability mutability = Mutability.create("test");
+    MutableList<Object> list = MutableList.copyOf(mutability, ImmutableList.of(1));
+    assertThrows(IllegalStateException.class, () -> mutability.compact(list));
+    Mutability.checkMutable(list, mutability);
+  }
 }
@@ -0,0 +1,124 @@
+// Copyright 2019 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.base.Stopwatch;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Measures lexing and parsing of large generated BUILD files, like those written by tools that
+ * translate other build systems, which consist of many similar rule calls.
+ *
+ * <p>This is a timing test that logs its results rather than asserting on them, so it is excluded
+ * from the regular test suite and only run on demand through its manual target.
+ */
+@RunWith(JUnit4.class)
+public class ParserBenchmark {
+  private static final Logger logger = Logger.getLogger(ParserBenchmark.class.getName());
+
+  private static final PathFragment PATH = PathFragment.create("/workspace/generated/BUILD");
+
+  /** The approximate numbers of lines of the generated files. */
+  private static final int[] LINES = {1000, 50000};
+
+  private static final int WARMUP_REPS = 10;
+  private static final int REPS = 20;
+
+  @Test
+  public void lex() {
+    for (int lines : LINES) {
+      byte[] content = generateBuildFile(lines).getBytes(ISO_8859_1);
+      // Warm up, so that the measurement doesn't include JIT compilation.
+      lex(content, WARMUP_REPS);
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      lex(content, REPS);
+      log("lex", lines, stopwatch);
+    }
+  }
+
+  @Test
+  public void parse() {
+    for (int lines : LINES) {
+      byte[] content = generateBuildFile(lines).getBytes(ISO_8859_1);
+      // Warm up, so that the measurement doesn't include JIT compilation.
+      parse(content, WARMUP_REPS);
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      parse(content, REPS);
+      log("parse", lines, stopwatch);
+    }
+  }
+
+  private static void log(String phase, int lines, Stopwatch stopwatch) {
+    logger.info(
+        String.format(
+            "%s, %d lines: %d us per file",
+            phase, lines, stopwatch.elapsed(TimeUnit.MICROSECONDS) / REPS));
+  }
+
+  private static int lex(byte[] content, int reps) {
+    int tokens = 0;
+    for (int i = 0; i < reps; i++) {
+      Lexer lexer = new Lexer(ParserInput.create(content, PATH), new ArrayList<>());
+      while (lexer.nextToken().kind != TokenKind.EOF) {
+        tokens++;
+      }
+    }
+    return tokens;
+  }
+
+  private static int parse(byte[] content, int reps) {
+    int statements = 0;
+    for (int i = 0; i < reps; i++) {
+      StarlarkFile file = StarlarkFile.parse(ParserInput.create(content, PATH));
+      statements += file.getStatements().size();
+    }
+    return statements;
+  }
+
+  /** Returns a BUILD file of about the given number of lines. */
+  static String generateBuildFile(int lines) {
+    StringBuilder buf = new StringBuilder();
+    buf.append("load('//tools/build_defs:cc.bzl', 'generated_cc_library')\n\n");
+    for (int i = 0; buf.length() < lines * 32; i++) {
+      buf.append("# Generated from src/module_").append(i).append("/CMakeLists.txt\n");
+      buf.append("generated_cc_library(\n");
+      buf.append("    name = \"module_").append(i).append("\",\n");
+      buf.append("    srcs = [\n");
+      for (int j = 0; j < 4; j++) {
+        buf.append("        \"module_").append(i).append("/file_").append(j).append(".cc\",\n");
+      }
+      buf.append("    ],\n");
+      buf.append("    hdrs = glob([\"module_").append(i).append("/*.h\"]),\n");
+      buf.append("    copts = [\"-Wall\", \"-Werror\", \"-DMODULE_ID=").append(i).append("\"],\n");
+      buf.append("    deps = [\n");
+      for (int j = Math.max(0, i - 3); j < i; j++) {
+        buf.append("        \":module_").append(j).append("\",\n");
+      }
+      buf.append("        \"//base\",\n");
+      buf.append("        \"//third_party/absl/strings\",\n");
+      buf.append("    ],\n");
+      buf.append("    visibility = [\"//visibility:public\"],\n");
+      buf.append(")\n\n");
+    }
+    return buf.toString();
+  }
+}
@@ -58,6 +58,28 @@ public class ValidationTest {
     return events.assertContainsError(expectedMessage);
   }
 
+  @Test
+  public void testLocalsAreResolvedToSlots() throws Exception {
+    StarlarkFile file =
+        EvalUtils.parseAndValidateSkylark(
+            ParserInput.fromLines(
+                "x = 1",
+                "def f(a, b = 1):",
+                "  c = [a for a in b]",
+                "  d = [e for e in c]",
+                "  return c + x"),
+            thread);
+    DefStatement def = (DefStatement) file.getStatements().get(1);
+    BinaryOperatorExpression result =
+        (BinaryOperatorExpression)
+            ((ReturnStatement) def.getStatements().get(2)).getReturnExpression();
+
+    // Comprehension variables share the slot of a function variable of the same name.
+    assertThat(def.getLocals()).containsExactly("a", "b", "c", "d", "e").inOrder();
+    assertThat(((Identifier) result.getX()).getSlot()).isEqualTo(2);
+    assertThat(((Identifier) result.getY()).getSlot()).isEqualTo(-1);
+  }
+
   @Test
   public void testAssignmentNotValidLValue() {
     checkError("cannot assign to '\"a\"'", "'a' = 1");
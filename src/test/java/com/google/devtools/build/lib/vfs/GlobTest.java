@@ -31,6 +31,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -315,6 +316,63 @@ public class GlobTest {
 
   }
 
+  @Test
+  public void testMultiplePatternsReadEachDirectoryOnce() throws Exception {
+    List<Path> readdirs = Collections.synchronizedList(new ArrayList<>());
+    UnixGlob.FilesystemCalls syscalls =
+        new UnixGlob.FilesystemCalls() {
+          @Override
+          public FileStatus statIfFound(Path path, Symlinks symlinks) throws IOException {
+            return UnixGlob.DEFAULT_SYSCALLS.statIfFound(path, symlinks);
+          }
+
+          @Override
+          public Collection<Dirent> readdir(Path path) throws IOException {
+            readdirs.add(path);
+            return UnixGlob.DEFAULT_SYSCALLS.readdir(path);
+          }
+
+          @Override
+          public Dirent.Type getType(Path path, Symlinks symlinks) {
+            throw new IllegalStateException();
+          }
+        };
+
+    assertThat(
+            new UnixGlob.Builder(tmpPath)
+                .addPatterns("**/wiz", "foo/*/wiz/*", "*/barnacle", "**/file")
+                .setFilesystemCalls(new AtomicReference<>(syscalls))
+                .glob())
+        .containsExactlyElementsIn(
+            resolvePaths(
+                "foo/bar/wiz",
+                "foo/barnacle/wiz",
+                "food/barnacle/wiz",
+                "fool/barnacle/wiz",
+                "foo/bar/wiz/file",
+                "foo/barnacle",
+                "food/barnacle",
+                "fool/barnacle"));
+    assertThat(readdirs).containsNoDuplicates();
+  }
+
+  @Test
+  public void testGlobAsyncByPattern() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<List<Path>>> results =
+        new UnixGlob.Builder(tmpPath)
+            .addPatterns("foo*", "**/wiz/*", "nonexistent/*", "foo")
+            .setExecutor(executor)
+            .globAsyncByPattern();
+
+    assertThat(results).hasSize(4);
+    assertThat(results.get(0).get()).containsExactlyElementsIn(resolvePaths("foo", "food", "fool"));
+    assertThat(results.get(1).get()).containsExactlyElementsIn(resolvePaths("foo/bar/wiz/file"));
+    assertThat(results.get(2).get()).isEmpty();
+    assertThat(results.get(3).get()).containsExactlyElementsIn(resolvePaths("foo"));
+    executor.shutdown();
+  }
+
   private void assertGlobMatchesAnyOrder(ArrayList<String> patterns,
                                          String... paths) throws Exception {
     assertThat(resolvePaths(paths)).containsExactlyElementsIn(
@@ -66,6 +66,31 @@ public class PathFragmentTest {
     assertThat(rootPath.hashCode()).isEqualTo(rootResult);
   }
 
+  @Test
+  public void testEqualsDoesNotDependOnCachedHashCode() {
+    PathFragment hashed = create("a/b/c");
+    PathFragment unhashed = create("a/b").getRelative("c");
+    PathFragment other = create("a/b/d");
+    hashed.hashCode();
+    other.hashCode();
+
+    assertThat(hashed).isEqualTo(unhashed);
+    assertThat(unhashed).isEqualTo(hashed);
+    assertThat(hashed).isNotEqualTo(other);
+    assertThat(unhashed.hashCode()).isEqualTo(hashed.hashCode());
+    assertThat(unhashed).isEqualTo(hashed);
+  }
+
+  @Test
+  public void testIntern() {
+    PathFragment first = PathFragment.intern(create("a/b/c"));
+    PathFragment second = create("a/b").getRelative("c");
+
+    assertThat(PathFragment.intern(second)).isSameInstanceAs(first);
+    assertThat(PathFragment.intern(first)).isSameInstanceAs(first);
+    assertThat(PathFragment.intern(create("a/b/d"))).isNotSameInstanceAs(first);
+  }
+
   @Test
   public void testRelativeTo() {
     assertThat(create("foo/bar/baz").relativeTo("foo").getPathString()).isEqualTo("bar/baz");
@@ -954,6 +954,67 @@ EOF
   || fail "Expected bazel-bin/a/remote.txt to have been deleted again"
 }
 
+function test_downloads_minimal_rewinds_evicted_input() {
+  # Test that when using --remote_download_minimal a remote-only output that's
+  # evicted from the remote cache before a local action needs it is generated
+  # again by rewinding, if --experimental_rewind_lost_inputs is set.
+  mkdir -p a
+  cat > a/BUILD <<EOF
+genrule(
+  name = "remote",
+  srcs = [],
+  outs = ["remote.txt"],
+  cmd = "echo -n \"remote\" > \"\$@\"",
+)
+
+# Runs after remote.txt was stored remotely, without downloading it.
+genrule(
+  name = "remote_done",
+  srcs = [":remote"],
+  outs = ["remote_done.txt"],
+  cmd = "touch \"\$@\"",
+)
+
+genrule(
+  name = "evict",
+  srcs = [":remote_done"],
+  outs = ["evict.txt"],
+  cmd = "rm -rf ${cas_path}/* && touch \"\$@\"",
+  tags = ["no-remote", "no-sandbox"],
+)
+
+genrule(
+  name = "local",
+  srcs = [":remote", ":evict"],
+  outs = ["local.txt"],
+  cmd = "cat \$(location :remote) > \"\$@\" && echo -n \"local\" >> \"\$@\"",
+  tags = ["no-remote"],
+)
+EOF
+
+  bazel build \
+    --genrule_strategy=remote,local \
+    --remote_executor=grpc://localhost:${worker_port} \
+    --remote_download_minimal \
+    --notrack_incremental_state \
+    --nouse_action_cache \
+    //a:local >& $TEST_log && fail "Expected //a:local to fail without rewinding"
+  expect_log "does not exist remotely"
+
+  bazel build \
+    --genrule_strategy=remote,local \
+    --remote_executor=grpc://localhost:${worker_port} \
+    --remote_download_minimal \
+    --notrack_incremental_state \
+    --nouse_action_cache \
+    --experimental_rewind_lost_inputs \
+    //a:local >& $TEST_log || fail "Failed to build //a:local with rewinding"
+
+  localtxt="bazel-bin/a/local.txt"
+  [[ $(< ${localtxt}) == "remotelocal" ]] \
+  || fail "Unexpected contents in " ${localtxt} ": " $(< ${localtxt})
+}
+
 function test_download_outputs_invalidation() {
   # Test that when changing values of --remote_download_minimal all actions are
   # invalidated.